@@ -0,0 +1,208 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.comment;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.atlassian.stash.nav.NavBuilder;
+import com.atlassian.stash.pull.PullRequestService;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.user.StashUser;
+import com.atlassian.stash.util.Operation;
+import com.palantir.stash.disapprove.jfr.CommentEvent;
+import com.palantir.stash.disapprove.jfr.DisapprovalJfr;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+
+/**
+ * Posts the "disapproved" and "disapproval removed" comments on pull requests, and the ones about new commits on a
+ * disapproved pull request.
+ * 
+ * {@link com.palantir.stash.disapprove.servlet.DisapprovalServlet} comments on the one pull request it changed before
+ * answering. Bulk changes can touch hundreds, so they queue their comments instead, to be posted one at a time on a
+ * background thread as the user who made the change. If the queue is full the comment is dropped (and logged); the
+ * disapproval itself is already saved either way.
+ * 
+ * @author cmyers
+ */
+public class DisapprovalCommenter implements InitializingBean, DisposableBean {
+
+    private static final int QUEUE_CAPACITY = 10000;
+
+    private final PullRequestService pullRequestService;
+    private final SecurityService securityService;
+    private final NavBuilder nb;
+    private final Logger log;
+
+    private ThreadPoolExecutor executor;
+
+    public DisapprovalCommenter(PullRequestService pullRequestService, SecurityService securityService,
+        NavBuilder nb, PluginLoggerFactory lf) {
+        this.pullRequestService = pullRequestService;
+        this.securityService = securityService;
+        this.nb = nb;
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        executor =
+            new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY),
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "disapproval-comments");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    @Override
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Comments as the current user, before returning.
+     */
+    public void comment(int repositoryId, long pullRequestId, String userName, boolean disapproved) {
+        comment(repositoryId, pullRequestId, userName, disapproved, null);
+    }
+
+    /**
+     * Comments as the current user, before returning, quoting why the pull request was disapproved.
+     * 
+     * @param reason why, or null for no reason; ignored unless disapproved
+     */
+    public void comment(int repositoryId, long pullRequestId, String userName, boolean disapproved, String reason) {
+        String text = getCommentText(userName, disapproved);
+        if (disapproved && reason != null) {
+            text += "\n\n" + quote(reason);
+        }
+        post(repositoryId, pullRequestId, text, disapproved);
+    }
+
+    /**
+     * Comments as the current user that new commits were pushed to a disapproved pull request, before returning.
+     * 
+     * @param cleared whether the disapproval was removed because of them
+     */
+    public void commentRescoped(int repositoryId, long pullRequestId, boolean cleared) {
+        post(repositoryId, pullRequestId, getRescopedText(cleared), !cleared);
+    }
+
+    private void post(int repositoryId, long pullRequestId, String text, boolean disapproved) {
+        CommentEvent event = DisapprovalJfr.beginComment();
+        boolean succeeded = false;
+        try {
+            pullRequestService.addComment(repositoryId, pullRequestId, text);
+            succeeded = true;
+        } finally {
+            if (event != null) {
+                event.complete(repositoryId, pullRequestId, disapproved, succeeded);
+            }
+        }
+    }
+
+    /**
+     * Queues a comment to be posted as user.
+     */
+    public void commentLater(int repositoryId, long pullRequestId, StashUser user, boolean disapproved) {
+        commentLater(repositoryId, pullRequestId, user, disapproved, null);
+    }
+
+    /**
+     * Queues a comment to be posted as user, quoting why the pull request was disapproved.
+     * 
+     * @param reason why, or null for no reason; ignored unless disapproved
+     */
+    public void commentLater(final int repositoryId, final long pullRequestId, final StashUser user,
+        final boolean disapproved, final String reason) {
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        securityService.impersonating(user, "Commenting on a disapproval change").call(
+                            new Operation<Void, RuntimeException>() {
+
+                                @Override
+                                public Void perform() {
+                                    comment(repositoryId, pullRequestId, user.getName(), disapproved, reason);
+                                    return null;
+                                }
+                            });
+                    } catch (Exception e) {
+                        log.error("Unable to comment on pull request " + repositoryId + "/" + pullRequestId, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Too many disapproval comments queued, not commenting on pull request " + repositoryId + "/"
+                + pullRequestId);
+        }
+    }
+
+    private String getCommentText(String user, boolean disapproved) {
+        if (disapproved) {
+            //final String HTML = "<span style=\"color: #AA0000;\">ಠ_ಠ</span> Pull request disapproved";
+            final String disapprovalFace =
+                nb.buildAbsolute() + "/plugins/servlet/disapproval/static-content/disapprovalface.png";
+            final String IMAGE = "![ಠ_ಠ](" + disapprovalFace + ") Pull request disapproved";
+            return IMAGE.replace("__USER__", user);
+        }
+        final String undisapprovalface =
+            nb.buildAbsolute() + "/plugins/servlet/disapproval/static-content/undisapprovalface.png";
+        final String IMAGE = "![( ͡° ͜ʖ ͡°)](" + undisapprovalface + ") Pull request disapproval removed";
+        return IMAGE.replace("__USER__", user);
+    }
+
+    /**
+     * Turns text into a markdown block quote, line by line.
+     */
+    private static String quote(String text) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : text.split("\r?\n", -1)) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append("> ").append(line);
+        }
+        return sb.toString();
+    }
+
+    private String getRescopedText(boolean cleared) {
+        if (cleared) {
+            final String undisapprovalface =
+                nb.buildAbsolute() + "/plugins/servlet/disapproval/static-content/undisapprovalface.png";
+            return "![( ͡° ͜ʖ ͡°)](" + undisapprovalface
+                + ") Pull request disapproval removed, new commits were pushed";
+        }
+        final String disapprovalFace =
+            nb.buildAbsolute() + "/plugins/servlet/disapproval/static-content/disapprovalface.png";
+        return "![ಠ_ಠ](" + disapprovalFace + ") New commits were pushed since this pull request was disapproved";
+    }
+}
@@ -27,7 +27,7 @@ import com.atlassian.stash.user.PermissionService;
 import com.atlassian.stash.user.StashUser;
 import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
 import com.palantir.stash.disapprove.persistence.PersistenceManager;
-import com.palantir.stash.disapprove.persistence.PullRequestDisapproval;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalSnapshot;
 
 /**
  * A condition which checks if the user can disapprove or remove disapproval for the PR
@@ -50,7 +50,7 @@ public class CanUserDisapprove implements Condition {
     public CanUserDisapprove(PermissionService ps, PersistenceManager pm, PluginLoggerFactory plf) {
         this.ps = ps;
         this.pm = pm;
-        this.log = plf.getLogger(CanUserDisapprove.class.toString());
+        this.log = plf.getLoggerForThis(this);
     }
 
     @Override
@@ -74,7 +74,7 @@ public class CanUserDisapprove implements Condition {
             throw new IllegalStateException("Unable to get user!");
         }
 
-        PullRequestDisapproval prd;
+        PullRequestDisapprovalSnapshot prd;
         try {
             prd = pm.getPullRequestDisapproval(pr);
             // if it isn't disapproved yet, anyone with read perms can disapprove
@@ -87,7 +87,7 @@ public class CanUserDisapprove implements Condition {
             }
             // if it is already disapproved, only the disapprover or an admin can undisapprove
             log.trace("PR is disapproved");
-            if (user.getName().equals(prd.getDisapprovedBy())) {
+            if (prd.isDisapprovedBy(user)) {
                 return true;
             }
             if (ps.hasRepositoryPermission(repo, Permission.REPO_ADMIN)) {
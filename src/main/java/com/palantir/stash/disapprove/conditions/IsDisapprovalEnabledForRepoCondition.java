@@ -22,7 +22,7 @@ import com.atlassian.plugin.PluginParseException;
 import com.atlassian.plugin.web.Condition;
 import com.atlassian.stash.repository.Repository;
 import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
-import com.palantir.stash.disapprove.persistence.DisapprovalConfiguration;
+import com.palantir.stash.disapprove.persistence.DisapprovalConfigurationSnapshot;
 import com.palantir.stash.disapprove.persistence.PersistenceManager;
 
 public class IsDisapprovalEnabledForRepoCondition implements Condition {
@@ -44,7 +44,7 @@ public class IsDisapprovalEnabledForRepoCondition implements Condition {
 
         // request, principal, changeset, repository
         Repository repo = (Repository) context.get("repository");
-        DisapprovalConfiguration dc;
+        DisapprovalConfigurationSnapshot dc;
         if (repo == null) {
             return false;
         }
@@ -23,7 +23,7 @@ import com.atlassian.plugin.web.Condition;
 import com.atlassian.stash.pull.PullRequest;
 import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
 import com.palantir.stash.disapprove.persistence.PersistenceManager;
-import com.palantir.stash.disapprove.persistence.PullRequestDisapproval;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalSnapshot;
 
 /**
  * A condition which checks that the pull request is disapproved (or not). <code>
@@ -41,7 +41,7 @@ public class IsPullRequestDisapproved implements Condition {
 
     public IsPullRequestDisapproved(PersistenceManager pm, PluginLoggerFactory plf) {
         this.pm = pm;
-        this.log = plf.getLogger(IsPullRequestDisapproved.class.toString());
+        this.log = plf.getLoggerForThis(this);
     }
 
     @Override
@@ -52,7 +52,7 @@ public class IsPullRequestDisapproved implements Condition {
     @Override
     public boolean shouldDisplay(Map<String, Object> context) {
         final PullRequest pr = (PullRequest) context.get("pullRequest");
-        PullRequestDisapproval prd;
+        PullRequestDisapprovalSnapshot prd;
         try {
             prd = pm.getPullRequestDisapproval(pr);
         } catch (SQLException e) {
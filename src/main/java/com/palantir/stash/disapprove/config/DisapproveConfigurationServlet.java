@@ -33,11 +33,13 @@ import com.atlassian.stash.repository.RepositoryService;
 import com.atlassian.stash.user.Permission;
 import com.atlassian.stash.user.PermissionValidationService;
 import com.atlassian.webresource.api.assembler.PageBuilderService;
+import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableMap;
 import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
-import com.palantir.stash.disapprove.persistence.DisapprovalConfiguration;
+import com.palantir.stash.disapprove.persistence.DisapprovalConfigurationSnapshot;
 import com.palantir.stash.disapprove.persistence.DisapprovalMode;
 import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.persistence.RescopePolicy;
 
 public class DisapproveConfigurationServlet extends HttpServlet {
 
@@ -89,7 +91,7 @@ public class DisapproveConfigurationServlet extends HttpServlet {
 
         res.setContentType("text/html;charset=UTF-8");
         try {
-            DisapprovalConfiguration dc = pm.getDisapprovalConfiguration(repo);
+            DisapprovalConfigurationSnapshot dc = pm.getDisapprovalConfiguration(repo);
             pageBuilderService.assembler().resources().requireContext("plugin.page.disapproval");
             soyTemplateRenderer.render(res.getWriter(),
                 // This key is the POM groupId + "." + the POM artifactID + ":" + the atlassian-plugin.xml resource name
@@ -100,6 +102,10 @@ public class DisapproveConfigurationServlet extends HttpServlet {
                     .put("disapprovalConfiguration", dc)
                     .put("isStrict", dc.getDisapprovalMode().equals(DisapprovalMode.STRICT_MODE) ? "true" : "")
                     .put("isEnabled", dc.isEnabled())
+                    .put("isInherited", dc.isInherited())
+                    .put("isFrozen", dc.getFreeze().isFrozen())
+                    .put("freezeBranches", Joiner.on(", ").join(dc.getFreeze().getBranches()))
+                    .put("rescopePolicies", RescopePolicy.getSelectList(dc.getRescopePolicy()))
                     .build()
                 );
         } catch (SoyException e) {
@@ -0,0 +1,42 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.palantir.stash.disapprove.ConfigurationLookup")
+@Label("Disapproval Configuration Lookup")
+@Category({ "Stash", "Disapproval" })
+@Description("Reading a repository's disapproval configuration")
+public class ConfigurationLookupEvent extends jdk.jfr.Event {
+
+    @Label("Repository Id")
+    private int repoId;
+
+    @Label("Enabled")
+    private boolean enabled;
+
+    @Label("Cache Hit")
+    private boolean cacheHit;
+
+    public void complete(int repoId, boolean enabled, boolean cacheHit) {
+        this.repoId = repoId;
+        this.enabled = enabled;
+        this.cacheHit = cacheHit;
+        commit();
+    }
+}
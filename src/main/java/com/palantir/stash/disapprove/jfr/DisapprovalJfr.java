@@ -0,0 +1,113 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.jfr;
+
+/**
+ * Entry point for the plugin's Java Flight Recorder events.
+ * 
+ * Every begin method returns null when there is no JFR to record to (older JVMs, or a plugin framework that doesn't
+ * expose jdk.jfr to plugins) or when nobody is recording that event, so callers only pay for a null check:
+ * 
+ * <pre>
+ * MergeCheckEvent event = DisapprovalJfr.beginMergeCheck();
+ * ...
+ * if (event != null) {
+ *     event.complete(repoId, prId, outcome);
+ * }
+ * </pre>
+ * 
+ * Whether an event is being recorded is asked of its cached {@link jdk.jfr.EventType}, so nothing is allocated unless
+ * it is. The event classes are only loaded once JFR is known to be present, so the plugin still loads everywhere else.
+ * Record them with, e.g., <code>jcmd &lt;pid&gt; JFR.start settings=profile</code> and look under Stash /
+ * Disapproval in Mission Control.
+ * 
+ * @author cmyers
+ */
+public final class DisapprovalJfr {
+
+    private static final boolean AVAILABLE = probe();
+
+    private DisapprovalJfr() {
+    }
+
+    private static boolean probe() {
+        try {
+            Class.forName("jdk.jfr.Event", false, DisapprovalJfr.class.getClassLoader());
+            // registers the event types
+            Class.forName(EventTypes.class.getName(), true, DisapprovalJfr.class.getClassLoader());
+            return true;
+        } catch (Throwable t) {
+            // ClassNotFoundException, a LinkageError from a half-visible package, or a JVM that can't record
+            return false;
+        }
+    }
+
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    public static ConfigurationLookupEvent beginConfigurationLookup() {
+        if (!AVAILABLE || !EventTypes.CONFIGURATION_LOOKUP.isEnabled()) {
+            return null;
+        }
+        ConfigurationLookupEvent event = new ConfigurationLookupEvent();
+        event.begin();
+        return event;
+    }
+
+    public static DisapprovalLookupEvent beginDisapprovalLookup() {
+        if (!AVAILABLE || !EventTypes.DISAPPROVAL_LOOKUP.isEnabled()) {
+            return null;
+        }
+        DisapprovalLookupEvent event = new DisapprovalLookupEvent();
+        event.begin();
+        return event;
+    }
+
+    public static DisapprovalTransitionEvent beginTransition() {
+        if (!AVAILABLE || !EventTypes.TRANSITION.isEnabled()) {
+            return null;
+        }
+        DisapprovalTransitionEvent event = new DisapprovalTransitionEvent();
+        event.begin();
+        return event;
+    }
+
+    public static MergeCheckEvent beginMergeCheck() {
+        if (!AVAILABLE || !EventTypes.MERGE_CHECK.isEnabled()) {
+            return null;
+        }
+        MergeCheckEvent event = new MergeCheckEvent();
+        event.begin();
+        return event;
+    }
+
+    public static CommentEvent beginComment() {
+        if (!AVAILABLE || !EventTypes.COMMENT.isEnabled()) {
+            return null;
+        }
+        CommentEvent event = new CommentEvent();
+        event.begin();
+        return event;
+    }
+
+    public static StaticContentEvent beginStaticContent() {
+        if (!AVAILABLE || !EventTypes.STATIC_CONTENT.isEnabled()) {
+            return null;
+        }
+        StaticContentEvent event = new StaticContentEvent();
+        event.begin();
+        return event;
+    }
+}
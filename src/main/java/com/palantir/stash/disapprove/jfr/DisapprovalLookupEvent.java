@@ -0,0 +1,47 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.palantir.stash.disapprove.DisapprovalLookup")
+@Label("Pull Request Disapproval Lookup")
+@Category({ "Stash", "Disapproval" })
+@Description("Reading a pull request's disapproval state, creating it if missing")
+public class DisapprovalLookupEvent extends jdk.jfr.Event {
+
+    @Label("Repository Id")
+    private int repoId;
+
+    @Label("Pull Request Id")
+    private long prId;
+
+    @Label("Created")
+    @Description("The row did not exist and was created by this lookup")
+    private boolean created;
+
+    @Label("Disapproved")
+    private boolean disapproved;
+
+    public void complete(int repoId, long prId, boolean created, boolean disapproved) {
+        this.repoId = repoId;
+        this.prId = prId;
+        this.created = created;
+        this.disapproved = disapproved;
+        commit();
+    }
+}
@@ -0,0 +1,33 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.jfr;
+
+import jdk.jfr.EventType;
+
+/**
+ * The type of each event, looked up once, so that {@link DisapprovalJfr} can ask whether an event is being recorded
+ * without allocating one. Only initialized once jdk.jfr is known to be present.
+ */
+final class EventTypes {
+
+    static final EventType CONFIGURATION_LOOKUP = EventType.getEventType(ConfigurationLookupEvent.class);
+    static final EventType DISAPPROVAL_LOOKUP = EventType.getEventType(DisapprovalLookupEvent.class);
+    static final EventType TRANSITION = EventType.getEventType(DisapprovalTransitionEvent.class);
+    static final EventType MERGE_CHECK = EventType.getEventType(MergeCheckEvent.class);
+    static final EventType COMMENT = EventType.getEventType(CommentEvent.class);
+    static final EventType STATIC_CONTENT = EventType.getEventType(StaticContentEvent.class);
+
+    private EventTypes() {
+    }
+}
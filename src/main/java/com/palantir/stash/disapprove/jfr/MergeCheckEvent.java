@@ -0,0 +1,42 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.palantir.stash.disapprove.MergeCheck")
+@Label("Disapproval Merge Check")
+@Category({ "Stash", "Disapproval" })
+@Description("Evaluating whether a disapproval vetoes a merge")
+public class MergeCheckEvent extends jdk.jfr.Event {
+
+    @Label("Repository Id")
+    private int repoId;
+
+    @Label("Pull Request Id")
+    private long prId;
+
+    @Label("Outcome")
+    private String outcome;
+
+    public void complete(int repoId, long prId, String outcome) {
+        this.repoId = repoId;
+        this.prId = prId;
+        this.outcome = outcome;
+        commit();
+    }
+}
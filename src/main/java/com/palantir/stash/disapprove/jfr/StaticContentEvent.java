@@ -0,0 +1,44 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.palantir.stash.disapprove.StaticContent")
+@Label("Disapproval Static Content")
+@Category({ "Stash", "Disapproval" })
+@Description("Serving an image from the static content servlet")
+public class StaticContentEvent extends jdk.jfr.Event {
+
+    @Label("Path")
+    private String path;
+
+    @Label("Found")
+    private boolean found;
+
+    @Label("Size")
+    @DataAmount
+    private long bytes;
+
+    public void complete(String path, boolean found, long bytes) {
+        this.path = path;
+        this.found = found;
+        this.bytes = bytes;
+        commit();
+    }
+}
@@ -19,6 +19,7 @@ import java.io.InputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.joran.JoranConfigurator;
 import ch.qos.logback.core.joran.spi.JoranException;
@@ -28,6 +29,10 @@ import com.atlassian.sal.api.ApplicationProperties;
 /**
  * Programmatically configure our logging.
  * 
+ * The configuration is applied to the shared logback context once per plugin instance, no matter how many factories are
+ * constructed. Debug logging is off by default and can be toggled with {@link #setDebugEnabled(boolean)} (or started
+ * on with -Ddisapproval.debug=true) without re-reading the configuration.
+ * 
  * For details, see: http://logback.qos.ch/manual/configuration.html
  * 
  * @author cmyers
@@ -35,9 +40,13 @@ import com.atlassian.sal.api.ApplicationProperties;
  */
 public class PluginLoggerFactory {
 
-    private static final String ROOT = "com.palantir.stash.signupmanager";
+    private static final String ROOT = "com.palantir.stash.disapprove";
+    private static final String DEBUG_PROPERTY = "disapproval.debug";
     private static final Logger stashRootLogger = LoggerFactory.getLogger("ROOT");
 
+    // guarded by the class, so concurrent or repeated construction only configures logback once
+    private static boolean configured = false;
+
     private LoggerContext context;
 
     private final String homeDir;
@@ -52,30 +61,71 @@ public class PluginLoggerFactory {
         init();
     }
 
+    /**
+     * Configures a context of the caller's own from logback.xml, ignoring any logback-test.xml, so that the shipped
+     * configuration can be checked without touching the shared context.
+     */
+    public PluginLoggerFactory(LoggerContext context, File homeDirectory) {
+        homeDir = homeDirectory.getAbsolutePath();
+        this.context = context;
+        configure(this.getClass().getClassLoader().getResourceAsStream("logback.xml"));
+    }
+
     private void init() {
         // Assumes LSF4J is bound to logback
         context = (LoggerContext) LoggerFactory.getILoggerFactory();
 
+        synchronized (PluginLoggerFactory.class) {
+            if (configured) {
+                return;
+            }
+            configured = true;
+
+            InputStream is;
+            is = this.getClass().getClassLoader().getResourceAsStream("logback-test.xml");
+            if (is != null) {
+                stashRootLogger.info("Using logback-test.xml for logger settings");
+            } else {
+                stashRootLogger.info("Using logback.xml for logger settings");
+                is = this.getClass().getClassLoader().getResourceAsStream("logback.xml");
+            }
+            configure(is);
+        }
+    }
+
+    private void configure(InputStream is) {
         // store the home dir to use for relative paths
         context.putProperty("stash.home", homeDir);
 
+        // a previous instance of this plugin (before an upgrade or re-enable) may have left its appenders, and
+        // their threads and file handles, attached to our logger
+        context.getLogger(ROOT).detachAndStopAllAppenders();
+
         JoranConfigurator configurator = new JoranConfigurator();
         configurator.setContext(context);
 
-        InputStream is;
-        is = this.getClass().getClassLoader().getResourceAsStream("logback-test.xml");
-        if (is != null) {
-            stashRootLogger.info("Using logback-test.xml for logger settings");
-        } else {
-            stashRootLogger.info("Using logback.xml for logger settings");
-            is = this.getClass().getClassLoader().getResourceAsStream("logback.xml");
-        }
-
         try {
             configurator.doConfigure(is);
         } catch (JoranException e) {
             System.err.println("Error configuring logging framework" + e);
         }
+
+        if (Boolean.getBoolean(DEBUG_PROPERTY)) {
+            setDebugEnabled(true);
+        }
+    }
+
+    /**
+     * Switches debug logging for the whole plugin on or off. This only changes the level of the plugin's root logger;
+     * appenders and the rest of the configuration are left alone.
+     */
+    public void setDebugEnabled(boolean enabled) {
+        context.getLogger(ROOT).setLevel(enabled ? Level.DEBUG : Level.INFO);
+        stashRootLogger.info("Disapproval plugin debug logging " + (enabled ? "enabled" : "disabled"));
+    }
+
+    public boolean isDebugEnabled() {
+        return context.getLogger(ROOT).isDebugEnabled();
     }
 
     public Logger getLogger() {
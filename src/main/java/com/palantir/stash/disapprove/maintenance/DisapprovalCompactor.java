@@ -0,0 +1,250 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.maintenance;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestDirection;
+import com.atlassian.stash.pull.PullRequestOrder;
+import com.atlassian.stash.pull.PullRequestService;
+import com.atlassian.stash.pull.PullRequestState;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Operation;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.atlassian.stash.util.PageRequestImpl;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.DisapprovalPage;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalSnapshot;
+
+/**
+ * Periodically deletes the disapproval rows of pull requests that are closed and not disapproved.
+ *
+ * {@link com.palantir.stash.disapprove.mergecheck.PullRequestMetadataDeRuiner} creates a row for every pull request,
+ * and nothing else ever removes them. Once a pull request is merged or declined without being disapproved its row
+ * says nothing a missing row wouldn't, so this walks the table in id order, a batch at a time, and drops those rows.
+ * Pull request state is checked per repository in one listing of its open pull requests, not one lookup per row.
+ * There is no user on the compaction thread, so those lookups are made with system admin permission.
+ *
+ * Tuned with system properties:
+ * <ul>
+ * <li>disapproval.compaction.rowsPerSecond - how fast to scan (default 200); 0 switches compaction off</li>
+ * <li>disapproval.compaction.intervalHours - time between runs (default 24)</li>
+ * </ul>
+ *
+ * @author cmyers
+ */
+public class DisapprovalCompactor implements InitializingBean, DisposableBean {
+
+    public static final String ROWS_PER_SECOND_PROPERTY = "disapproval.compaction.rowsPerSecond";
+    public static final String INTERVAL_HOURS_PROPERTY = "disapproval.compaction.intervalHours";
+
+    private static final int DEFAULT_ROWS_PER_SECOND = 200;
+    private static final int DEFAULT_INTERVAL_HOURS = 24;
+    // give the instance time to finish starting up before the first run
+    private static final long INITIAL_DELAY_MINUTES = 15;
+
+    private static final int BATCH_SIZE = 500;
+    private static final int OPEN_PULL_REQUEST_PAGE_SIZE = 100;
+    // open pull request ids kept per run; the rows of one repository are usually spread across the whole table
+    private static final int MAX_CACHED_REPOSITORIES = 1000;
+
+    private final PersistenceManager pm;
+    private final PullRequestService pullRequestService;
+    private final RepositoryService repositoryService;
+    private final SecurityService securityService;
+    private final Logger log;
+    private final int rowsPerSecond;
+    private final int intervalHours;
+
+    private volatile boolean stopped;
+    private ScheduledExecutorService executor;
+
+    public DisapprovalCompactor(PersistenceManager pm, PullRequestService pullRequestService,
+        RepositoryService repositoryService, SecurityService securityService, PluginLoggerFactory lf) {
+        this.pm = pm;
+        this.pullRequestService = pullRequestService;
+        this.repositoryService = repositoryService;
+        this.securityService = securityService;
+        this.log = lf.getLoggerForThis(this);
+        this.rowsPerSecond = Integer.getInteger(ROWS_PER_SECOND_PROPERTY, DEFAULT_ROWS_PER_SECOND);
+        this.intervalHours = Math.max(1, Integer.getInteger(INTERVAL_HOURS_PROPERTY, DEFAULT_INTERVAL_HOURS));
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (rowsPerSecond <= 0) {
+            log.info("Disapproval compaction is switched off");
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "disapproval-compaction");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (Exception e) {
+                    // keep the schedule going, the next run starts from the beginning anyway
+                    log.error("Disapproval compaction failed", e);
+                }
+            }
+        }, INITIAL_DELAY_MINUTES, TimeUnit.HOURS.toMinutes(intervalHours), TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void destroy() {
+        stopped = true;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Makes one pass over the table.
+     *
+     * @return how many rows were deleted
+     */
+    public int compact() throws SQLException {
+        return securityService.withPermission(Permission.SYS_ADMIN, "Disapproval compaction").call(
+            new Operation<Integer, SQLException>() {
+
+                @Override
+                public Integer perform() throws SQLException {
+                    return doCompact();
+                }
+            });
+    }
+
+    private int doCompact() throws SQLException {
+        log.info("Starting disapproval compaction at " + rowsPerSecond + " rows/sec");
+        final long startNanos = System.nanoTime();
+        final Map<Integer, Set<Long>> openByRepository = new HashMap<Integer, Set<Long>>();
+        int scanned = 0;
+        int deleted = 0;
+        int start = 0;
+        DisapprovalPage page;
+        do {
+            if (stopped) {
+                log.info("Disapproval compaction interrupted by shutdown");
+                break;
+            }
+            page = pm.findUndisapprovedPullRequests(start, BATCH_SIZE);
+            if (!page.isLastPage()) {
+                start = page.getNextPageStart();
+            }
+
+            Map<Integer, List<Long>> closedByRepository = new HashMap<Integer, List<Long>>();
+            for (PullRequestDisapprovalSnapshot prd : page.getValues()) {
+                if (openByRepository.size() >= MAX_CACHED_REPOSITORIES) {
+                    openByRepository.clear();
+                }
+                Set<Long> open = openByRepository.get(prd.getRepositoryId());
+                if (open == null) {
+                    open = getOpenPullRequestIds(prd.getRepositoryId());
+                    openByRepository.put(prd.getRepositoryId(), open);
+                }
+                if (!open.contains(prd.getPullRequestId())) {
+                    List<Long> closed = closedByRepository.get(prd.getRepositoryId());
+                    if (closed == null) {
+                        closed = new ArrayList<Long>();
+                        closedByRepository.put(prd.getRepositoryId(), closed);
+                    }
+                    closed.add(prd.getPullRequestId());
+                }
+            }
+            // A pull request opened or reopened after its repository was listed may lose its row here, which is
+            // harmless: it isn't disapproved, and the row is recreated on the next event or lookup.
+            for (Map.Entry<Integer, List<Long>> e : closedByRepository.entrySet()) {
+                deleted += pm.deleteUndisapprovedPullRequests(e.getKey(), e.getValue());
+            }
+            scanned += page.getValues().size();
+            if (rowsPerSecond > 0 && !throttle(startNanos, scanned)) {
+                log.info("Disapproval compaction interrupted");
+                break;
+            }
+        } while (!page.isLastPage());
+
+        log.info("Disapproval compaction scanned " + scanned + " rows and deleted " + deleted + " in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + "ms");
+        return deleted;
+    }
+
+    private Set<Long> getOpenPullRequestIds(int repositoryId) {
+        Set<Long> open = new HashSet<Long>();
+        Repository repo = repositoryService.getById(repositoryId);
+        if (repo == null) {
+            // deleted repository, none of its pull requests are open
+            return open;
+        }
+        PageRequest request = new PageRequestImpl(0, OPEN_PULL_REQUEST_PAGE_SIZE);
+        Page<? extends PullRequest> page;
+        do {
+            page = pullRequestService.findInDirection(PullRequestDirection.INCOMING, repositoryId,
+                PullRequestState.OPEN, PullRequestOrder.OLDEST, request);
+            for (PullRequest pr : page.getValues()) {
+                open.add(pr.getId());
+            }
+            request = page.getNextPageRequest();
+        } while (!page.getIsLastPage());
+        return open;
+    }
+
+    /**
+     * Sleeps for as long as it takes to bring the average back down to rowsPerSecond.
+     *
+     * @return false if interrupted, in which case the run should stop
+     */
+    private boolean throttle(long startNanos, int scanned) {
+        long dueNanos = startNanos + TimeUnit.SECONDS.toNanos(scanned) / rowsPerSecond;
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+}
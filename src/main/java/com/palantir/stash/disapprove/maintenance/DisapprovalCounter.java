@@ -0,0 +1,390 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.maintenance;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.atlassian.event.api.EventListener;
+import com.atlassian.stash.event.RepositoryDeletedEvent;
+import com.atlassian.stash.event.pull.PullRequestDeclinedEvent;
+import com.atlassian.stash.event.pull.PullRequestMergedEvent;
+import com.atlassian.stash.event.pull.PullRequestReopenedEvent;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestService;
+import com.atlassian.stash.pull.PullRequestState;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Operation;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.DisapprovalAction;
+import com.palantir.stash.disapprove.persistence.DisapprovalHistoryEntry;
+import com.palantir.stash.disapprove.persistence.DisapprovalPage;
+import com.palantir.stash.disapprove.persistence.DisapprovalTransitionListener;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalSnapshot;
+import com.palantir.stash.disapprove.persistence.RepositoryKeys;
+
+/**
+ * Keeps count, in memory, of how many open pull requests are disapproved in each repository and each project, for
+ * badges and the pull request list.
+ * 
+ * The counts are kept up to date as things happen rather than counted when asked for: every committed transition
+ * comes in through {@link DisapprovalTransitionListener}, and merging, declining or reopening a disapproved pull
+ * request moves it out of or back into the counts. Imported rows, and anything else that slips past, are caught by
+ * a periodic reconciliation, which recounts from the table and swaps the result in. Changes made while it runs are
+ * replayed on top of the recount before the swap, so none of them are lost.
+ *
+ * Transitions arrive on whatever thread made them, often the expiry thread, which has no user, and with the pull
+ * request's lock held. Looking up a repository's project is left to the counter's own thread, with system admin
+ * permission, and the project count catches up once it is known.
+ * 
+ * Tuned with the system property disapproval.counters.reconcileMinutes (default 60).
+ * 
+ * @author cmyers
+ */
+public class DisapprovalCounter implements DisapprovalTransitionListener, InitializingBean, DisposableBean {
+
+    public static final String RECONCILE_MINUTES_PROPERTY = "disapproval.counters.reconcileMinutes";
+
+    private static final int DEFAULT_RECONCILE_MINUTES = 60;
+    // before trying again when the first count fails
+    private static final long RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int PAGE_SIZE = 500;
+
+    private final PersistenceManager pm;
+    private final PullRequestService pullRequestService;
+    private final SecurityService securityService;
+    private final Logger log;
+    private final int reconcileMinutes;
+
+    // a repository that moves is fixed by the next reconciliation. Only added to with lock held, so a repository's
+    // count goes into its project's exactly once.
+    private final RepositoryProjects projects;
+
+    private final Object lock = new Object();
+    // the counted pull requests, keyed by RepositoryKeys; everything below is guarded by lock
+    private Set<Long> counted = new HashSet<Long>();
+    private Map<Integer, Integer> byRepository = new HashMap<Integer, Integer>();
+    private Map<Integer, Integer> byProject = new HashMap<Integer, Integer>();
+    // changes made while a reconciliation is running, to replay on its result; null when none is
+    private List<Change> pending;
+    private boolean loaded;
+
+    private volatile ScheduledExecutorService executor;
+
+    private static final class Change {
+
+        private final int repositoryId;
+        private final long pullRequestId;
+        private final boolean counted;
+
+        private Change(int repositoryId, long pullRequestId, boolean counted) {
+            this.repositoryId = repositoryId;
+            this.pullRequestId = pullRequestId;
+            this.counted = counted;
+        }
+    }
+
+    public DisapprovalCounter(PersistenceManager pm, PullRequestService pullRequestService,
+        RepositoryService repositoryService, SecurityService securityService, PluginLoggerFactory lf) {
+        this.pm = pm;
+        this.pullRequestService = pullRequestService;
+        this.projects = new RepositoryProjects(repositoryService, securityService);
+        this.securityService = securityService;
+        this.log = lf.getLoggerForThis(this);
+        this.reconcileMinutes = Math.max(1, Integer.getInteger(RECONCILE_MINUTES_PROPERTY, DEFAULT_RECONCILE_MINUTES));
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        pm.addTransitionListener(this);
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "disapproval-counter");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    reconcile();
+                } catch (Exception e) {
+                    // nothing is served until this works
+                    log.warn("Unable to count disapproved pull requests, trying again in " + RETRY_MILLIS + "ms", e);
+                    executor.schedule(this, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                executor.scheduleWithFixedDelay(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            reconcile();
+                        } catch (Exception e) {
+                            // the counts kept being updated, they are just not checked this time around
+                            log.error("Disapproval count reconciliation failed", e);
+                        }
+                    }
+                }, reconcileMinutes, reconcileMinutes, TimeUnit.MINUTES);
+            }
+        });
+    }
+
+    @Override
+    public void destroy() {
+        pm.removeTransitionListener(this);
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * How many open pull requests in the repository are disapproved, or null until the first count has finished.
+     */
+    public Integer getRepositoryCount(int repositoryId) {
+        synchronized (lock) {
+            return loaded ? get(byRepository, repositoryId) : null;
+        }
+    }
+
+    /**
+     * How many open pull requests in the project are disapproved, or null until the first count has finished.
+     */
+    public Integer getProjectCount(int projectId) {
+        synchronized (lock) {
+            return loaded ? get(byProject, projectId) : null;
+        }
+    }
+
+    @Override
+    public void onTransition(DisapprovalHistoryEntry transition) {
+        final int repositoryId = transition.getRepositoryId();
+        // pull requests are disapproved while they are open, so there is no need to look
+        synchronized (lock) {
+            apply(new Change(repositoryId, transition.getPullRequestId(),
+                transition.getAction() == DisapprovalAction.DISAPPROVED));
+        }
+        // called under the pull request's stripe, so a lookup that may go to the database is done elsewhere
+        ScheduledExecutorService e = executor;
+        if (e != null && !projects.contains(repositoryId)) {
+            try {
+                e.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        getProjectId(repositoryId);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // shutting down
+            }
+        }
+    }
+
+    @EventListener
+    public void listenToMergedEvents(PullRequestMergedEvent e) {
+        change(e.getPullRequest(), false);
+    }
+
+    @EventListener
+    public void listenToDeclinedEvents(PullRequestDeclinedEvent e) {
+        change(e.getPullRequest(), false);
+    }
+
+    @EventListener
+    public void listenToReopenedEvents(PullRequestReopenedEvent e) {
+        PullRequest pr = e.getPullRequest();
+        try {
+            if (pm.mayBeDisapproved(pr.getToRef().getRepository().getId(), pr.getId())
+                && pm.getDisapprovalStatus(pr).isDisapproved()) {
+                change(pr, true);
+            }
+        } catch (SQLException ex) {
+            log.error("Unable to count reopened pull request " + pr.getToRef().getRepository().getId() + "/"
+                + pr.getId(), ex);
+        }
+    }
+
+    @EventListener
+    public void listenToRepositoryDeletedEvents(RepositoryDeletedEvent e) {
+        int repositoryId = e.getRepository().getId();
+        synchronized (lock) {
+            for (Long key : new ArrayList<Long>(counted)) {
+                if (RepositoryKeys.getRepositoryId(key) == repositoryId) {
+                    apply(new Change(repositoryId, RepositoryKeys.getId(key), false));
+                }
+            }
+        }
+        projects.remove(repositoryId);
+    }
+
+    /**
+     * Recounts from the table, checking each disapproved pull request is still open, and replaces the counts.
+     * 
+     * @return how many open pull requests are disapproved
+     */
+    public int reconcile() throws SQLException {
+        return securityService.withPermission(Permission.SYS_ADMIN, "Disapproval count reconciliation").call(
+            new Operation<Integer, SQLException>() {
+
+                @Override
+                public Integer perform() throws SQLException {
+                    return doReconcile();
+                }
+            });
+    }
+
+    private int doReconcile() throws SQLException {
+        synchronized (lock) {
+            pending = new ArrayList<Change>();
+        }
+        final long startMillis = System.currentTimeMillis();
+        Set<Long> recounted = new HashSet<Long>();
+        boolean finished = false;
+        try {
+            int start = 0;
+            DisapprovalPage page;
+            do {
+                page = pm.findDisapprovedPullRequests(null, null, start, PAGE_SIZE);
+                for (PullRequestDisapprovalSnapshot prd : page.getValues()) {
+                    if (prd.getExpiresAt() != null && prd.getExpiresAt() <= startMillis) {
+                        // about to be lifted
+                        continue;
+                    }
+                    PullRequest pr = pullRequestService.getById(prd.getRepositoryId(), prd.getPullRequestId());
+                    if (pr != null && pr.getState() == PullRequestState.OPEN) {
+                        recounted.add(RepositoryKeys.key(prd.getRepositoryId(), prd.getPullRequestId()));
+                        getProjectId(prd.getRepositoryId());
+                    }
+                }
+                if (!page.isLastPage()) {
+                    start = page.getNextPageStart();
+                }
+            } while (!page.isLastPage());
+            finished = true;
+        } finally {
+            if (!finished) {
+                synchronized (lock) {
+                    pending = null;
+                }
+            }
+        }
+
+        synchronized (lock) {
+            List<Change> replay = pending;
+            pending = null;
+            counted = recounted;
+            byRepository = new HashMap<Integer, Integer>();
+            byProject = new HashMap<Integer, Integer>();
+            for (Long key : recounted) {
+                add(RepositoryKeys.getRepositoryId(key), 1);
+            }
+            for (Change change : replay) {
+                apply(change);
+            }
+            loaded = true;
+            log.info("Counted " + counted.size() + " disapproved open pull requests in "
+                + (System.currentTimeMillis() - startMillis) + "ms");
+            return counted.size();
+        }
+    }
+
+    private void change(PullRequest pr, boolean isCounted) {
+        change(pr.getToRef().getRepository().getId(), pr.getId(), isCounted);
+    }
+
+    private void change(int repositoryId, long pullRequestId, boolean isCounted) {
+        // looked up before taking the lock, it can mean a trip to the database the first time
+        getProjectId(repositoryId);
+        synchronized (lock) {
+            apply(new Change(repositoryId, pullRequestId, isCounted));
+        }
+    }
+
+    /**
+     * Called with lock held.
+     */
+    private void apply(Change change) {
+        if (pending != null) {
+            pending.add(change);
+        }
+        long key = RepositoryKeys.key(change.repositoryId, change.pullRequestId);
+        if (change.counted ? counted.add(key) : counted.remove(key)) {
+            add(change.repositoryId, change.counted ? 1 : -1);
+        }
+    }
+
+    /**
+     * Called with lock held.
+     */
+    private void add(int repositoryId, int delta) {
+        increment(byRepository, repositoryId, delta);
+        Integer projectId = projects.get(repositoryId);
+        if (projectId != null) {
+            increment(byProject, projectId, delta);
+        }
+    }
+
+    private Integer getProjectId(int repositoryId) {
+        Integer projectId = projects.get(repositoryId);
+        if (projectId == null) {
+            projectId = projects.lookUp(repositoryId);
+            if (projectId != null) {
+                synchronized (lock) {
+                    if (projects.putIfAbsent(repositoryId, projectId)) {
+                        // whatever was counted before the project was known
+                        increment(byProject, projectId, get(byRepository, repositoryId));
+                    }
+                }
+            }
+        }
+        return projectId;
+    }
+
+    private static void increment(Map<Integer, Integer> counts, int id, int delta) {
+        int count = get(counts, id) + delta;
+        if (count > 0) {
+            counts.put(id, count);
+        } else {
+            counts.remove(id);
+        }
+    }
+
+    private static int get(Map<Integer, Integer> counts, int id) {
+        Integer count = counts.get(id);
+        return count == null ? 0 : count;
+    }
+}
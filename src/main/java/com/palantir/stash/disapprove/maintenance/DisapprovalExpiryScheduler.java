@@ -0,0 +1,212 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.maintenance;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.atlassian.stash.user.StashUser;
+import com.atlassian.stash.user.UserService;
+import com.palantir.stash.disapprove.comment.DisapprovalCommenter;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.DisapprovalPage;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalSnapshot;
+
+/**
+ * Lifts disapprovals when they expire.
+ * 
+ * Every pending expiry is kept in a {@link TimerWheel} with one second ticks, loaded once at startup through the
+ * EXPIRES_AT index and added to as expiring disapprovals are given, so nothing polls the table. When one comes due it
+ * is lifted with {@link PersistenceManager#expirePullRequestDisapproval}, which leaves it alone if it was removed or
+ * replaced in the meantime, so the wheel never needs to hear about removals. The "disapproval removed" comment is then
+ * queued on {@link DisapprovalCommenter}, to be posted as the user who disapproved.
+ * 
+ * @author cmyers
+ */
+public class DisapprovalExpiryScheduler implements InitializingBean, DisposableBean {
+
+    private static final long TICK_MILLIS = 1000;
+    private static final int LOAD_BATCH_SIZE = 500;
+    // before trying again to load, or to lift a disapproval that couldn't be written
+    private static final long RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final class Expiry {
+
+        private final int repositoryId;
+        private final long pullRequestId;
+        private final long expiresAt;
+
+        private Expiry(int repositoryId, long pullRequestId, long expiresAt) {
+            this.repositoryId = repositoryId;
+            this.pullRequestId = pullRequestId;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final PersistenceManager pm;
+    private final DisapprovalCommenter commenter;
+    private final UserService userService;
+    private final Logger log;
+    private final TimerWheel<Expiry> wheel;
+
+    private ScheduledExecutorService executor;
+
+    public DisapprovalExpiryScheduler(PersistenceManager pm, DisapprovalCommenter commenter, UserService userService,
+        PluginLoggerFactory lf) {
+        this.pm = pm;
+        this.commenter = commenter;
+        this.userService = userService;
+        this.log = lf.getLoggerForThis(this);
+        this.wheel = new TimerWheel<Expiry>(TICK_MILLIS, System.currentTimeMillis());
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "disapproval-expiry");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    load();
+                } catch (Exception e) {
+                    // usually the database not being ready yet this early in startup
+                    log.warn("Unable to load expiring disapprovals, trying again in " + RETRY_MILLIS + "ms", e);
+                    executor.schedule(this, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    expire(System.currentTimeMillis());
+                } catch (Exception e) {
+                    // keep ticking
+                    log.error("Disapproval expiry failed", e);
+                }
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Lifts the disapproval of a pull request at expiresAt, unless it has been removed or replaced by then.
+     */
+    public void schedule(int repositoryId, long pullRequestId, long expiresAt) {
+        schedule(expiresAt, new Expiry(repositoryId, pullRequestId, expiresAt));
+    }
+
+    /**
+     * Schedules every expiry in the table.
+     * 
+     * @return how many there were
+     */
+    public int load() throws SQLException {
+        int loaded = 0;
+        int start = 0;
+        DisapprovalPage page;
+        do {
+            page = pm.findExpiringPullRequests(start, LOAD_BATCH_SIZE);
+            for (PullRequestDisapprovalSnapshot prd : page.getValues()) {
+                schedule(prd.getRepositoryId(), prd.getPullRequestId(), prd.getExpiresAt());
+                ++loaded;
+            }
+            if (!page.isLastPage()) {
+                start = page.getNextPageStart();
+            }
+        } while (!page.isLastPage());
+        log.info("Loaded " + loaded + " expiring disapprovals");
+        return loaded;
+    }
+
+    /**
+     * Lifts every disapproval that is due by nowMillis.
+     * 
+     * @return how many were lifted
+     */
+    public int expire(long nowMillis) {
+        List<Expiry> due;
+        synchronized (wheel) {
+            due = wheel.advance(nowMillis);
+        }
+        int expired = 0;
+        for (Expiry e : due) {
+            PullRequestDisapprovalSnapshot prd;
+            try {
+                prd = pm.expirePullRequestDisapproval(e.repositoryId, e.pullRequestId, e.expiresAt);
+            } catch (Exception ex) {
+                log.error("Unable to lift the disapproval of pull request " + e.repositoryId + "/" + e.pullRequestId
+                    + ", trying again in " + RETRY_MILLIS + "ms", ex);
+                schedule(nowMillis + RETRY_MILLIS, e);
+                continue;
+            }
+            if (prd == null) {
+                // removed or replaced since it was scheduled
+                continue;
+            }
+            ++expired;
+            log.info("Disapproval of pull request " + e.repositoryId + "/" + e.pullRequestId + " by "
+                + prd.getDisapprovedBy() + " expired");
+            StashUser user =
+                prd.getDisapprovedById() == null ? null : userService.getUserById(prd.getDisapprovedById());
+            if (user == null) {
+                log.debug("Disapprover of pull request " + e.repositoryId + "/" + e.pullRequestId
+                    + " no longer exists, not commenting");
+                continue;
+            }
+            commenter.commentLater(e.repositoryId, e.pullRequestId, user, false);
+        }
+        return expired;
+    }
+
+    /**
+     * How many expiries are waiting.
+     */
+    public int size() {
+        synchronized (wheel) {
+            return wheel.size();
+        }
+    }
+
+    private void schedule(long deadlineMillis, Expiry expiry) {
+        synchronized (wheel) {
+            wheel.schedule(deadlineMillis, expiry);
+        }
+    }
+}
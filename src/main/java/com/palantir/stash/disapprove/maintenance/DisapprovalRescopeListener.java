@@ -0,0 +1,178 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.maintenance;
+
+import java.sql.SQLException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.atlassian.event.api.EventListener;
+import com.atlassian.stash.event.pull.PullRequestRescopedEvent;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestService;
+import com.atlassian.stash.pull.PullRequestState;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.user.StashUser;
+import com.atlassian.stash.util.Operation;
+import com.palantir.stash.disapprove.comment.DisapprovalCommenter;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.DisapprovalConfigurationSnapshot;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalSnapshot;
+import com.palantir.stash.disapprove.persistence.RescopePolicy;
+
+/**
+ * Applies the repository's {@link RescopePolicy} when new commits are pushed to a disapproved pull request.
+ * 
+ * Rescopes are among the most frequent events there are, so the event thread only asks
+ * {@link PersistenceManager#mayBeDisapproved}, which is a lookup in memory, and returns straight away for the vast
+ * majority of pull requests that aren't disapproved. The rest are queued to a background thread, which reads the
+ * configuration and the row, then removes the disapproval or comments as the user who pushed.
+ * 
+ * @author cmyers
+ */
+public class DisapprovalRescopeListener implements InitializingBean, DisposableBean {
+
+    private static final int QUEUE_CAPACITY = 10000;
+    // before trying again to load the disapproval index
+    private static final long RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final PersistenceManager pm;
+    private final PullRequestService pullRequestService;
+    private final SecurityService securityService;
+    private final DisapprovalCommenter commenter;
+    private final Logger log;
+
+    private ScheduledThreadPoolExecutor executor;
+
+    public DisapprovalRescopeListener(PersistenceManager pm, PullRequestService pullRequestService,
+        SecurityService securityService, DisapprovalCommenter commenter, PluginLoggerFactory lf) {
+        this.pm = pm;
+        this.pullRequestService = pullRequestService;
+        this.securityService = securityService;
+        this.commenter = commenter;
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "disapproval-rescope");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    int disapproved = pm.loadDisapprovalIndex();
+                    log.info("Loaded " + disapproved + " disapproved pull requests");
+                } catch (Exception e) {
+                    // every rescope is looked at until this works, which is slower but still right
+                    log.warn("Unable to load disapproved pull requests, trying again in " + RETRY_MILLIS + "ms", e);
+                    executor.schedule(this, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @EventListener
+    public void listenToRescopedEvents(PullRequestRescopedEvent pre) {
+        PullRequest pr = pre.getPullRequest();
+        // only new commits on the pull request count, not its target branch moving on
+        if (pr.getFromRef().getLatestChangeset().equals(pre.getPreviousFromHash())) {
+            return;
+        }
+        final int repositoryId = pr.getToRef().getRepository().getId();
+        final long pullRequestId = pr.getId();
+        if (!pm.mayBeDisapproved(repositoryId, pullRequestId)) {
+            return;
+        }
+        final StashUser user = pre.getUser() != null ? pre.getUser() : pr.getAuthor().getUser();
+        if (executor.getQueue().size() >= QUEUE_CAPACITY) {
+            log.warn("Too many rescopes queued, not applying the rescope policy to pull request " + repositoryId + "/"
+                + pullRequestId);
+            return;
+        }
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    applyRescopePolicy(repositoryId, pullRequestId, user);
+                } catch (Exception e) {
+                    log.error("Unable to apply the rescope policy to pull request " + repositoryId + "/"
+                        + pullRequestId, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the pull request's disapproval, or comments on it, as its repository's policy says, acting as user.
+     * 
+     * @return what was done, or {@link RescopePolicy#KEEP} if nothing was
+     */
+    public RescopePolicy applyRescopePolicy(final int repositoryId, final long pullRequestId, final StashUser user)
+        throws SQLException {
+        return securityService.impersonating(user, "Applying the disapproval rescope policy").call(
+            new Operation<RescopePolicy, SQLException>() {
+
+                @Override
+                public RescopePolicy perform() throws SQLException {
+                    PullRequest pr = pullRequestService.getById(repositoryId, pullRequestId);
+                    if (pr == null || pr.getState() != PullRequestState.OPEN) {
+                        return RescopePolicy.KEEP;
+                    }
+                    DisapprovalConfigurationSnapshot dc = pm.getDisapprovalConfiguration(pr.getToRef().getRepository());
+                    if (!dc.isEnabled() || dc.getRescopePolicy() == RescopePolicy.KEEP) {
+                        return RescopePolicy.KEEP;
+                    }
+                    PullRequestDisapprovalSnapshot prd = pm.getPullRequestDisapproval(pr);
+                    if (!prd.isDisapproved()) {
+                        return RescopePolicy.KEEP;
+                    }
+                    if (dc.getRescopePolicy() == RescopePolicy.FLAG) {
+                        commenter.commentRescoped(repositoryId, pullRequestId, false);
+                        return RescopePolicy.FLAG;
+                    }
+                    // only the disapproval that was read, not one given since
+                    if (!pm.compareAndSetPullRequestDisapproval(pr, true, prd.getDisapprovedById(), user, false)) {
+                        return RescopePolicy.KEEP;
+                    }
+                    log.info("Disapproval of pull request " + repositoryId + "/" + pullRequestId
+                        + " removed, new commits were pushed");
+                    commenter.commentRescoped(repositoryId, pullRequestId, true);
+                    return RescopePolicy.CLEAR;
+                }
+            });
+    }
+}
@@ -0,0 +1,66 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.maintenance;
+
+import org.slf4j.Logger;
+
+import com.atlassian.event.api.EventListener;
+import com.atlassian.stash.event.ProjectDeletedEvent;
+import com.atlassian.stash.event.RepositoryDeletedEvent;
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.repository.Repository;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+
+/**
+ * Removes a repository's configuration and pull request rows when the repository is deleted, and a project's
+ * defaults when the project is deleted.
+ *
+ * Projects can only be deleted once they have no repositories left, so by then their repositories are already gone.
+ *
+ * @author cmyers
+ */
+public class RepositoryDeletionListener {
+
+    private final PersistenceManager pm;
+    private final Logger log;
+
+    public RepositoryDeletionListener(PersistenceManager pm, PluginLoggerFactory lf) {
+        this.pm = pm;
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    @EventListener
+    public void listenToRepositoryDeletedEvents(RepositoryDeletedEvent rde) {
+        Repository repo = rde.getRepository();
+        try {
+            int deleted = pm.deleteRepository(repo.getId());
+            log.info("Removed disapproval data for deleted repository " + repo.getId() + " (" + deleted
+                + " pull requests)");
+        } catch (Exception e) {
+            log.error("Unable to remove disapproval data for deleted repository " + repo.getId(), e);
+        }
+    }
+
+    @EventListener
+    public void listenToProjectDeletedEvents(ProjectDeletedEvent pde) {
+        Project project = pde.getProject();
+        try {
+            pm.clearDisapprovalDefaults(project.getId());
+            log.info("Removed disapproval defaults for deleted project " + project.getId());
+        } catch (Exception e) {
+            log.error("Unable to remove disapproval defaults for deleted project " + project.getId(), e);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.maintenance;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Operation;
+
+/**
+ * Remembers the project of each repository, for the trackers that count per project as well as per repository.
+ *
+ * Repositories rarely move, so a lookup is made once per repository. Lookups happen on background threads with no
+ * user, so they are made with system admin permission.
+ */
+class RepositoryProjects {
+
+    private final RepositoryService repositoryService;
+    private final SecurityService securityService;
+    private final ConcurrentMap<Integer, Integer> projects = new ConcurrentHashMap<Integer, Integer>();
+
+    RepositoryProjects(RepositoryService repositoryService, SecurityService securityService) {
+        this.repositoryService = repositoryService;
+        this.securityService = securityService;
+    }
+
+    /**
+     * The project remembered for the repository, or null if there is none yet. Never looks it up.
+     */
+    Integer get(int repositoryId) {
+        return projects.get(repositoryId);
+    }
+
+    /**
+     * The project of the repository, looked up and remembered the first time; null if the repository doesn't exist.
+     * It can mean a trip to the database, so don't call it with a lock held.
+     */
+    Integer getOrLookUp(int repositoryId) {
+        Integer projectId = projects.get(repositoryId);
+        if (projectId == null) {
+            projectId = lookUp(repositoryId);
+            if (projectId != null) {
+                putIfAbsent(repositoryId, projectId);
+            }
+        }
+        return projectId;
+    }
+
+    /**
+     * Looks up the project of the repository without remembering it, or returns null if the repository doesn't exist.
+     */
+    Integer lookUp(final int repositoryId) {
+        Repository repo = securityService.withPermission(Permission.SYS_ADMIN, "Looking up a repository's project")
+            .call(new Operation<Repository, RuntimeException>() {
+
+                @Override
+                public Repository perform() {
+                    return repositoryService.getById(repositoryId);
+                }
+            });
+        return repo == null ? null : repo.getProject().getId();
+    }
+
+    /**
+     * @return true if the repository's project wasn't remembered before
+     */
+    boolean putIfAbsent(int repositoryId, int projectId) {
+        return projects.putIfAbsent(repositoryId, projectId) == null;
+    }
+
+    boolean contains(int repositoryId) {
+        return projects.containsKey(repositoryId);
+    }
+
+    void remove(int repositoryId) {
+        projects.remove(repositoryId);
+    }
+}
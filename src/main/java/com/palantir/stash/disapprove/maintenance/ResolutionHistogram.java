@@ -0,0 +1,158 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.maintenance;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of durations with logarithmic buckets, four to every doubling, from a second up to about 136 years.
+ * 
+ * Recording and merging are a few array operations whatever has been recorded before, and percentiles are read off
+ * the buckets, so an estimate is never more than about 19% over the true value (and never under it). Storage grows
+ * only to the largest bucket used. Not thread safe.
+ * 
+ * @author cmyers
+ */
+public final class ResolutionHistogram {
+
+    static final int BUCKETS_PER_DOUBLING = 4;
+    // bucket 0 holds everything up to a second, the last one everything over 2^32 seconds
+    static final int BUCKETS = 32 * BUCKETS_PER_DOUBLING + 1;
+
+    private int[] counts = new int[0];
+    private long count;
+
+    /**
+     * @param durationMillis negative durations (clock changes) count as zero
+     */
+    public void record(long durationMillis) {
+        int bucket = getBucket(durationMillis);
+        grow(bucket + 1);
+        ++counts[bucket];
+        ++count;
+    }
+
+    public void merge(ResolutionHistogram other) {
+        grow(other.counts.length);
+        for (int i = 0; i < other.counts.length; ++i) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the smallest bucket bound that at least the given fraction of the durations are no longer than, in
+     * millis, or null if nothing has been recorded.
+     * 
+     * @param fraction between 0 and 1, e.g. 0.95 for the 95th percentile
+     */
+    public Long getPercentile(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be between 0 and 1, was " + fraction);
+        }
+        if (count == 0) {
+            return null;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return getUpperBoundMillis(i);
+            }
+        }
+        return getUpperBoundMillis(counts.length - 1);
+    }
+
+    /**
+     * Encodes the non-empty buckets as "bucket:count" pairs separated by commas, for {@link #decode(String)}.
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < counts.length; ++i) {
+            if (counts[i] != 0) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(i).append(':').append(counts[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @throws IllegalArgumentException if encoded isn't something {@link #encode()} returned
+     */
+    public static ResolutionHistogram decode(String encoded) {
+        ResolutionHistogram h = new ResolutionHistogram();
+        if (encoded.isEmpty()) {
+            return h;
+        }
+        for (String pair : encoded.split(",")) {
+            int colon = pair.indexOf(':');
+            int bucket;
+            int bucketCount;
+            try {
+                bucket = Integer.parseInt(pair.substring(0, Math.max(colon, 0)));
+                bucketCount = Integer.parseInt(pair.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad bucket '" + pair + "' in '" + encoded + "'", e);
+            }
+            if (bucket < 0 || bucket >= BUCKETS || bucketCount < 0) {
+                throw new IllegalArgumentException("bad bucket '" + pair + "' in '" + encoded + "'");
+            }
+            h.grow(bucket + 1);
+            h.counts[bucket] += bucketCount;
+            h.count += bucketCount;
+        }
+        return h;
+    }
+
+    static int getBucket(long durationMillis) {
+        // whole seconds, rounded up
+        long seconds = (Math.max(durationMillis, 0) + 999) / 1000;
+        if (seconds <= 1) {
+            return 0;
+        }
+        int bucket = (int) Math.ceil(Math.log(seconds) / Math.log(2) * BUCKETS_PER_DOUBLING);
+        bucket = Math.min(bucket, BUCKETS - 1);
+        // the logarithm can come out a hair off at exact bounds
+        while (bucket > 0 && getUpperBoundMillis(bucket - 1) >= seconds * 1000) {
+            --bucket;
+        }
+        while (bucket < BUCKETS - 1 && getUpperBoundMillis(bucket) < seconds * 1000) {
+            ++bucket;
+        }
+        return bucket;
+    }
+
+    static long getUpperBoundMillis(int bucket) {
+        return Math.round(Math.pow(2, (double) bucket / BUCKETS_PER_DOUBLING) * 1000);
+    }
+
+    private void grow(int length) {
+        if (counts.length < length) {
+            counts = Arrays.copyOf(counts, length);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ResolutionHistogram[count=" + count + ", buckets=" + encode() + "]";
+    }
+}
@@ -0,0 +1,389 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.maintenance;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.atlassian.event.api.EventListener;
+import com.atlassian.stash.event.pull.PullRequestMergedEvent;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.SecurityService;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.DisapprovalAction;
+import com.palantir.stash.disapprove.persistence.DisapprovalHistoryEntry;
+import com.palantir.stash.disapprove.persistence.DisapprovalResolutionSnapshot;
+import com.palantir.stash.disapprove.persistence.DisapprovalTransitionListener;
+import com.palantir.stash.disapprove.persistence.DisapprovalStatus;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.persistence.RepositoryKeys;
+
+/**
+ * Tracks how long disapprovals stay in place: the time from a pull request being disapproved to the disapproval being
+ * removed, expiring, or the pull request being merged anyway (advisory mode).
+ * 
+ * Every resolution is recorded as it happens, from {@link DisapprovalTransitionListener} and the merged event, into a
+ * {@link ResolutionHistogram} per repository and day kept in memory, so answering for a window of days merges at most
+ * {@link #MAX_DAYS} small histograms per repository instead of querying the history. Days that changed are
+ * checkpointed to {@link com.palantir.stash.disapprove.persistence.DisapprovalResolution} every few minutes and on
+ * shutdown, and read back on startup; a crash loses at most the resolutions since the last checkpoint. Days older
+ * than {@link #MAX_DAYS} are dropped from memory and the table.
+ * 
+ * Disapprovals given before their time was recorded have no start, and are left out.
+ * 
+ * Tuned with the system property disapproval.analytics.checkpointMinutes (default 5).
+ * 
+ * @author cmyers
+ */
+public class ResolutionTimeTracker implements DisapprovalTransitionListener, InitializingBean, DisposableBean {
+
+    public static final String CHECKPOINT_MINUTES_PROPERTY = "disapproval.analytics.checkpointMinutes";
+    // the longest window asked for, in days including today
+    public static final int MAX_DAYS = 90;
+
+    private static final int DEFAULT_CHECKPOINT_MINUTES = 5;
+    // before trying again when loading fails
+    private static final long RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final PersistenceManager pm;
+    private final Logger log;
+    private final int checkpointMinutes;
+
+    // kept after a repository is deleted so it still counts towards its project; only looked up by checkpoint and
+    // group, as transitions are recorded with pull request locks held
+    private final RepositoryProjects projects;
+
+    private final Object lock = new Object();
+    // keyed by repository and day; everything below is guarded by lock
+    private final Map<Long, ResolutionHistogram> histograms = new HashMap<Long, ResolutionHistogram>();
+    // the keys changed since the last checkpoint
+    private final Set<Long> dirty = new HashSet<Long>();
+    private boolean loaded;
+
+    // only one checkpoint writes at a time, see PersistenceManager#saveResolutions
+    private final Object checkpointLock = new Object();
+
+    private ScheduledExecutorService executor;
+
+    public ResolutionTimeTracker(PersistenceManager pm, RepositoryService repositoryService,
+        SecurityService securityService, PluginLoggerFactory lf) {
+        this.pm = pm;
+        this.projects = new RepositoryProjects(repositoryService, securityService);
+        this.log = lf.getLoggerForThis(this);
+        this.checkpointMinutes =
+            Math.max(1, Integer.getInteger(CHECKPOINT_MINUTES_PROPERTY, DEFAULT_CHECKPOINT_MINUTES));
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        pm.addTransitionListener(this);
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "disapproval-analytics");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    load();
+                } catch (Exception e) {
+                    // resolutions are still recorded meanwhile, and merged in once this works
+                    log.warn("Unable to load resolution times, trying again in " + RETRY_MILLIS + "ms", e);
+                    executor.schedule(this, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                executor.scheduleWithFixedDelay(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            checkpoint();
+                        } catch (Exception e) {
+                            // what wasn't saved is still dirty, the next checkpoint tries again
+                            log.error("Unable to checkpoint resolution times", e);
+                        }
+                    }
+                }, checkpointMinutes, checkpointMinutes, TimeUnit.MINUTES);
+            }
+        });
+    }
+
+    @Override
+    public void destroy() {
+        pm.removeTransitionListener(this);
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        synchronized (lock) {
+            if (!loaded) {
+                // saving now would overwrite rows that were never read
+                return;
+            }
+        }
+        try {
+            checkpoint();
+        } catch (Exception e) {
+            log.error("Unable to checkpoint resolution times on shutdown", e);
+        }
+    }
+
+    @Override
+    public void onTransition(DisapprovalHistoryEntry transition) {
+        if (transition.getAction() != DisapprovalAction.DISAPPROVED && transition.getDisapprovedAt() != null) {
+            record(transition.getRepositoryId(), transition.getCreatedAt() - transition.getDisapprovedAt(),
+                transition.getCreatedAt());
+        }
+    }
+
+    @EventListener
+    public void listenToMergedEvents(PullRequestMergedEvent e) {
+        PullRequest pr = e.getPullRequest();
+        int repositoryId = pr.getToRef().getRepository().getId();
+        if (!pm.mayBeDisapproved(repositoryId, pr.getId())) {
+            return;
+        }
+        try {
+            // read only, a merged pull request that has no row doesn't need one now
+            DisapprovalStatus status = pm.getDisapprovalStatus(pr);
+            if (status.isDisapproved() && status.getDisapprovedAt() != null) {
+                long now = System.currentTimeMillis();
+                record(repositoryId, now - status.getDisapprovedAt(), now);
+            }
+        } catch (SQLException ex) {
+            log.error("Unable to record resolution time of merged pull request " + repositoryId + "/" + pr.getId(),
+                ex);
+        }
+    }
+
+    /**
+     * Records one resolution.
+     * 
+     * @param durationMillis how long the disapproval was in place
+     * @param resolvedAt when it was resolved, in epoch millis
+     */
+    public void record(int repositoryId, long durationMillis, long resolvedAt) {
+        long key = RepositoryKeys.key(repositoryId, getDay(resolvedAt));
+        synchronized (lock) {
+            ResolutionHistogram h = histograms.get(key);
+            if (h == null) {
+                h = new ResolutionHistogram();
+                histograms.put(key, h);
+            }
+            h.record(durationMillis);
+            dirty.add(key);
+        }
+    }
+
+    /**
+     * Returns the resolution times of the given number of days up to and including today, across every repository,
+     * or null until the checkpoints have been loaded.
+     */
+    public ResolutionHistogram getTotal(int days) {
+        synchronized (lock) {
+            if (!loaded) {
+                return null;
+            }
+            ResolutionHistogram total = new ResolutionHistogram();
+            int firstDay = getDay(System.currentTimeMillis()) - days + 1;
+            for (Map.Entry<Long, ResolutionHistogram> e : histograms.entrySet()) {
+                if (getKeyDay(e.getKey()) >= firstDay) {
+                    total.merge(e.getValue());
+                }
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Like {@link #getTotal(int)}, per project. Repositories whose project isn't known are left out.
+     */
+    public Map<Integer, ResolutionHistogram> getByProject(int days) {
+        return group(null, days, true);
+    }
+
+    /**
+     * Like {@link #getTotal(int)}, per repository.
+     * 
+     * @param projectId only the repositories of this project, or null for all of them
+     */
+    public Map<Integer, ResolutionHistogram> getByRepository(Integer projectId, int days) {
+        return group(projectId, days, false);
+    }
+
+    /**
+     * Reads the checkpoints of the last {@link #MAX_DAYS} days and merges them into what was recorded since startup.
+     */
+    public void load() throws SQLException {
+        final long startMillis = System.currentTimeMillis();
+        int today = getDay(startMillis);
+        // all read before any is merged in, so a failure part way leaves nothing to double count on the retry
+        List<DisapprovalResolutionSnapshot> rows = new ArrayList<DisapprovalResolutionSnapshot>();
+        for (int day = today - MAX_DAYS + 1; day <= today; ++day) {
+            rows.addAll(pm.findResolutions(day));
+        }
+        synchronized (lock) {
+            for (DisapprovalResolutionSnapshot row : rows) {
+                ResolutionHistogram h;
+                try {
+                    h = ResolutionHistogram.decode(row.getBuckets());
+                } catch (IllegalArgumentException e) {
+                    log.warn("Skipping unreadable resolution times " + row, e);
+                    continue;
+                }
+                if (row.getProjectId() != null) {
+                    projects.putIfAbsent(row.getRepositoryId(), row.getProjectId());
+                }
+                long key = RepositoryKeys.key(row.getRepositoryId(), row.getDay());
+                ResolutionHistogram recorded = histograms.get(key);
+                if (recorded != null) {
+                    h.merge(recorded);
+                }
+                histograms.put(key, h);
+            }
+            loaded = true;
+        }
+        log.info("Loaded " + rows.size() + " days of resolution times in "
+            + (System.currentTimeMillis() - startMillis) + "ms");
+    }
+
+    /**
+     * Saves the days that changed since the last checkpoint and drops the days that are too old.
+     * 
+     * @return how many repository days were saved
+     */
+    public int checkpoint() throws SQLException {
+        synchronized (checkpointLock) {
+            resolveProjects();
+            int firstDay = getDay(System.currentTimeMillis()) - MAX_DAYS + 1;
+            List<DisapprovalResolutionSnapshot> changed = new ArrayList<DisapprovalResolutionSnapshot>();
+            List<Long> keys;
+            synchronized (lock) {
+                for (Iterator<Long> it = histograms.keySet().iterator(); it.hasNext();) {
+                    Long key = it.next();
+                    if (getKeyDay(key) < firstDay) {
+                        it.remove();
+                        dirty.remove(key);
+                    }
+                }
+                keys = new ArrayList<Long>(dirty);
+                for (Long key : keys) {
+                    int repositoryId = getKeyRepositoryId(key);
+                    changed.add(new DisapprovalResolutionSnapshot(repositoryId, projects.get(repositoryId),
+                        getKeyDay(key), histograms.get(key).encode()));
+                }
+                dirty.clear();
+            }
+            boolean saved = false;
+            try {
+                if (!changed.isEmpty()) {
+                    pm.saveResolutions(changed);
+                }
+                saved = true;
+            } finally {
+                if (!saved) {
+                    synchronized (lock) {
+                        dirty.addAll(keys);
+                    }
+                }
+            }
+            pm.deleteResolutionsBefore(firstDay);
+            return changed.size();
+        }
+    }
+
+    private Map<Integer, ResolutionHistogram> group(Integer projectId, int days, boolean byProject) {
+        if (byProject || projectId != null) {
+            resolveProjects();
+        }
+        synchronized (lock) {
+            if (!loaded) {
+                return null;
+            }
+            Map<Integer, ResolutionHistogram> groups = new HashMap<Integer, ResolutionHistogram>();
+            int firstDay = getDay(System.currentTimeMillis()) - days + 1;
+            for (Map.Entry<Long, ResolutionHistogram> e : histograms.entrySet()) {
+                if (getKeyDay(e.getKey()) < firstDay) {
+                    continue;
+                }
+                int repositoryId = getKeyRepositoryId(e.getKey());
+                Integer repositoryProjectId = projects.get(repositoryId);
+                if ((byProject || projectId != null) && repositoryProjectId == null) {
+                    continue;
+                }
+                if (projectId != null && !projectId.equals(repositoryProjectId)) {
+                    continue;
+                }
+                Integer id = byProject ? repositoryProjectId : Integer.valueOf(repositoryId);
+                ResolutionHistogram h = groups.get(id);
+                if (h == null) {
+                    h = new ResolutionHistogram();
+                    groups.put(id, h);
+                }
+                h.merge(e.getValue());
+            }
+            return groups;
+        }
+    }
+
+    // looks up the projects of the repositories recorded since the last call, without holding the lock
+    private void resolveProjects() {
+        Set<Integer> unknown = new HashSet<Integer>();
+        synchronized (lock) {
+            for (Long key : histograms.keySet()) {
+                int repositoryId = getKeyRepositoryId(key);
+                if (!projects.contains(repositoryId)) {
+                    unknown.add(repositoryId);
+                }
+            }
+        }
+        for (Integer repositoryId : unknown) {
+            projects.getOrLookUp(repositoryId);
+        }
+    }
+
+    private static int getDay(long epochMillis) {
+        return (int) (epochMillis / DAY_MILLIS);
+    }
+
+    private static int getKeyRepositoryId(long key) {
+        return RepositoryKeys.getRepositoryId(key);
+    }
+
+    private static int getKeyDay(long key) {
+        return (int) RepositoryKeys.getId(key);
+    }
+}
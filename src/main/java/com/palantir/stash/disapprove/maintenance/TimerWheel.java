@@ -0,0 +1,165 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.maintenance;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timer wheel: items are scheduled against a clock the caller moves forward, at a fixed tick.
+ * 
+ * Level 0 has a slot for each of the next 64 ticks, and each level above has 64 slots that each span a whole turn of
+ * the level below. An item waits at the highest level at which its deadline and the clock differ, and is moved down
+ * when its slot comes round, so scheduling is constant time and an item is touched at most once per level however
+ * many others are waiting. Five levels of one second ticks reach about 34 years; anything further out waits in an
+ * overflow list that is looked at once a full turn.
+ * 
+ * Not thread safe.
+ * 
+ * @author cmyers
+ */
+public class TimerWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 5;
+
+    private static final class Entry<T> {
+
+        private final long deadlineTick;
+        private final T item;
+
+        private Entry(long deadlineTick, T item) {
+            this.deadlineTick = deadlineTick;
+            this.item = item;
+        }
+    }
+
+    private final long tickMillis;
+    // [level][slot], each slot's list created when first used
+    private final List<Entry<T>>[][] wheels;
+    private final List<Entry<T>> overflow = new ArrayList<Entry<T>>();
+    // due by the current tick, handed out by the next advance
+    private List<T> due = new ArrayList<T>();
+    private long currentTick;
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tickMillis, long nowMillis) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("tickMillis must be at least 1, was " + tickMillis);
+        }
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        this.wheels = new List[LEVELS][SLOTS];
+    }
+
+    /**
+     * Schedules item for the first tick at or after deadlineMillis. Anything already due comes out of the next
+     * {@link #advance}.
+     */
+    public void schedule(long deadlineMillis, T item) {
+        // round up, so nothing comes out early
+        long deadlineTick = (deadlineMillis + tickMillis - 1) / tickMillis;
+        place(new Entry<T>(deadlineTick, item));
+        ++size;
+    }
+
+    /**
+     * Moves the clock forward to nowMillis. Moving it backwards does nothing.
+     * 
+     * @return the items that came due, in no particular order
+     */
+    public List<T> advance(long nowMillis) {
+        long targetTick = nowMillis / tickMillis;
+        while (currentTick < targetTick) {
+            if (size == due.size()) {
+                // nothing left waiting, no need to turn the wheels
+                currentTick = targetTick;
+                break;
+            }
+            ++currentTick;
+            // move items down from the top first, so those that land in a lower slot that is also coming round now
+            // move again with it
+            if ((currentTick & ((1L << (LEVELS * SLOT_BITS)) - 1)) == 0) {
+                cascade(overflow);
+            }
+            for (int level = LEVELS - 1; level > 0; --level) {
+                if ((currentTick & ((1L << (level * SLOT_BITS)) - 1)) == 0) {
+                    cascade(take(level));
+                }
+            }
+            List<Entry<T>> slot = take(0);
+            if (slot != null) {
+                for (Entry<T> e : slot) {
+                    due.add(e.item);
+                }
+            }
+        }
+        List<T> fired = due;
+        due = new ArrayList<T>();
+        size -= fired.size();
+        return fired;
+    }
+
+    /**
+     * How many items are waiting, including those due but not handed out yet.
+     */
+    public int size() {
+        return size;
+    }
+
+    private void place(Entry<T> e) {
+        if (e.deadlineTick <= currentTick) {
+            due.add(e.item);
+            return;
+        }
+        // the highest level at which the deadline and the clock are in different slots; the deadline's slot there is
+        // always ahead of the clock's
+        int level = (63 - Long.numberOfLeadingZeros(e.deadlineTick ^ currentTick)) / SLOT_BITS;
+        if (level >= LEVELS) {
+            overflow.add(e);
+            return;
+        }
+        int slot = (int) (e.deadlineTick >>> (level * SLOT_BITS)) & SLOT_MASK;
+        List<Entry<T>> entries = wheels[level][slot];
+        if (entries == null) {
+            entries = new ArrayList<Entry<T>>();
+            wheels[level][slot] = entries;
+        }
+        entries.add(e);
+    }
+
+    /**
+     * Removes and returns the current slot of a level.
+     */
+    private List<Entry<T>> take(int level) {
+        int slot = (int) (currentTick >>> (level * SLOT_BITS)) & SLOT_MASK;
+        List<Entry<T>> entries = wheels[level][slot];
+        wheels[level][slot] = null;
+        return entries;
+    }
+
+    private void cascade(List<Entry<T>> entries) {
+        if (entries == null || entries.isEmpty()) {
+            return;
+        }
+        List<Entry<T>> moving = new ArrayList<Entry<T>>(entries);
+        entries.clear();
+        for (Entry<T> e : moving) {
+            place(e);
+        }
+    }
+}
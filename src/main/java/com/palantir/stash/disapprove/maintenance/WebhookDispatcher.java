@@ -0,0 +1,623 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.maintenance;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Operation;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.DisapprovalAction;
+import com.palantir.stash.disapprove.persistence.DisapprovalChangePage;
+import com.palantir.stash.disapprove.persistence.DisapprovalHistoryEntry;
+import com.palantir.stash.disapprove.persistence.DisapprovalTransitionListener;
+import com.palantir.stash.disapprove.persistence.DisapprovalWebhookDeliverySnapshot;
+import com.palantir.stash.disapprove.persistence.DisapprovalWebhookSnapshot;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+
+/**
+ * Sends every disapproval change to the webhooks of its repository, as a JSON POST.
+ *
+ * Nothing is done on the thread making the change: {@link DisapprovalTransitionListener} only wakes the dispatcher
+ * thread. The dispatcher reads the change feed ({@link PersistenceManager#findChanges}) from where the webhooks
+ * left off and queues a {@link com.palantir.stash.disapprove.persistence.DisapprovalWebhookDelivery} per change and
+ * webhook, moving the webhooks past those changes in the same transaction. The feed and the queue are both in the
+ * database, so nothing is lost or sent twice because of a restart (short of a crash between a webhook answering and
+ * its deliveries being deleted). Each webhook's queue is bounded; changes that don't fit are dropped and counted.
+ *
+ * A small pool of workers sends the queue, one request at a time per webhook so each sees its changes in order, with
+ * a burst of changes batched into a single request. A webhook that doesn't answer 2xx is tried again after an
+ * exponentially growing delay, and its changes are given up on after too many attempts.
+ *
+ * Each request carries an {@value #SIGNATURE_HEADER} header, the HMAC-SHA256 of the body keyed with the webhook's
+ * secret (see {@link #sign}), so the receiver can tell it came from here. The dispatcher has no user, so it looks up
+ * repositories with system admin permission.
+ *
+ * Tuned with system properties:
+ * <ul>
+ * <li>disapproval.webhooks.threads - workers sending requests (default 2); 0 switches webhooks off</li>
+ * <li>disapproval.webhooks.maxQueued - changes queued per webhook before new ones are dropped (default 1000)</li>
+ * <li>disapproval.webhooks.maxAttempts - attempts before changes are given up on (default 10)</li>
+ * <li>disapproval.webhooks.backoffMillis - delay after the first failure, doubling after each (default 5000)</li>
+ * </ul>
+ *
+ * @author cmyers
+ */
+public class WebhookDispatcher implements DisapprovalTransitionListener, InitializingBean, DisposableBean {
+
+    public static final String THREADS_PROPERTY = "disapproval.webhooks.threads";
+    public static final String MAX_QUEUED_PROPERTY = "disapproval.webhooks.maxQueued";
+    public static final String MAX_ATTEMPTS_PROPERTY = "disapproval.webhooks.maxAttempts";
+    public static final String BACKOFF_MILLIS_PROPERTY = "disapproval.webhooks.backoffMillis";
+    public static final String SIGNATURE_HEADER = "X-Disapproval-Signature";
+
+    private static final int DEFAULT_THREADS = 2;
+    private static final int DEFAULT_MAX_QUEUED = 1000;
+    private static final int DEFAULT_MAX_ATTEMPTS = 10;
+    private static final long DEFAULT_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.HOURS.toMillis(1);
+    // how often to look when nothing wakes the dispatcher, for retries coming due and changes made by other nodes
+    private static final long POLL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final int FEED_PAGE_SIZE = 500;
+    // changes sent in one request
+    private static final int BATCH_SIZE = 50;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SIGNATURE_ALGORITHM = "HmacSHA256";
+    private static final int SECRET_BYTES = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final PersistenceManager pm;
+    private final RepositoryService repositoryService;
+    private final SecurityService securityService;
+    private final Logger log;
+    private final int threads;
+    private final int maxQueued;
+    private final int maxAttempts;
+    private final long backoffMillis;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong requestMillis = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+
+    private final Object lock = new Object();
+    // everything below is guarded by lock
+    private boolean woken;
+    private final Map<Integer, WebhookState> states = new HashMap<Integer, WebhookState>();
+
+    private volatile boolean stopped;
+    private Thread dispatcher;
+    private ExecutorService workers;
+
+    private static final class WebhookState {
+
+        private DisapprovalWebhookSnapshot webhook;
+        // a worker is sending to it
+        private boolean busy;
+        // there may be something queued for it
+        private boolean pending = true;
+        // bumped whenever something is queued, so a worker that found nothing can tell whether that's still so
+        private long queuedGeneration;
+        // epoch millis, nothing is sent to it before then
+        private long notBefore;
+
+        private WebhookState(DisapprovalWebhookSnapshot webhook) {
+            this.webhook = webhook;
+        }
+    }
+
+    public WebhookDispatcher(PersistenceManager pm, RepositoryService repositoryService,
+        SecurityService securityService, PluginLoggerFactory lf) {
+        this.pm = pm;
+        this.repositoryService = repositoryService;
+        this.securityService = securityService;
+        this.log = lf.getLoggerForThis(this);
+        this.threads = Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS);
+        this.maxQueued = Math.max(1, Integer.getInteger(MAX_QUEUED_PROPERTY, DEFAULT_MAX_QUEUED));
+        this.maxAttempts = Math.max(1, Integer.getInteger(MAX_ATTEMPTS_PROPERTY, DEFAULT_MAX_ATTEMPTS));
+        this.backoffMillis = Math.max(1, Long.getLong(BACKOFF_MILLIS_PROPERTY, DEFAULT_BACKOFF_MILLIS));
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (threads <= 0) {
+            log.info("Disapproval webhooks are switched off");
+            return;
+        }
+        final AtomicInteger workerCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "disapproval-webhook-" + workerCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        dispatcher = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "disapproval-webhooks");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        pm.addTransitionListener(this);
+    }
+
+    @Override
+    public void destroy() {
+        stopped = true;
+        pm.removeTransitionListener(this);
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    @Override
+    public void onTransition(DisapprovalHistoryEntry transition) {
+        wake();
+    }
+
+    /**
+     * Changes put on the queue so far.
+     */
+    public long getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * Changes a webhook has accepted so far.
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * Requests sent so far, whatever came of them.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Requests that failed or weren't answered 2xx.
+     */
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    /**
+     * Time spent sending requests so far.
+     */
+    public long getRequestMillis() {
+        return requestMillis.get();
+    }
+
+    /**
+     * Changes that didn't fit in their webhook's queue.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Changes given up on after too many failed attempts.
+     */
+    public long getAbandoned() {
+        return abandoned.get();
+    }
+
+    private void wake() {
+        synchronized (lock) {
+            woken = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void dispatch() {
+        while (!stopped) {
+            synchronized (lock) {
+                woken = false;
+            }
+            long waitMillis = POLL_MILLIS;
+            try {
+                pump();
+                waitMillis = startWorkers();
+            } catch (Exception e) {
+                // try again on the next round, the queue and the feed keep everything meanwhile
+                log.error("Disapproval webhook dispatch failed", e);
+            }
+            synchronized (lock) {
+                try {
+                    if (!woken && !stopped) {
+                        lock.wait(waitMillis);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues the changes the webhooks haven't been given yet.
+     * 
+     * @return how many deliveries were queued
+     */
+    public int pump() throws SQLException {
+        return securityService.withPermission(Permission.SYS_ADMIN, "Disapproval webhooks").call(
+            new Operation<Integer, SQLException>() {
+
+                @Override
+                public Integer perform() throws SQLException {
+                    return doPump();
+                }
+            });
+    }
+
+    private int doPump() throws SQLException {
+        List<DisapprovalWebhookSnapshot> webhooks = pm.getWebhooks(null);
+        synchronized (lock) {
+            Set<Integer> current = new HashSet<Integer>();
+            for (DisapprovalWebhookSnapshot webhook : webhooks) {
+                current.add(webhook.getId());
+                WebhookState state = states.get(webhook.getId());
+                if (state == null) {
+                    states.put(webhook.getId(), new WebhookState(webhook));
+                } else {
+                    state.webhook = webhook;
+                }
+            }
+            states.keySet().retainAll(current);
+        }
+        if (webhooks.isEmpty()) {
+            return 0;
+        }
+
+        long since = Long.MAX_VALUE;
+        Map<Integer, List<DisapprovalWebhookSnapshot>> byRepository =
+            new HashMap<Integer, List<DisapprovalWebhookSnapshot>>();
+        for (DisapprovalWebhookSnapshot webhook : webhooks) {
+            since = Math.min(since, webhook.getLastSequence());
+            List<DisapprovalWebhookSnapshot> forRepository = byRepository.get(webhook.getRepositoryId());
+            if (forRepository == null) {
+                forRepository = new ArrayList<DisapprovalWebhookSnapshot>();
+                byRepository.put(webhook.getRepositoryId(), forRepository);
+            }
+            forRepository.add(webhook);
+        }
+        List<Integer> webhookIds = new ArrayList<Integer>(webhooks.size());
+        for (DisapprovalWebhookSnapshot webhook : webhooks) {
+            webhookIds.add(webhook.getId());
+        }
+
+        int total = 0;
+        long now = System.currentTimeMillis();
+        Map<Integer, Repository> repositories = new HashMap<Integer, Repository>();
+        DisapprovalChangePage page;
+        do {
+            page = pm.findChanges(null, since, FEED_PAGE_SIZE);
+            Map<Integer, List<DisapprovalWebhookDeliverySnapshot>> byWebhook =
+                new LinkedHashMap<Integer, List<DisapprovalWebhookDeliverySnapshot>>();
+            for (DisapprovalHistoryEntry change : page.getValues()) {
+                List<DisapprovalWebhookSnapshot> targets = byRepository.get(change.getRepositoryId());
+                if (targets == null) {
+                    continue;
+                }
+                String payload = null;
+                for (DisapprovalWebhookSnapshot webhook : targets) {
+                    if (change.getSequence() <= webhook.getLastSequence()) {
+                        continue;
+                    }
+                    if (payload == null) {
+                        payload = toJson(change, repositories).toString();
+                    }
+                    List<DisapprovalWebhookDeliverySnapshot> forWebhook = byWebhook.get(webhook.getId());
+                    if (forWebhook == null) {
+                        forWebhook = new ArrayList<DisapprovalWebhookDeliverySnapshot>();
+                        byWebhook.put(webhook.getId(), forWebhook);
+                    }
+                    forWebhook.add(new DisapprovalWebhookDeliverySnapshot(0, webhook.getId(), change.getSequence(),
+                        payload, 0, now));
+                }
+            }
+
+            List<DisapprovalWebhookDeliverySnapshot> deliveries = new ArrayList<DisapprovalWebhookDeliverySnapshot>();
+            for (Map.Entry<Integer, List<DisapprovalWebhookDeliverySnapshot>> e : byWebhook.entrySet()) {
+                List<DisapprovalWebhookDeliverySnapshot> forWebhook = e.getValue();
+                int room = Math.max(0, maxQueued - pm.countWebhookDeliveries(e.getKey()));
+                if (forWebhook.size() > room) {
+                    // a webhook that has been down for long enough loses the newest changes, not everyone else's
+                    int drop = forWebhook.size() - room;
+                    dropped.addAndGet(drop);
+                    log.warn("Queue of disapproval webhook " + e.getKey() + " is full, dropping " + drop + " changes");
+                    forWebhook = forWebhook.subList(0, room);
+                }
+                deliveries.addAll(forWebhook);
+            }
+            if (!deliveries.isEmpty() || page.getNextSince() > since) {
+                pm.enqueueWebhookDeliveries(deliveries, webhookIds, page.getNextSince());
+            }
+            queued.addAndGet(deliveries.size());
+            total += deliveries.size();
+            synchronized (lock) {
+                for (DisapprovalWebhookDeliverySnapshot d : deliveries) {
+                    WebhookState state = states.get(d.getWebhookId());
+                    if (state != null) {
+                        state.pending = true;
+                        ++state.queuedGeneration;
+                    }
+                }
+            }
+            since = page.getNextSince();
+        } while (!page.isLastPage());
+        return total;
+    }
+
+    /**
+     * Hands every webhook with something to send, and no request in flight, to a worker.
+     *
+     * @return how long until the next webhook waiting out a failure may be tried again
+     */
+    private long startWorkers() {
+        List<WebhookState> ready = new ArrayList<WebhookState>();
+        long now = System.currentTimeMillis();
+        long waitMillis = POLL_MILLIS;
+        synchronized (lock) {
+            for (WebhookState state : states.values()) {
+                if (state.busy || !state.pending) {
+                    continue;
+                }
+                if (state.notBefore <= now) {
+                    state.busy = true;
+                    ready.add(state);
+                } else {
+                    waitMillis = Math.min(waitMillis, state.notBefore - now);
+                }
+            }
+        }
+        for (final WebhookState state : ready) {
+            workers.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    deliver(state);
+                }
+            });
+        }
+        return waitMillis;
+    }
+
+    /**
+     * Sends the oldest changes queued for a webhook, in one request.
+     */
+    private void deliver(WebhookState state) {
+        DisapprovalWebhookSnapshot webhook;
+        long generation;
+        synchronized (lock) {
+            webhook = state.webhook;
+            generation = state.queuedGeneration;
+        }
+        boolean more = true;
+        long notBefore = 0;
+        try {
+            List<DisapprovalWebhookDeliverySnapshot> batch = pm.findWebhookDeliveries(webhook.getId(), BATCH_SIZE);
+            long now = System.currentTimeMillis();
+            if (batch.isEmpty()) {
+                more = false;
+                return;
+            }
+            if (batch.get(0).getNextAttemptAt() > now) {
+                // still backing off from before a restart
+                notBefore = batch.get(0).getNextAttemptAt();
+                return;
+            }
+
+            List<Integer> ids = new ArrayList<Integer>(batch.size());
+            StringBuilder body = new StringBuilder("{\"webhookId\":").append(webhook.getId()).append(",\"changes\":[");
+            for (DisapprovalWebhookDeliverySnapshot d : batch) {
+                body.append(ids.isEmpty() ? "" : ",").append(d.getPayload());
+                ids.add(d.getId());
+            }
+            body.append("]}");
+
+            int status = -1;
+            IOException failure = null;
+            long startNanos = System.nanoTime();
+            try {
+                status = post(webhook.getUrl(), webhook.getSecret(), body.toString());
+            } catch (IOException e) {
+                failure = e;
+            }
+            requests.incrementAndGet();
+            requestMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+
+            if (status >= 200 && status < 300) {
+                pm.deleteWebhookDeliveries(ids);
+                delivered.addAndGet(batch.size());
+                more = batch.size() == BATCH_SIZE;
+                return;
+            }
+            failedRequests.incrementAndGet();
+            int attempts = batch.get(0).getAttempts() + 1;
+            String why = failure == null ? "HTTP " + status : failure.toString();
+            if (attempts >= maxAttempts) {
+                pm.deleteWebhookDeliveries(ids);
+                abandoned.addAndGet(batch.size());
+                log.error("Giving up on " + batch.size() + " changes for disapproval webhook " + webhook.getId()
+                    + " after " + attempts + " attempts, last " + why);
+                more = batch.size() == BATCH_SIZE;
+            } else {
+                notBefore = now + getBackoffMillis(attempts);
+                pm.retryWebhookDeliveries(ids, attempts, notBefore);
+                log.warn("Disapproval webhook " + webhook.getId() + " failed with " + why + ", attempt " + attempts
+                    + ", trying again in " + (notBefore - now) + "ms");
+            }
+        } catch (Exception e) {
+            log.error("Unable to deliver to disapproval webhook " + webhook.getId(), e);
+            notBefore = System.currentTimeMillis() + backoffMillis;
+        } finally {
+            synchronized (lock) {
+                state.busy = false;
+                state.pending = more || state.queuedGeneration != generation;
+                state.notBefore = notBefore;
+                woken = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private long getBackoffMillis(int attempts) {
+        long delay = backoffMillis;
+        for (int i = 1; i < attempts && delay < MAX_BACKOFF_MILLIS; ++i) {
+            delay *= 2;
+        }
+        return Math.min(delay, MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * A new random secret to sign a webhook's requests with.
+     */
+    public static String newSecret() {
+        byte[] bytes = new byte[SECRET_BYTES];
+        RANDOM.nextBytes(bytes);
+        return toHex(bytes);
+    }
+
+    /**
+     * The {@value #SIGNATURE_HEADER} of a request: "sha256=" followed by the hex HMAC-SHA256 of the body, keyed with
+     * the UTF-8 bytes of the secret.
+     */
+    public static String sign(String secret, byte[] body) {
+        try {
+            Mac mac = Mac.getInstance(SIGNATURE_ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(UTF_8), SIGNATURE_ALGORITHM));
+            return "sha256=" + toHex(mac.doFinal(body));
+        } catch (GeneralSecurityException e) {
+            // every JRE has to provide HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private int post(String url, String secret, String body) throws IOException {
+        byte[] bytes = body.getBytes(UTF_8);
+        HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+        c.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        c.setReadTimeout(READ_TIMEOUT_MILLIS);
+        c.setInstanceFollowRedirects(false);
+        c.setRequestMethod("POST");
+        c.setDoOutput(true);
+        c.setFixedLengthStreamingMode(bytes.length);
+        c.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+        if (secret != null) {
+            c.setRequestProperty(SIGNATURE_HEADER, sign(secret, bytes));
+        }
+        OutputStream os = c.getOutputStream();
+        try {
+            os.write(bytes);
+        } finally {
+            os.close();
+        }
+        int status = c.getResponseCode();
+        // read to the end, so the connection can be kept alive for the next request
+        InputStream is = status >= 400 ? c.getErrorStream() : c.getInputStream();
+        if (is != null) {
+            try {
+                byte[] buffer = new byte[4096];
+                while (is.read(buffer) >= 0) {
+                    // discard
+                }
+            } finally {
+                is.close();
+            }
+        }
+        return status;
+    }
+
+    private JSONObject toJson(DisapprovalHistoryEntry change, Map<Integer, Repository> repositories) {
+        Repository repo = repositories.get(change.getRepositoryId());
+        if (repo == null && !repositories.containsKey(change.getRepositoryId())) {
+            repo = repositoryService.getById(change.getRepositoryId());
+            repositories.put(change.getRepositoryId(), repo);
+        }
+        Map<String, Object> o = new LinkedHashMap<String, Object>();
+        o.put("sequence", change.getSequence());
+        o.put("repositoryId", change.getRepositoryId());
+        if (repo != null) {
+            o.put("project", repo.getProject().getKey());
+            o.put("repo", repo.getSlug());
+        }
+        o.put("pullRequestId", change.getPullRequestId());
+        o.put("action", change.getAction().name());
+        o.put("disapproved", change.getAction() == DisapprovalAction.DISAPPROVED);
+        if (change.getUserId() != null) {
+            o.put("userId", change.getUserId());
+        }
+        o.put("username", change.getUsername());
+        o.put("createdAt", change.getCreatedAt());
+        return new JSONObject(o);
+    }
+}
@@ -0,0 +1,97 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.mergecheck;
+
+/**
+ * What the disapproval merge check makes of a pull request: whether it vetoes the merge, and if so the summary and
+ * detail it shows.
+ * 
+ * @see MergeVetoEvaluator
+ */
+public final class MergeVeto {
+
+    public enum Outcome {
+        DISABLED("disabled"),
+        ADVISORY("advisory"),
+        ALLOWED("allowed"),
+        VETOED("vetoed"),
+        FROZEN("frozen"),
+        ERROR("error"),
+        // the pull request doesn't exist, or has already been merged or declined
+        NOT_FOUND("notFound"),
+        CLOSED("closed");
+
+        private final String name;
+
+        private Outcome(String name) {
+            this.name = name;
+        }
+
+        /**
+         * The name clients and {@link com.palantir.stash.disapprove.jfr.MergeCheckEvent} see.
+         */
+        public String getName() {
+            return name;
+        }
+    }
+
+    // the outcomes that don't veto are always the same, so they are shared
+    static final MergeVeto DISABLED = new MergeVeto(Outcome.DISABLED, null, null);
+    static final MergeVeto ADVISORY = new MergeVeto(Outcome.ADVISORY, null, null);
+    static final MergeVeto ALLOWED = new MergeVeto(Outcome.ALLOWED, null, null);
+    static final MergeVeto ERROR = new MergeVeto(Outcome.ERROR, "Unable to determine disapproval information",
+        "Unable to determine disapproval information, assuming PR is disapproved");
+    // the configuration couldn't be read, which lets the merge through like disapproval being switched off
+    static final MergeVeto NO_CONFIGURATION = new MergeVeto(Outcome.ERROR, null, null);
+    // there is nothing left to merge, so there is nothing to veto either
+    static final MergeVeto NOT_FOUND = new MergeVeto(Outcome.NOT_FOUND, null, null);
+    static final MergeVeto CLOSED = new MergeVeto(Outcome.CLOSED, null, null);
+
+    private final Outcome outcome;
+    private final String summary;
+    private final String detail;
+
+    MergeVeto(Outcome outcome, String summary, String detail) {
+        this.outcome = outcome;
+        this.summary = summary;
+        this.detail = detail;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public boolean isVetoed() {
+        return summary != null;
+    }
+
+    /**
+     * The veto's summary, or null if the merge isn't vetoed.
+     */
+    public String getSummary() {
+        return summary;
+    }
+
+    /**
+     * The veto's detail, or null if the merge isn't vetoed.
+     */
+    public String getDetail() {
+        return detail;
+    }
+
+    @Override
+    public String toString() {
+        return "MergeVeto[outcome=" + outcome.getName() + ", summary=" + summary + ", detail=" + detail + "]";
+    }
+}
@@ -0,0 +1,185 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.mergecheck;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestRef;
+import com.atlassian.stash.pull.PullRequestState;
+import com.atlassian.stash.repository.Repository;
+import com.google.common.base.Function;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.DisapprovalMode;
+import com.palantir.stash.disapprove.persistence.DisapprovalStatus;
+import com.palantir.stash.disapprove.persistence.MergeFreeze;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.user.UserNameResolver;
+
+/**
+ * Decides whether disapproval vetoes merging a pull request: a freeze on its target branch does, and otherwise a
+ * disapproval does where disapproval is enabled and not just advisory.
+ * 
+ * This is the logic of {@link PullRequestDisapprovalMergeCheck}, shared so that clients can ask about many pull
+ * requests at once without attempting the merges.
+ * 
+ * @author cmyers
+ */
+public class MergeVetoEvaluator {
+
+    private final PersistenceManager pm;
+    private final UserNameResolver names;
+    private final Logger log;
+
+    public MergeVetoEvaluator(PersistenceManager pm, UserNameResolver names, PluginLoggerFactory lf) {
+        this.pm = pm;
+        this.names = names;
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    /**
+     * Evaluates one pull request the way the merge check does. A freeze is just the cached configuration, so it is
+     * checked before the pull request's own row is read.
+     * 
+     * If the configuration can't be read the merge is allowed, as if disapproval were switched off; if the pull
+     * request's disapproval can't be read it is vetoed, to be safe.
+     */
+    public MergeVeto evaluate(PullRequest pr) {
+        Repository repo = pr.getToRef().getRepository();
+        log.debug("Checking disapproval for repo {} pull request {}", repo.getName(), pr.getTitle());
+        MergeFreeze freeze;
+        try {
+            freeze = pm.getMergeFreeze(repo);
+        } catch (SQLException e) {
+            log.error("Unable to get disapproval configuration - ignoring", e);
+            return MergeVeto.NO_CONFIGURATION;
+        }
+        if (freeze.appliesTo(pr.getToRef().getId())) {
+            log.trace("Merges into {} are frozen", pr.getToRef().getId());
+            return frozen(pr.getToRef());
+        }
+        DisapprovalStatus status;
+        try {
+            status = pm.getDisapprovalStatus(pr);
+        } catch (SQLException e) {
+            log.error("Unable to get disapproval status, disapproving to be safe", e);
+            return MergeVeto.ERROR;
+        }
+        return evaluate(status);
+    }
+
+    /**
+     * Evaluates many pull requests of one repository, with one configuration lookup and a bulk read of their rows.
+     * Pull requests that don't exist, or have already been merged or declined, come back as not found or closed
+     * rather than being evaluated.
+     * 
+     * @param pullRequests looks up a pull request of the repository by id, returning null if there is none
+     * @return the verdict for each pull request, in the order given
+     */
+    public Map<Long, MergeVeto> evaluate(Repository repo, Collection<Long> pullRequestIds,
+        Function<Long, PullRequest> pullRequests) {
+        Map<Long, MergeVeto> vetoes = new HashMap<Long, MergeVeto>();
+        Map<Long, PullRequestRef> open = new LinkedHashMap<Long, PullRequestRef>();
+        for (Long pullRequestId : pullRequestIds) {
+            PullRequest pr = pullRequests.apply(pullRequestId);
+            if (pr == null) {
+                vetoes.put(pullRequestId, MergeVeto.NOT_FOUND);
+            } else if (pr.getState() != PullRequestState.OPEN) {
+                vetoes.put(pullRequestId, MergeVeto.CLOSED);
+            } else {
+                open.put(pullRequestId, pr.getToRef());
+            }
+        }
+
+        MergeFreeze freeze;
+        try {
+            freeze = pm.getMergeFreeze(repo);
+        } catch (SQLException e) {
+            log.error("Unable to get disapproval configuration for repo " + repo.getId() + " - ignoring", e);
+            freeze = null;
+        }
+        if (freeze == null) {
+            for (Long pullRequestId : open.keySet()) {
+                vetoes.put(pullRequestId, MergeVeto.NO_CONFIGURATION);
+            }
+        } else {
+            List<Long> notFrozen = new ArrayList<Long>(open.size());
+            for (Map.Entry<Long, PullRequestRef> e : open.entrySet()) {
+                if (freeze.isFrozen() && freeze.getBranches().isEmpty()) {
+                    vetoes.put(e.getKey(), frozen(null));
+                } else if (freeze.appliesTo(e.getValue().getId())) {
+                    vetoes.put(e.getKey(), frozen(e.getValue()));
+                } else {
+                    notFrozen.add(e.getKey());
+                }
+            }
+            if (!notFrozen.isEmpty()) {
+                try {
+                    Map<Long, DisapprovalStatus> statuses = pm.getDisapprovalStatuses(repo, notFrozen);
+                    for (Long pullRequestId : notFrozen) {
+                        vetoes.put(pullRequestId, evaluate(statuses.get(pullRequestId)));
+                    }
+                } catch (SQLException e) {
+                    log.error("Unable to get disapproval statuses for repo " + repo.getId()
+                        + ", disapproving to be safe", e);
+                    for (Long pullRequestId : notFrozen) {
+                        vetoes.put(pullRequestId, MergeVeto.ERROR);
+                    }
+                }
+            }
+        }
+
+        Map<Long, MergeVeto> ordered = new LinkedHashMap<Long, MergeVeto>();
+        for (Long pullRequestId : pullRequestIds) {
+            ordered.put(pullRequestId, vetoes.get(pullRequestId));
+        }
+        return ordered;
+    }
+
+    private MergeVeto evaluate(DisapprovalStatus status) {
+        if (!status.isEnabled()) {
+            log.trace("Disapproval not enabled for repo {}", status.getRepositoryId());
+            return MergeVeto.DISABLED;
+        }
+        if (status.getDisapprovalMode().equals(DisapprovalMode.ADVISORY_MODE)) {
+            // if in advisory mode, don't actually prevent merges
+            log.trace("Disapproval is in advisory mode for this repo");
+            return MergeVeto.ADVISORY;
+        }
+        if (status.isDisapproved()) {
+            log.trace("PR Disapproved");
+            String disapprover = names.getDisplayName(status.getDisapprovedById(), status.getDisapprovedBy());
+            return new MergeVeto(MergeVeto.Outcome.VETOED, "This Pull Request is Disapproved",
+                "Ask the disapprover '" + disapprover
+                    + "' or a repository admin to remove their disapproval of the pull request");
+        }
+        log.trace("PR Not Disapproved");
+        return MergeVeto.ALLOWED;
+    }
+
+    // toRef is null when every branch is frozen
+    private static MergeVeto frozen(PullRequestRef toRef) {
+        return new MergeVeto(MergeVeto.Outcome.FROZEN, "Merges are frozen",
+            "Merges into " + (toRef == null ? "this repository" : toRef.getDisplayId())
+                + " are frozen; ask a repository or project admin when the freeze will be lifted");
+    }
+}
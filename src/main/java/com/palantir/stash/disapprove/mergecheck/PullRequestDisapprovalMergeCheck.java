@@ -13,21 +13,16 @@
 // limitations under the License.
 package com.palantir.stash.disapprove.mergecheck;
 
-import java.sql.SQLException;
-
 import javax.annotation.Nonnull;
 
-import org.slf4j.Logger;
-
 import com.atlassian.stash.pull.PullRequest;
-import com.atlassian.stash.repository.Repository;
 import com.atlassian.stash.scm.pull.MergeRequest;
 import com.atlassian.stash.scm.pull.MergeRequestCheck;
+import com.palantir.stash.disapprove.jfr.DisapprovalJfr;
+import com.palantir.stash.disapprove.jfr.MergeCheckEvent;
 import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
-import com.palantir.stash.disapprove.persistence.DisapprovalConfiguration;
-import com.palantir.stash.disapprove.persistence.DisapprovalMode;
 import com.palantir.stash.disapprove.persistence.PersistenceManager;
-import com.palantir.stash.disapprove.persistence.PullRequestDisapproval;
+import com.palantir.stash.disapprove.user.UserNameResolver;
 
 /**
  * This class is a MergeRequestCheck to disable merging where the target repo
@@ -38,56 +33,22 @@ import com.palantir.stash.disapprove.persistence.PullRequestDisapproval;
  */
 public class PullRequestDisapprovalMergeCheck implements MergeRequestCheck {
 
-    private final PersistenceManager cpm;
-    private final Logger log;
+    private final MergeVetoEvaluator evaluator;
 
-    public PullRequestDisapprovalMergeCheck(PersistenceManager cpm, PluginLoggerFactory lf) {
-        this.cpm = cpm;
-        this.log = lf.getLoggerForThis(this);
+    public PullRequestDisapprovalMergeCheck(PersistenceManager cpm, UserNameResolver names, PluginLoggerFactory lf) {
+        this.evaluator = new MergeVetoEvaluator(cpm, names, lf);
     }
 
     @Override
     public void check(@Nonnull MergeRequest mr) {
+        MergeCheckEvent event = DisapprovalJfr.beginMergeCheck();
         PullRequest pr = mr.getPullRequest();
-        Repository repo = pr.getToRef().getRepository();
-        log.debug("Checking disapproval for repo " + repo.getName() + " pull request " + pr.getTitle());
-
-        DisapprovalConfiguration dpc;
-        try {
-            dpc = cpm.getDisapprovalConfiguration(repo);
-        } catch (SQLException e) {
-            log.error("Unable to get disapproval configuration - ignoring");
-            return;
-        }
-
-        if (!dpc.isEnabled()) {
-            log.trace("Disapproval not enabled for repo " + repo.getName());
-            return;
+        MergeVeto veto = evaluator.evaluate(pr);
+        if (veto.isVetoed()) {
+            mr.veto(veto.getSummary(), veto.getDetail());
         }
-
-        if (dpc.getDisapprovalMode().equals(DisapprovalMode.ADVISORY_MODE)) {
-            // if in advisory mode, don't actually prevent merges
-            log.trace("Disapproval is in advisory mode for this repo");
-            return;
-        }
-
-        PullRequestDisapproval prd;
-        try {
-            prd = cpm.getPullRequestDisapproval(pr);
-        } catch (SQLException e) {
-            log.error("Unable to get disapproval configuration, disapproving to be safe", e);
-            mr.veto("Unable to determine disapproval information",
-                "Unable to determine disapproval information, assuming PR is disapproved");
-            return;
-        }
-
-        if (prd.isDisapproved()) {
-            log.trace("PR Disapproved");
-            mr.veto("This Pull Request is Disapproved",
-                "Ask the disapprover '" + prd.getDisapprovedBy()
-                    + "' or a repository admin to remove their disapproval of the pull request");
-        } else {
-            log.trace("PR Not Disapproved");
+        if (event != null) {
+            event.complete(pr.getToRef().getRepository().getId(), pr.getId(), veto.getOutcome().getName());
         }
     }
 }
@@ -0,0 +1,26 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+/**
+ * What {@link PersistenceManager#setPullRequestDisapprovals} did to one pull request.
+ */
+public enum BulkDisapprovalResult {
+    /** The disapproval was set or removed. */
+    CHANGED,
+    /** It was already disapproved (or not), nothing was written. */
+    UNCHANGED,
+    /** Disapproved by someone else, and the user may only remove their own disapprovals. */
+    NOT_PERMITTED;
+}
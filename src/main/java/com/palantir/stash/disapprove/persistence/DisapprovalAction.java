@@ -0,0 +1,26 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+/**
+ * What happened to a pull request's disapproval, as recorded in its {@link DisapprovalHistory}.
+ */
+public enum DisapprovalAction {
+    /** Someone disapproved it. */
+    DISAPPROVED,
+    /** Someone removed the disapproval, or new commits cleared it. */
+    REMOVED,
+    /** The disapproval lifted by itself. */
+    EXPIRED;
+}
@@ -0,0 +1,62 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * One page of the change feed, as returned by {@link PersistenceManager#findChanges}.
+ */
+public final class DisapprovalChangePage {
+
+    private final List<DisapprovalHistoryEntry> values;
+    private final long nextSince;
+    private final boolean lastPage;
+
+    public DisapprovalChangePage(List<DisapprovalHistoryEntry> values, long nextSince, boolean lastPage) {
+        this.values = ImmutableList.copyOf(values);
+        this.nextSince = nextSince;
+        this.lastPage = lastPage;
+    }
+
+    /**
+     * The changes, in sequence order.
+     */
+    public List<DisapprovalHistoryEntry> getValues() {
+        return values;
+    }
+
+    /**
+     * Whether these are all the changes there are for now; if not, ask again straight away.
+     */
+    public boolean isLastPage() {
+        return lastPage;
+    }
+
+    /**
+     * The sequence to ask for changes after next time: the last one in this page, or the one asked for if the page
+     * is empty.
+     */
+    public long getNextSince() {
+        return nextSince;
+    }
+
+    @Override
+    public String toString() {
+        return "DisapprovalChangePage[size=" + values.size() + ", nextSince=" + nextSince + ", lastPage=" + lastPage
+            + "]";
+    }
+}
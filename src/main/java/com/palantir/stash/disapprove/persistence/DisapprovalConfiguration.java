@@ -56,6 +56,30 @@ public interface DisapprovalConfiguration extends Entity {
     @Mutator("IS_ENABLED")
     public void setEnabled(Boolean isEnabled);
 
+    @NotNull
+    @Default("false")
+    @Accessor("FROZEN")
+    public Boolean isFrozen();
+
+    @Mutator("FROZEN")
+    public void setFrozen(Boolean isFrozen);
+
+    // see MergeFreeze, null for every branch
+    @Accessor("FREEZE_BRANCHES")
+    public String getFreezeBranches();
+
+    @Mutator("FREEZE_BRANCHES")
+    public void setFreezeBranches(String branches);
+
+    // see RescopePolicy
+    @NotNull
+    @Default(RescopePolicy.Constants.KEEP_VALUE)
+    @Accessor("RESCOPE_POLICY")
+    public String getRescopePolicyStr();
+
+    @Mutator("RESCOPE_POLICY")
+    public void setRescopePolicyStr(String policy);
+
     /////
     // These are implemented in DisapprovalPluginConfigurationImpl - so the user can use enums
     /////
@@ -65,6 +89,18 @@ public interface DisapprovalConfiguration extends Entity {
     @Ignore
     public void setDisapprovalMode(DisapprovalMode mode);
 
+    @Ignore
+    public MergeFreeze getMergeFreeze();
+
+    @Ignore
+    public void setMergeFreeze(MergeFreeze freeze);
+
+    @Ignore
+    public RescopePolicy getRescopePolicy();
+
+    @Ignore
+    public void setRescopePolicy(RescopePolicy policy);
+
     @Ignore
     public Repository getRepository(RepositoryService rs);
 
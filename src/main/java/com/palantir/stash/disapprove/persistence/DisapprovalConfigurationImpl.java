@@ -39,6 +39,25 @@ public class DisapprovalConfigurationImpl {
         dpc.setDisapprovalModeStr(authMode.getMode());
     }
 
+    public MergeFreeze getMergeFreeze() {
+        return MergeFreeze.of(dpc.isFrozen(), dpc.getFreezeBranches());
+    }
+
+    public void setMergeFreeze(MergeFreeze freeze) {
+        dpc.setFrozen(freeze.isFrozen());
+        dpc.setFreezeBranches(freeze.getBranchesStr());
+    }
+
+    public RescopePolicy getRescopePolicy() {
+        // a row created without it reads null until it is reloaded
+        String policy = dpc.getRescopePolicyStr();
+        return policy == null ? RescopePolicy.KEEP : RescopePolicy.fromPolicy(policy);
+    }
+
+    public void setRescopePolicy(RescopePolicy policy) {
+        dpc.setRescopePolicyStr(policy.getPolicy());
+    }
+
     public Repository getRepository(RepositoryService rs) {
         return rs.getById(dpc.getRepositoryId());
     }
@@ -0,0 +1,98 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+/**
+ * An immutable copy of a {@link DisapprovalConfiguration} row (or of the defaults a repository without one inherits),
+ * with the mode already parsed.
+ * 
+ * Unlike the entity it is safe to keep around and share between threads, which is what lets
+ * {@link PersistenceManager} cache it.
+ */
+public final class DisapprovalConfigurationSnapshot {
+
+    private final int repositoryId;
+    private final boolean enabled;
+    private final DisapprovalMode disapprovalMode;
+    private final MergeFreeze freeze;
+    private final RescopePolicy rescopePolicy;
+    private final boolean inherited;
+
+    public DisapprovalConfigurationSnapshot(int repositoryId, boolean enabled, DisapprovalMode disapprovalMode) {
+        this(repositoryId, enabled, disapprovalMode, MergeFreeze.NONE, false);
+    }
+
+    public DisapprovalConfigurationSnapshot(int repositoryId, boolean enabled, DisapprovalMode disapprovalMode,
+        MergeFreeze freeze, boolean inherited) {
+        this(repositoryId, enabled, disapprovalMode, freeze, RescopePolicy.KEEP, inherited);
+    }
+
+    public DisapprovalConfigurationSnapshot(int repositoryId, boolean enabled, DisapprovalMode disapprovalMode,
+        MergeFreeze freeze, RescopePolicy rescopePolicy, boolean inherited) {
+        this.repositoryId = repositoryId;
+        this.enabled = enabled;
+        this.disapprovalMode = disapprovalMode;
+        this.freeze = freeze;
+        this.rescopePolicy = rescopePolicy;
+        this.inherited = inherited;
+    }
+
+    public static DisapprovalConfigurationSnapshot of(DisapprovalConfiguration dc) {
+        return new DisapprovalConfigurationSnapshot(dc.getRepositoryId(), dc.isEnabled(), dc.getDisapprovalMode(),
+            dc.getMergeFreeze(), dc.getRescopePolicy(), false);
+    }
+
+    public int getRepositoryId() {
+        return repositoryId;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public DisapprovalMode getDisapprovalMode() {
+        return disapprovalMode;
+    }
+
+    /**
+     * The repository's own freeze; {@link PersistenceManager#getMergeFreeze} also takes the project's and the global
+     * freezes into account.
+     */
+    public MergeFreeze getFreeze() {
+        return freeze;
+    }
+
+    /**
+     * What happens to a disapproval when new commits are pushed; always {@link RescopePolicy#KEEP} for a repository
+     * that inherits its configuration.
+     */
+    public RescopePolicy getRescopePolicy() {
+        return rescopePolicy;
+    }
+
+    /**
+     * True if the repository has no configuration of its own, and this came from its project's or the global
+     * defaults.
+     */
+    public boolean isInherited() {
+        return inherited;
+    }
+
+    @Override
+    public String toString() {
+        return "DisapprovalConfigurationSnapshot[repositoryId=" + repositoryId + ", enabled=" + enabled + ", mode="
+            + disapprovalMode + ", freeze=" + freeze + ", rescopePolicy=" + rescopePolicy + ", inherited=" + inherited
+            + "]";
+    }
+}
@@ -0,0 +1,72 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+import net.java.ao.Accessor;
+import net.java.ao.Entity;
+import net.java.ao.Mutator;
+import net.java.ao.Preload;
+import net.java.ao.schema.Default;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.Table;
+import net.java.ao.schema.Unique;
+
+/**
+ * The configuration inherited by repositories without a {@link DisapprovalConfiguration} of their own: one row per
+ * project that has a default, plus one for the whole instance under {@link PersistenceManager#GLOBAL_DEFAULTS}.
+ */
+@Table("DPDefaults001")
+@Preload
+public interface DisapprovalDefaults extends Entity {
+
+    // a project id, or PersistenceManager.GLOBAL_DEFAULTS
+    @NotNull
+    @Unique
+    @Accessor("PROJECT_ID")
+    public Integer getProjectId();
+
+    @Mutator("PROJECT_ID")
+    public void setProjectId(Integer projectId);
+
+    @NotNull
+    @Default(DisapprovalMode.Constants.STRICT_VALUE)
+    @Accessor("MODE_STR")
+    public String getDisapprovalModeStr();
+
+    @Mutator("MODE_STR")
+    public void setDisapprovalModeStr(String mode);
+
+    @NotNull
+    @Default("false")
+    @Accessor("IS_ENABLED")
+    public Boolean isEnabled();
+
+    @Mutator("IS_ENABLED")
+    public void setEnabled(Boolean isEnabled);
+
+    @NotNull
+    @Default("false")
+    @Accessor("FROZEN")
+    public Boolean isFrozen();
+
+    @Mutator("FROZEN")
+    public void setFrozen(Boolean isFrozen);
+
+    // see MergeFreeze, null for every branch
+    @Accessor("FREEZE_BRANCHES")
+    public String getFreezeBranches();
+
+    @Mutator("FREEZE_BRANCHES")
+    public void setFreezeBranches(String branches);
+}
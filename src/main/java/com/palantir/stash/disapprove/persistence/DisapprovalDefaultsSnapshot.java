@@ -0,0 +1,67 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+/**
+ * An immutable copy of a {@link DisapprovalDefaults} row, with the mode already parsed.
+ */
+public final class DisapprovalDefaultsSnapshot {
+
+    private final int projectId;
+    private final boolean enabled;
+    private final DisapprovalMode disapprovalMode;
+    private final MergeFreeze freeze;
+
+    public DisapprovalDefaultsSnapshot(int projectId, boolean enabled, DisapprovalMode disapprovalMode,
+        MergeFreeze freeze) {
+        this.projectId = projectId;
+        this.enabled = enabled;
+        this.disapprovalMode = disapprovalMode;
+        this.freeze = freeze;
+    }
+
+    public static DisapprovalDefaultsSnapshot of(DisapprovalDefaults dd) {
+        return new DisapprovalDefaultsSnapshot(dd.getProjectId(), dd.isEnabled(),
+            DisapprovalMode.fromMode(dd.getDisapprovalModeStr()),
+            MergeFreeze.of(dd.isFrozen(), dd.getFreezeBranches()));
+    }
+
+    /**
+     * The project these are the defaults for, or {@link PersistenceManager#GLOBAL_DEFAULTS}.
+     */
+    public int getProjectId() {
+        return projectId;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public DisapprovalMode getDisapprovalMode() {
+        return disapprovalMode;
+    }
+
+    /**
+     * Freezes every repository in the project (or on the instance), whether or not it inherits the rest.
+     */
+    public MergeFreeze getFreeze() {
+        return freeze;
+    }
+
+    @Override
+    public String toString() {
+        return "DisapprovalDefaultsSnapshot[projectId=" + projectId + ", enabled=" + enabled + ", mode="
+            + disapprovalMode + ", freeze=" + freeze + "]";
+    }
+}
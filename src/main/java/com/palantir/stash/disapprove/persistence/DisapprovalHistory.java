@@ -0,0 +1,94 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+import net.java.ao.Accessor;
+import net.java.ao.Entity;
+import net.java.ao.Mutator;
+import net.java.ao.Preload;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.Table;
+
+/**
+ * One change to the disapproval of a pull request. Rows are only ever inserted, in the same transaction as the change
+ * itself, and read back in id order, so the table is an audit log of every transition.
+ * 
+ * SEQ orders the rows the way the change feed serves them; see {@link PersistenceManager#findChanges}.
+ */
+@Table("PRDHistory001")
+@Preload
+public interface DisapprovalHistory extends Entity {
+
+    @NotNull
+    @Indexed
+    @Accessor("REPO_ID")
+    public Integer getRepositoryId();
+
+    @Mutator("REPO_ID")
+    public void setRepositoryId(Integer repoId);
+
+    @NotNull
+    @Indexed
+    @Accessor("PR_ID")
+    public Long getPullRequestId();
+
+    @Mutator("PR_ID")
+    public void setPullRequestId(Long prId);
+
+    // who made the change, null when nobody did (it expired)
+    @Accessor("USER_ID")
+    public Integer getUserId();
+
+    @Mutator("USER_ID")
+    public void setUserId(Integer userId);
+
+    @NotNull
+    @Accessor("USERNAME")
+    public String getUsername();
+
+    @Mutator("USERNAME")
+    public void setUsername(String username);
+
+    // a DisapprovalAction
+    @NotNull
+    @Accessor("ACTION")
+    public String getAction();
+
+    @Mutator("ACTION")
+    public void setAction(String action);
+
+    // epoch millis
+    @NotNull
+    @Accessor("CREATED_AT")
+    public Long getCreatedAt();
+
+    @Mutator("CREATED_AT")
+    public void setCreatedAt(Long createdAt);
+
+    // for REMOVED and EXPIRED, when the disapproval that was lifted had been given (epoch millis), if known
+    @Accessor("DISAPPROVED_AT")
+    public Long getDisapprovedAt();
+
+    @Mutator("DISAPPROVED_AT")
+    public void setDisapprovedAt(Long disapprovedAt);
+
+    // increases with every change; only null between adding the column and the upgrade task filling it in
+    @Indexed
+    @Accessor("SEQ")
+    public Long getSequence();
+
+    @Mutator("SEQ")
+    public void setSequence(Long sequence);
+}
@@ -0,0 +1,118 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+/**
+ * An immutable copy of a {@link DisapprovalHistory} row.
+ */
+public final class DisapprovalHistoryEntry {
+
+    private final int id;
+    private final int repositoryId;
+    private final long pullRequestId;
+    private final Integer userId;
+    private final String username;
+    private final DisapprovalAction action;
+    private final long createdAt;
+    private final Long disapprovedAt;
+    private final Long sequence;
+
+    public DisapprovalHistoryEntry(int id, int repositoryId, long pullRequestId, Integer userId, String username,
+        DisapprovalAction action, long createdAt) {
+        this(id, repositoryId, pullRequestId, userId, username, action, createdAt, null);
+    }
+
+    public DisapprovalHistoryEntry(int id, int repositoryId, long pullRequestId, Integer userId, String username,
+        DisapprovalAction action, long createdAt, Long disapprovedAt) {
+        this(id, repositoryId, pullRequestId, userId, username, action, createdAt, disapprovedAt, null);
+    }
+
+    public DisapprovalHistoryEntry(int id, int repositoryId, long pullRequestId, Integer userId, String username,
+        DisapprovalAction action, long createdAt, Long disapprovedAt, Long sequence) {
+        this.id = id;
+        this.repositoryId = repositoryId;
+        this.pullRequestId = pullRequestId;
+        this.userId = userId;
+        this.username = username;
+        this.action = action;
+        this.createdAt = createdAt;
+        this.disapprovedAt = disapprovedAt;
+        this.sequence = sequence;
+    }
+
+    public static DisapprovalHistoryEntry of(DisapprovalHistory h) {
+        return new DisapprovalHistoryEntry(h.getID(), h.getRepositoryId(), h.getPullRequestId(), h.getUserId(),
+            h.getUsername(), DisapprovalAction.valueOf(h.getAction()), h.getCreatedAt(), h.getDisapprovedAt(),
+            h.getSequence());
+    }
+
+    /**
+     * The row id, which increases with every change and is what history pages are keyed by.
+     */
+    public int getId() {
+        return id;
+    }
+
+    public int getRepositoryId() {
+        return repositoryId;
+    }
+
+    public long getPullRequestId() {
+        return pullRequestId;
+    }
+
+    /**
+     * The id of the user who made the change, or null if nobody did.
+     */
+    public Integer getUserId() {
+        return userId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public DisapprovalAction getAction() {
+        return action;
+    }
+
+    /**
+     * When the change was made, in epoch millis.
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * For {@link DisapprovalAction#REMOVED} and {@link DisapprovalAction#EXPIRED}, when the disapproval that was
+     * lifted had been given, in epoch millis; null for other actions or when that isn't known.
+     */
+    public Long getDisapprovedAt() {
+        return disapprovedAt;
+    }
+
+    /**
+     * The change's place in the feed, see {@link PersistenceManager#findChanges}.
+     */
+    public Long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public String toString() {
+        return "DisapprovalHistoryEntry[id=" + id + ", repositoryId=" + repositoryId + ", pullRequestId="
+            + pullRequestId + ", userId=" + userId + ", username=" + username + ", action=" + action
+            + ", createdAt=" + createdAt + ", disapprovedAt=" + disapprovedAt + ", sequence=" + sequence + "]";
+    }
+}
@@ -0,0 +1,53 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * One page of history, as returned by {@link PersistenceManager#findHistory}; keyed by row id like
+ * {@link DisapprovalPage}.
+ */
+public final class DisapprovalHistoryPage {
+
+    private final List<DisapprovalHistoryEntry> values;
+    private final Integer nextPageStart;
+
+    public DisapprovalHistoryPage(List<DisapprovalHistoryEntry> values, Integer nextPageStart) {
+        this.values = ImmutableList.copyOf(values);
+        this.nextPageStart = nextPageStart;
+    }
+
+    public List<DisapprovalHistoryEntry> getValues() {
+        return values;
+    }
+
+    public boolean isLastPage() {
+        return nextPageStart == null;
+    }
+
+    /**
+     * The start to ask for to get the next page, or null if this is the last one.
+     */
+    public Integer getNextPageStart() {
+        return nextPageStart;
+    }
+
+    @Override
+    public String toString() {
+        return "DisapprovalHistoryPage[size=" + values.size() + ", nextPageStart=" + nextPageStart + "]";
+    }
+}
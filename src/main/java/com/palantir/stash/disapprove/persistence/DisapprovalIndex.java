@@ -0,0 +1,61 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The disapproved pull requests, in memory, so high volume events can tell whether theirs is one without a query.
+ * 
+ * {@link PersistenceManager} updates it on every write, under the same lock as the write, and fills it from the table
+ * once at startup. Until that load has finished it can't rule anything out, so it answers "maybe" for every pull
+ * request. It can also answer "maybe" for one that was undisapproved while the load was running, so callers re-read
+ * the row before acting on it; it never misses one that is disapproved.
+ */
+final class DisapprovalIndex {
+
+    private final Set<Long> disapproved = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private volatile boolean loaded;
+
+    boolean mayBeDisapproved(int repositoryId, long pullRequestId) {
+        return !loaded || disapproved.contains(RepositoryKeys.key(repositoryId, pullRequestId));
+    }
+
+    void set(int repositoryId, long pullRequestId, boolean isDisapproved) {
+        if (isDisapproved) {
+            disapproved.add(RepositoryKeys.key(repositoryId, pullRequestId));
+        } else {
+            disapproved.remove(RepositoryKeys.key(repositoryId, pullRequestId));
+        }
+    }
+
+    void removeRepository(int repositoryId) {
+        for (Iterator<Long> it = disapproved.iterator(); it.hasNext();) {
+            if (RepositoryKeys.getRepositoryId(it.next()) == repositoryId) {
+                it.remove();
+            }
+        }
+    }
+
+    void setLoaded() {
+        loaded = true;
+    }
+
+    int size() {
+        return disapproved.size();
+    }
+}
@@ -0,0 +1,56 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * One page of disapprovals, as returned by {@link PersistenceManager#findDisapprovedPullRequests}.
+ *
+ * Pages are keyed by row id rather than by position: {@link #getNextPageStart()} is the id of the last row on this
+ * page, and passing it back as the start of the next request continues right after it, however deep into the table
+ * that is.
+ */
+public final class DisapprovalPage {
+
+    private final List<PullRequestDisapprovalSnapshot> values;
+    private final Integer nextPageStart;
+
+    public DisapprovalPage(List<PullRequestDisapprovalSnapshot> values, Integer nextPageStart) {
+        this.values = ImmutableList.copyOf(values);
+        this.nextPageStart = nextPageStart;
+    }
+
+    public List<PullRequestDisapprovalSnapshot> getValues() {
+        return values;
+    }
+
+    public boolean isLastPage() {
+        return nextPageStart == null;
+    }
+
+    /**
+     * The start to ask for to get the next page, or null if this is the last one.
+     */
+    public Integer getNextPageStart() {
+        return nextPageStart;
+    }
+
+    @Override
+    public String toString() {
+        return "DisapprovalPage[size=" + values.size() + ", nextPageStart=" + nextPageStart + "]";
+    }
+}
@@ -0,0 +1,66 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+import net.java.ao.Accessor;
+import net.java.ao.Entity;
+import net.java.ao.Mutator;
+import net.java.ao.Preload;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.StringLength;
+import net.java.ao.schema.Table;
+
+/**
+ * A checkpoint of how long the disapprovals lifted in one repository on one day had been in place. There is at most
+ * one row per repository and day; it is rewritten as the day's histogram grows, and dropped once the day is too old
+ * to be in any window.
+ */
+@Table("PRDResolution001")
+@Preload
+public interface DisapprovalResolution extends Entity {
+
+    @NotNull
+    @Indexed
+    @Accessor("REPO_ID")
+    public Integer getRepositoryId();
+
+    @Mutator("REPO_ID")
+    public void setRepositoryId(Integer repoId);
+
+    // the project the repository was in, so a deleted repository still counts towards it
+    @Accessor("PROJECT_ID")
+    public Integer getProjectId();
+
+    @Mutator("PROJECT_ID")
+    public void setProjectId(Integer projectId);
+
+    // days since the epoch, UTC
+    @NotNull
+    @Indexed
+    @Accessor("RESOLVED_DAY")
+    public Integer getDay();
+
+    @Mutator("RESOLVED_DAY")
+    public void setDay(Integer day);
+
+    // see ResolutionHistogram#encode()
+    @NotNull
+    @StringLength(StringLength.UNLIMITED)
+    @Accessor("BUCKETS")
+    public String getBuckets();
+
+    @Mutator("BUCKETS")
+    public void setBuckets(String buckets);
+}
@@ -0,0 +1,64 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+/**
+ * An immutable copy of a {@link DisapprovalResolution} row.
+ */
+public final class DisapprovalResolutionSnapshot {
+
+    private final int repositoryId;
+    private final Integer projectId;
+    private final int day;
+    private final String buckets;
+
+    public DisapprovalResolutionSnapshot(int repositoryId, Integer projectId, int day, String buckets) {
+        this.repositoryId = repositoryId;
+        this.projectId = projectId;
+        this.day = day;
+        this.buckets = buckets;
+    }
+
+    public static DisapprovalResolutionSnapshot of(DisapprovalResolution r) {
+        return new DisapprovalResolutionSnapshot(r.getRepositoryId(), r.getProjectId(), r.getDay(), r.getBuckets());
+    }
+
+    public int getRepositoryId() {
+        return repositoryId;
+    }
+
+    /**
+     * The project the repository was in, or null if that wasn't known.
+     */
+    public Integer getProjectId() {
+        return projectId;
+    }
+
+    /**
+     * Days since the epoch, UTC.
+     */
+    public int getDay() {
+        return day;
+    }
+
+    public String getBuckets() {
+        return buckets;
+    }
+
+    @Override
+    public String toString() {
+        return "DisapprovalResolutionSnapshot[repositoryId=" + repositoryId + ", projectId=" + projectId + ", day="
+            + day + ", buckets=" + buckets + "]";
+    }
+}
@@ -0,0 +1,107 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+/**
+ * Everything a read path needs to know about a pull request's disapproval: whether the repository has disapproval
+ * enabled and in which mode, and whether (and by whom) the pull request is disapproved.
+ * 
+ * @see PersistenceManager#getDisapprovalStatus(com.atlassian.stash.pull.PullRequest)
+ */
+public final class DisapprovalStatus {
+
+    private final int repositoryId;
+    private final long pullRequestId;
+    private final boolean enabled;
+    private final DisapprovalMode disapprovalMode;
+    private final boolean disapproved;
+    private final Integer disapprovedById;
+    private final String disapprovedBy;
+    private final Long expiresAt;
+    private final Long disapprovedAt;
+
+    public DisapprovalStatus(int repositoryId, long pullRequestId, boolean enabled, DisapprovalMode disapprovalMode,
+        boolean disapproved, Integer disapprovedById, String disapprovedBy) {
+        this(repositoryId, pullRequestId, enabled, disapprovalMode, disapproved, disapprovedById, disapprovedBy, null);
+    }
+
+    public DisapprovalStatus(int repositoryId, long pullRequestId, boolean enabled, DisapprovalMode disapprovalMode,
+        boolean disapproved, Integer disapprovedById, String disapprovedBy, Long expiresAt) {
+        this(repositoryId, pullRequestId, enabled, disapprovalMode, disapproved, disapprovedById, disapprovedBy,
+            expiresAt, null);
+    }
+
+    public DisapprovalStatus(int repositoryId, long pullRequestId, boolean enabled, DisapprovalMode disapprovalMode,
+        boolean disapproved, Integer disapprovedById, String disapprovedBy, Long expiresAt, Long disapprovedAt) {
+        this.repositoryId = repositoryId;
+        this.pullRequestId = pullRequestId;
+        this.enabled = enabled;
+        this.disapprovalMode = disapprovalMode;
+        this.disapproved = disapproved;
+        this.disapprovedById = disapprovedById;
+        this.disapprovedBy = disapprovedBy;
+        this.expiresAt = expiresAt;
+        this.disapprovedAt = disapprovedAt;
+    }
+
+    public int getRepositoryId() {
+        return repositoryId;
+    }
+
+    public long getPullRequestId() {
+        return pullRequestId;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public DisapprovalMode getDisapprovalMode() {
+        return disapprovalMode;
+    }
+
+    public boolean isDisapproved() {
+        return disapproved;
+    }
+
+    public Integer getDisapprovedById() {
+        return disapprovedById;
+    }
+
+    public String getDisapprovedBy() {
+        return disapprovedBy;
+    }
+
+    /**
+     * When the disapproval lifts by itself, in epoch millis, or null.
+     */
+    public Long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * When the pull request was disapproved, in epoch millis, or null if it isn't or that wasn't recorded.
+     */
+    public Long getDisapprovedAt() {
+        return disapprovedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "DisapprovalStatus[repositoryId=" + repositoryId + ", pullRequestId=" + pullRequestId + ", enabled="
+            + enabled + ", mode=" + disapprovalMode + ", disapproved=" + disapproved + ", disapprovedById="
+            + disapprovedById + ", disapprovedBy=" + disapprovedBy + ", expiresAt=" + expiresAt + ", disapprovedAt="
+            + disapprovedAt + "]";
+    }
+}
@@ -0,0 +1,29 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+/**
+ * Told about each disapproval transition once it is committed; see
+ * {@link PersistenceManager#addTransitionListener(DisapprovalTransitionListener)}.
+ */
+public interface DisapprovalTransitionListener {
+
+    /**
+     * Called on the thread that made the change, while it still holds the pull request's lock, so this must be quick
+     * and must not block; anything slow belongs on a queue.
+     * 
+     * @param transition the history row written for the change
+     */
+    void onTransition(DisapprovalHistoryEntry transition);
+}
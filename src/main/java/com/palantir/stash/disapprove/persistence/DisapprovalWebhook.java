@@ -0,0 +1,62 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+import net.java.ao.Accessor;
+import net.java.ao.Entity;
+import net.java.ao.Mutator;
+import net.java.ao.Preload;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.StringLength;
+import net.java.ao.schema.Table;
+
+/**
+ * A URL that is sent every disapproval change in a repository.
+ */
+@Table("PRDWebhook001")
+@Preload
+public interface DisapprovalWebhook extends Entity {
+
+    @NotNull
+    @Indexed
+    @Accessor("REPO_ID")
+    public Integer getRepositoryId();
+
+    @Mutator("REPO_ID")
+    public void setRepositoryId(Integer repoId);
+
+    @NotNull
+    @StringLength(StringLength.UNLIMITED)
+    @Accessor("URL")
+    public String getUrl();
+
+    @Mutator("URL")
+    public void setUrl(String url);
+
+    // the key its requests are signed with; null for webhooks added before requests were signed
+    @Accessor("SECRET")
+    public String getSecret();
+
+    @Mutator("SECRET")
+    public void setSecret(String secret);
+
+    // the sequence of the last change in the feed that has been queued for it (or skipped, from before it existed)
+    @NotNull
+    @Accessor("LAST_SEQ")
+    public Long getLastSequence();
+
+    @Mutator("LAST_SEQ")
+    public void setLastSequence(Long lastSequence);
+}
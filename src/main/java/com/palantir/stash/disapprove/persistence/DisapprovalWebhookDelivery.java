@@ -0,0 +1,75 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+import net.java.ao.Accessor;
+import net.java.ao.Entity;
+import net.java.ao.Mutator;
+import net.java.ao.Preload;
+import net.java.ao.schema.Default;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.StringLength;
+import net.java.ao.schema.Table;
+
+/**
+ * A change waiting to be sent to a {@link DisapprovalWebhook}: the outbound queue. Rows are deleted once delivered,
+ * or given up on.
+ */
+@Table("PRDWebhookQueue001")
+@Preload
+public interface DisapprovalWebhookDelivery extends Entity {
+
+    @NotNull
+    @Indexed
+    @Accessor("WEBHOOK_ID")
+    public Integer getWebhookId();
+
+    @Mutator("WEBHOOK_ID")
+    public void setWebhookId(Integer webhookId);
+
+    // the change's sequence in the feed
+    @NotNull
+    @Accessor("SEQ")
+    public Long getSequence();
+
+    @Mutator("SEQ")
+    public void setSequence(Long sequence);
+
+    // the change as JSON
+    @NotNull
+    @StringLength(StringLength.UNLIMITED)
+    @Accessor("PAYLOAD")
+    public String getPayload();
+
+    @Mutator("PAYLOAD")
+    public void setPayload(String payload);
+
+    // failed attempts so far
+    @NotNull
+    @Default("0")
+    @Accessor("ATTEMPTS")
+    public Integer getAttempts();
+
+    @Mutator("ATTEMPTS")
+    public void setAttempts(Integer attempts);
+
+    // epoch millis, not to be sent before then
+    @NotNull
+    @Accessor("NEXT_ATTEMPT_AT")
+    public Long getNextAttemptAt();
+
+    @Mutator("NEXT_ATTEMPT_AT")
+    public void setNextAttemptAt(Long nextAttemptAt);
+}
@@ -0,0 +1,75 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+/**
+ * An immutable copy of a {@link DisapprovalWebhookDelivery} row, or one to be queued (with id 0).
+ */
+public final class DisapprovalWebhookDeliverySnapshot {
+
+    private final int id;
+    private final int webhookId;
+    private final long sequence;
+    private final String payload;
+    private final int attempts;
+    private final long nextAttemptAt;
+
+    public DisapprovalWebhookDeliverySnapshot(int id, int webhookId, long sequence, String payload, int attempts,
+        long nextAttemptAt) {
+        this.id = id;
+        this.webhookId = webhookId;
+        this.sequence = sequence;
+        this.payload = payload;
+        this.attempts = attempts;
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
+    public static DisapprovalWebhookDeliverySnapshot of(DisapprovalWebhookDelivery d) {
+        return new DisapprovalWebhookDeliverySnapshot(d.getID(), d.getWebhookId(), d.getSequence(), d.getPayload(),
+            d.getAttempts(), d.getNextAttemptAt());
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getWebhookId() {
+        return webhookId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Epoch millis, not to be sent before then.
+     */
+    public long getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    @Override
+    public String toString() {
+        return "DisapprovalWebhookDeliverySnapshot[id=" + id + ", webhookId=" + webhookId + ", sequence=" + sequence
+            + ", attempts=" + attempts + ", nextAttemptAt=" + nextAttemptAt + "]";
+    }
+}
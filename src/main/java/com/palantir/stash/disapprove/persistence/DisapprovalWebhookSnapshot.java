@@ -0,0 +1,71 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+/**
+ * An immutable copy of a {@link DisapprovalWebhook} row.
+ */
+public final class DisapprovalWebhookSnapshot {
+
+    private final int id;
+    private final int repositoryId;
+    private final String url;
+    private final String secret;
+    private final long lastSequence;
+
+    public DisapprovalWebhookSnapshot(int id, int repositoryId, String url, String secret, long lastSequence) {
+        this.id = id;
+        this.repositoryId = repositoryId;
+        this.url = url;
+        this.secret = secret;
+        this.lastSequence = lastSequence;
+    }
+
+    public static DisapprovalWebhookSnapshot of(DisapprovalWebhook w) {
+        return new DisapprovalWebhookSnapshot(w.getID(), w.getRepositoryId(), w.getUrl(), w.getSecret(),
+            w.getLastSequence());
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getRepositoryId() {
+        return repositoryId;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * The key requests to it are signed with, or null if they aren't signed.
+     */
+    public String getSecret() {
+        return secret;
+    }
+
+    /**
+     * The sequence of the last change queued for it; later changes haven't been looked at yet.
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    @Override
+    public String toString() {
+        return "DisapprovalWebhookSnapshot[id=" + id + ", repositoryId=" + repositoryId + ", url=" + url
+            + ", lastSequence=" + lastSequence + "]";
+    }
+}
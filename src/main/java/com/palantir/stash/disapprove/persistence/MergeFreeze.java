@@ -0,0 +1,144 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * An immutable merge freeze: while frozen, merges into the target branches are vetoed regardless of disapprovals.
+ * 
+ * Branches are glob patterns where * matches anything, including slashes. A pattern without a refs/ prefix is a
+ * branch name ("release/*"), one with it is matched against the full ref ("refs/heads/master"). No patterns means
+ * every branch. All patterns are compiled into one regular expression up front, so checking a target branch is a
+ * single match.
+ */
+public final class MergeFreeze {
+
+    public static final MergeFreeze NONE = new MergeFreeze(false, ImmutableList.<String> of());
+
+    // stored as one column of at most 255 characters
+    public static final int MAX_BRANCHES_LENGTH = 255;
+
+    private static final Splitter SPLITTER = Splitter.onPattern("[,\\s]+").omitEmptyStrings().trimResults();
+    private static final Joiner JOINER = Joiner.on(", ");
+
+    private final boolean frozen;
+    private final List<String> branches;
+    // null when every branch is frozen
+    private final Pattern pattern;
+
+    private MergeFreeze(boolean frozen, List<String> branches) {
+        this.frozen = frozen;
+        this.branches = branches;
+        this.pattern = branches.isEmpty() ? null : compile(branches);
+    }
+
+    /**
+     * @param branches comma or whitespace separated patterns, or null or empty for every branch
+     * @throws IllegalArgumentException if the patterns don't fit in {@link #MAX_BRANCHES_LENGTH} characters
+     */
+    public static MergeFreeze of(boolean frozen, String branches) {
+        if (branches != null && branches.length() > MAX_BRANCHES_LENGTH) {
+            throw new IllegalArgumentException("Freeze branches longer than " + MAX_BRANCHES_LENGTH + " characters");
+        }
+        List<String> patterns =
+            branches == null ? ImmutableList.<String> of() : ImmutableList.copyOf(SPLITTER.split(branches));
+        if (!frozen && patterns.isEmpty()) {
+            return NONE;
+        }
+        return new MergeFreeze(frozen, patterns);
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * The branch patterns, empty if every branch is frozen.
+     */
+    public List<String> getBranches() {
+        return branches;
+    }
+
+    /**
+     * The branch patterns as stored, or null if there are none.
+     */
+    public String getBranchesStr() {
+        return branches.isEmpty() ? null : JOINER.join(branches);
+    }
+
+    /**
+     * @param refId the full id of the target ref, e.g. refs/heads/master
+     */
+    public boolean appliesTo(String refId) {
+        return frozen && (pattern == null || pattern.matcher(refId).matches());
+    }
+
+    /**
+     * Returns a freeze covering everything either of the two does, which is how the repository's, its project's and
+     * the global freezes combine.
+     */
+    public MergeFreeze and(MergeFreeze other) {
+        if (!other.frozen) {
+            return this;
+        }
+        if (!frozen) {
+            return other;
+        }
+        if (pattern == null) {
+            return this;
+        }
+        if (other.pattern == null) {
+            return other;
+        }
+        return new MergeFreeze(true, ImmutableList.<String> builder().addAll(branches).addAll(other.branches)
+            .build());
+    }
+
+    private static Pattern compile(List<String> branches) {
+        StringBuilder regex = new StringBuilder();
+        for (String branch : branches) {
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            if (!branch.startsWith("refs/")) {
+                regex.append(Pattern.quote("refs/heads/"));
+            }
+            // quote everything between the wildcards
+            int start = 0;
+            int star;
+            while ((star = branch.indexOf('*', start)) >= 0) {
+                if (star > start) {
+                    regex.append(Pattern.quote(branch.substring(start, star)));
+                }
+                regex.append(".*");
+                start = star + 1;
+            }
+            if (start < branch.length()) {
+                regex.append(Pattern.quote(branch.substring(start)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    @Override
+    public String toString() {
+        return "MergeFreeze[frozen=" + frozen + ", branches=" + branches + "]";
+    }
+}
@@ -14,34 +14,164 @@
 package com.palantir.stash.disapprove.persistence;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.servlet.http.HttpServletRequest;
 
 import net.java.ao.DBParam;
+import net.java.ao.Query;
 
 import org.slf4j.Logger;
 
 import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.sal.api.transaction.TransactionCallback;
 import com.atlassian.stash.pull.PullRequest;
 import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.user.StashUser;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.palantir.stash.disapprove.jfr.ConfigurationLookupEvent;
+import com.palantir.stash.disapprove.jfr.DisapprovalJfr;
+import com.palantir.stash.disapprove.jfr.DisapprovalLookupEvent;
+import com.palantir.stash.disapprove.jfr.DisapprovalTransitionEvent;
 import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
 
 public class PersistenceManager {
 
+    // Pull request rows are read, checked and written back in separate statements, so every read-modify-write of a
+    // PullRequestDisapproval (including auto-vivifying it) happens while holding that pull request's stripe.
+    private static final int LOCK_STRIPES = 64;
+
+    // what USERNAME holds when nobody has disapproved
+    private static final String NOBODY = "None";
+
+    // rows removed per statement when cleaning up after a deleted repository
+    private static final int DELETE_BATCH_SIZE = 1000;
+    // repositories configured per transaction by setDisapprovalConfigurations
+    private static final int CONFIG_BATCH_SIZE = 500;
+    // pull requests changed per transaction by setPullRequestDisapprovals
+    private static final int PULL_REQUEST_BATCH_SIZE = 500;
+    // repositories per IN list when listing disapprovals, under Oracle's limit of 1000 items
+    private static final int REPOSITORY_BATCH_SIZE = 500;
+    // rows read per query when filling the disapproval index
+    private static final int INDEX_LOAD_BATCH_SIZE = 1000;
+
+    // longest disapproval reason accepted, in characters
+    public static final int MAX_REASON_LENGTH = 2000;
+
+    // project id under which the instance-wide defaults are stored (real project ids start at 1)
+    public static final int GLOBAL_DEFAULTS = 0;
+
+    // used when neither the project nor the instance has defaults
+    private static final DisapprovalDefaultsSnapshot BUILT_IN_DEFAULTS =
+        new DisapprovalDefaultsSnapshot(GLOBAL_DEFAULTS, false, DisapprovalMode.STRICT_MODE, MergeFreeze.NONE);
+
+    // generation of cache entries written by a setter, whose configuration is current but not yet resolved against
+    // the defaults
+    private static final long UNRESOLVED = -1;
+
     private final ActiveObjects ao;
     private final Logger log;
+    private final Lock[] locks;
+
+    // Configuration changes rarely and is needed on every read, so it is kept in memory after the first lookup.
+    // Readers only ever putIfAbsent (or replace an entry they found stale) and writers (serialized on configLock)
+    // overwrite after saving, so a reader that loaded a row just before it changed can't clobber the newer copy.
+    //
+    // Every entry is resolved against the defaults as they were at some defaultsGeneration: repositories without a
+    // row of their own inherit from them, and every repository is frozen by its project's and the global freeze.
+    // Changing any defaults bumps the generation, which makes every entry stale at once without touching them; they
+    // are resolved again, from defaultsCache and without reading their own row again, the next time they are read.
+    private final ConcurrentMap<Integer, CachedConfiguration> configCache =
+        new ConcurrentHashMap<Integer, CachedConfiguration>();
+    private final ConcurrentMap<Integer, Optional<DisapprovalDefaultsSnapshot>> defaultsCache =
+        new ConcurrentHashMap<Integer, Optional<DisapprovalDefaultsSnapshot>>();
+    private final AtomicLong defaultsGeneration = new AtomicLong();
+    private final Object configLock = new Object();
+    private final DisapprovalIndex index = new DisapprovalIndex();
+    private final List<DisapprovalTransitionListener> transitionListeners =
+        new CopyOnWriteArrayList<DisapprovalTransitionListener>();
+
+    // Change sequences are handed out in order, but the transactions that write them can commit in any order, so the
+    // feed stops short of the oldest sequence still being written; see findChanges. Guarded by sequenceLock.
+    private final Object sequenceLock = new Object();
+    // 0 until read from the table
+    private long nextSequence;
+    private final SortedSet<Long> sequencesInFlight = new TreeSet<Long>();
+    // the sequences handed to the transaction running on each thread, released once it commits or rolls back
+    private final ThreadLocal<List<Long>> allocatedSequences = new ThreadLocal<List<Long>>() {
+
+        @Override
+        protected List<Long> initialValue() {
+            return new ArrayList<Long>();
+        }
+    };
+
+    private static final class CachedConfiguration {
+
+        private final DisapprovalConfigurationSnapshot config;
+        // the repository's, its project's and the global freeze combined
+        private final MergeFreeze freeze;
+        private final long generation;
+
+        private CachedConfiguration(DisapprovalConfigurationSnapshot config, MergeFreeze freeze, long generation) {
+            this.config = config;
+            this.freeze = freeze;
+            this.generation = generation;
+        }
+
+        private static CachedConfiguration unresolved(DisapprovalConfigurationSnapshot config) {
+            return new CachedConfiguration(config, config.getFreeze(), UNRESOLVED);
+        }
+
+        private boolean isCurrent(long currentGeneration) {
+            return generation == currentGeneration;
+        }
+    }
 
     public PersistenceManager(ActiveObjects ao,
         PluginLoggerFactory lf) {
         this.ao = ao;
         this.log = lf.getLoggerForThis(this);
+        this.locks = new Lock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; ++i) {
+            locks[i] = new ReentrantLock();
+        }
     }
 
     ///////
     // Setter from request object
     ///////
-    public void setDisapprovalConfigurationFromRequest(Repository repo, HttpServletRequest req) {
-        log.trace("Setting configuration for repo" + repo.getId());
+    public void setDisapprovalConfigurationFromRequest(Repository repo, HttpServletRequest req) throws SQLException {
+        if (log.isTraceEnabled()) {
+            log.trace("Setting configuration for repo " + repo.getId());
+        }
+
+        if (req.getParameter("inherit") != null) {
+            clearDisapprovalConfiguration(repo);
+            return;
+        }
+
+        MergeFreeze freeze = MergeFreeze.of(req.getParameter("frozen") != null, req.getParameter("freezeBranches"));
 
         DisapprovalMode dm = DisapprovalMode.ADVISORY_MODE;
         if (req.getParameter("strictModeEnabled") != null) {
@@ -52,42 +182,1624 @@ public class PersistenceManager {
         if (req.getParameter("enabled") != null) {
             isEnabled = true;
         }
-        setDisapprovalConfiguration(repo, dm, isEnabled);
+        String rescopePolicy = req.getParameter("rescopePolicy");
+        setDisapprovalConfiguration(repo, dm, isEnabled, freeze,
+            rescopePolicy == null ? null : RescopePolicy.fromPolicy(rescopePolicy));
     }
 
     ///////
     // Other methods
+    //
+    // Everything returned from here is an immutable snapshot; the live ActiveObjects entities never leave this class,
+    // so they are only ever touched on the write paths below (under the relevant lock).
     ///////
-    public DisapprovalConfiguration getDisapprovalConfiguration(Repository repo) throws SQLException {
-        log.trace("Getting configuration for repo" + repo.getId());
-        return DisapprovalConfigurationImpl.getByRepository(ao, repo);
+    /**
+     * Returns the repository's configuration: its own if it has one, otherwise its project's defaults, otherwise the
+     * global defaults, otherwise strict mode, disabled. Nothing is created.
+     * 
+     * Served from memory after the first lookup; the setters below keep the cached copies up to date.
+     */
+    public DisapprovalConfigurationSnapshot getDisapprovalConfiguration(Repository repo) throws SQLException {
+        return getCachedConfiguration(repo).config;
+    }
+
+    /**
+     * Returns the freeze on merges into the repository: its own, its project's and the global freeze combined.
+     * 
+     * Cached along with the configuration, so this is a single map lookup once the repository has been seen.
+     */
+    public MergeFreeze getMergeFreeze(Repository repo) throws SQLException {
+        return getCachedConfiguration(repo).freeze;
     }
 
+    private CachedConfiguration getCachedConfiguration(Repository repo) throws SQLException {
+        // guarded, because this is on every merge check and page view and boxing the id isn't free either
+        if (log.isTraceEnabled()) {
+            log.trace("Getting configuration for repo " + repo.getId());
+        }
+        ConfigurationLookupEvent event = DisapprovalJfr.beginConfigurationLookup();
+        final Integer repoId = repo.getId();
+        // read before the defaults, so a change to them while this resolves leaves the result marked stale
+        final long generation = defaultsGeneration.get();
+        CachedConfiguration cached = configCache.get(repoId);
+        final boolean cacheHit = cached != null && cached.isCurrent(generation);
+        if (!cacheHit) {
+            CachedConfiguration fresh;
+            if (cached != null) {
+                // the configuration is still right (a setter would have replaced it), only the defaults moved on
+                fresh = resolve(repo, cached.config, generation);
+            } else {
+                DisapprovalConfiguration[] configs = ao.find(DisapprovalConfiguration.class, "REPO_ID = ?", repoId);
+                fresh = resolve(repo, configs.length > 0 ? DisapprovalConfigurationSnapshot.of(configs[0])
+                    : inheriting(repoId), generation);
+            }
+            // if this loses to a writer, what the writer stored is at least as new; this caller just gets its own
+            if (cached == null) {
+                configCache.putIfAbsent(repoId, fresh);
+            } else {
+                configCache.replace(repoId, cached, fresh);
+            }
+            cached = fresh;
+        }
+        if (event != null) {
+            event.complete(repoId, cached.config.isEnabled(), cacheHit);
+        }
+        return cached;
+    }
+
+    /**
+     * Sets the repository's mode and whether disapproval is enabled, leaving its freeze as it is.
+     */
     public void setDisapprovalConfiguration(Repository repo, DisapprovalMode mode, Boolean isEnabled) {
-        DisapprovalConfiguration[] configs = ao.find(DisapprovalConfiguration.class, "REPO_ID = ?", repo.getId());
-        DisapprovalConfiguration dc;
-        if (configs.length == 0) {
-            dc = ao.create(DisapprovalConfiguration.class, new DBParam("REPO_ID", repo.getId()));
-        } else {
-            dc = configs[0];
+        setDisapprovalConfiguration(repo, mode, isEnabled, null);
+    }
+
+    /**
+     * @param freeze the repository's own freeze, or null to leave it as it is
+     */
+    public void setDisapprovalConfiguration(Repository repo, DisapprovalMode mode, Boolean isEnabled,
+        MergeFreeze freeze) {
+        setDisapprovalConfiguration(repo, mode, isEnabled, freeze, null);
+    }
+
+    /**
+     * @param freeze the repository's own freeze, or null to leave it as it is
+     * @param rescopePolicy what to do with disapprovals when new commits are pushed, or null to leave it as it is
+     */
+    public void setDisapprovalConfiguration(Repository repo, DisapprovalMode mode, Boolean isEnabled,
+        MergeFreeze freeze, RescopePolicy rescopePolicy) {
+        synchronized (configLock) {
+            DisapprovalConfiguration[] configs =
+                ao.find(DisapprovalConfiguration.class, "REPO_ID = ?", repo.getId());
+            DisapprovalConfiguration dc;
+            if (configs.length == 0) {
+                dc = ao.create(DisapprovalConfiguration.class, new DBParam("REPO_ID", repo.getId()));
+            } else {
+                dc = configs[0];
+            }
+            dc.setDisapprovalMode(mode);
+            dc.setEnabled(isEnabled);
+            if (freeze != null) {
+                dc.setMergeFreeze(freeze);
+            }
+            if (rescopePolicy != null) {
+                dc.setRescopePolicy(rescopePolicy);
+            }
+            dc.save();
+            configCache.put(repo.getId(), CachedConfiguration.unresolved(DisapprovalConfigurationSnapshot.of(dc)));
+        }
+    }
+
+    /**
+     * Removes the repository's own configuration, so it goes back to inheriting its project's or the global defaults.
+     */
+    public void clearDisapprovalConfiguration(Repository repo) throws SQLException {
+        synchronized (configLock) {
+            ao.deleteWithSQL(DisapprovalConfiguration.class, "REPO_ID = ?", repo.getId());
+            // replaced rather than removed, so a reader still holding the deleted row can't cache it again
+            configCache.put(repo.getId(), CachedConfiguration.unresolved(inheriting(repo.getId())));
+        }
+    }
+
+    /**
+     * Returns the defaults stored for a project, or for the whole instance with {@link #GLOBAL_DEFAULTS}, or null if
+     * there are none.
+     */
+    public DisapprovalDefaultsSnapshot getDisapprovalDefaults(int projectId) throws SQLException {
+        Optional<DisapprovalDefaultsSnapshot> defaults = defaultsCache.get(projectId);
+        if (defaults == null) {
+            DisapprovalDefaults[] rows = ao.find(DisapprovalDefaults.class, "PROJECT_ID = ?", projectId);
+            defaults =
+                rows.length == 0 ? Optional.<DisapprovalDefaultsSnapshot> absent() : Optional
+                    .of(DisapprovalDefaultsSnapshot.of(rows[0]));
+            Optional<DisapprovalDefaultsSnapshot> existing = defaultsCache.putIfAbsent(projectId, defaults);
+            if (existing != null) {
+                defaults = existing;
+            }
+        }
+        return defaults.orNull();
+    }
+
+    /**
+     * Sets the defaults for a project, or for the whole instance with {@link #GLOBAL_DEFAULTS}.
+     * 
+     * Only the one row is written; every repository inheriting from it picks up the change on its next lookup.
+     */
+    public void setDisapprovalDefaults(int projectId, DisapprovalMode mode, boolean isEnabled) {
+        setDisapprovalDefaults(projectId, mode, isEnabled, null);
+    }
+
+    /**
+     * @param freeze freezes every repository in the project (or on the instance), or null to leave it as it is
+     */
+    public void setDisapprovalDefaults(int projectId, DisapprovalMode mode, boolean isEnabled, MergeFreeze freeze) {
+        synchronized (configLock) {
+            DisapprovalDefaults[] rows = ao.find(DisapprovalDefaults.class, "PROJECT_ID = ?", projectId);
+            DisapprovalDefaults dd;
+            if (rows.length == 0) {
+                dd = ao.create(DisapprovalDefaults.class, new DBParam("PROJECT_ID", projectId));
+            } else {
+                dd = rows[0];
+            }
+            dd.setDisapprovalModeStr(mode.getMode());
+            dd.setEnabled(isEnabled);
+            if (freeze != null) {
+                dd.setFrozen(freeze.isFrozen());
+                dd.setFreezeBranches(freeze.getBranchesStr());
+            }
+            dd.save();
+            defaultsCache.put(projectId, Optional.of(DisapprovalDefaultsSnapshot.of(dd)));
+            defaultsGeneration.incrementAndGet();
         }
-        dc.setDisapprovalMode(mode);
-        dc.setEnabled(isEnabled);
-        dc.save();
     }
 
-    public PullRequestDisapproval getPullRequestDisapproval(PullRequest pr) throws SQLException {
-        return PullRequestDisapprovalImpl.getPullRequestDisapproval(ao, pr);
+    /**
+     * Removes the defaults for a project (which then inherits the global ones), or the global defaults.
+     */
+    public void clearDisapprovalDefaults(int projectId) throws SQLException {
+        synchronized (configLock) {
+            ao.deleteWithSQL(DisapprovalDefaults.class, "PROJECT_ID = ?", projectId);
+            defaultsCache.put(projectId, Optional.<DisapprovalDefaultsSnapshot> absent());
+            defaultsGeneration.incrementAndGet();
+        }
     }
 
-    public void setPullRequestDisapproval(PullRequest pr, String username, boolean isDisapproved) throws SQLException {
+    /**
+     * Fills in an inherited configuration from the defaults and combines the freezes.
+     */
+    private CachedConfiguration resolve(Repository repo, DisapprovalConfigurationSnapshot config, long generation)
+        throws SQLException {
+        DisapprovalDefaultsSnapshot project = getDisapprovalDefaults(repo.getProject().getId());
+        DisapprovalDefaultsSnapshot global = getDisapprovalDefaults(GLOBAL_DEFAULTS);
+        if (config.isInherited()) {
+            DisapprovalDefaultsSnapshot defaults = project != null ? project : global != null ? global
+                : BUILT_IN_DEFAULTS;
+            config = new DisapprovalConfigurationSnapshot(config.getRepositoryId(), defaults.isEnabled(),
+                defaults.getDisapprovalMode(), MergeFreeze.NONE, true);
+        }
+        MergeFreeze freeze = config.getFreeze();
+        if (project != null) {
+            freeze = freeze.and(project.getFreeze());
+        }
+        if (global != null) {
+            freeze = freeze.and(global.getFreeze());
+        }
+        return new CachedConfiguration(config, freeze, generation);
+    }
+
+    // placeholder for a repository without a row, until resolve fills in the defaults
+    private static DisapprovalConfigurationSnapshot inheriting(int repositoryId) {
+        return new DisapprovalConfigurationSnapshot(repositoryId, BUILT_IN_DEFAULTS.isEnabled(),
+            BUILT_IN_DEFAULTS.getDisapprovalMode(), MergeFreeze.NONE, true);
+    }
+
+    /**
+     * Reads the repository configuration and the pull request's disapproval together, for read paths that need both.
+     * 
+     * The configuration comes from memory after the first lookup for a repository, so this costs a single query. The
+     * pull request row is only read, never created: a pull request without one is reported as not disapproved. So is
+     * one whose disapproval has expired but hasn't been lifted by the expiry scheduler yet, which can be up to a tick
+     * behind.
+     */
+    public DisapprovalStatus getDisapprovalStatus(PullRequest pr) throws SQLException {
         Repository repo = pr.getToRef().getRepository();
-        if (isDisapproved) {
-            log.trace("Disapproving pull request " + pr.getId() + " for repo " + repo.getName());
+        DisapprovalConfigurationSnapshot dc = getDisapprovalConfiguration(repo);
+
+        DisapprovalLookupEvent event = DisapprovalJfr.beginDisapprovalLookup();
+        PullRequestDisapproval prd = PullRequestDisapprovalImpl.findPullRequestDisapproval(ao, pr);
+        DisapprovalStatus status;
+        if (prd == null || isExpired(prd.getExpiresAt())) {
+            status =
+                new DisapprovalStatus(repo.getId(), pr.getId(), dc.isEnabled(), dc.getDisapprovalMode(), false, null,
+                    NOBODY);
+        } else {
+            status =
+                new DisapprovalStatus(repo.getId(), pr.getId(), dc.isEnabled(), dc.getDisapprovalMode(),
+                    prd.isDisapproved(), prd.getDisapprovedById(), prd.getDisapprovedBy(), prd.getExpiresAt(),
+                    prd.getDisapprovedAt());
+        }
+        if (event != null) {
+            event.complete(repo.getId(), pr.getId(), false, status.isDisapproved());
+        }
+        return status;
+    }
+
+    /**
+     * {@link #getDisapprovalStatus} for many pull requests of one repository at once.
+     * 
+     * The configuration is looked up once, and the rows are read in batches of a single query each. The disapproval
+     * index isn't consulted: it only sees this node's writes, so on a cluster it could rule out a pull request
+     * another node has just disapproved, and this answers merge checks. As there, missing rows and expired
+     * disapprovals are reported as not disapproved.
+     * 
+     * @return the status of each pull request, in the order given
+     */
+    public Map<Long, DisapprovalStatus> getDisapprovalStatuses(Repository repo, Collection<Long> pullRequestIds)
+        throws SQLException {
+        DisapprovalConfigurationSnapshot dc = getDisapprovalConfiguration(repo);
+        int repositoryId = repo.getId();
+        List<Long> ids = new ArrayList<Long>(pullRequestIds);
+
+        Map<Long, PullRequestDisapproval> rows = new HashMap<Long, PullRequestDisapproval>();
+        for (int start = 0; start < ids.size(); start += PULL_REQUEST_BATCH_SIZE) {
+            List<Long> batch = ids.subList(start, Math.min(start + PULL_REQUEST_BATCH_SIZE, ids.size()));
+            StringBuilder where = new StringBuilder("REPO_ID = ? AND PR_ID IN (");
+            List<Object> params = new ArrayList<Object>(batch.size() + 1);
+            params.add(repositoryId);
+            for (Long pullRequestId : batch) {
+                where.append(params.size() == 1 ? "?" : ", ?");
+                params.add(pullRequestId);
+            }
+            where.append(')');
+            for (PullRequestDisapproval prd : ao.find(PullRequestDisapproval.class, where.toString(),
+                params.toArray())) {
+                rows.put(prd.getPullRequestId(), prd);
+            }
+        }
+
+        Map<Long, DisapprovalStatus> statuses = new LinkedHashMap<Long, DisapprovalStatus>();
+        for (Long pullRequestId : pullRequestIds) {
+            PullRequestDisapproval prd = rows.get(pullRequestId);
+            if (prd == null || isExpired(prd.getExpiresAt())) {
+                statuses.put(pullRequestId, new DisapprovalStatus(repositoryId, pullRequestId, dc.isEnabled(),
+                    dc.getDisapprovalMode(), false, null, NOBODY));
+            } else {
+                statuses.put(pullRequestId, new DisapprovalStatus(repositoryId, pullRequestId, dc.isEnabled(),
+                    dc.getDisapprovalMode(), prd.isDisapproved(), prd.getDisapprovedById(), prd.getDisapprovedBy(),
+                    prd.getExpiresAt(), prd.getDisapprovedAt()));
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * Whether the pull request might be disapproved, answered from memory: false means it certainly isn't, true means
+     * it is, or was a moment ago, or that {@link #loadDisapprovalIndex()} hasn't finished yet. For high volume events
+     * to filter out the pull requests they don't need to look at.
+     */
+    public boolean mayBeDisapproved(int repositoryId, long pullRequestId) {
+        return index.mayBeDisapproved(repositoryId, pullRequestId);
+    }
+
+    /**
+     * Fills the index behind {@link #mayBeDisapproved} from the table. Until this has been called once,
+     * {@link #mayBeDisapproved} can't rule anything out.
+     * 
+     * @return how many disapproved pull requests there are
+     */
+    public int loadDisapprovalIndex() throws SQLException {
+        int start = 0;
+        DisapprovalPage page;
+        do {
+            page = findDisapprovedPullRequests(null, null, start, INDEX_LOAD_BATCH_SIZE);
+            for (PullRequestDisapprovalSnapshot prd : page.getValues()) {
+                index.set(prd.getRepositoryId(), prd.getPullRequestId(), true);
+            }
+            if (!page.isLastPage()) {
+                start = page.getNextPageStart();
+            }
+        } while (!page.isLastPage());
+        index.setLoaded();
+        return index.size();
+    }
+
+    /**
+     * Registers a listener to be told about every disapproval transition made through this manager, once it is
+     * committed. Imported rows are not transitions and aren't reported.
+     */
+    public void addTransitionListener(DisapprovalTransitionListener listener) {
+        transitionListeners.add(listener);
+    }
+
+    public void removeTransitionListener(DisapprovalTransitionListener listener) {
+        transitionListeners.remove(listener);
+    }
+
+    /**
+     * Returns the pull request's disapproval, creating a (not disapproved) row for it if there isn't one yet.
+     * 
+     * A disapproval that has expired is returned as not disapproved, as {@link #getDisapprovalStatus} does, so every
+     * view agrees with the merge check. It is lifted here too rather than waiting for the expiry scheduler, which may
+     * be behind or running on another node, so that a change the caller makes next starts from the lifted state.
+     */
+    public PullRequestDisapprovalSnapshot getPullRequestDisapproval(PullRequest pr) throws SQLException {
+        DisapprovalLookupEvent event = DisapprovalJfr.beginDisapprovalLookup();
+        PullRequestDisapproval prd = PullRequestDisapprovalImpl.findPullRequestDisapproval(ao, pr);
+        boolean created = false;
+        if (prd == null) {
+            // missing, so create it - but only once, no matter how many threads get here at the same time
+            Lock lock = getLock(pr);
+            lock.lock();
+            try {
+                prd = PullRequestDisapprovalImpl.getPullRequestDisapproval(ao, pr);
+            } finally {
+                lock.unlock();
+            }
+            created = true;
+        }
+        PullRequestDisapprovalSnapshot snapshot;
+        if (prd.isDisapproved() && isExpired(prd.getExpiresAt())) {
+            try {
+                expirePullRequestDisapproval(prd.getRepositoryId(), prd.getPullRequestId(), prd.getExpiresAt());
+            } catch (SQLException e) {
+                // the expiry scheduler lifts it later; it reads as lifted either way
+                log.warn("Unable to lift expired disapproval of " + prd.getRepositoryId() + "/"
+                    + prd.getPullRequestId(), e);
+            }
+            snapshot = new PullRequestDisapprovalSnapshot(prd.getRepositoryId(), prd.getPullRequestId(), false, null,
+                NOBODY);
         } else {
-            log.trace("Un-disapproving pull request " + pr.getId() + " for repo " + repo.getName());
+            snapshot = PullRequestDisapprovalSnapshot.of(prd);
+        }
+        if (event != null) {
+            event.complete(pr.getToRef().getRepository().getId(), pr.getId(), created, snapshot.isDisapproved());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns why the pull request is disapproved, or null if it isn't or no reason was given.
+     * 
+     * Reasons live in their own table so that nothing on the merge check or list paths ever reads them; only call
+     * this when the reason is going to be shown.
+     */
+    public String getDisapprovalReason(int repositoryId, long pullRequestId) throws SQLException {
+        PullRequestDisapprovalReason[] rows = ao.find(PullRequestDisapprovalReason.class,
+            "REPO_ID = ? AND PR_ID = ?", repositoryId, pullRequestId);
+        return rows.length == 0 ? null : rows[0].getReason();
+    }
+
+    /**
+     * @param user who is making the change, or null to record nobody
+     */
+    public void setPullRequestDisapproval(PullRequest pr, final StashUser user, final boolean isDisapproved)
+        throws SQLException {
+        if (log.isTraceEnabled()) {
+            Repository repo = pr.getToRef().getRepository();
+            if (isDisapproved) {
+                log.trace("Disapproving pull request " + pr.getId() + " for repo " + repo.getName());
+            } else {
+                log.trace("Un-disapproving pull request " + pr.getId() + " for repo " + repo.getName());
+            }
+        }
+        DisapprovalTransitionEvent event = DisapprovalJfr.beginTransition();
+        final int repositoryId = pr.getToRef().getRepository().getId();
+        final long pullRequestId = pr.getId();
+        Lock lock = getLock(pr);
+        lock.lock();
+        try {
+            DisapprovalHistoryEntry transition =
+                executeSequenced(new TransactionCallback<DisapprovalHistoryEntry>() {
+
+                    @Override
+                    public DisapprovalHistoryEntry doInTransaction() {
+                        PullRequestDisapproval prd = getOrCreatePullRequestDisapproval(repositoryId, pullRequestId);
+                        boolean transition = prd.isDisapproved() != isDisapproved;
+                        Long disapprovedAt = prd.getDisapprovedAt();
+                        prd.setDisapprovedById(getUserId(user));
+                        prd.setDisapprovedBy(getUsername(user));
+                        prd.setDisapproved(isDisapproved);
+                        prd.setExpiresAt(null);
+                        prd.setDisapprovedAt(getDisapprovedAt(isDisapproved, transition, disapprovedAt));
+                        prd.save();
+                        setReason(repositoryId, pullRequestId, null);
+                        if (!transition) {
+                            return null;
+                        }
+                        return addHistory(repositoryId, pullRequestId, user,
+                            isDisapproved ? DisapprovalAction.DISAPPROVED : DisapprovalAction.REMOVED,
+                            isDisapproved ? null : disapprovedAt);
+                    }
+                });
+            index.set(repositoryId, pullRequestId, isDisapproved);
+            fireTransition(transition);
+        } finally {
+            lock.unlock();
+        }
+        if (event != null) {
+            event.complete(pr.getToRef().getRepository().getId(), pr.getId(), isDisapproved, true);
+        }
+    }
+
+    /**
+     * Changes the disapproval state of a pull request, but only if it is still in the state the caller last saw.
+     * 
+     * Callers read the current state, decide whether the change is allowed (e.g. whether this user may remove the
+     * disapproval), then call this; if another request changed the state in between, nothing is written and false is
+     * returned, so each real transition happens (and is reported) exactly once. The change and its
+     * {@link DisapprovalHistory} row are written in one transaction.
+     * 
+     * @param expectedDisapprovedById the id of the disapprover the caller saw, or null to accept any
+     * @param user who is making the change, recorded as the disapprover when disapproving and in the history either
+     * way; null for nobody
+     * @return true if the state was changed by this call
+     */
+    public boolean compareAndSetPullRequestDisapproval(PullRequest pr, boolean expectedDisapproval,
+        Integer expectedDisapprovedById, StashUser user, boolean isDisapproved) throws SQLException {
+        return compareAndSetPullRequestDisapproval(pr, expectedDisapproval, expectedDisapprovedById, user,
+            isDisapproved, null);
+    }
+
+    /**
+     * Like {@link #compareAndSetPullRequestDisapproval(PullRequest, boolean, Integer, StashUser, boolean)}, for a
+     * disapproval that lifts by itself.
+     * 
+     * @param expiresAt when a disapproval lifts, in epoch millis, or null to keep it until it is removed; ignored
+     * when removing
+     */
+    public boolean compareAndSetPullRequestDisapproval(PullRequest pr, boolean expectedDisapproval,
+        Integer expectedDisapprovedById, StashUser user, boolean isDisapproved, Long expiresAt) throws SQLException {
+        return compareAndSetPullRequestDisapproval(pr, expectedDisapproval, expectedDisapprovedById, user,
+            isDisapproved, expiresAt, null);
+    }
+
+    /**
+     * Like {@link #compareAndSetPullRequestDisapproval(PullRequest, boolean, Integer, StashUser, boolean, Long)},
+     * recording why.
+     * 
+     * @param reason why the pull request is disapproved, or null for no reason; ignored when removing, which always
+     * drops the reason
+     */
+    public boolean compareAndSetPullRequestDisapproval(PullRequest pr, final boolean expectedDisapproval,
+        final Integer expectedDisapprovedById, final StashUser user, final boolean isDisapproved,
+        final Long expiresAt, final String reason) throws SQLException {
+        DisapprovalTransitionEvent event = DisapprovalJfr.beginTransition();
+        final int repositoryId = pr.getToRef().getRepository().getId();
+        final long pullRequestId = pr.getId();
+        final DisapprovalHistoryEntry[] transition = new DisapprovalHistoryEntry[1];
+        boolean changed;
+        Lock lock = getLock(pr);
+        lock.lock();
+        try {
+            changed = executeSequenced(new TransactionCallback<Boolean>() {
+
+                @Override
+                public Boolean doInTransaction() {
+                    PullRequestDisapproval prd = getOrCreatePullRequestDisapproval(repositoryId, pullRequestId);
+                    if (prd.isDisapproved() != expectedDisapproval || (expectedDisapprovedById != null
+                        && !expectedDisapprovedById.equals(prd.getDisapprovedById()))) {
+                        return false;
+                    }
+                    Long disapprovedAt = prd.getDisapprovedAt();
+                    boolean isTransition = isDisapproved != expectedDisapproval;
+                    prd.setDisapprovedById(isDisapproved ? getUserId(user) : null);
+                    prd.setDisapprovedBy(isDisapproved ? getUsername(user) : NOBODY);
+                    prd.setDisapproved(isDisapproved);
+                    prd.setExpiresAt(isDisapproved ? expiresAt : null);
+                    prd.setDisapprovedAt(getDisapprovedAt(isDisapproved, isTransition, disapprovedAt));
+                    prd.save();
+                    setReason(repositoryId, pullRequestId, isDisapproved ? reason : null);
+                    if (isTransition) {
+                        transition[0] = addHistory(repositoryId, pullRequestId, user,
+                            isDisapproved ? DisapprovalAction.DISAPPROVED : DisapprovalAction.REMOVED,
+                            isDisapproved ? null : disapprovedAt);
+                    }
+                    return true;
+                }
+            });
+            // only once committed, so a rolled back removal can't hide a disapproval from the index
+            if (changed) {
+                index.set(repositoryId, pullRequestId, isDisapproved);
+                fireTransition(transition[0]);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (event != null) {
+            event.complete(pr.getToRef().getRepository().getId(), pr.getId(), isDisapproved, changed);
+        }
+        return changed;
+    }
+
+    /**
+     * Disapproves, or removes the disapproval of, many pull requests in one repository.
+     * 
+     * Pull requests are written in transactions of 500, each a single lookup of the existing rows followed by the
+     * inserts and updates (and their history), with every lock stripe involved held for the transaction. Like
+     * {@link #compareAndSetPullRequestDisapproval}, a pull request is only changed if it isn't in the requested state
+     * already, so whoever disapproved first stays the disapprover.
+     * 
+     * @param mayRemoveAnyone whether the user may remove disapprovals set by someone else (a repository admin)
+     * @return what happened to each pull request, in the order given
+     */
+    public Map<Long, BulkDisapprovalResult> setPullRequestDisapprovals(int repositoryId,
+        Collection<Long> pullRequestIds, StashUser user, boolean isDisapproved, boolean mayRemoveAnyone)
+        throws SQLException {
+        return setPullRequestDisapprovals(repositoryId, pullRequestIds, user, isDisapproved, mayRemoveAnyone, null);
+    }
+
+    /**
+     * @param expiresAt when the new disapprovals lift, in epoch millis, or null to keep them until they are removed;
+     * ignored when removing
+     * @see #setPullRequestDisapprovals(int, Collection, StashUser, boolean, boolean)
+     */
+    public Map<Long, BulkDisapprovalResult> setPullRequestDisapprovals(int repositoryId,
+        Collection<Long> pullRequestIds, StashUser user, boolean isDisapproved, boolean mayRemoveAnyone,
+        Long expiresAt) throws SQLException {
+        return setPullRequestDisapprovals(repositoryId, pullRequestIds, user, isDisapproved, mayRemoveAnyone,
+            expiresAt, null);
+    }
+
+    /**
+     * @param reason why the pull requests are disapproved, or null for no reason; ignored when removing, which
+     * always drops the reason
+     * @see #setPullRequestDisapprovals(int, Collection, StashUser, boolean, boolean, Long)
+     */
+    public Map<Long, BulkDisapprovalResult> setPullRequestDisapprovals(final int repositoryId,
+        Collection<Long> pullRequestIds, final StashUser user, final boolean isDisapproved,
+        final boolean mayRemoveAnyone, final Long expiresAt, final String reason) throws SQLException {
+        final Map<Long, BulkDisapprovalResult> results = new LinkedHashMap<Long, BulkDisapprovalResult>();
+        final List<Long> ids = new ArrayList<Long>(new LinkedHashSet<Long>(pullRequestIds));
+        for (int start = 0; start < ids.size(); start += PULL_REQUEST_BATCH_SIZE) {
+            final List<Long> batch = ids.subList(start, Math.min(start + PULL_REQUEST_BATCH_SIZE, ids.size()));
+            boolean[] stripes = new boolean[LOCK_STRIPES];
+            for (Long pullRequestId : batch) {
+                stripes[getStripe(repositoryId, pullRequestId)] = true;
+            }
+            final List<DisapprovalHistoryEntry> transitions = new ArrayList<DisapprovalHistoryEntry>();
+            lockStripes(stripes);
+            try {
+                Map<Long, BulkDisapprovalResult> batchResults =
+                    executeSequenced(new TransactionCallback<Map<Long, BulkDisapprovalResult>>() {
+
+                        @Override
+                        public Map<Long, BulkDisapprovalResult> doInTransaction() {
+                            transitions.clear();
+                            return applyPullRequestDisapprovals(repositoryId, batch, user, isDisapproved,
+                                mayRemoveAnyone, expiresAt, reason, transitions);
+                        }
+                    });
+                // only once committed, so a rolled back removal can't hide a disapproval from the index
+                for (Map.Entry<Long, BulkDisapprovalResult> e : batchResults.entrySet()) {
+                    if (e.getValue() == BulkDisapprovalResult.CHANGED) {
+                        index.set(repositoryId, e.getKey(), isDisapproved);
+                    }
+                }
+                for (DisapprovalHistoryEntry transition : transitions) {
+                    fireTransition(transition);
+                }
+                results.putAll(batchResults);
+            } finally {
+                unlockStripes(stripes);
+            }
+        }
+        return results;
+    }
+
+    private Map<Long, BulkDisapprovalResult> applyPullRequestDisapprovals(int repositoryId,
+        List<Long> pullRequestIds, StashUser user, boolean isDisapproved, boolean mayRemoveAnyone, Long expiresAt,
+        String reason, List<DisapprovalHistoryEntry> transitions) {
+        StringBuilder where = new StringBuilder("REPO_ID = ? AND PR_ID IN (");
+        List<Object> params = new ArrayList<Object>(pullRequestIds.size() + 1);
+        params.add(repositoryId);
+        for (Long pullRequestId : pullRequestIds) {
+            where.append(params.size() == 1 ? "?" : ", ?");
+            params.add(pullRequestId);
+        }
+        where.append(')');
+        Map<Long, PullRequestDisapproval> existing = new HashMap<Long, PullRequestDisapproval>();
+        for (PullRequestDisapproval prd : ao.find(PullRequestDisapproval.class, where.toString(), params.toArray())) {
+            existing.put(prd.getPullRequestId(), prd);
+        }
+
+        Map<Long, BulkDisapprovalResult> results = new LinkedHashMap<Long, BulkDisapprovalResult>();
+        List<Long> changed = new ArrayList<Long>();
+        for (Long pullRequestId : pullRequestIds) {
+            PullRequestDisapproval prd = existing.get(pullRequestId);
+            boolean disapproved = prd != null && prd.isDisapproved();
+            BulkDisapprovalResult result;
+            if (disapproved == isDisapproved) {
+                result = BulkDisapprovalResult.UNCHANGED;
+            } else if (!isDisapproved && !mayRemoveAnyone
+                && !PullRequestDisapprovalSnapshot.of(prd).isDisapprovedBy(user)) {
+                result = BulkDisapprovalResult.NOT_PERMITTED;
+            } else {
+                if (prd == null) {
+                    prd = ao.create(PullRequestDisapproval.class, new DBParam("REPO_ID", repositoryId),
+                        new DBParam("PR_ID", pullRequestId), new DBParam("USERNAME", NOBODY));
+                }
+                Long disapprovedAt = prd.getDisapprovedAt();
+                prd.setDisapprovedById(isDisapproved ? getUserId(user) : null);
+                prd.setDisapprovedBy(isDisapproved ? getUsername(user) : NOBODY);
+                prd.setDisapproved(isDisapproved);
+                prd.setExpiresAt(isDisapproved ? expiresAt : null);
+                prd.setDisapprovedAt(getDisapprovedAt(isDisapproved, true, disapprovedAt));
+                prd.save();
+                transitions.add(addHistory(repositoryId, pullRequestId, user,
+                    isDisapproved ? DisapprovalAction.DISAPPROVED : DisapprovalAction.REMOVED,
+                    isDisapproved ? null : disapprovedAt));
+                changed.add(pullRequestId);
+                result = BulkDisapprovalResult.CHANGED;
+            }
+            results.put(pullRequestId, result);
+        }
+        if (!changed.isEmpty()) {
+            // one statement for the whole batch; most of them have no reason to delete
+            where.setLength(0);
+            where.append("REPO_ID = ? AND PR_ID IN (");
+            params.clear();
+            params.add(repositoryId);
+            for (Long pullRequestId : changed) {
+                where.append(params.size() == 1 ? "?" : ", ?");
+                params.add(pullRequestId);
+            }
+            where.append(')');
+            ao.deleteWithSQL(PullRequestDisapprovalReason.class, where.toString(), params.toArray());
+            if (isDisapproved && reason != null) {
+                for (Long pullRequestId : changed) {
+                    createReason(repositoryId, pullRequestId, reason);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @see #findDisapprovedPullRequests(Collection, Integer, String, int, int)
+     */
+    public DisapprovalPage findDisapprovedPullRequests(Collection<Integer> repositoryIds, Integer disapprovedById,
+        int start, int limit) throws SQLException {
+        return findDisapprovedPullRequests(repositoryIds, disapprovedById, null, start, limit);
+    }
+
+    /**
+     * Lists pull requests that are currently disapproved, oldest row first.
+     * 
+     * Paging seeks past the last row id seen instead of skipping an offset, so every page costs the same single
+     * indexed query no matter how far in it is. Many repositories are split into batches that each get a query of
+     * their own, to stay within the databases' limits on IN lists and bind parameters.
+     * 
+     * @param repositoryIds only include these repositories, or null for all of them
+     * @param disapprovedById only include pull requests this user disapproved, or null for anyone
+     * @param disapprovedBy the same user's name, which also matches rows saved before user ids were recorded; may be
+     *        null
+     * @param start {@link DisapprovalPage#getNextPageStart()} of the previous page, or 0 for the first page
+     * @param limit the most rows to return
+     */
+    public DisapprovalPage findDisapprovedPullRequests(Collection<Integer> repositoryIds, Integer disapprovedById,
+        String disapprovedBy, int start, int limit) throws SQLException {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1, was " + limit);
+        }
+        if (repositoryIds != null && repositoryIds.isEmpty()) {
+            return new DisapprovalPage(ImmutableList.<PullRequestDisapprovalSnapshot> of(), null);
+        }
+        StringBuilder filter = new StringBuilder("DISAPPROVED = ? AND ID > ?");
+        List<Object> filterParams = new ArrayList<Object>();
+        filterParams.add(Boolean.TRUE);
+        filterParams.add(start);
+        if (disapprovedById != null && disapprovedBy != null) {
+            filter.append(" AND (USER_ID = ? OR (USER_ID IS NULL AND USERNAME = ?))");
+            filterParams.add(disapprovedById);
+            filterParams.add(disapprovedBy);
+        } else if (disapprovedById != null) {
+            filter.append(" AND USER_ID = ?");
+            filterParams.add(disapprovedById);
         }
-        PullRequestDisapprovalImpl.setPullRequestDisapproval(ao, pr, username, isDisapproved);
+        if (repositoryIds == null) {
+            return findPage(filter.toString(), filterParams, limit);
+        }
+
+        // every batch is asked for a whole page, and the page is the lowest ids of them all
+        List<Integer> ids = new ArrayList<Integer>(new LinkedHashSet<Integer>(repositoryIds));
+        List<PullRequestDisapproval> rows = new ArrayList<PullRequestDisapproval>();
+        for (int from = 0; from < ids.size(); from += REPOSITORY_BATCH_SIZE) {
+            List<Integer> batch = ids.subList(from, Math.min(from + REPOSITORY_BATCH_SIZE, ids.size()));
+            StringBuilder where = new StringBuilder(filter).append(" AND REPO_ID IN (");
+            List<Object> params = new ArrayList<Object>(filterParams);
+            String sep = "";
+            for (Integer repositoryId : batch) {
+                where.append(sep).append('?');
+                params.add(repositoryId);
+                sep = ", ";
+            }
+            where.append(')');
+            rows.addAll(Arrays.asList(ao.find(PullRequestDisapproval.class,
+                Query.select().where(where.toString(), params.toArray()).order("ID").limit(limit + 1))));
+        }
+        if (ids.size() > REPOSITORY_BATCH_SIZE) {
+            Collections.sort(rows, new Comparator<PullRequestDisapproval>() {
+
+                @Override
+                public int compare(PullRequestDisapproval a, PullRequestDisapproval b) {
+                    return a.getID() < b.getID() ? -1 : a.getID() == b.getID() ? 0 : 1;
+                }
+            });
+        }
+        return toPage(rows, limit);
+    }
+
+    /**
+     * Lists pull requests that are not disapproved, oldest row first, paged like
+     * {@link #findDisapprovedPullRequests}. These are the rows that can go once their pull request is closed.
+     */
+    public DisapprovalPage findUndisapprovedPullRequests(int start, int limit) throws SQLException {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1, was " + limit);
+        }
+        List<Object> params = new ArrayList<Object>();
+        params.add(Boolean.FALSE);
+        params.add(start);
+        return findPage("DISAPPROVED = ? AND ID > ?", params, limit);
+    }
+
+    /**
+     * Lists disapprovals that lift by themselves, paged like {@link #findDisapprovedPullRequests}. Only disapproved
+     * rows have an expiry, so this reads just them through the EXPIRES_AT index.
+     */
+    public DisapprovalPage findExpiringPullRequests(int start, int limit) throws SQLException {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1, was " + limit);
+        }
+        List<Object> params = new ArrayList<Object>();
+        params.add(start);
+        return findPage("EXPIRES_AT IS NOT NULL AND ID > ?", params, limit);
+    }
+
+    /**
+     * Lifts a disapproval whose time is up.
+     * 
+     * Nothing is written unless the pull request is still disapproved with the expiry the caller scheduled, so a
+     * disapproval that was removed, or removed and given again, in the meantime is left alone.
+     * 
+     * @param expiresAt the expiry the caller scheduled, in epoch millis
+     * @return the disapproval as it was before being lifted, or null if nothing changed
+     */
+    public PullRequestDisapprovalSnapshot expirePullRequestDisapproval(final int repositoryId,
+        final long pullRequestId, final long expiresAt) throws SQLException {
+        DisapprovalTransitionEvent event = DisapprovalJfr.beginTransition();
+        final DisapprovalHistoryEntry[] transition = new DisapprovalHistoryEntry[1];
+        PullRequestDisapprovalSnapshot expired;
+        Lock lock = locks[getStripe(repositoryId, pullRequestId)];
+        lock.lock();
+        try {
+            expired = executeSequenced(new TransactionCallback<PullRequestDisapprovalSnapshot>() {
+
+                @Override
+                public PullRequestDisapprovalSnapshot doInTransaction() {
+                    PullRequestDisapproval[] rows = ao.find(PullRequestDisapproval.class,
+                        "REPO_ID = ? AND PR_ID = ?", repositoryId, pullRequestId);
+                    if (rows.length == 0 || !rows[0].isDisapproved() || rows[0].getExpiresAt() == null
+                        || rows[0].getExpiresAt().longValue() != expiresAt) {
+                        return null;
+                    }
+                    PullRequestDisapprovalSnapshot before = PullRequestDisapprovalSnapshot.of(rows[0]);
+                    rows[0].setDisapprovedById(null);
+                    rows[0].setDisapprovedBy(NOBODY);
+                    rows[0].setDisapproved(false);
+                    rows[0].setExpiresAt(null);
+                    rows[0].setDisapprovedAt(null);
+                    rows[0].save();
+                    setReason(repositoryId, pullRequestId, null);
+                    transition[0] = addHistory(repositoryId, pullRequestId, null, DisapprovalAction.EXPIRED,
+                        before.getDisapprovedAt());
+                    return before;
+                }
+            });
+            if (expired != null) {
+                index.set(repositoryId, pullRequestId, false);
+                fireTransition(transition[0]);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (event != null) {
+            event.complete(repositoryId, pullRequestId, false, expired != null);
+        }
+        return expired;
+    }
+
+    /**
+     * Deletes the rows of the given pull requests, skipping any that are disapproved.
+     * 
+     * A missing row reads the same as one that isn't disapproved (and is recreated when needed), so this loses
+     * nothing; a pull request that is disapproved between the caller's read and this delete is left alone.
+     * 
+     * @return how many rows were deleted
+     */
+    public int deleteUndisapprovedPullRequests(int repositoryId, Collection<Long> pullRequestIds)
+        throws SQLException {
+        if (pullRequestIds.isEmpty()) {
+            return 0;
+        }
+        StringBuilder where = new StringBuilder("REPO_ID = ? AND DISAPPROVED = ? AND PR_ID IN (");
+        List<Object> params = new ArrayList<Object>();
+        params.add(repositoryId);
+        params.add(Boolean.FALSE);
+        // Every stripe involved is held for the delete, so it can't land between another thread reading a row and
+        // saving it.
+        boolean[] stripes = new boolean[LOCK_STRIPES];
+        String sep = "";
+        for (Long pullRequestId : pullRequestIds) {
+            where.append(sep).append('?');
+            params.add(pullRequestId);
+            sep = ", ";
+            stripes[getStripe(repositoryId, pullRequestId)] = true;
+        }
+        where.append(')');
+
+        lockStripes(stripes);
+        try {
+            return ao.deleteWithSQL(PullRequestDisapproval.class, where.toString(), params.toArray());
+        } finally {
+            unlockStripes(stripes);
+        }
+    }
+
+    /**
+     * Removes everything stored for a repository that no longer exists: its configuration, every pull request row,
+     * its webhooks and the cached configuration. The history stays.
+     * 
+     * Pull request rows go in batches of ids, each its own short statement, so a repository with a very long history
+     * doesn't turn into one huge delete holding locks on the table.
+     * 
+     * @return how many pull request rows were deleted
+     */
+    public int deleteRepository(int repositoryId) throws SQLException {
+        int deleted = 0;
+        while (true) {
+            PullRequestDisapproval[] batch =
+                ao.find(PullRequestDisapproval.class,
+                    Query.select("ID").where("REPO_ID = ?", repositoryId).order("ID").limit(DELETE_BATCH_SIZE));
+            if (batch.length == 0) {
+                break;
+            }
+            StringBuilder where = new StringBuilder("REPO_ID = ? AND ID IN (");
+            Object[] params = new Object[batch.length + 1];
+            params[0] = repositoryId;
+            for (int i = 0; i < batch.length; ++i) {
+                where.append(i == 0 ? "?" : ", ?");
+                params[i + 1] = batch[i].getID();
+            }
+            where.append(')');
+            int count = ao.deleteWithSQL(PullRequestDisapproval.class, where.toString(), params);
+            if (count == 0) {
+                // someone else got there first (the event can be delivered more than once)
+                break;
+            }
+            deleted += count;
+        }
+        // at most one per disapproved pull request, so a single statement does
+        ao.deleteWithSQL(PullRequestDisapprovalReason.class, "REPO_ID = ?", repositoryId);
+        for (DisapprovalWebhookSnapshot webhook : getWebhooks(repositoryId)) {
+            deleteWebhook(webhook.getId());
+        }
+        synchronized (configLock) {
+            ao.deleteWithSQL(DisapprovalConfiguration.class, "REPO_ID = ?", repositoryId);
+            configCache.remove(repositoryId);
+        }
+        index.removeRepository(repositoryId);
+        return deleted;
+    }
+
+    /**
+     * Lists every pull request row, disapproved or not, oldest first; paged like {@link #findDisapprovedPullRequests}.
+     */
+    public DisapprovalPage findPullRequests(int start, int limit) throws SQLException {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1, was " + limit);
+        }
+        List<Object> params = new ArrayList<Object>();
+        params.add(start);
+        return findPage("ID > ?", params, limit);
+    }
+
+    /**
+     * Lists the history of disapproval changes, oldest first, paged like {@link #findDisapprovedPullRequests}.
+     * 
+     * Every page is one query that seeks on the primary key (or the REPO_ID index when filtered), so reading the
+     * history never scans the table.
+     * 
+     * @param repositoryId only include this repository, or null for all of them
+     * @param pullRequestId only include this pull request of the repository, or null for all of them
+     */
+    public DisapprovalHistoryPage findHistory(Integer repositoryId, Long pullRequestId, int start, int limit)
+        throws SQLException {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1, was " + limit);
+        }
+        if (pullRequestId != null && repositoryId == null) {
+            throw new IllegalArgumentException("pullRequestId can only be used together with repositoryId");
+        }
+        StringBuilder where = new StringBuilder("ID > ?");
+        List<Object> params = new ArrayList<Object>();
+        params.add(start);
+        if (repositoryId != null) {
+            where.append(" AND REPO_ID = ?");
+            params.add(repositoryId);
+        }
+        if (pullRequestId != null) {
+            where.append(" AND PR_ID = ?");
+            params.add(pullRequestId);
+        }
+        // one more than asked for, to tell whether there is a next page without counting
+        DisapprovalHistory[] rows = ao.find(DisapprovalHistory.class,
+            Query.select().where(where.toString(), params.toArray()).order("ID").limit(limit + 1));
+
+        int size = Math.min(rows.length, limit);
+        List<DisapprovalHistoryEntry> values = new ArrayList<DisapprovalHistoryEntry>(size);
+        for (int i = 0; i < size; ++i) {
+            values.add(DisapprovalHistoryEntry.of(rows[i]));
+        }
+        Integer nextPageStart = rows.length > limit ? rows[limit - 1].getID() : null;
+        return new DisapprovalHistoryPage(values, nextPageStart);
+    }
+
+    /**
+     * Lists the changes after the given sequence, in sequence order: the change feed. Each page is one range query
+     * on the indexed SEQ column.
+     * 
+     * Sequences are handed out as changes are made, but their transactions can commit in any order, so only changes
+     * below the oldest sequence still being written are returned; newer ones turn up on a later call. A consumer
+     * that keeps asking for the changes after the last sequence it saw therefore never misses one. Sequences only
+     * increase, with gaps where a change was rolled back. They are handed out by this instance, so every node of a
+     * cluster would need its own feed.
+     * 
+     * @param repositoryId only include this repository's changes, or null for all of them
+     * @param since 0 to start at the beginning
+     */
+    public DisapprovalChangePage findChanges(Integer repositoryId, long since, int limit) throws SQLException {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1, was " + limit);
+        }
+        long horizon = getChangeFeedHead() + 1;
+        StringBuilder where = new StringBuilder("SEQ > ? AND SEQ < ?");
+        List<Object> params = new ArrayList<Object>();
+        params.add(since);
+        params.add(horizon);
+        if (repositoryId != null) {
+            where.append(" AND REPO_ID = ?");
+            params.add(repositoryId);
+        }
+        // one more than asked for, to tell whether there is a next page without counting
+        DisapprovalHistory[] rows = ao.find(DisapprovalHistory.class,
+            Query.select().where(where.toString(), params.toArray()).order("SEQ").limit(limit + 1));
+
+        int size = Math.min(rows.length, limit);
+        List<DisapprovalHistoryEntry> values = new ArrayList<DisapprovalHistoryEntry>(size);
+        for (int i = 0; i < size; ++i) {
+            values.add(DisapprovalHistoryEntry.of(rows[i]));
+        }
+        long nextSince = size == 0 ? since : values.get(size - 1).getSequence();
+        return new DisapprovalChangePage(values, nextSince, rows.length <= limit);
+    }
+
+    /**
+     * Returns the last sequence the change feed will currently serve; every change after it is yet to be seen.
+     */
+    public long getChangeFeedHead() {
+        synchronized (sequenceLock) {
+            readSequence();
+            return (sequencesInFlight.isEmpty() ? nextSequence : sequencesInFlight.first()) - 1;
+        }
+    }
+
+    /**
+     * Returns the resolution time checkpoints of one day, at most one per repository.
+     * 
+     * @param day days since the epoch, UTC
+     */
+    public List<DisapprovalResolutionSnapshot> findResolutions(int day) throws SQLException {
+        DisapprovalResolution[] rows = ao.find(DisapprovalResolution.class, "RESOLVED_DAY = ?", day);
+        List<DisapprovalResolutionSnapshot> values = new ArrayList<DisapprovalResolutionSnapshot>(rows.length);
+        for (DisapprovalResolution row : rows) {
+            values.add(DisapprovalResolutionSnapshot.of(row));
+        }
+        return values;
+    }
+
+    /**
+     * Writes resolution time checkpoints, replacing the row of the same repository and day where there is one. Each
+     * day is a single lookup of the rows it already has followed by the updates and inserts, all in one transaction.
+     * Callers must not save concurrently, or a repository and day could end up with two rows.
+     */
+    public void saveResolutions(Collection<DisapprovalResolutionSnapshot> resolutions) throws SQLException {
+        final Map<Integer, Map<Integer, DisapprovalResolutionSnapshot>> byDay =
+            new LinkedHashMap<Integer, Map<Integer, DisapprovalResolutionSnapshot>>();
+        for (DisapprovalResolutionSnapshot r : resolutions) {
+            Map<Integer, DisapprovalResolutionSnapshot> forDay = byDay.get(r.getDay());
+            if (forDay == null) {
+                forDay = new LinkedHashMap<Integer, DisapprovalResolutionSnapshot>();
+                byDay.put(r.getDay(), forDay);
+            }
+            forDay.put(r.getRepositoryId(), r);
+        }
+        ao.executeInTransaction(new TransactionCallback<Void>() {
+
+            @Override
+            public Void doInTransaction() {
+                for (Map.Entry<Integer, Map<Integer, DisapprovalResolutionSnapshot>> e : byDay.entrySet()) {
+                    Map<Integer, DisapprovalResolution> existing = new HashMap<Integer, DisapprovalResolution>();
+                    DisapprovalResolution[] rows =
+                        ao.find(DisapprovalResolution.class, "RESOLVED_DAY = ?", e.getKey());
+                    for (DisapprovalResolution row : rows) {
+                        existing.put(row.getRepositoryId(), row);
+                    }
+                    for (DisapprovalResolutionSnapshot r : e.getValue().values()) {
+                        DisapprovalResolution row = existing.get(r.getRepositoryId());
+                        if (row == null) {
+                            ao.create(DisapprovalResolution.class, new DBParam("REPO_ID", r.getRepositoryId()),
+                                new DBParam("PROJECT_ID", r.getProjectId()),
+                                new DBParam("RESOLVED_DAY", r.getDay()), new DBParam("BUCKETS", r.getBuckets()));
+                        } else {
+                            row.setProjectId(r.getProjectId());
+                            row.setBuckets(r.getBuckets());
+                            row.save();
+                        }
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Deletes the resolution time checkpoints of every day before the given one.
+     * 
+     * @param day days since the epoch, UTC
+     * @return how many rows were deleted
+     */
+    public int deleteResolutionsBefore(int day) throws SQLException {
+        return ao.deleteWithSQL(DisapprovalResolution.class, "RESOLVED_DAY < ?", day);
+    }
+
+    /**
+     * @param repositoryId only this repository's webhooks, or null for all of them
+     */
+    public List<DisapprovalWebhookSnapshot> getWebhooks(Integer repositoryId) throws SQLException {
+        DisapprovalWebhook[] rows = repositoryId == null
+            ? ao.find(DisapprovalWebhook.class, Query.select().order("ID"))
+            : ao.find(DisapprovalWebhook.class, Query.select().where("REPO_ID = ?", repositoryId).order("ID"));
+        List<DisapprovalWebhookSnapshot> values = new ArrayList<DisapprovalWebhookSnapshot>(rows.length);
+        for (DisapprovalWebhook row : rows) {
+            values.add(DisapprovalWebhookSnapshot.of(row));
+        }
+        return values;
+    }
+
+    /**
+     * @return the webhook, or null if there is none with that id
+     */
+    public DisapprovalWebhookSnapshot getWebhook(int id) throws SQLException {
+        DisapprovalWebhook[] rows = ao.find(DisapprovalWebhook.class, "ID = ?", id);
+        return rows.length == 0 ? null : DisapprovalWebhookSnapshot.of(rows[0]);
+    }
+
+    /**
+     * Adds a webhook, which is sent the changes made from now on.
+     * 
+     * @param secret the key its requests are signed with
+     */
+    public DisapprovalWebhookSnapshot createWebhook(int repositoryId, String url, String secret) throws SQLException {
+        DisapprovalWebhook w = ao.create(DisapprovalWebhook.class, new DBParam("REPO_ID", repositoryId),
+            new DBParam("URL", url), new DBParam("SECRET", secret), new DBParam("LAST_SEQ", getChangeFeedHead()));
+        return DisapprovalWebhookSnapshot.of(w);
+    }
+
+    /**
+     * Removes a webhook along with everything still queued for it.
+     * 
+     * @return whether there was such a webhook
+     */
+    public boolean deleteWebhook(final int id) throws SQLException {
+        return ao.executeInTransaction(new TransactionCallback<Boolean>() {
+
+            @Override
+            public Boolean doInTransaction() {
+                ao.deleteWithSQL(DisapprovalWebhookDelivery.class, "WEBHOOK_ID = ?", id);
+                return ao.deleteWithSQL(DisapprovalWebhook.class, "ID = ?", id) > 0;
+            }
+        });
+    }
+
+    /**
+     * Queues deliveries and moves webhooks past the changes they were made from, in one transaction, so a change is
+     * queued exactly once however the caller fails.
+     * 
+     * @param webhookIds the webhooks to move; deleted ones are skipped
+     * @param lastSequence how far the webhooks have now been given changes; a webhook already further along stays
+     */
+    public void enqueueWebhookDeliveries(final Collection<DisapprovalWebhookDeliverySnapshot> deliveries,
+        final Collection<Integer> webhookIds, final long lastSequence) throws SQLException {
+        if (webhookIds.isEmpty()) {
+            return;
+        }
+        ao.executeInTransaction(new TransactionCallback<Void>() {
+
+            @Override
+            public Void doInTransaction() {
+                Set<Integer> existing = new HashSet<Integer>();
+                for (DisapprovalWebhook w : ao.find(DisapprovalWebhook.class, idIn(webhookIds),
+                    webhookIds.toArray())) {
+                    existing.add(w.getID());
+                    if (w.getLastSequence() < lastSequence) {
+                        w.setLastSequence(lastSequence);
+                        w.save();
+                    }
+                }
+                for (DisapprovalWebhookDeliverySnapshot d : deliveries) {
+                    if (existing.contains(d.getWebhookId())) {
+                        ao.create(DisapprovalWebhookDelivery.class, new DBParam("WEBHOOK_ID", d.getWebhookId()),
+                            new DBParam("SEQ", d.getSequence()), new DBParam("PAYLOAD", d.getPayload()),
+                            new DBParam("ATTEMPTS", d.getAttempts()),
+                            new DBParam("NEXT_ATTEMPT_AT", d.getNextAttemptAt()));
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns the oldest deliveries queued for a webhook, in the order they were queued.
+     */
+    public List<DisapprovalWebhookDeliverySnapshot> findWebhookDeliveries(int webhookId, int limit)
+        throws SQLException {
+        DisapprovalWebhookDelivery[] rows = ao.find(DisapprovalWebhookDelivery.class,
+            Query.select().where("WEBHOOK_ID = ?", webhookId).order("ID").limit(limit));
+        List<DisapprovalWebhookDeliverySnapshot> values =
+            new ArrayList<DisapprovalWebhookDeliverySnapshot>(rows.length);
+        for (DisapprovalWebhookDelivery row : rows) {
+            values.add(DisapprovalWebhookDeliverySnapshot.of(row));
+        }
+        return values;
+    }
+
+    /**
+     * @param webhookId count only this webhook's deliveries, or null for the whole queue
+     */
+    public int countWebhookDeliveries(Integer webhookId) throws SQLException {
+        return webhookId == null ? ao.count(DisapprovalWebhookDelivery.class)
+            : ao.count(DisapprovalWebhookDelivery.class, "WEBHOOK_ID = ?", webhookId);
+    }
+
+    /**
+     * Takes delivered (or abandoned) deliveries off the queue.
+     */
+    public void deleteWebhookDeliveries(Collection<Integer> ids) throws SQLException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        ao.deleteWithSQL(DisapprovalWebhookDelivery.class, idIn(ids), ids.toArray());
+    }
+
+    /**
+     * Records a failed attempt at the given deliveries and when to try them again.
+     */
+    public void retryWebhookDeliveries(Collection<Integer> ids, final int attempts, final long nextAttemptAt)
+        throws SQLException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        final DisapprovalWebhookDelivery[] rows =
+            ao.find(DisapprovalWebhookDelivery.class, idIn(ids), ids.toArray());
+        ao.executeInTransaction(new TransactionCallback<Void>() {
+
+            @Override
+            public Void doInTransaction() {
+                for (DisapprovalWebhookDelivery row : rows) {
+                    row.setAttempts(attempts);
+                    row.setNextAttemptAt(nextAttemptAt);
+                    row.save();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Lists stored configurations in repository id order, starting after the given repository id (0 to start at the
+     * beginning). Fewer than limit results means there are no more.
+     */
+    public List<DisapprovalConfigurationSnapshot> findConfigurations(int afterRepositoryId, int limit)
+        throws SQLException {
+        DisapprovalConfiguration[] rows =
+            ao.find(DisapprovalConfiguration.class,
+                Query.select().where("REPO_ID > ?", afterRepositoryId).order("REPO_ID").limit(limit));
+        List<DisapprovalConfigurationSnapshot> configs = new ArrayList<DisapprovalConfigurationSnapshot>(rows.length);
+        for (DisapprovalConfiguration dc : rows) {
+            configs.add(DisapprovalConfigurationSnapshot.of(dc));
+        }
+        return configs;
+    }
+
+    /**
+     * Lists stored defaults in project id order, starting after the given project id (-1 to start at the beginning,
+     * with the global defaults). Fewer than limit results means there are no more.
+     */
+    public List<DisapprovalDefaultsSnapshot> findDisapprovalDefaults(int afterProjectId, int limit)
+        throws SQLException {
+        DisapprovalDefaults[] rows =
+            ao.find(DisapprovalDefaults.class,
+                Query.select().where("PROJECT_ID > ?", afterProjectId).order("PROJECT_ID").limit(limit));
+        List<DisapprovalDefaultsSnapshot> defaults = new ArrayList<DisapprovalDefaultsSnapshot>(rows.length);
+        for (DisapprovalDefaults dd : rows) {
+            defaults.add(DisapprovalDefaultsSnapshot.of(dd));
+        }
+        return defaults;
+    }
+
+    /**
+     * Stores configurations and pull request rows in one transaction, overwriting whatever is already there for the
+     * same repository (or repository and pull request), so importing the same data twice changes nothing.
+     * 
+     * Meant for batches of at most a few hundred rows; existing rows are looked up with one query per repository.
+     */
+    public void importBatch(final Collection<DisapprovalConfigurationSnapshot> configs,
+        final Collection<PullRequestDisapprovalSnapshot> prds) throws SQLException {
+        if (configs.isEmpty() && prds.isEmpty()) {
+            return;
+        }
+        boolean[] stripes = new boolean[LOCK_STRIPES];
+        for (PullRequestDisapprovalSnapshot prd : prds) {
+            stripes[getStripe(prd.getRepositoryId(), prd.getPullRequestId())] = true;
+        }
+        synchronized (configLock) {
+            lockStripes(stripes);
+            boolean committed = false;
+            try {
+                ao.executeInTransaction(new TransactionCallback<Void>() {
+
+                    @Override
+                    public Void doInTransaction() {
+                        upsertConfigurations(configs, false);
+                        upsertPullRequests(prds);
+                        return null;
+                    }
+                });
+                committed = true;
+                for (PullRequestDisapprovalSnapshot prd : prds) {
+                    index.set(prd.getRepositoryId(), prd.getPullRequestId(), prd.isDisapproved());
+                }
+            } finally {
+                unlockStripes(stripes);
+                updateConfigCache(configs, committed);
+            }
+        }
+    }
+
+    /**
+     * Applies the same configuration to many repositories at once.
+     * 
+     * Rows are written in transactions of 500 repositories, each a single lookup of the existing rows followed by the
+     * inserts and updates, and the cached configurations are replaced once at the end.
+     * 
+     * @return how many repositories were configured
+     */
+    public int setDisapprovalConfigurations(Collection<Integer> repositoryIds, DisapprovalMode mode,
+        boolean isEnabled) throws SQLException {
+        final List<DisapprovalConfigurationSnapshot> configs =
+            new ArrayList<DisapprovalConfigurationSnapshot>(repositoryIds.size());
+        for (Integer repositoryId : repositoryIds) {
+            configs.add(new DisapprovalConfigurationSnapshot(repositoryId, isEnabled, mode));
+        }
+        // what was actually saved, which unlike configs includes each repository's freeze and rescope policy
+        final List<DisapprovalConfigurationSnapshot> saved =
+            new ArrayList<DisapprovalConfigurationSnapshot>(repositoryIds.size());
+        int written = 0;
+        synchronized (configLock) {
+            try {
+                while (written < configs.size()) {
+                    final List<DisapprovalConfigurationSnapshot> batch =
+                        configs.subList(written, Math.min(written + CONFIG_BATCH_SIZE, configs.size()));
+                    saved.addAll(ao.executeInTransaction(
+                        new TransactionCallback<List<DisapprovalConfigurationSnapshot>>() {
+
+                            @Override
+                            public List<DisapprovalConfigurationSnapshot> doInTransaction() {
+                                return upsertConfigurations(batch, true);
+                            }
+                        }));
+                    written += batch.size();
+                }
+            } finally {
+                updateConfigCache(saved, true);
+                updateConfigCache(configs.subList(written, configs.size()), false);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Brings the cache up to date after a write: committed configurations replace what is cached (so a reader that
+     * loaded the old row just before can't put it back), the rest are dropped to be read again.
+     */
+    private void updateConfigCache(Collection<DisapprovalConfigurationSnapshot> configs, boolean committed) {
+        for (DisapprovalConfigurationSnapshot dc : configs) {
+            if (committed) {
+                configCache.put(dc.getRepositoryId(), CachedConfiguration.unresolved(dc));
+            } else {
+                configCache.remove(dc.getRepositoryId());
+            }
+        }
+    }
+
+    /**
+     * @param modeOnly only set the mode and whether disapproval is enabled, leaving each existing row's freeze and
+     * rescope policy alone instead of overwriting them with the snapshot's
+     * @return the rows as saved
+     */
+    private List<DisapprovalConfigurationSnapshot> upsertConfigurations(
+        Collection<DisapprovalConfigurationSnapshot> configs, boolean modeOnly) {
+        List<DisapprovalConfigurationSnapshot> saved = new ArrayList<DisapprovalConfigurationSnapshot>(configs.size());
+        if (configs.isEmpty()) {
+            return saved;
+        }
+        StringBuilder where = new StringBuilder("REPO_ID IN (");
+        List<Object> params = new ArrayList<Object>(configs.size());
+        for (DisapprovalConfigurationSnapshot dc : configs) {
+            where.append(params.isEmpty() ? "?" : ", ?");
+            params.add(dc.getRepositoryId());
+        }
+        where.append(')');
+        Map<Integer, DisapprovalConfiguration> existing = new HashMap<Integer, DisapprovalConfiguration>();
+        for (DisapprovalConfiguration dc : ao.find(DisapprovalConfiguration.class, where.toString(),
+            params.toArray())) {
+            existing.put(dc.getRepositoryId(), dc);
+        }
+        for (DisapprovalConfigurationSnapshot snapshot : configs) {
+            DisapprovalConfiguration dc = existing.get(snapshot.getRepositoryId());
+            if (dc == null) {
+                dc = ao.create(DisapprovalConfiguration.class, new DBParam("REPO_ID", snapshot.getRepositoryId()));
+                existing.put(snapshot.getRepositoryId(), dc);
+            }
+            dc.setDisapprovalMode(snapshot.getDisapprovalMode());
+            dc.setEnabled(snapshot.isEnabled());
+            if (!modeOnly) {
+                dc.setMergeFreeze(snapshot.getFreeze());
+                dc.setRescopePolicy(snapshot.getRescopePolicy());
+            }
+            dc.save();
+            saved.add(DisapprovalConfigurationSnapshot.of(dc));
+        }
+        return saved;
+    }
+
+    private static String idIn(Collection<Integer> ids) {
+        StringBuilder where = new StringBuilder("ID IN (");
+        for (int i = 0; i < ids.size(); ++i) {
+            where.append(i == 0 ? "?" : ", ?");
+        }
+        return where.append(')').toString();
+    }
+
+    private void upsertPullRequests(Collection<PullRequestDisapprovalSnapshot> prds) {
+        Map<Integer, Map<Long, PullRequestDisapprovalSnapshot>> byRepository =
+            new LinkedHashMap<Integer, Map<Long, PullRequestDisapprovalSnapshot>>();
+        for (PullRequestDisapprovalSnapshot prd : prds) {
+            Map<Long, PullRequestDisapprovalSnapshot> forRepository = byRepository.get(prd.getRepositoryId());
+            if (forRepository == null) {
+                forRepository = new LinkedHashMap<Long, PullRequestDisapprovalSnapshot>();
+                byRepository.put(prd.getRepositoryId(), forRepository);
+            }
+            // the last one wins if a pull request shows up twice
+            forRepository.put(prd.getPullRequestId(), prd);
+        }
+        for (Map.Entry<Integer, Map<Long, PullRequestDisapprovalSnapshot>> e : byRepository.entrySet()) {
+            Map<Long, PullRequestDisapprovalSnapshot> incoming = e.getValue();
+            StringBuilder where = new StringBuilder("REPO_ID = ? AND PR_ID IN (");
+            List<Object> params = new ArrayList<Object>(incoming.size() + 1);
+            params.add(e.getKey());
+            for (Long prId : incoming.keySet()) {
+                where.append(params.size() == 1 ? "?" : ", ?");
+                params.add(prId);
+            }
+            where.append(')');
+            Map<Long, PullRequestDisapproval> existing = new HashMap<Long, PullRequestDisapproval>();
+            for (PullRequestDisapproval prd : ao.find(PullRequestDisapproval.class, where.toString(),
+                params.toArray())) {
+                existing.put(prd.getPullRequestId(), prd);
+            }
+            for (PullRequestDisapprovalSnapshot snapshot : incoming.values()) {
+                PullRequestDisapproval prd = existing.get(snapshot.getPullRequestId());
+                if (prd == null) {
+                    prd =
+                        ao.create(PullRequestDisapproval.class, new DBParam("REPO_ID", snapshot.getRepositoryId()),
+                            new DBParam("PR_ID", snapshot.getPullRequestId()), new DBParam("USERNAME",
+                                snapshot.getDisapprovedBy()));
+                }
+                prd.setDisapprovedById(snapshot.getDisapprovedById());
+                prd.setDisapprovedBy(snapshot.getDisapprovedBy());
+                prd.setDisapproved(snapshot.isDisapproved());
+                prd.setExpiresAt(snapshot.isDisapproved() ? snapshot.getExpiresAt() : null);
+                prd.setDisapprovedAt(snapshot.isDisapproved() ? snapshot.getDisapprovedAt() : null);
+                prd.save();
+            }
+        }
+    }
+
+    private DisapprovalPage findPage(String where, List<Object> params, int limit) {
+        // one more than asked for, to tell whether there is a next page without counting
+        PullRequestDisapproval[] rows =
+            ao.find(PullRequestDisapproval.class,
+                Query.select().where(where, params.toArray()).order("ID").limit(limit + 1));
+        return toPage(Arrays.asList(rows), limit);
+    }
+
+    // rows are in id order, with one more than limit if there is a next page
+    private static DisapprovalPage toPage(List<PullRequestDisapproval> rows, int limit) {
+        int size = Math.min(rows.size(), limit);
+        List<PullRequestDisapprovalSnapshot> values = new ArrayList<PullRequestDisapprovalSnapshot>(size);
+        for (int i = 0; i < size; ++i) {
+            values.add(PullRequestDisapprovalSnapshot.of(rows.get(i)));
+        }
+        Integer nextPageStart = rows.size() > limit ? rows.get(limit - 1).getID() : null;
+        return new DisapprovalPage(values, nextPageStart);
+    }
+
+    /**
+     * Looks up a pull request's row, creating a (not disapproved) one if there isn't one yet. Callers hold its
+     * stripe.
+     */
+    private PullRequestDisapproval getOrCreatePullRequestDisapproval(int repositoryId, long pullRequestId) {
+        PullRequestDisapproval[] rows =
+            ao.find(PullRequestDisapproval.class, "REPO_ID = ? AND PR_ID = ?", repositoryId, pullRequestId);
+        if (rows.length > 0) {
+            return rows[0];
+        }
+        return ao.create(PullRequestDisapproval.class, new DBParam("REPO_ID", repositoryId),
+            new DBParam("PR_ID", pullRequestId), new DBParam("USERNAME", NOBODY));
+    }
+
+    /**
+     * Appends to the history; called in the transaction that makes the change.
+     * 
+     * @param disapprovedAt when a disapproval being lifted had been given, or null
+     */
+    private DisapprovalHistoryEntry addHistory(int repositoryId, long pullRequestId, StashUser user,
+        DisapprovalAction action, Long disapprovedAt) {
+        DisapprovalHistory h = ao.create(DisapprovalHistory.class, new DBParam("REPO_ID", repositoryId),
+            new DBParam("PR_ID", pullRequestId), new DBParam("USER_ID", getUserId(user)),
+            new DBParam("USERNAME", getUsername(user)), new DBParam("ACTION", action.name()),
+            new DBParam("CREATED_AT", System.currentTimeMillis()), new DBParam("DISAPPROVED_AT", disapprovedAt),
+            new DBParam("SEQ", allocateSequence()));
+        return DisapprovalHistoryEntry.of(h);
+    }
+
+    /**
+     * Runs a transaction that may add history, releasing the sequences it was handed once it is over either way.
+     */
+    private <T> T executeSequenced(TransactionCallback<T> callback) {
+        try {
+            return ao.executeInTransaction(callback);
+        } finally {
+            List<Long> allocated = allocatedSequences.get();
+            if (!allocated.isEmpty()) {
+                synchronized (sequenceLock) {
+                    sequencesInFlight.removeAll(allocated);
+                }
+                allocated.clear();
+            }
+        }
+    }
+
+    /**
+     * Hands out the next change sequence; only called from a transaction run by {@link #executeSequenced}.
+     */
+    private long allocateSequence() {
+        synchronized (sequenceLock) {
+            readSequence();
+            long sequence = nextSequence++;
+            sequencesInFlight.add(sequence);
+            allocatedSequences.get().add(sequence);
+            return sequence;
+        }
+    }
+
+    /**
+     * Called with sequenceLock held.
+     */
+    private void readSequence() {
+        if (nextSequence == 0) {
+            DisapprovalHistory[] last = ao.find(DisapprovalHistory.class,
+                Query.select("ID, SEQ").where("SEQ IS NOT NULL").order("SEQ DESC").limit(1));
+            nextSequence = last.length == 0 ? 1 : last[0].getSequence() + 1;
+        }
+    }
+
+    /**
+     * What DISAPPROVED_AT becomes: now for a new disapproval, unchanged when an existing one is only updated, and
+     * null when it is removed.
+     */
+    private static Long getDisapprovedAt(boolean isDisapproved, boolean isTransition, Long disapprovedAt) {
+        if (!isDisapproved) {
+            return null;
+        }
+        return isTransition ? Long.valueOf(System.currentTimeMillis()) : disapprovedAt;
+    }
+
+    /**
+     * Tells the listeners about a committed transition, if there was one. Called under the pull request's stripe, so
+     * listeners see the transitions of each pull request in order.
+     */
+    private void fireTransition(DisapprovalHistoryEntry transition) {
+        if (transition == null) {
+            return;
+        }
+        for (DisapprovalTransitionListener listener : transitionListeners) {
+            try {
+                listener.onTransition(transition);
+            } catch (RuntimeException e) {
+                // the change is saved either way
+                log.error("Disapproval transition listener " + listener + " failed on " + transition, e);
+            }
+        }
+    }
+
+    /**
+     * Replaces the pull request's reason. Callers hold its stripe.
+     */
+    private void setReason(int repositoryId, long pullRequestId, String reason) {
+        ao.deleteWithSQL(PullRequestDisapprovalReason.class, "REPO_ID = ? AND PR_ID = ?", repositoryId, pullRequestId);
+        if (reason != null) {
+            createReason(repositoryId, pullRequestId, reason);
+        }
+    }
+
+    private void createReason(int repositoryId, long pullRequestId, String reason) {
+        ao.create(PullRequestDisapprovalReason.class, new DBParam("REPO_ID", repositoryId),
+            new DBParam("PR_ID", pullRequestId), new DBParam("REASON", reason));
+    }
+
+    private static boolean isExpired(Long expiresAt) {
+        return expiresAt != null && expiresAt.longValue() <= System.currentTimeMillis();
+    }
+
+    private static Integer getUserId(StashUser user) {
+        return user == null ? null : user.getId();
+    }
+
+    private static String getUsername(StashUser user) {
+        return user == null ? NOBODY : user.getName();
+    }
+
+    private Lock getLock(PullRequest pr) {
+        return locks[getStripe(pr.getToRef().getRepository().getId(), pr.getId())];
+    }
+
+    /**
+     * Takes several stripes at once. They are always taken in index order, so two callers can't deadlock; everything
+     * else only ever holds a single stripe.
+     */
+    private void lockStripes(boolean[] stripes) {
+        for (int i = 0; i < LOCK_STRIPES; ++i) {
+            if (stripes[i]) {
+                locks[i].lock();
+            }
+        }
+    }
+
+    private void unlockStripes(boolean[] stripes) {
+        for (int i = LOCK_STRIPES - 1; i >= 0; --i) {
+            if (stripes[i]) {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    private static int getStripe(int repositoryId, Long pullRequestId) {
+        int hash = 31 * repositoryId + pullRequestId.hashCode();
+        return (hash & Integer.MAX_VALUE) % LOCK_STRIPES;
     }
 
 }
@@ -20,6 +20,7 @@ import net.java.ao.Mutator;
 import net.java.ao.Preload;
 import net.java.ao.schema.Default;
 import net.java.ao.schema.Ignore;
+import net.java.ao.schema.Indexed;
 import net.java.ao.schema.NotNull;
 import net.java.ao.schema.Table;
 
@@ -34,6 +35,7 @@ import com.atlassian.stash.repository.RepositoryService;
 public interface PullRequestDisapproval extends Entity {
 
     @NotNull
+    @Indexed
     @Accessor("REPO_ID")
     public Integer getRepositoryId();
 
@@ -55,14 +57,40 @@ public interface PullRequestDisapproval extends Entity {
     @Mutator("USERNAME")
     public void setDisapprovedBy(String user);
 
+    // The user who last set the disapproval state, null when nobody has, or for rows from before this column existed
+    // whose username no longer resolves. USERNAME is kept alongside it as the name to show if the user is deleted.
+    @Indexed
+    @Accessor("USER_ID")
+    public Integer getDisapprovedById();
+
+    @Mutator("USER_ID")
+    public void setDisapprovedById(Integer userId);
+
     @NotNull
     @Default("false")
+    @Indexed
     @Accessor("DISAPPROVED")
     public Boolean isDisapproved();
 
     @Mutator("DISAPPROVED")
     public void setDisapproved(Boolean isDissaproved);
 
+    // When the disapproval lifts by itself, in epoch millis, or null if it doesn't. Only ever set while disapproved.
+    @Indexed
+    @Accessor("EXPIRES_AT")
+    public Long getExpiresAt();
+
+    @Mutator("EXPIRES_AT")
+    public void setExpiresAt(Long expiresAt);
+
+    // When the current disapproval was given, in epoch millis; null while not disapproved, and for disapprovals given
+    // before this column existed.
+    @Accessor("DISAPPROVED_AT")
+    public Long getDisapprovedAt();
+
+    @Mutator("DISAPPROVED_AT")
+    public void setDisapprovedAt(Long disapprovedAt);
+
     /////
     // These are implemented in DisapprovalPluginConfigurationImpl - so the user can use enums
     /////
@@ -50,6 +50,18 @@ public class PullRequestDisapprovalImpl {
     }
 
     // static methods for getting by id, etc.
+    public static PullRequestDisapproval findPullRequestDisapproval(ActiveObjects ao, PullRequest pr)
+        throws SQLException {
+        Repository repo = pr.getToRef().getRepository();
+        PullRequestDisapproval[] disapprovals =
+            ao.find(PullRequestDisapproval.class,
+                Query.select().where("REPO_ID = ? and PR_ID = ?", repo.getId(), pr.getId()));
+        if (disapprovals.length == 0) {
+            return null;
+        }
+        return disapprovals[0];
+    }
+
     public static PullRequestDisapproval getPullRequestDisapproval(ActiveObjects ao, PullRequest pr)
         throws SQLException {
         Repository repo = pr.getToRef().getRepository();
@@ -66,7 +78,7 @@ public class PullRequestDisapprovalImpl {
         return disapprovals[0];
     }
 
-    public static void setPullRequestDisapproval(ActiveObjects ao, PullRequest pr, String username,
+    public static void setPullRequestDisapproval(ActiveObjects ao, PullRequest pr, Integer userId, String username,
         boolean isDisapproved) throws SQLException {
         Repository repo = pr.getToRef().getRepository();
         PullRequestDisapproval[] disapprovals =
@@ -76,12 +88,16 @@ public class PullRequestDisapprovalImpl {
             PullRequestDisapproval prd =
                 ao.create(PullRequestDisapproval.class, new DBParam("REPO_ID", repo.getId()),
                     new DBParam("PR_ID", pr.getId()), new DBParam("USERNAME", username));
+            prd.setDisapprovedById(userId);
             prd.setDisapproved(isDisapproved);
+            prd.setExpiresAt(null);
             prd.save();
             return;
         }
+        disapprovals[0].setDisapprovedById(userId);
         disapprovals[0].setDisapprovedBy(username);
         disapprovals[0].setDisapproved(isDisapproved);
+        disapprovals[0].setExpiresAt(null);
         disapprovals[0].save();
     }
 }
@@ -0,0 +1,58 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+import net.java.ao.Accessor;
+import net.java.ao.Entity;
+import net.java.ao.Mutator;
+import net.java.ao.Preload;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.StringLength;
+import net.java.ao.schema.Table;
+
+/**
+ * Why a pull request was disapproved, for disapprovals that were given a reason.
+ * 
+ * Kept out of {@link PullRequestDisapproval} so that the merge check, conditions and lists, which load that entity
+ * over and over, never read a text column they don't show. Only the pull request page and the web panel ask for it.
+ * There is at most one row per pull request, and only while it is disapproved.
+ */
+@Table("PRDReason001")
+@Preload
+public interface PullRequestDisapprovalReason extends Entity {
+
+    @NotNull
+    @Indexed
+    @Accessor("REPO_ID")
+    public Integer getRepositoryId();
+
+    @Mutator("REPO_ID")
+    public void setRepositoryId(Integer repoId);
+
+    @NotNull
+    @Accessor("PR_ID")
+    public Long getPullRequestId();
+
+    @Mutator("PR_ID")
+    public void setPullRequestId(Long prId);
+
+    @NotNull
+    @StringLength(StringLength.UNLIMITED)
+    @Accessor("REASON")
+    public String getReason();
+
+    @Mutator("REASON")
+    public void setReason(String reason);
+}
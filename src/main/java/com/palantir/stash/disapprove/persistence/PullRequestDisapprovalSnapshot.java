@@ -0,0 +1,118 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+import com.atlassian.stash.user.StashUser;
+
+/**
+ * An immutable copy of a {@link PullRequestDisapproval} row.
+ * 
+ * Reading it costs a field access instead of a trip through the entity proxy, and it can be shared between threads.
+ */
+public final class PullRequestDisapprovalSnapshot {
+
+    private final int repositoryId;
+    private final long pullRequestId;
+    private final boolean disapproved;
+    private final Integer disapprovedById;
+    private final String disapprovedBy;
+    private final Long expiresAt;
+    private final Long disapprovedAt;
+
+    public PullRequestDisapprovalSnapshot(int repositoryId, long pullRequestId, boolean disapproved,
+        Integer disapprovedById, String disapprovedBy) {
+        this(repositoryId, pullRequestId, disapproved, disapprovedById, disapprovedBy, null);
+    }
+
+    public PullRequestDisapprovalSnapshot(int repositoryId, long pullRequestId, boolean disapproved,
+        Integer disapprovedById, String disapprovedBy, Long expiresAt) {
+        this(repositoryId, pullRequestId, disapproved, disapprovedById, disapprovedBy, expiresAt, null);
+    }
+
+    public PullRequestDisapprovalSnapshot(int repositoryId, long pullRequestId, boolean disapproved,
+        Integer disapprovedById, String disapprovedBy, Long expiresAt, Long disapprovedAt) {
+        this.repositoryId = repositoryId;
+        this.pullRequestId = pullRequestId;
+        this.disapproved = disapproved;
+        this.disapprovedById = disapprovedById;
+        this.disapprovedBy = disapprovedBy;
+        this.expiresAt = expiresAt;
+        this.disapprovedAt = disapprovedAt;
+    }
+
+    public static PullRequestDisapprovalSnapshot of(PullRequestDisapproval prd) {
+        return new PullRequestDisapprovalSnapshot(prd.getRepositoryId(), prd.getPullRequestId(), prd.isDisapproved(),
+            prd.getDisapprovedById(), prd.getDisapprovedBy(), prd.getExpiresAt(), prd.getDisapprovedAt());
+    }
+
+    public int getRepositoryId() {
+        return repositoryId;
+    }
+
+    public long getPullRequestId() {
+        return pullRequestId;
+    }
+
+    public boolean isDisapproved() {
+        return disapproved;
+    }
+
+    /**
+     * The id of the user who last changed the state, or null; see {@link PullRequestDisapproval#getDisapprovedById()}.
+     */
+    public Integer getDisapprovedById() {
+        return disapprovedById;
+    }
+
+    /**
+     * The stored username; for display use {@link com.palantir.stash.disapprove.user.UserNameResolver} with
+     * {@link #getDisapprovedById()} instead, which follows renames.
+     */
+    public String getDisapprovedBy() {
+        return disapprovedBy;
+    }
+
+    /**
+     * When the disapproval lifts by itself, in epoch millis, or null if it stays until someone removes it.
+     */
+    public Long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * When the disapproval was given, in epoch millis, or null if it isn't disapproved or was disapproved before
+     * this was recorded.
+     */
+    public Long getDisapprovedAt() {
+        return disapprovedAt;
+    }
+
+    /**
+     * Whether the given user is the one who last changed the state. Compares user ids, only falling back to the
+     * stored username for rows that don't have one.
+     */
+    public boolean isDisapprovedBy(StashUser user) {
+        if (disapprovedById != null) {
+            return disapprovedById.intValue() == user.getId();
+        }
+        return user.getName().equals(disapprovedBy);
+    }
+
+    @Override
+    public String toString() {
+        return "PullRequestDisapprovalSnapshot[repositoryId=" + repositoryId + ", pullRequestId=" + pullRequestId
+            + ", disapproved=" + disapproved + ", disapprovedById=" + disapprovedById + ", disapprovedBy="
+            + disapprovedBy + ", expiresAt=" + expiresAt + ", disapprovedAt=" + disapprovedAt + "]";
+    }
+}
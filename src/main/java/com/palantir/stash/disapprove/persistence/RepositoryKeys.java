@@ -0,0 +1,39 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+/**
+ * Packs a repository id and a second id that is only unique within the repository, a pull request id or a day, into
+ * one long, for the in-memory sets and maps keyed by both.
+ *
+ * Pull request ids count up from 1 within each repository, and days since the epoch are in the tens of thousands, so
+ * neither gets near 32 bits.
+ */
+public final class RepositoryKeys {
+
+    private RepositoryKeys() {
+    }
+
+    public static long key(int repositoryId, long id) {
+        return ((long) repositoryId << 32) | (id & 0xffffffffL);
+    }
+
+    public static int getRepositoryId(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public static long getId(long key) {
+        return key & 0xffffffffL;
+    }
+}
@@ -0,0 +1,75 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.persistence;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * What happens to a disapproval when new commits are pushed to the pull request.
+ */
+public enum RescopePolicy {
+    KEEP(Constants.KEEP_VALUE, "Keep the disapproval"),
+    CLEAR(Constants.CLEAR_VALUE, "Remove the disapproval"),
+    FLAG(Constants.FLAG_VALUE, "Keep the disapproval, and comment that there are new commits");
+
+    private final String policy;
+    private final String description;
+
+    // This is necessary because AO annotations require static string constants
+    public static class Constants {
+
+        public static final String KEEP_VALUE = "KEEP";
+        public static final String CLEAR_VALUE = "CLEAR";
+        public static final String FLAG_VALUE = "FLAG";
+    }
+
+    RescopePolicy(String policy, String description) {
+        this.policy = policy;
+        this.description = description;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getPolicy() {
+        return policy;
+    }
+
+    public static RescopePolicy fromPolicy(String policy) {
+        for (RescopePolicy rp : values()) {
+            if (rp.policy.equals(policy)) {
+                return rp;
+            }
+        }
+        throw new IllegalArgumentException("invalid value for enum: " + policy);
+    }
+
+    /**
+     * Helper method for populating a dropdown option box with metadata
+     */
+    public static ImmutableList<ImmutableMap<String, String>> getSelectList(RescopePolicy selected) {
+        ImmutableList.Builder<ImmutableMap<String, String>> builder = ImmutableList.builder();
+        for (RescopePolicy rp : values()) {
+            if (rp == selected) {
+                builder.add(ImmutableMap.of("text", rp.getDescription(), "value", rp.getPolicy(), "selected",
+                    "true"));
+            } else {
+                builder.add(ImmutableMap.of("text", rp.getDescription(), "value", rp.getPolicy()));
+            }
+        }
+        return builder.build();
+    }
+}
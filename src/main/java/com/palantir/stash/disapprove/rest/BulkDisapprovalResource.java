@@ -0,0 +1,355 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.rest;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+import com.atlassian.stash.exception.AuthorisationException;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestDirection;
+import com.atlassian.stash.pull.PullRequestOrder;
+import com.atlassian.stash.pull.PullRequestService;
+import com.atlassian.stash.pull.PullRequestState;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionService;
+import com.atlassian.stash.user.StashAuthenticationContext;
+import com.atlassian.stash.user.StashUser;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.atlassian.stash.util.PageRequestImpl;
+import com.google.common.collect.ImmutableMap;
+import com.palantir.stash.disapprove.comment.DisapprovalCommenter;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.maintenance.DisapprovalExpiryScheduler;
+import com.palantir.stash.disapprove.persistence.BulkDisapprovalResult;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+
+/**
+ * Disapproves, or removes the disapproval of, many open pull requests in one request, as the current user.
+ * 
+ * The pull requests are either listed, or selected by a query on the open pull requests of a repository or of every
+ * repository in a project, optionally narrowed to a target branch and an author:
+ * 
+ * <pre>
+ * {"disapproved": true, "pullRequests": [{"repositoryId": 1, "pullRequestId": 2}, ...]}
+ * {"disapproved": true, "query": {"project": "PROJ", "repository": "slug", "targetBranch": "master", "author": "bob"}}
+ * </pre>
+ * 
+ * New disapprovals can be given an "expiresAt" (epoch millis), after which they lift by themselves, and a "reason",
+ * which is quoted in each comment and shown on the pull request.
+ * 
+ * Permissions are checked once per repository, with the same rules as the disapproval button: anyone who can read a
+ * repository may disapprove, but only the disapprover or a repository admin may remove a disapproval. Rows are written
+ * in batched transactions per repository and the comments are posted afterwards in the background, so the response
+ * comes back as soon as everything is saved. It lists what happened to each pull request:
+ * 
+ * <ul>
+ * <li>changed, unchanged (it already was, or wasn't, disapproved)</li>
+ * <li>notPermitted - disapproved by someone else</li>
+ * <li>forbidden - the repository can't be read</li>
+ * <li>notFound - no such repository or open pull request</li>
+ * </ul>
+ * 
+ * @author cmyers
+ */
+@Path("/bulk")
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+public class BulkDisapprovalResource {
+
+    // pull requests per call, to keep the response and the comment queue bounded
+    public static final int MAX_PULL_REQUESTS = 5000;
+
+    private static final int PAGE_SIZE = 100;
+
+    private final StashAuthenticationContext authenticationContext;
+    private final PermissionService permissionService;
+    private final RepositoryService repositoryService;
+    private final PullRequestService pullRequestService;
+    private final PersistenceManager pm;
+    private final DisapprovalCommenter commenter;
+    private final DisapprovalExpiryScheduler expiryScheduler;
+    private final Logger log;
+
+    public BulkDisapprovalResource(StashAuthenticationContext authenticationContext,
+        PermissionService permissionService, RepositoryService repositoryService,
+        PullRequestService pullRequestService, PersistenceManager pm, DisapprovalCommenter commenter,
+        DisapprovalExpiryScheduler expiryScheduler, PluginLoggerFactory lf) {
+        this.authenticationContext = authenticationContext;
+        this.permissionService = permissionService;
+        this.repositoryService = repositoryService;
+        this.pullRequestService = pullRequestService;
+        this.pm = pm;
+        this.commenter = commenter;
+        this.expiryScheduler = expiryScheduler;
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    @POST
+    public Response setDisapprovals(String body) {
+        StashUser user = authenticationContext.getCurrentUser();
+        if (user == null) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        boolean disapproved;
+        Long expiresAt;
+        String reason;
+        // repository id -> requested pull request ids, in request order
+        Map<Integer, Set<Long>> requested = new LinkedHashMap<Integer, Set<Long>>();
+        Map<Integer, Repository> repositories = new LinkedHashMap<Integer, Repository>();
+        // a query only selects open pull requests, listed ones are checked one by one
+        boolean checkOpen;
+        try {
+            JSONObject o = new JSONObject(body);
+            disapproved = o.getBoolean("disapproved");
+            expiresAt = o.has("expiresAt") ? o.getLong("expiresAt") : null;
+            if (expiresAt != null && expiresAt <= System.currentTimeMillis()) {
+                return error(Response.Status.BAD_REQUEST, "expiresAt must be in the future");
+            }
+            reason = o.optString("reason", "").trim();
+            if (reason.isEmpty()) {
+                reason = null;
+            } else if (reason.length() > PersistenceManager.MAX_REASON_LENGTH) {
+                return error(Response.Status.BAD_REQUEST, "reason may be at most "
+                    + PersistenceManager.MAX_REASON_LENGTH + " characters");
+            }
+            if (o.has("pullRequests") == o.has("query")) {
+                return error(Response.Status.BAD_REQUEST, "exactly one of pullRequests or query is required");
+            }
+            if (o.has("pullRequests")) {
+                JSONArray prs = o.getJSONArray("pullRequests");
+                if (prs.length() > MAX_PULL_REQUESTS) {
+                    return tooMany();
+                }
+                for (int i = 0; i < prs.length(); ++i) {
+                    JSONObject pr = prs.getJSONObject(i);
+                    add(requested, pr.getInt("repositoryId"), pr.getLong("pullRequestId"));
+                }
+                for (Integer repositoryId : requested.keySet()) {
+                    Repository repo = getRepository(repositoryId);
+                    if (repo != null) {
+                        repositories.put(repositoryId, repo);
+                    }
+                }
+                checkOpen = true;
+            } else {
+                checkOpen = false;
+                Response failed = query(o.getJSONObject("query"), requested, repositories);
+                if (failed != null) {
+                    return failed;
+                }
+            }
+        } catch (JSONException e) {
+            return error(Response.Status.BAD_REQUEST, e.getMessage());
+        }
+
+        List<Object> results = new ArrayList<Object>();
+        int changed = 0;
+        for (Map.Entry<Integer, Set<Long>> e : requested.entrySet()) {
+            int repositoryId = e.getKey();
+            Repository repo = repositories.get(repositoryId);
+            if (repo == null) {
+                addResults(results, repositoryId, e.getValue(), "notFound");
+                continue;
+            }
+            if (!permissionService.hasRepositoryPermission(repo, Permission.REPO_READ)) {
+                addResults(results, repositoryId, e.getValue(), "forbidden");
+                continue;
+            }
+            List<Long> toChange = new ArrayList<Long>();
+            for (Long prId : e.getValue()) {
+                if (!checkOpen || isOpen(repositoryId, prId)) {
+                    toChange.add(prId);
+                } else {
+                    results.add(result(repositoryId, prId, "notFound"));
+                }
+            }
+            boolean mayRemoveAnyone = !disapproved && permissionService.hasRepositoryPermission(repo,
+                Permission.REPO_ADMIN);
+            Map<Long, BulkDisapprovalResult> changes;
+            try {
+                changes =
+                    pm.setPullRequestDisapprovals(repositoryId, toChange, user, disapproved, mayRemoveAnyone,
+                        expiresAt, reason);
+            } catch (SQLException ex) {
+                // earlier repositories are saved already, say which
+                log.error("Unable to change disapprovals in repository " + repositoryId, ex);
+                return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(new JSONObject(ImmutableMap.of(
+                    "error", String.valueOf(ex.getMessage()), "changed", changed, "results", new JSONArray(results)))
+                    .toString()).build();
+            }
+            for (Map.Entry<Long, BulkDisapprovalResult> change : changes.entrySet()) {
+                if (change.getValue() == BulkDisapprovalResult.CHANGED) {
+                    ++changed;
+                    if (disapproved && expiresAt != null) {
+                        expiryScheduler.schedule(repositoryId, change.getKey(), expiresAt);
+                    }
+                    commenter.commentLater(repositoryId, change.getKey(), user, disapproved, reason);
+                }
+                results.add(result(repositoryId, change.getKey(), toString(change.getValue())));
+            }
+        }
+        log.info(user.getName() + " " + (disapproved ? "disapproved " : "removed the disapproval of ") + changed
+            + " pull requests in bulk");
+        return Response.ok(new JSONObject(ImmutableMap.of("changed", changed, "results", new JSONArray(results)))
+            .toString()).build();
+    }
+
+    /**
+     * Selects the open pull requests matching the query, or returns the response to send instead.
+     */
+    private Response query(JSONObject query, Map<Integer, Set<Long>> requested, Map<Integer, Repository> repositories)
+        throws JSONException {
+        String projectKey = query.getString("project");
+        String slug = query.optString("repository", null);
+        String targetBranch = query.optString("targetBranch", null);
+        String author = query.optString("author", null);
+
+        if (slug != null) {
+            Repository repo = repositoryService.getBySlug(projectKey, slug);
+            if (repo == null) {
+                return error(Response.Status.NOT_FOUND, "No repository " + projectKey + "/" + slug);
+            }
+            repositories.put(repo.getId(), repo);
+        } else {
+            PageRequest request = new PageRequestImpl(0, PAGE_SIZE);
+            Page<? extends Repository> page;
+            do {
+                page = repositoryService.findByProjectKey(projectKey, request);
+                for (Repository repo : page.getValues()) {
+                    repositories.put(repo.getId(), repo);
+                }
+                request = page.getNextPageRequest();
+            } while (!page.getIsLastPage());
+        }
+
+        int total = 0;
+        for (Repository repo : repositories.values()) {
+            // pull requests in repositories the user can't see don't match, rather than being refused
+            if (!permissionService.hasRepositoryPermission(repo, Permission.REPO_READ)) {
+                continue;
+            }
+            Set<Long> matching = getOpenPullRequestIds(repo, targetBranch, author);
+            total += matching.size();
+            if (total > MAX_PULL_REQUESTS) {
+                return tooMany();
+            }
+            if (!matching.isEmpty()) {
+                requested.put(repo.getId(), matching);
+            }
+        }
+        return null;
+    }
+
+    // null if it doesn't exist, or the user can't see it
+    private Repository getRepository(int repositoryId) {
+        try {
+            return repositoryService.getById(repositoryId);
+        } catch (AuthorisationException e) {
+            return null;
+        }
+    }
+
+    private boolean isOpen(int repositoryId, long pullRequestId) {
+        PullRequest pr = pullRequestService.getById(repositoryId, pullRequestId);
+        return pr != null && pr.getState() == PullRequestState.OPEN;
+    }
+
+    /**
+     * Lists the repository's open pull requests, optionally only those into targetBranch (a branch name or full ref)
+     * and by author (a username).
+     */
+    private Set<Long> getOpenPullRequestIds(Repository repo, String targetBranch, String author) {
+        Set<Long> ids = new LinkedHashSet<Long>();
+        PageRequest request = new PageRequestImpl(0, PAGE_SIZE);
+        Page<? extends PullRequest> page;
+        do {
+            page = pullRequestService.findInDirection(PullRequestDirection.INCOMING, repo.getId(),
+                PullRequestState.OPEN, PullRequestOrder.OLDEST, request);
+            for (PullRequest pr : page.getValues()) {
+                if (targetBranch != null && !targetBranch.equals(pr.getToRef().getId())
+                    && !targetBranch.equals(pr.getToRef().getDisplayId())) {
+                    continue;
+                }
+                if (author != null && !author.equals(pr.getAuthor().getUser().getName())) {
+                    continue;
+                }
+                ids.add(pr.getId());
+            }
+            request = page.getNextPageRequest();
+        } while (!page.getIsLastPage());
+        return ids;
+    }
+
+    private static void add(Map<Integer, Set<Long>> requested, int repositoryId, long pullRequestId) {
+        Set<Long> ids = requested.get(repositoryId);
+        if (ids == null) {
+            ids = new LinkedHashSet<Long>();
+            requested.put(repositoryId, ids);
+        }
+        ids.add(pullRequestId);
+    }
+
+    private static void addResults(List<Object> results, int repositoryId, Set<Long> pullRequestIds, String result) {
+        for (Long prId : pullRequestIds) {
+            results.add(result(repositoryId, prId, result));
+        }
+    }
+
+    private static JSONObject result(int repositoryId, long pullRequestId, String result) {
+        return new JSONObject(ImmutableMap.of("repositoryId", repositoryId, "pullRequestId", pullRequestId, "result",
+            result));
+    }
+
+    private static String toString(BulkDisapprovalResult result) {
+        switch (result) {
+        case CHANGED:
+            return "changed";
+        case NOT_PERMITTED:
+            return "notPermitted";
+        default:
+            return "unchanged";
+        }
+    }
+
+    private static Response tooMany() {
+        return error(Response.Status.BAD_REQUEST, "at most " + MAX_PULL_REQUESTS + " pull requests at a time");
+    }
+
+    private static Response error(Response.Status status, String message) {
+        return Response.status(status).entity(new JSONObject(ImmutableMap.of("error", String.valueOf(message)))
+            .toString()).build();
+    }
+}
@@ -0,0 +1,168 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.rest;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+import com.atlassian.stash.exception.AuthorisationException;
+import com.atlassian.stash.project.ProjectService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionValidationService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.atlassian.stash.util.PageRequestImpl;
+import com.google.common.collect.ImmutableMap;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.DisapprovalMode;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+
+/**
+ * Lets a system administrator configure disapproval for many repositories in one call: a list of repositories, every
+ * repository in a project, or every repository on the instance.
+ *
+ * <pre>
+ * curl -u admin -X PUT -H 'X-Atlassian-Token: no-check' \
+ *     'http://stash/rest/disapproval/1.0/configurations?mode=STRICT_MODE&amp;enabled=true&amp;project=PROJ'
+ * curl -u admin -X PUT -H 'X-Atlassian-Token: no-check' \
+ *     'http://stash/rest/disapproval/1.0/configurations?mode=ADVISORY_MODE&amp;enabled=true&amp;repo=PROJ/a'
+ * </pre>
+ *
+ * @author cmyers
+ */
+@Path("/configurations")
+@Produces(MediaType.APPLICATION_JSON)
+public class ConfigurationResource {
+
+    private static final int REPOSITORY_PAGE_SIZE = 1000;
+
+    private final PermissionValidationService permissionValidationService;
+    private final ProjectService projectService;
+    private final RepositoryService repositoryService;
+    private final PersistenceManager pm;
+    private final Logger log;
+
+    public ConfigurationResource(PermissionValidationService permissionValidationService,
+        ProjectService projectService, RepositoryService repositoryService, PersistenceManager pm,
+        PluginLoggerFactory lf) {
+        this.permissionValidationService = permissionValidationService;
+        this.projectService = projectService;
+        this.repositoryService = repositoryService;
+        this.pm = pm;
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    /**
+     * @param mode required, STRICT_MODE or ADVISORY_MODE
+     * @param enabled required
+     * @param repos repositories as PROJECT_KEY/slug
+     * @param projectKey configure every repository in this project
+     * @param all configure every repository on the instance
+     */
+    @PUT
+    public Response setConfigurations(@QueryParam("mode") String mode, @QueryParam("enabled") Boolean enabled,
+        @QueryParam("repo") List<String> repos, @QueryParam("project") String projectKey,
+        @QueryParam("all") boolean all) {
+        try {
+            permissionValidationService.validateForGlobal(Permission.SYS_ADMIN);
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        // a missing parameter must not quietly switch disapproval off, or into strict mode
+        if (mode == null || enabled == null) {
+            return error(Response.Status.BAD_REQUEST, "mode and enabled are required");
+        }
+        DisapprovalMode dm;
+        try {
+            dm = DisapprovalMode.fromMode(mode);
+        } catch (IllegalArgumentException e) {
+            return error(Response.Status.BAD_REQUEST, e.getMessage());
+        }
+        int scopes = (all ? 1 : 0) + (projectKey != null ? 1 : 0) + (repos != null && !repos.isEmpty() ? 1 : 0);
+        if (scopes != 1) {
+            return error(Response.Status.BAD_REQUEST, "exactly one of repo, project or all is required");
+        }
+        if (projectKey != null && projectService.getByKey(projectKey) == null) {
+            return error(Response.Status.NOT_FOUND, "No project " + projectKey);
+        }
+
+        Set<Integer> repositoryIds = new LinkedHashSet<Integer>();
+        List<String> notFound = new ArrayList<String>();
+        if (all) {
+            addAll(repositoryIds, null);
+        } else if (projectKey != null) {
+            addAll(repositoryIds, projectKey);
+        } else {
+            for (String repo : repos) {
+                int slash = repo.indexOf('/');
+                Repository r = slash < 0 ? null : repositoryService.getBySlug(repo.substring(0, slash),
+                    repo.substring(slash + 1));
+                if (r == null) {
+                    notFound.add(repo);
+                } else {
+                    repositoryIds.add(r.getId());
+                }
+            }
+        }
+
+        int updated;
+        try {
+            updated = pm.setDisapprovalConfigurations(repositoryIds, dm, enabled);
+        } catch (SQLException e) {
+            log.error("Unable to configure " + repositoryIds.size() + " repositories", e);
+            return error(Response.Status.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+        log.info("Set " + updated + " repositories to " + dm + ", enabled=" + enabled);
+        return Response.ok(new JSONObject(ImmutableMap.of("updated", updated, "notFound", new JSONArray(notFound)))
+            .toString()).build();
+    }
+
+    /**
+     * Adds every repository in the project, or on the instance if projectKey is null.
+     */
+    private void addAll(Set<Integer> repositoryIds, String projectKey) {
+        PageRequest request = new PageRequestImpl(0, REPOSITORY_PAGE_SIZE);
+        Page<? extends Repository> page;
+        do {
+            page = projectKey == null ? repositoryService.findAll(request)
+                : repositoryService.findByProjectKey(projectKey, request);
+            for (Repository repo : page.getValues()) {
+                repositoryIds.add(repo.getId());
+            }
+            request = page.getNextPageRequest();
+        } while (!page.getIsLastPage());
+    }
+
+    private static Response error(Response.Status status, String message) {
+        return Response.status(status).entity(new JSONObject(ImmutableMap.of("error", String.valueOf(message)))
+            .toString()).build();
+    }
+}
@@ -0,0 +1,437 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.rest;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+import com.atlassian.stash.exception.AuthorisationException;
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.project.ProjectService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionValidationService;
+import com.atlassian.stash.user.StashUser;
+import com.atlassian.stash.user.UserService;
+import com.google.common.collect.ImmutableMap;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.maintenance.DisapprovalExpiryScheduler;
+import com.palantir.stash.disapprove.persistence.DisapprovalConfigurationSnapshot;
+import com.palantir.stash.disapprove.persistence.DisapprovalDefaultsSnapshot;
+import com.palantir.stash.disapprove.persistence.DisapprovalMode;
+import com.palantir.stash.disapprove.persistence.DisapprovalPage;
+import com.palantir.stash.disapprove.persistence.MergeFreeze;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalSnapshot;
+import com.palantir.stash.disapprove.persistence.RescopePolicy;
+
+/**
+ * Exports all disapproval data as newline delimited JSON, and imports it again, for moving between instances or
+ * restoring a backup.
+ *
+ * The first line gives the format version. Each line after it is one project or global defaults row, repository
+ * configuration or pull request row. Both directions work a page or batch at a time, so memory use doesn't grow with
+ * the size of the data. Importing overwrites existing rows for the same repository and pull
+ * request, so an interrupted import can simply be run again.
+ *
+ * Projects are matched by key, repositories by project key and slug, and disapprovers by username, so ids that differ
+ * between instances don't matter; a line whose project or repository doesn't exist here is skipped. Files without a
+ * version line are version 1, from before defaults were exported, and still import. Imported disapprovals keep their
+ * expiry, and any that expired in the meantime are lifted straight away.
+ *
+ * <pre>
+ * curl -u admin 'http://stash/rest/disapproval/1.0/data/export' &gt; disapprovals.ndjson
+ * curl -u admin -X POST -H 'X-Atlassian-Token: no-check' -H 'Content-Type: application/x-ndjson' \
+ *     --data-binary @disapprovals.ndjson 'http://stash/rest/disapproval/1.0/data/import'
+ * </pre>
+ *
+ * @author cmyers
+ */
+@Path("/data")
+public class DataTransferResource {
+
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+    // 2 added the format line and defaults
+    public static final int FORMAT_VERSION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String TYPE_FORMAT = "format";
+    private static final String TYPE_DEFAULTS = "defaults";
+    private static final String TYPE_CONFIGURATION = "configuration";
+    private static final String TYPE_PULL_REQUEST = "pullRequest";
+
+    private static final int EXPORT_PAGE_SIZE = 1000;
+    private static final int IMPORT_BATCH_SIZE = 500;
+    // bounds the repository and user lookups remembered during one export or import
+    private static final int MAX_CACHED_LOOKUPS = 1000;
+
+    private final PermissionValidationService permissionValidationService;
+    private final ProjectService projectService;
+    private final RepositoryService repositoryService;
+    private final UserService userService;
+    private final PersistenceManager pm;
+    private final DisapprovalExpiryScheduler expiryScheduler;
+    private final Logger log;
+
+    public DataTransferResource(PermissionValidationService permissionValidationService,
+        ProjectService projectService, RepositoryService repositoryService, UserService userService,
+        PersistenceManager pm, DisapprovalExpiryScheduler expiryScheduler, PluginLoggerFactory lf) {
+        this.permissionValidationService = permissionValidationService;
+        this.projectService = projectService;
+        this.repositoryService = repositoryService;
+        this.userService = userService;
+        this.pm = pm;
+        this.expiryScheduler = expiryScheduler;
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    @GET
+    @Path("/export")
+    @Produces(APPLICATION_NDJSON)
+    public Response exportData() {
+        try {
+            permissionValidationService.validateForGlobal(Permission.SYS_ADMIN);
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        StreamingOutput body = new StreamingOutput() {
+
+            @Override
+            public void write(OutputStream os) throws IOException, WebApplicationException {
+                Writer w = new BufferedWriter(new OutputStreamWriter(os, UTF_8));
+                try {
+                    w.write(new JSONObject(ImmutableMap.of("type", TYPE_FORMAT, "version", FORMAT_VERSION))
+                        .toString());
+                    w.write('\n');
+                    writeDefaults(w);
+                    Map<Integer, Repository> repos = lru(MAX_CACHED_LOOKUPS);
+                    writeConfigurations(w, repos);
+                    writePullRequests(w, repos);
+                } catch (SQLException e) {
+                    // the status is long gone, all that can be done is cut the stream short
+                    log.error("Export of disapproval data failed", e);
+                    throw new IOException(e);
+                }
+                w.flush();
+            }
+        };
+        return Response.ok(body)
+            .header("Content-Disposition", "attachment; filename=\"disapprovals.ndjson\"")
+            .build();
+    }
+
+    private void writeDefaults(Writer w) throws SQLException, IOException {
+        int after = -1;
+        List<DisapprovalDefaultsSnapshot> page;
+        do {
+            page = pm.findDisapprovalDefaults(after, EXPORT_PAGE_SIZE);
+            for (DisapprovalDefaultsSnapshot dd : page) {
+                Map<String, Object> line = new LinkedHashMap<String, Object>();
+                line.put("type", TYPE_DEFAULTS);
+                if (dd.getProjectId() == PersistenceManager.GLOBAL_DEFAULTS) {
+                    line.put("global", true);
+                } else {
+                    line.put("projectId", dd.getProjectId());
+                    Project project = projectService.getById(dd.getProjectId());
+                    if (project != null) {
+                        line.put("projectKey", project.getKey());
+                    }
+                }
+                line.put("enabled", dd.isEnabled());
+                line.put("mode", dd.getDisapprovalMode().getMode());
+                line.put("frozen", dd.getFreeze().isFrozen());
+                if (dd.getFreeze().getBranchesStr() != null) {
+                    line.put("freezeBranches", dd.getFreeze().getBranchesStr());
+                }
+                w.write(new JSONObject(line).toString());
+                w.write('\n');
+                after = dd.getProjectId();
+            }
+            w.flush();
+        } while (page.size() == EXPORT_PAGE_SIZE);
+    }
+
+    private void writeConfigurations(Writer w, Map<Integer, Repository> repos) throws SQLException, IOException {
+        int after = 0;
+        List<DisapprovalConfigurationSnapshot> page;
+        do {
+            page = pm.findConfigurations(after, EXPORT_PAGE_SIZE);
+            for (DisapprovalConfigurationSnapshot dc : page) {
+                Map<String, Object> line = new LinkedHashMap<String, Object>();
+                line.put("type", TYPE_CONFIGURATION);
+                putRepository(line, dc.getRepositoryId(), repos);
+                line.put("enabled", dc.isEnabled());
+                line.put("mode", dc.getDisapprovalMode().getMode());
+                line.put("frozen", dc.getFreeze().isFrozen());
+                if (dc.getFreeze().getBranchesStr() != null) {
+                    line.put("freezeBranches", dc.getFreeze().getBranchesStr());
+                }
+                line.put("rescopePolicy", dc.getRescopePolicy().getPolicy());
+                w.write(new JSONObject(line).toString());
+                w.write('\n');
+                after = dc.getRepositoryId();
+            }
+            // hand each page to the client as it is done rather than buffering the whole export
+            w.flush();
+        } while (page.size() == EXPORT_PAGE_SIZE);
+    }
+
+    private void writePullRequests(Writer w, Map<Integer, Repository> repos) throws SQLException, IOException {
+        int start = 0;
+        DisapprovalPage page;
+        do {
+            page = pm.findPullRequests(start, EXPORT_PAGE_SIZE);
+            for (PullRequestDisapprovalSnapshot prd : page.getValues()) {
+                Map<String, Object> line = new LinkedHashMap<String, Object>();
+                line.put("type", TYPE_PULL_REQUEST);
+                putRepository(line, prd.getRepositoryId(), repos);
+                line.put("pullRequestId", prd.getPullRequestId());
+                line.put("disapproved", prd.isDisapproved());
+                if (prd.getDisapprovedById() != null) {
+                    line.put("disapprovedById", prd.getDisapprovedById());
+                }
+                line.put("disapprovedBy", prd.getDisapprovedBy());
+                if (prd.getExpiresAt() != null) {
+                    line.put("expiresAt", prd.getExpiresAt());
+                }
+                if (prd.getDisapprovedAt() != null) {
+                    line.put("disapprovedAt", prd.getDisapprovedAt());
+                }
+                w.write(new JSONObject(line).toString());
+                w.write('\n');
+            }
+            w.flush();
+            if (!page.isLastPage()) {
+                start = page.getNextPageStart();
+            }
+        } while (!page.isLastPage());
+    }
+
+    private void putRepository(Map<String, Object> line, int repositoryId, Map<Integer, Repository> repos) {
+        line.put("repositoryId", repositoryId);
+        Repository repo = repos.get(repositoryId);
+        if (repo == null && !repos.containsKey(repositoryId)) {
+            repo = repositoryService.getById(repositoryId);
+            repos.put(repositoryId, repo);
+        }
+        if (repo != null) {
+            line.put("projectKey", repo.getProject().getKey());
+            line.put("repositorySlug", repo.getSlug());
+        }
+    }
+
+    @POST
+    @Path("/import")
+    @Consumes({ APPLICATION_NDJSON, MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM })
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response importData(InputStream in) throws IOException {
+        try {
+            permissionValidationService.validateForGlobal(Permission.SYS_ADMIN);
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        Map<String, Integer> repositoryIds = lru(MAX_CACHED_LOOKUPS);
+        Map<String, Integer> userIds = lru(MAX_CACHED_LOOKUPS);
+        List<DisapprovalConfigurationSnapshot> configs = new ArrayList<DisapprovalConfigurationSnapshot>();
+        List<PullRequestDisapprovalSnapshot> prds = new ArrayList<PullRequestDisapprovalSnapshot>();
+        int defaultsCount = 0;
+        int configCount = 0;
+        int prCount = 0;
+        int skipped = 0;
+        int lineNumber = 0;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                ++lineNumber;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                JSONObject o = new JSONObject(line);
+                String type = o.getString("type");
+                if (TYPE_FORMAT.equals(type)) {
+                    if (o.getInt("version") > FORMAT_VERSION) {
+                        throw new IllegalArgumentException("format version " + o.getInt("version")
+                            + " is newer than this plugin understands (" + FORMAT_VERSION + ")");
+                    }
+                    continue;
+                }
+                if (TYPE_DEFAULTS.equals(type)) {
+                    Integer projectId = resolveProjectId(o);
+                    if (projectId == null) {
+                        ++skipped;
+                    } else {
+                        // a handful of rows at most, so stored straight away rather than batched
+                        pm.setDisapprovalDefaults(projectId, DisapprovalMode.fromMode(o.getString("mode")),
+                            o.getBoolean("enabled"), MergeFreeze.of(o.optBoolean("frozen", false),
+                                o.optString("freezeBranches", null)));
+                        ++defaultsCount;
+                    }
+                    continue;
+                }
+                Integer repositoryId = resolveRepositoryId(o, repositoryIds);
+                if (repositoryId == null) {
+                    ++skipped;
+                    continue;
+                }
+                if (TYPE_CONFIGURATION.equals(type)) {
+                    // exports from before freezes and rescope policies existed don't have them
+                    configs.add(new DisapprovalConfigurationSnapshot(repositoryId, o.getBoolean("enabled"),
+                        DisapprovalMode.fromMode(o.getString("mode")), MergeFreeze.of(o.optBoolean("frozen", false),
+                            o.optString("freezeBranches", null)), RescopePolicy.fromPolicy(o.optString("rescopePolicy",
+                            RescopePolicy.KEEP.getPolicy())), false));
+                } else if (TYPE_PULL_REQUEST.equals(type)) {
+                    String disapprovedBy = o.getString("disapprovedBy");
+                    prds.add(new PullRequestDisapprovalSnapshot(repositoryId, o.getLong("pullRequestId"),
+                        o.getBoolean("disapproved"), resolveUserId(disapprovedBy, userIds), disapprovedBy,
+                        o.has("expiresAt") ? o.getLong("expiresAt") : null,
+                        o.has("disapprovedAt") ? o.getLong("disapprovedAt") : null));
+                } else {
+                    throw new IllegalArgumentException("unknown type " + type);
+                }
+
+                if (configs.size() + prds.size() >= IMPORT_BATCH_SIZE) {
+                    importBatch(configs, prds);
+                    configCount += configs.size();
+                    prCount += prds.size();
+                    configs.clear();
+                    prds.clear();
+                }
+            }
+            importBatch(configs, prds);
+            configCount += configs.size();
+            prCount += prds.size();
+        } catch (JSONException e) {
+            return importFailed(lineNumber, e, configCount, prCount);
+        } catch (IllegalArgumentException e) {
+            return importFailed(lineNumber, e, configCount, prCount);
+        } catch (SQLException e) {
+            log.error("Import of disapproval data failed at line " + lineNumber, e);
+            return Response.serverError().entity(new JSONObject(ImmutableMap.of("error", "line " + lineNumber + ": "
+                + e.getMessage(), "configurations", configCount, "pullRequests", prCount)).toString()).build();
+        }
+
+        log.info("Imported " + defaultsCount + " defaults, " + configCount + " configurations and " + prCount
+            + " pull requests, skipped " + skipped);
+        return Response.ok(new JSONObject(ImmutableMap.of("defaults", defaultsCount, "configurations", configCount,
+            "pullRequests", prCount, "skipped", skipped)).toString()).build();
+    }
+
+    private void importBatch(List<DisapprovalConfigurationSnapshot> configs,
+        List<PullRequestDisapprovalSnapshot> prds) throws SQLException {
+        pm.importBatch(configs, prds);
+        for (PullRequestDisapprovalSnapshot prd : prds) {
+            if (prd.isDisapproved() && prd.getExpiresAt() != null) {
+                expiryScheduler.schedule(prd.getRepositoryId(), prd.getPullRequestId(), prd.getExpiresAt());
+            }
+        }
+    }
+
+    /**
+     * Everything before the current batch is already stored, and importing is idempotent, so the fixed file can
+     * just be imported again from the start.
+     */
+    private Response importFailed(int lineNumber, Exception e, int configCount, int prCount) {
+        return Response.status(Response.Status.BAD_REQUEST).entity(new JSONObject(ImmutableMap.of("error", "line "
+            + lineNumber + ": " + e.getMessage(), "configurations", configCount, "pullRequests", prCount)).toString())
+            .build();
+    }
+
+    /**
+     * The local id of the line's project, {@link PersistenceManager#GLOBAL_DEFAULTS} for the global defaults, or null
+     * if there is no such project here.
+     */
+    private Integer resolveProjectId(JSONObject o) throws JSONException {
+        if (o.optBoolean("global", false)) {
+            return PersistenceManager.GLOBAL_DEFAULTS;
+        }
+        if (!o.has("projectKey")) {
+            return null;
+        }
+        Project project = projectService.getByKey(o.getString("projectKey"));
+        return project == null ? null : project.getId();
+    }
+
+    /**
+     * The local id of the line's repository, or null if there is no such repository here. Lines exported for a
+     * repository that was already deleted at the time have no project key or slug, and are skipped too.
+     */
+    private Integer resolveRepositoryId(JSONObject o, Map<String, Integer> repositoryIds) throws JSONException {
+        if (!o.has("projectKey") || !o.has("repositorySlug")) {
+            return null;
+        }
+        String projectKey = o.getString("projectKey");
+        String slug = o.getString("repositorySlug");
+        String key = projectKey + "/" + slug;
+        if (repositoryIds.containsKey(key)) {
+            return repositoryIds.get(key);
+        }
+        Repository repo = repositoryService.getBySlug(projectKey, slug);
+        Integer id = repo == null ? null : repo.getId();
+        repositoryIds.put(key, id);
+        return id;
+    }
+
+    private Integer resolveUserId(String username, Map<String, Integer> userIds) {
+        if (userIds.containsKey(username)) {
+            return userIds.get(username);
+        }
+        StashUser user = userService.getUserByName(username);
+        Integer id = user == null ? null : user.getId();
+        userIds.put(username, id);
+        return id;
+    }
+
+    private static <K, V> Map<K, V> lru(final int maxSize) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+}
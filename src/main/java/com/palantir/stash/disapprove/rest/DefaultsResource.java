@@ -0,0 +1,194 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.rest;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+import com.atlassian.stash.exception.AuthorisationException;
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.project.ProjectService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionValidationService;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.DisapprovalDefaultsSnapshot;
+import com.palantir.stash.disapprove.persistence.DisapprovalMode;
+import com.palantir.stash.disapprove.persistence.MergeFreeze;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+
+/**
+ * Reads and changes the configuration inherited by repositories that don't have one of their own: a project's
+ * defaults (project admins), or without a project the instance-wide defaults (system admins).
+ *
+ * A freeze set here applies to every repository in the project (or on the instance), including those with a
+ * configuration of their own; branch may be repeated, and without it every branch is frozen. Without frozen the
+ * freeze is left as it is.
+ *
+ * <pre>
+ * curl -u admin -X PUT -H 'X-Atlassian-Token: no-check' \
+ *     'http://stash/rest/disapproval/1.0/defaults?project=PROJ&amp;mode=STRICT_MODE&amp;enabled=true'
+ * curl -u admin -X PUT -G -H 'X-Atlassian-Token: no-check' \
+ *     -d mode=STRICT_MODE -d enabled=true -d frozen=true -d 'branch=release/*' \
+ *     'http://stash/rest/disapproval/1.0/defaults'
+ * </pre>
+ *
+ * @author cmyers
+ */
+@Path("/defaults")
+@Produces(MediaType.APPLICATION_JSON)
+public class DefaultsResource {
+
+    private final PermissionValidationService permissionValidationService;
+    private final ProjectService projectService;
+    private final PersistenceManager pm;
+    private final Logger log;
+
+    public DefaultsResource(PermissionValidationService permissionValidationService, ProjectService projectService,
+        PersistenceManager pm, PluginLoggerFactory lf) {
+        this.permissionValidationService = permissionValidationService;
+        this.projectService = projectService;
+        this.pm = pm;
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    @GET
+    public Response getDefaults(@QueryParam("project") String projectKey) {
+        Response denied = checkPermission(projectKey);
+        if (denied != null) {
+            return denied;
+        }
+        try {
+            DisapprovalDefaultsSnapshot dd = pm.getDisapprovalDefaults(getProjectId(projectKey));
+            if (dd == null) {
+                return error(Response.Status.NOT_FOUND, "No defaults are set");
+            }
+            return Response.ok(toJson(projectKey, dd)).build();
+        } catch (SQLException e) {
+            log.error("Unable to read defaults for " + describe(projectKey), e);
+            return error(Response.Status.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    /**
+     * @param mode required, STRICT_MODE or ADVISORY_MODE
+     * @param enabled required
+     * @param frozen whether to freeze merges, or null to leave the freeze as it is
+     */
+    @PUT
+    public Response setDefaults(@QueryParam("project") String projectKey, @QueryParam("mode") String mode,
+        @QueryParam("enabled") Boolean enabled, @QueryParam("frozen") Boolean frozen,
+        @QueryParam("branch") List<String> branches) {
+        Response denied = checkPermission(projectKey);
+        if (denied != null) {
+            return denied;
+        }
+        // a missing parameter must not quietly switch disapproval off, or into strict, for every inheriting repository
+        if (mode == null || enabled == null) {
+            return error(Response.Status.BAD_REQUEST, "mode and enabled are required");
+        }
+        if (frozen == null && branches != null && !branches.isEmpty()) {
+            return error(Response.Status.BAD_REQUEST, "branch needs frozen");
+        }
+        DisapprovalMode dm;
+        MergeFreeze freeze;
+        try {
+            dm = DisapprovalMode.fromMode(mode);
+            freeze = frozen == null ? null
+                : MergeFreeze.of(frozen, branches == null ? null : Joiner.on(", ").join(branches));
+        } catch (IllegalArgumentException e) {
+            return error(Response.Status.BAD_REQUEST, e.getMessage());
+        }
+        int projectId = getProjectId(projectKey);
+        pm.setDisapprovalDefaults(projectId, dm, enabled, freeze);
+        log.info("Set defaults for " + describe(projectKey) + " to " + dm + ", enabled=" + enabled
+            + (freeze == null ? "" : ", " + freeze));
+        try {
+            return Response.ok(toJson(projectKey, pm.getDisapprovalDefaults(projectId))).build();
+        } catch (SQLException e) {
+            log.error("Unable to read defaults for " + describe(projectKey), e);
+            return error(Response.Status.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    @DELETE
+    public Response clearDefaults(@QueryParam("project") String projectKey) {
+        Response denied = checkPermission(projectKey);
+        if (denied != null) {
+            return denied;
+        }
+        try {
+            pm.clearDisapprovalDefaults(getProjectId(projectKey));
+        } catch (SQLException e) {
+            log.error("Unable to clear defaults for " + describe(projectKey), e);
+            return error(Response.Status.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+        log.info("Cleared defaults for " + describe(projectKey));
+        return Response.noContent().build();
+    }
+
+    /**
+     * Returns the response to send instead if the current user may not manage these defaults, or null if they may.
+     */
+    private Response checkPermission(String projectKey) {
+        try {
+            if (projectKey == null) {
+                permissionValidationService.validateForGlobal(Permission.SYS_ADMIN);
+            } else {
+                Project project = projectService.getByKey(projectKey);
+                if (project == null) {
+                    return error(Response.Status.NOT_FOUND, "No project " + projectKey);
+                }
+                permissionValidationService.validateForProject(project, Permission.PROJECT_ADMIN);
+            }
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        return null;
+    }
+
+    // only called after checkPermission, so the project exists
+    private int getProjectId(String projectKey) {
+        return projectKey == null ? PersistenceManager.GLOBAL_DEFAULTS : projectService.getByKey(projectKey).getId();
+    }
+
+    private static String describe(String projectKey) {
+        return projectKey == null ? "the instance" : "project " + projectKey;
+    }
+
+    private static String toJson(String projectKey, DisapprovalDefaultsSnapshot dd) {
+        return new JSONObject(ImmutableMap.of("project", projectKey == null ? "" : projectKey, "enabled",
+            dd.isEnabled(), "mode", dd.getDisapprovalMode().getMode(), "frozen", dd.getFreeze().isFrozen(),
+            "freezeBranches", new JSONArray(dd.getFreeze().getBranches()))).toString();
+    }
+
+    private static Response error(Response.Status status, String message) {
+        return Response.status(status).entity(new JSONObject(ImmutableMap.of("error", String.valueOf(message)))
+            .toString()).build();
+    }
+}
@@ -0,0 +1,120 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.rest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.json.JSONObject;
+
+import com.atlassian.stash.exception.AuthorisationException;
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.project.ProjectService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionValidationService;
+import com.google.common.collect.ImmutableMap;
+import com.palantir.stash.disapprove.maintenance.DisapprovalCounter;
+
+/**
+ * How many open pull requests are disapproved in a project or repository, for header badges and the pull request
+ * list. Answered from {@link DisapprovalCounter}'s counts in memory, without touching the database.
+ *
+ * <pre>
+ * curl -u user 'http://stash/rest/disapproval/1.0/counts?project=PROJ'
+ * curl -u user 'http://stash/rest/disapproval/1.0/counts?project=PROJ&amp;repo=slug'
+ * </pre>
+ *
+ * @author cmyers
+ */
+@Path("/counts")
+@Produces(MediaType.APPLICATION_JSON)
+public class DisapprovalCountResource {
+
+    // badges are polled by every page view, let the browser reuse an answer for a little while
+    private static final int MAX_AGE_SECONDS = 30;
+    // how long to tell clients to wait while the counts are first loaded
+    private static final int RETRY_AFTER_SECONDS = 30;
+
+    private final PermissionValidationService permissionValidationService;
+    private final ProjectService projectService;
+    private final RepositoryService repositoryService;
+    private final DisapprovalCounter counter;
+
+    public DisapprovalCountResource(PermissionValidationService permissionValidationService,
+        ProjectService projectService, RepositoryService repositoryService, DisapprovalCounter counter) {
+        this.permissionValidationService = permissionValidationService;
+        this.projectService = projectService;
+        this.repositoryService = repositoryService;
+        this.counter = counter;
+    }
+
+    @GET
+    public Response getCount(@QueryParam("project") String projectKey, @QueryParam("repo") String repoSlug) {
+        if (projectKey == null) {
+            return error(Response.Status.BAD_REQUEST, "project is required");
+        }
+        Integer count;
+        try {
+            if (repoSlug == null) {
+                Project project = projectService.getByKey(projectKey);
+                if (project == null) {
+                    return error(Response.Status.NOT_FOUND, "No project " + projectKey);
+                }
+                permissionValidationService.validateForProject(project, Permission.PROJECT_READ);
+                count = counter.getProjectCount(project.getId());
+            } else {
+                Repository repo = repositoryService.getBySlug(projectKey, repoSlug);
+                if (repo == null) {
+                    return error(Response.Status.NOT_FOUND, "No repository " + projectKey + "/" + repoSlug);
+                }
+                permissionValidationService.validateForRepository(repo, Permission.REPO_READ);
+                count = counter.getRepositoryCount(repo.getId());
+            }
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        if (count == null) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", RETRY_AFTER_SECONDS)
+                .entity(new JSONObject(ImmutableMap.of("error", "Disapprovals are still being counted")).toString())
+                .build();
+        }
+
+        Map<String, Object> body = new LinkedHashMap<String, Object>();
+        body.put("project", projectKey);
+        if (repoSlug != null) {
+            body.put("repo", repoSlug);
+        }
+        body.put("disapproved", count);
+        CacheControl cc = new CacheControl();
+        cc.setPrivate(true);
+        cc.setMaxAge(MAX_AGE_SECONDS);
+        return Response.ok(new JSONObject(body).toString()).cacheControl(cc).build();
+    }
+
+    private static Response error(Response.Status status, String message) {
+        return Response.status(status).entity(new JSONObject(ImmutableMap.of("error", String.valueOf(message)))
+            .toString()).build();
+    }
+}
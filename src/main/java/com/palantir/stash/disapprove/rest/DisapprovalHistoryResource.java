@@ -0,0 +1,269 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.rest;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+import com.atlassian.stash.exception.AuthorisationException;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionValidationService;
+import com.google.common.collect.ImmutableMap;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.DisapprovalChangePage;
+import com.palantir.stash.disapprove.persistence.DisapprovalHistoryEntry;
+import com.palantir.stash.disapprove.persistence.DisapprovalHistoryPage;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+
+/**
+ * Reads the history of every disapproval change: who disapproved, removed or let a disapproval expire, on which pull
+ * request, and when.
+ *
+ * The history of one repository, or one of its pull requests, can be read by anyone who can read the repository;
+ * the whole instance's only by a system administrator, who can also stream all of it as newline delimited JSON.
+ * Pages are keyed by history id like the disapproval list, so pass the previous page's nextPageStart as start.
+ *
+ * The change feed is for dashboards and bots that keep in sync: it returns the changes after a sequence number, in
+ * order, so a client only ever asks for what is new instead of polling every pull request. Save nextSince from each
+ * answer and pass it as since the next time; when isLastPage is false there is more to fetch right away.
+ *
+ * <pre>
+ * curl -u admin 'http://stash/rest/disapproval/1.0/history?project=PROJ&amp;repo=slug&amp;pullRequest=12'
+ * curl -u admin 'http://stash/rest/disapproval/1.0/history/export' &gt; history.ndjson
+ * curl -u bot 'http://stash/rest/disapproval/1.0/history/changes?project=PROJ&amp;repo=slug&amp;since=1234'
+ * </pre>
+ *
+ * @author cmyers
+ */
+@Path("/history")
+public class DisapprovalHistoryResource {
+
+    public static final int DEFAULT_LIMIT = 25;
+    public static final int MAX_LIMIT = 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int EXPORT_PAGE_SIZE = 1000;
+
+    private final PermissionValidationService permissionValidationService;
+    private final RepositoryService repositoryService;
+    private final PersistenceManager pm;
+    private final Logger log;
+
+    public DisapprovalHistoryResource(PermissionValidationService permissionValidationService,
+        RepositoryService repositoryService, PersistenceManager pm, PluginLoggerFactory lf) {
+        this.permissionValidationService = permissionValidationService;
+        this.repositoryService = repositoryService;
+        this.pm = pm;
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getHistory(@QueryParam("project") String projectKey, @QueryParam("repo") String repoSlug,
+        @QueryParam("pullRequest") Long pullRequestId, @QueryParam("start") @DefaultValue("0") int start,
+        @QueryParam("limit") @DefaultValue("" + DEFAULT_LIMIT) int limit) {
+        if ((projectKey == null) != (repoSlug == null)) {
+            return error(Response.Status.BAD_REQUEST, "project and repo go together");
+        }
+        if (pullRequestId != null && repoSlug == null) {
+            return error(Response.Status.BAD_REQUEST, "pullRequest can only be used together with project and repo");
+        }
+        limit = Math.max(1, Math.min(limit, MAX_LIMIT));
+        start = Math.max(0, start);
+
+        Integer repositoryId;
+        try {
+            repositoryId = authorize(projectKey, repoSlug);
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        if (repoSlug != null && repositoryId == null) {
+            return error(Response.Status.NOT_FOUND, "No repository " + projectKey + "/" + repoSlug);
+        }
+
+        DisapprovalHistoryPage page;
+        try {
+            page = pm.findHistory(repositoryId, pullRequestId, start, limit);
+        } catch (SQLException e) {
+            log.error("Unable to read disapproval history", e);
+            return error(Response.Status.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+
+        List<JSONObject> values = new ArrayList<JSONObject>(page.getValues().size());
+        for (DisapprovalHistoryEntry entry : page.getValues()) {
+            values.add(toJson(entry));
+        }
+        Map<String, Object> body = new LinkedHashMap<String, Object>();
+        body.put("size", values.size());
+        body.put("limit", limit);
+        body.put("start", start);
+        body.put("isLastPage", page.isLastPage());
+        if (!page.isLastPage()) {
+            body.put("nextPageStart", page.getNextPageStart());
+        }
+        body.put("values", new JSONArray(values));
+        return Response.ok(new JSONObject(body).toString()).build();
+    }
+
+    @GET
+    @Path("/changes")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getChanges(@QueryParam("project") String projectKey, @QueryParam("repo") String repoSlug,
+        @QueryParam("since") @DefaultValue("0") long since,
+        @QueryParam("limit") @DefaultValue("" + DEFAULT_LIMIT) int limit) {
+        if ((projectKey == null) != (repoSlug == null)) {
+            return error(Response.Status.BAD_REQUEST, "project and repo go together");
+        }
+        limit = Math.max(1, Math.min(limit, MAX_LIMIT));
+        since = Math.max(0, since);
+
+        Integer repositoryId;
+        try {
+            repositoryId = authorize(projectKey, repoSlug);
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        if (repoSlug != null && repositoryId == null) {
+            return error(Response.Status.NOT_FOUND, "No repository " + projectKey + "/" + repoSlug);
+        }
+
+        DisapprovalChangePage page;
+        try {
+            page = pm.findChanges(repositoryId, since, limit);
+        } catch (SQLException e) {
+            log.error("Unable to read disapproval changes", e);
+            return error(Response.Status.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+
+        List<JSONObject> values = new ArrayList<JSONObject>(page.getValues().size());
+        for (DisapprovalHistoryEntry entry : page.getValues()) {
+            values.add(toJson(entry));
+        }
+        Map<String, Object> body = new LinkedHashMap<String, Object>();
+        body.put("size", values.size());
+        body.put("limit", limit);
+        body.put("since", since);
+        body.put("nextSince", page.getNextSince());
+        body.put("isLastPage", page.isLastPage());
+        body.put("values", new JSONArray(values));
+        return Response.ok(new JSONObject(body).toString()).build();
+    }
+
+    @GET
+    @Path("/export")
+    @Produces(DataTransferResource.APPLICATION_NDJSON)
+    public Response exportHistory() {
+        try {
+            permissionValidationService.validateForGlobal(Permission.SYS_ADMIN);
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        StreamingOutput body = new StreamingOutput() {
+
+            @Override
+            public void write(OutputStream os) throws IOException, WebApplicationException {
+                Writer w = new BufferedWriter(new OutputStreamWriter(os, UTF_8));
+                try {
+                    int start = 0;
+                    DisapprovalHistoryPage page;
+                    do {
+                        page = pm.findHistory(null, null, start, EXPORT_PAGE_SIZE);
+                        for (DisapprovalHistoryEntry entry : page.getValues()) {
+                            w.write(toJson(entry).toString());
+                            w.write('\n');
+                        }
+                        // hand each page to the client as it is done rather than buffering the whole history
+                        w.flush();
+                        if (!page.isLastPage()) {
+                            start = page.getNextPageStart();
+                        }
+                    } while (!page.isLastPage());
+                } catch (SQLException e) {
+                    // the status is long gone, all that can be done is cut the stream short
+                    log.error("Export of disapproval history failed", e);
+                    throw new IOException(e);
+                }
+                w.flush();
+            }
+        };
+        return Response.ok(body)
+            .header("Content-Disposition", "attachment; filename=\"disapproval-history.ndjson\"")
+            .build();
+    }
+
+    /**
+     * Checks the current user may read the history of the repository, or of the whole instance if repoSlug is null.
+     * 
+     * @return the repository's id, or null for the whole instance or if there is no such repository
+     */
+    private Integer authorize(String projectKey, String repoSlug) {
+        if (repoSlug == null) {
+            permissionValidationService.validateForGlobal(Permission.SYS_ADMIN);
+            return null;
+        }
+        Repository repo = repositoryService.getBySlug(projectKey, repoSlug);
+        if (repo == null) {
+            return null;
+        }
+        permissionValidationService.validateForRepository(repo, Permission.REPO_READ);
+        return repo.getId();
+    }
+
+    private static JSONObject toJson(DisapprovalHistoryEntry entry) {
+        Map<String, Object> row = new LinkedHashMap<String, Object>();
+        row.put("id", entry.getId());
+        if (entry.getSequence() != null) {
+            row.put("sequence", entry.getSequence());
+        }
+        row.put("repositoryId", entry.getRepositoryId());
+        row.put("pullRequestId", entry.getPullRequestId());
+        if (entry.getUserId() != null) {
+            row.put("userId", entry.getUserId());
+        }
+        row.put("username", entry.getUsername());
+        row.put("action", entry.getAction().name());
+        row.put("createdAt", entry.getCreatedAt());
+        return new JSONObject(row);
+    }
+
+    private static Response error(Response.Status status, String message) {
+        return Response.status(status).entity(new JSONObject(ImmutableMap.of("error", String.valueOf(message)))
+            .toString()).build();
+    }
+}
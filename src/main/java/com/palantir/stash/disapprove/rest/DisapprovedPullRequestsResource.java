@@ -0,0 +1,239 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.rest;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+import com.atlassian.stash.exception.AuthorisationException;
+import com.atlassian.stash.nav.NavBuilder;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionValidationService;
+import com.atlassian.stash.user.StashAuthenticationContext;
+import com.atlassian.stash.user.StashUser;
+import com.atlassian.stash.user.UserService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.atlassian.stash.util.PageRequestImpl;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.DisapprovalPage;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalSnapshot;
+import com.palantir.stash.disapprove.user.UserNameResolver;
+
+/**
+ * Lists the pull requests that are currently disapproved, across every repository on the instance.
+ *
+ * Results can be narrowed to a project, a single repository and/or whoever disapproved them, and come back in pages
+ * shaped like Stash's own paged REST responses. To get the next page, pass the previous page's nextPageStart as start.
+ *
+ * System administrators can list everyone's disapprovals. Anyone else can list their own, by passing themselves as
+ * the disapprover; rows in repositories they can no longer read are left out.
+ *
+ * <pre>
+ * curl -u admin 'http://stash/rest/disapproval/1.0/disapprovals?project=PROJ&amp;disapprover=jdoe&amp;limit=50'
+ * curl -u jdoe 'http://stash/rest/disapproval/1.0/disapprovals?disapprover=jdoe'
+ * </pre>
+ *
+ * @author cmyers
+ */
+@Path("/disapprovals")
+@Produces(MediaType.APPLICATION_JSON)
+public class DisapprovedPullRequestsResource {
+
+    public static final int DEFAULT_LIMIT = 25;
+    public static final int MAX_LIMIT = 100;
+
+    // how many repositories to fetch at a time when expanding a project filter
+    private static final int REPOSITORY_PAGE_SIZE = 100;
+
+    private final PermissionValidationService permissionValidationService;
+    private final StashAuthenticationContext authenticationContext;
+    private final RepositoryService repositoryService;
+    private final PullRequestService pullRequestService;
+    private final UserService userService;
+    private final NavBuilder nb;
+    private final PersistenceManager pm;
+    private final UserNameResolver names;
+    private final Logger log;
+
+    public DisapprovedPullRequestsResource(PermissionValidationService permissionValidationService,
+        StashAuthenticationContext authenticationContext, RepositoryService repositoryService,
+        PullRequestService pullRequestService, UserService userService, NavBuilder nb, PersistenceManager pm,
+        UserNameResolver names, PluginLoggerFactory lf) {
+        this.permissionValidationService = permissionValidationService;
+        this.authenticationContext = authenticationContext;
+        this.repositoryService = repositoryService;
+        this.pullRequestService = pullRequestService;
+        this.userService = userService;
+        this.nb = nb;
+        this.pm = pm;
+        this.names = names;
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    @GET
+    public Response getDisapprovedPullRequests(@QueryParam("project") String projectKey,
+        @QueryParam("repo") String repoSlug, @QueryParam("disapprover") String disapprover,
+        @QueryParam("start") @DefaultValue("0") int start,
+        @QueryParam("limit") @DefaultValue("" + DEFAULT_LIMIT) int limit) {
+        boolean admin = true;
+        try {
+            permissionValidationService.validateForGlobal(Permission.SYS_ADMIN);
+        } catch (AuthorisationException e) {
+            // everyone may list their own
+            StashUser currentUser = authenticationContext.getCurrentUser();
+            if (currentUser == null || disapprover == null || !disapprover.equals(currentUser.getName())) {
+                return Response.status(Response.Status.UNAUTHORIZED).build();
+            }
+            admin = false;
+        }
+        if (repoSlug != null && projectKey == null) {
+            return error(Response.Status.BAD_REQUEST, "repo can only be used together with project");
+        }
+        limit = Math.max(1, Math.min(limit, MAX_LIMIT));
+        start = Math.max(0, start);
+
+        // Repositories that are looked up anyway (for the filter) are remembered for rendering the rows
+        Map<Integer, Repository> repos = new HashMap<Integer, Repository>();
+        Collection<Integer> repositoryIds = null;
+        if (repoSlug != null) {
+            Repository repo = repositoryService.getBySlug(projectKey, repoSlug);
+            if (repo == null) {
+                return error(Response.Status.NOT_FOUND, "No repository " + projectKey + "/" + repoSlug);
+            }
+            repos.put(repo.getId(), repo);
+            repositoryIds = ImmutableList.of(repo.getId());
+        } else if (projectKey != null) {
+            repositoryIds = new ArrayList<Integer>();
+            PageRequest request = new PageRequestImpl(0, REPOSITORY_PAGE_SIZE);
+            Page<? extends Repository> page;
+            do {
+                page = repositoryService.findByProjectKey(projectKey, request);
+                for (Repository repo : page.getValues()) {
+                    repos.put(repo.getId(), repo);
+                    repositoryIds.add(repo.getId());
+                }
+                request = page.getNextPageRequest();
+            } while (!page.getIsLastPage());
+        }
+
+        Integer disapprovedById = null;
+        String disapprovedBy = null;
+        if (disapprover != null) {
+            StashUser user = userService.getUserByName(disapprover);
+            if (user == null) {
+                return error(Response.Status.NOT_FOUND, "No user " + disapprover);
+            }
+            disapprovedById = user.getId();
+            // rows from before user ids were recorded only have the name
+            disapprovedBy = user.getName();
+        }
+
+        DisapprovalPage page;
+        try {
+            page = pm.findDisapprovedPullRequests(repositoryIds, disapprovedById, disapprovedBy, start, limit);
+        } catch (SQLException e) {
+            log.error("Unable to list disapproved pull requests", e);
+            return error(Response.Status.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+
+        List<JSONObject> values = new ArrayList<JSONObject>(page.getValues().size());
+        for (PullRequestDisapprovalSnapshot prd : page.getValues()) {
+            Repository repo = getRepository(prd.getRepositoryId(), repos);
+            if (repo != null || admin) {
+                values.add(toJson(prd, repo));
+            }
+        }
+        Map<String, Object> body = new LinkedHashMap<String, Object>();
+        body.put("size", values.size());
+        body.put("limit", limit);
+        body.put("start", start);
+        body.put("isLastPage", page.isLastPage());
+        if (!page.isLastPage()) {
+            body.put("nextPageStart", page.getNextPageStart());
+        }
+        body.put("values", new JSONArray(values));
+        return Response.ok(new JSONObject(body).toString()).build();
+    }
+
+    /**
+     * Returns the repository, or null if it was deleted or the current user can't read it.
+     */
+    private Repository getRepository(int repositoryId, Map<Integer, Repository> repos) {
+        if (repos.containsKey(repositoryId)) {
+            return repos.get(repositoryId);
+        }
+        Repository repo;
+        try {
+            repo = repositoryService.getById(repositoryId);
+        } catch (AuthorisationException e) {
+            repo = null;
+        }
+        // remember misses too, rows for a deleted repository tend to come in runs
+        repos.put(repositoryId, repo);
+        return repo;
+    }
+
+    private JSONObject toJson(PullRequestDisapprovalSnapshot prd, Repository repo) {
+        Map<String, Object> row = new LinkedHashMap<String, Object>();
+        row.put("repositoryId", prd.getRepositoryId());
+        row.put("pullRequestId", prd.getPullRequestId());
+        if (prd.getDisapprovedById() != null) {
+            row.put("disapprovedById", prd.getDisapprovedById());
+        }
+        row.put("disapprovedBy", names.getDisplayName(prd.getDisapprovedById(), prd.getDisapprovedBy()));
+
+        if (repo != null) {
+            row.put("projectKey", repo.getProject().getKey());
+            row.put("repositorySlug", repo.getSlug());
+            row.put("link", nb.buildAbsolute() + "/projects/" + repo.getProject().getKey() + "/repos/"
+                + repo.getSlug() + "/pull-requests/" + prd.getPullRequestId() + "/overview");
+            PullRequest pr = pullRequestService.getById(prd.getRepositoryId(), prd.getPullRequestId());
+            if (pr != null) {
+                row.put("title", pr.getTitle());
+                row.put("state", pr.getState().name());
+            }
+        }
+        return new JSONObject(row);
+    }
+
+    private static Response error(Response.Status status, String message) {
+        return Response.status(status).entity(new JSONObject(ImmutableMap.of("error", String.valueOf(message)))
+            .toString()).build();
+    }
+}
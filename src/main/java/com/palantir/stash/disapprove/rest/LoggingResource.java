@@ -0,0 +1,74 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.rest;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.json.JSONObject;
+
+import com.atlassian.stash.exception.AuthorisationException;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionValidationService;
+import com.google.common.collect.ImmutableMap;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+
+/**
+ * Lets a system administrator switch the plugin's debug logging on and off at runtime.
+ *
+ * <pre>
+ * curl -u admin -X PUT -H 'X-Atlassian-Token: no-check' \
+ *     'http://stash/rest/disapproval/1.0/logging?debug=true'
+ * </pre>
+ *
+ * @author cmyers
+ */
+@Path("/logging")
+@Produces(MediaType.APPLICATION_JSON)
+public class LoggingResource {
+
+    private final PermissionValidationService permissionValidationService;
+    private final PluginLoggerFactory lf;
+
+    public LoggingResource(PermissionValidationService permissionValidationService, PluginLoggerFactory lf) {
+        this.permissionValidationService = permissionValidationService;
+        this.lf = lf;
+    }
+
+    @GET
+    public Response getLogging() {
+        try {
+            permissionValidationService.validateForGlobal(Permission.SYS_ADMIN);
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        return Response.ok(new JSONObject(ImmutableMap.of("debug", lf.isDebugEnabled())).toString()).build();
+    }
+
+    @PUT
+    public Response setLogging(@QueryParam("debug") boolean debug) {
+        try {
+            permissionValidationService.validateForGlobal(Permission.SYS_ADMIN);
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        lf.setDebugEnabled(debug);
+        return Response.ok(new JSONObject(ImmutableMap.of("debug", lf.isDebugEnabled())).toString()).build();
+    }
+}
@@ -0,0 +1,168 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.rest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.atlassian.stash.exception.AuthorisationException;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionService;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.mergecheck.MergeVeto;
+import com.palantir.stash.disapprove.mergecheck.MergeVetoEvaluator;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.user.UserNameResolver;
+
+/**
+ * Tells merge bots and CI whether the disapproval merge check would veto merging each of many pull requests, without
+ * attempting the merges:
+ * 
+ * <pre>
+ * curl -u bot -X POST -H 'Content-Type: application/json' -H 'X-Atlassian-Token: no-check' \
+ *     -d '{"pullRequests": [{"repositoryId": 1, "pullRequestId": 2}, ...]}' \
+ *     'http://stash/rest/disapproval/1.0/vetoes'
+ * </pre>
+ * 
+ * Each pull request gets an outcome - allowed, vetoed (disapproved), frozen, advisory (disapproval is advisory only),
+ * disabled, or error - and, when vetoed, the summary and detail the merge check would show. Pull requests that don't
+ * exist come back as notFound, and those already merged or declined as closed; so do all pull requests of a
+ * repository that doesn't exist, or as forbidden if it can't be read.
+ * 
+ * The pull requests of a repository are evaluated together: each is looked up in Stash, its configuration comes from
+ * the cache, and the disapprovals of the open ones are read from the database in bulk, so every node of a cluster
+ * gives the same answer.
+ * 
+ * @author cmyers
+ */
+@Path("/vetoes")
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+public class MergeVetoResource {
+
+    // pull requests per call, to keep the response bounded
+    public static final int MAX_PULL_REQUESTS = 5000;
+
+    private final PermissionService permissionService;
+    private final RepositoryService repositoryService;
+    private final PullRequestService pullRequestService;
+    private final MergeVetoEvaluator evaluator;
+
+    public MergeVetoResource(PermissionService permissionService, RepositoryService repositoryService,
+        PullRequestService pullRequestService, PersistenceManager pm, UserNameResolver names,
+        PluginLoggerFactory lf) {
+        this.permissionService = permissionService;
+        this.repositoryService = repositoryService;
+        this.pullRequestService = pullRequestService;
+        this.evaluator = new MergeVetoEvaluator(pm, names, lf);
+    }
+
+    @POST
+    public Response getVetoes(String body) {
+        // repository id -> requested pull request ids, in request order
+        Map<Integer, Set<Long>> requested = new LinkedHashMap<Integer, Set<Long>>();
+        try {
+            JSONArray prs = new JSONObject(body).getJSONArray("pullRequests");
+            if (prs.length() > MAX_PULL_REQUESTS) {
+                return error(Response.Status.BAD_REQUEST, "at most " + MAX_PULL_REQUESTS + " pull requests at a time");
+            }
+            for (int i = 0; i < prs.length(); ++i) {
+                JSONObject pr = prs.getJSONObject(i);
+                int repositoryId = pr.getInt("repositoryId");
+                Set<Long> ids = requested.get(repositoryId);
+                if (ids == null) {
+                    ids = new LinkedHashSet<Long>();
+                    requested.put(repositoryId, ids);
+                }
+                ids.add(pr.getLong("pullRequestId"));
+            }
+        } catch (JSONException e) {
+            return error(Response.Status.BAD_REQUEST, e.getMessage());
+        }
+
+        List<Object> results = new ArrayList<Object>();
+        int vetoed = 0;
+        for (Map.Entry<Integer, Set<Long>> e : requested.entrySet()) {
+            final int repositoryId = e.getKey();
+            Repository repo = getRepository(repositoryId);
+            String unavailable = repo == null ? "notFound"
+                : !permissionService.hasRepositoryPermission(repo, Permission.REPO_READ) ? "forbidden" : null;
+            if (unavailable != null) {
+                for (Long prId : e.getValue()) {
+                    results.add(new JSONObject(ImmutableMap.of("repositoryId", repositoryId, "pullRequestId", prId,
+                        "outcome", unavailable, "vetoed", false)));
+                }
+                continue;
+            }
+
+            Map<Long, MergeVeto> vetoes = evaluator.evaluate(repo, e.getValue(), new Function<Long, PullRequest>() {
+
+                @Override
+                public PullRequest apply(Long pullRequestId) {
+                    return pullRequestService.getById(repositoryId, pullRequestId);
+                }
+            });
+            for (Map.Entry<Long, MergeVeto> veto : vetoes.entrySet()) {
+                Map<String, Object> o = new LinkedHashMap<String, Object>();
+                o.put("repositoryId", repositoryId);
+                o.put("pullRequestId", veto.getKey());
+                o.put("outcome", veto.getValue().getOutcome().getName());
+                o.put("vetoed", veto.getValue().isVetoed());
+                if (veto.getValue().isVetoed()) {
+                    o.put("summary", veto.getValue().getSummary());
+                    o.put("detail", veto.getValue().getDetail());
+                    ++vetoed;
+                }
+                results.add(new JSONObject(o));
+            }
+        }
+        return Response.ok(new JSONObject(ImmutableMap.of("vetoed", vetoed, "results", new JSONArray(results)))
+            .toString()).build();
+    }
+
+    // null if it doesn't exist, or the user can't see it
+    private Repository getRepository(int repositoryId) {
+        try {
+            return repositoryService.getById(repositoryId);
+        } catch (AuthorisationException e) {
+            return null;
+        }
+    }
+
+    private static Response error(Response.Status status, String message) {
+        return Response.status(status).entity(new JSONObject(ImmutableMap.of("error", String.valueOf(message)))
+            .toString()).build();
+    }
+}
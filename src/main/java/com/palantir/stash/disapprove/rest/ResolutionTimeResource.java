@@ -0,0 +1,179 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.rest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.atlassian.stash.exception.AuthorisationException;
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.project.ProjectService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionValidationService;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.palantir.stash.disapprove.maintenance.ResolutionHistogram;
+import com.palantir.stash.disapprove.maintenance.ResolutionTimeTracker;
+
+/**
+ * How long disapprovals stay in place before they are removed, expire or the pull request is merged anyway: the
+ * median and 95th percentile over the last 7, 30 or 90 days, for the instance broken down by project, for a project
+ * broken down by repository, or for one repository. Answered from {@link ResolutionTimeTracker}'s histograms in
+ * memory. System administrators only.
+ *
+ * <pre>
+ * curl -u admin 'http://stash/rest/disapproval/1.0/resolution-times?days=30'
+ * curl -u admin 'http://stash/rest/disapproval/1.0/resolution-times?days=7&amp;project=PROJ'
+ * curl -u admin 'http://stash/rest/disapproval/1.0/resolution-times?days=90&amp;project=PROJ&amp;repo=slug'
+ * </pre>
+ *
+ * @author cmyers
+ */
+@Path("/resolution-times")
+@Produces(MediaType.APPLICATION_JSON)
+public class ResolutionTimeResource {
+
+    private static final ImmutableSet<Integer> WINDOWS = ImmutableSet.of(7, 30, ResolutionTimeTracker.MAX_DAYS);
+    // how long to tell clients to wait while the checkpoints are loaded
+    private static final int RETRY_AFTER_SECONDS = 30;
+
+    private final PermissionValidationService permissionValidationService;
+    private final ProjectService projectService;
+    private final RepositoryService repositoryService;
+    private final ResolutionTimeTracker tracker;
+
+    public ResolutionTimeResource(PermissionValidationService permissionValidationService,
+        ProjectService projectService, RepositoryService repositoryService, ResolutionTimeTracker tracker) {
+        this.permissionValidationService = permissionValidationService;
+        this.projectService = projectService;
+        this.repositoryService = repositoryService;
+        this.tracker = tracker;
+    }
+
+    @GET
+    public Response getResolutionTimes(@QueryParam("days") @DefaultValue("30") int days,
+        @QueryParam("project") String projectKey, @QueryParam("repo") String repoSlug) {
+        try {
+            permissionValidationService.validateForGlobal(Permission.SYS_ADMIN);
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        if (!WINDOWS.contains(days)) {
+            return error(Response.Status.BAD_REQUEST, "days must be one of " + WINDOWS);
+        }
+        if (repoSlug != null && projectKey == null) {
+            return error(Response.Status.BAD_REQUEST, "repo needs project");
+        }
+
+        Map<String, Object> body = new LinkedHashMap<String, Object>();
+        body.put("days", days);
+        if (projectKey == null) {
+            Map<Integer, ResolutionHistogram> byProject = tracker.getByProject(days);
+            ResolutionHistogram total = tracker.getTotal(days);
+            if (byProject == null || total == null) {
+                return loading();
+            }
+            body.put("total", toJson(new LinkedHashMap<String, Object>(), total));
+            List<JSONObject> projects = new ArrayList<JSONObject>(byProject.size());
+            for (Map.Entry<Integer, ResolutionHistogram> e : byProject.entrySet()) {
+                Map<String, Object> o = new LinkedHashMap<String, Object>();
+                o.put("projectId", e.getKey());
+                Project project = projectService.getById(e.getKey());
+                if (project != null) {
+                    o.put("project", project.getKey());
+                }
+                projects.add(toJson(o, e.getValue()));
+            }
+            body.put("projects", new JSONArray(projects));
+        } else if (repoSlug == null) {
+            Project project = projectService.getByKey(projectKey);
+            if (project == null) {
+                return error(Response.Status.NOT_FOUND, "No project " + projectKey);
+            }
+            Map<Integer, ResolutionHistogram> byRepository = tracker.getByRepository(project.getId(), days);
+            if (byRepository == null) {
+                return loading();
+            }
+            ResolutionHistogram total = new ResolutionHistogram();
+            List<JSONObject> repositories = new ArrayList<JSONObject>(byRepository.size());
+            for (Map.Entry<Integer, ResolutionHistogram> e : byRepository.entrySet()) {
+                total.merge(e.getValue());
+                Map<String, Object> o = new LinkedHashMap<String, Object>();
+                o.put("repositoryId", e.getKey());
+                Repository repo = repositoryService.getById(e.getKey());
+                if (repo != null) {
+                    o.put("repo", repo.getSlug());
+                }
+                repositories.add(toJson(o, e.getValue()));
+            }
+            body.put("project", projectKey);
+            body.put("total", toJson(new LinkedHashMap<String, Object>(), total));
+            body.put("repositories", new JSONArray(repositories));
+        } else {
+            Repository repo = repositoryService.getBySlug(projectKey, repoSlug);
+            if (repo == null) {
+                return error(Response.Status.NOT_FOUND, "No repository " + projectKey + "/" + repoSlug);
+            }
+            Map<Integer, ResolutionHistogram> byRepository =
+                tracker.getByRepository(repo.getProject().getId(), days);
+            if (byRepository == null) {
+                return loading();
+            }
+            ResolutionHistogram h = byRepository.get(repo.getId());
+            body.put("project", projectKey);
+            body.put("repo", repoSlug);
+            body.put("total", toJson(new LinkedHashMap<String, Object>(), h == null ? new ResolutionHistogram() : h));
+        }
+        return Response.ok(new JSONObject(body).toString()).build();
+    }
+
+    /**
+     * Adds the count, and the percentiles in millis when there is anything to take them of.
+     */
+    private static JSONObject toJson(Map<String, Object> o, ResolutionHistogram h) {
+        o.put("count", h.getCount());
+        if (h.getCount() > 0) {
+            o.put("p50Millis", h.getPercentile(0.5));
+            o.put("p95Millis", h.getPercentile(0.95));
+        }
+        return new JSONObject(o);
+    }
+
+    private static Response loading() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+            .header("Retry-After", RETRY_AFTER_SECONDS)
+            .entity(new JSONObject(ImmutableMap.of("error", "Resolution times are still being loaded")).toString())
+            .build();
+    }
+
+    private static Response error(Response.Status status, String message) {
+        return Response.status(status).entity(new JSONObject(ImmutableMap.of("error", String.valueOf(message)))
+            .toString()).build();
+    }
+}
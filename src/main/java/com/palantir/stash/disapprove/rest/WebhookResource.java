@@ -0,0 +1,253 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.rest;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+import com.atlassian.stash.exception.AuthorisationException;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionValidationService;
+import com.google.common.collect.ImmutableMap;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.maintenance.WebhookDispatcher;
+import com.palantir.stash.disapprove.persistence.DisapprovalWebhookSnapshot;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+
+/**
+ * Manages the webhooks {@link WebhookDispatcher} sends disapproval changes to. A repository administrator can list,
+ * add and remove the webhooks of the repository; a system administrator can also read the delivery metrics.
+ *
+ * The requests are sent from inside the network, so a repository administrator may only add a URL on a host a system
+ * administrator has allowed with the system property disapproval.webhooks.allowedHosts: a comma separated list of
+ * host names, where one starting with a dot allows every host under that domain (e.g.
+ * {@code ci.example.com,.hooks.example.com}). Only a system administrator can add a URL on any other host. The secret
+ * requests are signed with is in the response to adding the webhook, and nowhere else.
+ *
+ * <pre>
+ * curl -u admin -X POST -H 'X-Atlassian-Token: no-check' \
+ *     'http://stash/rest/disapproval/1.0/webhooks?project=PROJ&amp;repo=slug&amp;url=https://bot/hook'
+ * curl -u admin 'http://stash/rest/disapproval/1.0/webhooks?project=PROJ&amp;repo=slug'
+ * curl -u admin -X DELETE -H 'X-Atlassian-Token: no-check' 'http://stash/rest/disapproval/1.0/webhooks/12'
+ * curl -u admin 'http://stash/rest/disapproval/1.0/webhooks/metrics'
+ * </pre>
+ *
+ * @author cmyers
+ */
+@Path("/webhooks")
+@Produces(MediaType.APPLICATION_JSON)
+public class WebhookResource {
+
+    public static final String ALLOWED_HOSTS_PROPERTY = "disapproval.webhooks.allowedHosts";
+
+    private final PermissionValidationService permissionValidationService;
+    private final RepositoryService repositoryService;
+    private final PersistenceManager pm;
+    private final WebhookDispatcher dispatcher;
+    private final Logger log;
+    private final List<String> allowedHosts;
+
+    public WebhookResource(PermissionValidationService permissionValidationService,
+        RepositoryService repositoryService, PersistenceManager pm, WebhookDispatcher dispatcher,
+        PluginLoggerFactory lf) {
+        this.permissionValidationService = permissionValidationService;
+        this.repositoryService = repositoryService;
+        this.pm = pm;
+        this.dispatcher = dispatcher;
+        this.log = lf.getLoggerForThis(this);
+        this.allowedHosts = new ArrayList<String>();
+        for (String host : System.getProperty(ALLOWED_HOSTS_PROPERTY, "").split(",")) {
+            if (!host.trim().isEmpty()) {
+                allowedHosts.add(host.trim().toLowerCase(Locale.US));
+            }
+        }
+    }
+
+    @GET
+    public Response getWebhooks(@QueryParam("project") String projectKey, @QueryParam("repo") String repoSlug) {
+        if (projectKey == null || repoSlug == null) {
+            return error(Response.Status.BAD_REQUEST, "project and repo are required");
+        }
+        Repository repo = repositoryService.getBySlug(projectKey, repoSlug);
+        if (repo == null) {
+            return error(Response.Status.NOT_FOUND, "no repository " + projectKey + "/" + repoSlug);
+        }
+        try {
+            permissionValidationService.validateForRepository(repo, Permission.REPO_ADMIN);
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        try {
+            List<JSONObject> values = new ArrayList<JSONObject>();
+            for (DisapprovalWebhookSnapshot webhook : pm.getWebhooks(repo.getId())) {
+                values.add(toJson(webhook));
+            }
+            return Response.ok(new JSONObject(ImmutableMap.of("values", new JSONArray(values))).toString()).build();
+        } catch (SQLException e) {
+            log.error("Unable to read the webhooks of " + repo, e);
+            return error(Response.Status.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    @POST
+    public Response addWebhook(@QueryParam("project") String projectKey, @QueryParam("repo") String repoSlug,
+        @QueryParam("url") String url) {
+        if (projectKey == null || repoSlug == null || url == null) {
+            return error(Response.Status.BAD_REQUEST, "project, repo and url are required");
+        }
+        Repository repo = repositoryService.getBySlug(projectKey, repoSlug);
+        if (repo == null) {
+            return error(Response.Status.NOT_FOUND, "no repository " + projectKey + "/" + repoSlug);
+        }
+        try {
+            permissionValidationService.validateForRepository(repo, Permission.REPO_ADMIN);
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        String host;
+        try {
+            URL parsed = new URL(url);
+            String protocol = parsed.getProtocol();
+            if (!protocol.equals("http") && !protocol.equals("https")) {
+                return error(Response.Status.BAD_REQUEST, "url must be http or https");
+            }
+            host = parsed.getHost().toLowerCase(Locale.US);
+        } catch (MalformedURLException e) {
+            return error(Response.Status.BAD_REQUEST, "invalid url: " + e.getMessage());
+        }
+        if (!isAllowed(host)) {
+            try {
+                permissionValidationService.validateForGlobal(Permission.SYS_ADMIN);
+            } catch (AuthorisationException e) {
+                return error(Response.Status.FORBIDDEN, "only a system administrator can add a webhook on " + host
+                    + ", it isn't in " + ALLOWED_HOSTS_PROPERTY);
+            }
+        }
+
+        try {
+            DisapprovalWebhookSnapshot webhook = pm.createWebhook(repo.getId(), url, WebhookDispatcher.newSecret());
+            log.info("Added disapproval webhook " + webhook.getId() + " to " + repo + ": " + url);
+            Map<String, Object> created = toMap(webhook);
+            // shown this once, for the receiver to check the signatures with
+            created.put("secret", webhook.getSecret());
+            return Response.ok(new JSONObject(created).toString()).build();
+        } catch (SQLException e) {
+            log.error("Unable to add a webhook to " + repo, e);
+            return error(Response.Status.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    @DELETE
+    @Path("/{id}")
+    public Response deleteWebhook(@PathParam("id") int id) {
+        try {
+            DisapprovalWebhookSnapshot webhook = pm.getWebhook(id);
+            Repository repo = webhook == null ? null : repositoryService.getById(webhook.getRepositoryId());
+            if (repo == null) {
+                return error(Response.Status.NOT_FOUND, "no webhook " + id);
+            }
+            try {
+                permissionValidationService.validateForRepository(repo, Permission.REPO_ADMIN);
+            } catch (AuthorisationException e) {
+                return Response.status(Response.Status.UNAUTHORIZED).build();
+            }
+            if (!pm.deleteWebhook(id)) {
+                return error(Response.Status.NOT_FOUND, "no webhook " + id);
+            }
+            log.info("Removed disapproval webhook " + id + " from " + repo);
+            return Response.noContent().build();
+        } catch (SQLException e) {
+            log.error("Unable to remove webhook " + id, e);
+            return error(Response.Status.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    @GET
+    @Path("/metrics")
+    public Response getMetrics() {
+        try {
+            permissionValidationService.validateForGlobal(Permission.SYS_ADMIN);
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        try {
+            metrics.put("webhooks", pm.getWebhooks(null).size());
+            metrics.put("queueDepth", pm.countWebhookDeliveries(null));
+        } catch (SQLException e) {
+            log.error("Unable to read the webhook queue", e);
+            return error(Response.Status.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+        metrics.put("queued", dispatcher.getQueued());
+        metrics.put("delivered", dispatcher.getDelivered());
+        metrics.put("dropped", dispatcher.getDropped());
+        metrics.put("abandoned", dispatcher.getAbandoned());
+        long requests = dispatcher.getRequests();
+        metrics.put("requests", requests);
+        metrics.put("failedRequests", dispatcher.getFailedRequests());
+        metrics.put("averageRequestMillis", requests == 0 ? 0 : dispatcher.getRequestMillis() / requests);
+        return Response.ok(new JSONObject(metrics).toString()).build();
+    }
+
+    private boolean isAllowed(String host) {
+        for (String allowed : allowedHosts) {
+            if (allowed.startsWith(".") ? host.endsWith(allowed) : host.equals(allowed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static JSONObject toJson(DisapprovalWebhookSnapshot webhook) {
+        return new JSONObject(toMap(webhook));
+    }
+
+    private static Map<String, Object> toMap(DisapprovalWebhookSnapshot webhook) {
+        Map<String, Object> o = new LinkedHashMap<String, Object>();
+        o.put("id", webhook.getId());
+        o.put("repositoryId", webhook.getRepositoryId());
+        o.put("url", webhook.getUrl());
+        o.put("lastSequence", webhook.getLastSequence());
+        return o;
+    }
+
+    private static Response error(Response.Status status, String message) {
+        return Response.status(status).entity(new JSONObject(ImmutableMap.of("error", String.valueOf(message)))
+            .toString()).build();
+    }
+}
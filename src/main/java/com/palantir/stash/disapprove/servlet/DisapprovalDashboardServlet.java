@@ -0,0 +1,117 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.servlet;
+
+import java.io.IOException;
+import java.net.URI;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+
+import com.atlassian.sal.api.auth.LoginUriProvider;
+import com.atlassian.soy.renderer.SoyException;
+import com.atlassian.soy.renderer.SoyTemplateRenderer;
+import com.atlassian.stash.exception.AuthorisationException;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionValidationService;
+import com.atlassian.webresource.api.assembler.PageBuilderService;
+import com.google.common.collect.ImmutableMap;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.rest.DisapprovedPullRequestsResource;
+
+/**
+ * Admin page listing every disapproved pull request on the instance.
+ *
+ * The page itself is just the filter form; rows are fetched a page at a time from
+ * {@link DisapprovedPullRequestsResource} by disapproval-dashboard.js.
+ *
+ * @author cmyers
+ */
+public class DisapprovalDashboardServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final SoyTemplateRenderer soyTemplateRenderer;
+    private final PageBuilderService pageBuilderService;
+    private final LoginUriProvider lup;
+    private final PermissionValidationService permissionValidationService;
+    private final Logger log;
+
+    public DisapprovalDashboardServlet(SoyTemplateRenderer soyTemplateRenderer,
+        PageBuilderService pageBuilderService, LoginUriProvider lup,
+        PermissionValidationService permissionValidationService, PluginLoggerFactory lf) {
+        this.soyTemplateRenderer = soyTemplateRenderer;
+        this.pageBuilderService = pageBuilderService;
+        this.lup = lup;
+        this.permissionValidationService = permissionValidationService;
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+        try {
+            permissionValidationService.validateAuthenticated();
+        } catch (AuthorisationException notLoggedInException) {
+            log.debug("User not logged in, redirecting to login page");
+            res.sendRedirect(lup.getLoginUri(getUri(req)).toASCIIString());
+            return;
+        }
+        try {
+            permissionValidationService.validateForGlobal(Permission.SYS_ADMIN);
+        } catch (AuthorisationException notAdminException) {
+            log.warn("User {} is not a system administrator", req.getRemoteUser());
+            res.sendError(HttpServletResponse.SC_UNAUTHORIZED, "You do not have permission to access this page.");
+            return;
+        }
+
+        res.setContentType("text/html;charset=UTF-8");
+        try {
+            pageBuilderService.assembler().resources().requireContext("plugin.page.disapproval");
+            soyTemplateRenderer.render(res.getWriter(),
+                "com.palantir.stash.stash-disapprove-plugin:disapprovalServletResources",
+                "plugin.page.disapproval.disapprovalDashboard",
+                ImmutableMap.<String, Object> builder()
+                    .put("project", nullToEmpty(req.getParameter("project")))
+                    .put("repo", nullToEmpty(req.getParameter("repo")))
+                    .put("disapprover", nullToEmpty(req.getParameter("disapprover")))
+                    .put("limit", DisapprovedPullRequestsResource.DEFAULT_LIMIT)
+                    .build()
+                );
+        } catch (SoyException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else {
+                throw new ServletException(e);
+            }
+        }
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    private URI getUri(HttpServletRequest req) {
+        StringBuffer builder = req.getRequestURL();
+        if (req.getQueryString() != null) {
+            builder.append("?");
+            builder.append(req.getQueryString());
+        }
+        return URI.create(builder.toString());
+    }
+}
@@ -23,12 +23,10 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.json.JSONObject;
 import org.slf4j.Logger;
 
 import com.atlassian.sal.api.auth.LoginUriProvider;
 import com.atlassian.stash.exception.AuthorisationException;
-import com.atlassian.stash.nav.NavBuilder;
 import com.atlassian.stash.pull.PullRequest;
 import com.atlassian.stash.pull.PullRequestService;
 import com.atlassian.stash.repository.Repository;
@@ -36,11 +34,14 @@ import com.atlassian.stash.request.RequestManager;
 import com.atlassian.stash.user.Permission;
 import com.atlassian.stash.user.PermissionValidationService;
 import com.atlassian.stash.user.StashAuthenticationContext;
-import com.google.common.collect.ImmutableMap;
+import com.atlassian.stash.user.StashUser;
+import com.palantir.stash.disapprove.comment.DisapprovalCommenter;
 import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
-import com.palantir.stash.disapprove.persistence.DisapprovalConfiguration;
+import com.palantir.stash.disapprove.maintenance.DisapprovalExpiryScheduler;
+import com.palantir.stash.disapprove.persistence.DisapprovalStatus;
 import com.palantir.stash.disapprove.persistence.PersistenceManager;
-import com.palantir.stash.disapprove.persistence.PullRequestDisapproval;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalSnapshot;
+import com.palantir.stash.disapprove.user.UserNameResolver;
 
 public class DisapprovalServlet extends HttpServlet {
 
@@ -51,11 +52,14 @@ public class DisapprovalServlet extends HttpServlet {
     private final PullRequestService pullRequestService;
     private final PersistenceManager pm;
     private final RequestManager rm;
-    private final NavBuilder nb;
+    private final DisapprovalCommenter commenter;
+    private final DisapprovalExpiryScheduler expiryScheduler;
+    private final UserNameResolver names;
     private final Logger log;
 
     public DisapprovalServlet(LoginUriProvider lup, PermissionValidationService permissionValidationService,
-        PullRequestService pullRequestService, PersistenceManager pm, RequestManager rm, NavBuilder nb,
+        PullRequestService pullRequestService, PersistenceManager pm, RequestManager rm,
+        DisapprovalCommenter commenter, DisapprovalExpiryScheduler expiryScheduler, UserNameResolver names,
         PluginLoggerFactory lf) {
         this.permissionValidationService = permissionValidationService;
         this.log = lf.getLoggerForThis(this);
@@ -63,41 +67,46 @@ public class DisapprovalServlet extends HttpServlet {
         this.pm = pm;
         this.pullRequestService = pullRequestService;
         this.rm = rm;
-        this.nb = nb;
+        this.commenter = commenter;
+        this.expiryScheduler = expiryScheduler;
+        this.names = names;
     }
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
 
-        final String user = authenticateUser(req, res);
+        final StashUser user = authenticateUser(req, res);
         if (user == null) {
             // not logged in, redirect
             res.sendRedirect(lup.getLoginUri(getUri(req)).toASCIIString());
             return;
         }
 
-        final String REQ_PARAMS = "repoId(int), prId(long), disapproved(true|false)";
+        final String REQ_PARAMS = "repoId(int), prId(long), disapproved(true|false), optionally "
+            + "expiresAt(epoch millis) and reason(at most " + PersistenceManager.MAX_REASON_LENGTH + " characters)";
         final Integer repoId;
         final Long prId;
+        final Long expiresAt;
         try {
             repoId = Integer.valueOf(req.getParameter("repoId"));
             prId = Long.valueOf(req.getParameter("prId"));
+            String expiresAtParam = req.getParameter("expiresAt");
+            expiresAt = expiresAtParam == null || expiresAtParam.isEmpty() ? null : Long.valueOf(expiresAtParam);
         } catch (NumberFormatException e) {
             throw new IllegalArgumentException("The required paramaters are: " + REQ_PARAMS, e);
         }
+        if (expiresAt != null && expiresAt <= System.currentTimeMillis()) {
+            throw new IllegalArgumentException("expiresAt must be in the future");
+        }
+        String reason = req.getParameter("reason");
+        reason = reason == null || reason.trim().isEmpty() ? null : reason.trim();
+        if (reason != null && reason.length() > PersistenceManager.MAX_REASON_LENGTH) {
+            throw new IllegalArgumentException("reason may be at most " + PersistenceManager.MAX_REASON_LENGTH
+                + " characters");
+        }
         final PullRequest pr = pullRequestService.getById(repoId, prId);
         final Repository repo = pr.getToRef().getRepository();
 
-        PullRequestDisapproval prd;
-        DisapprovalConfiguration dc;
-        try {
-            prd = pm.getPullRequestDisapproval(pr);
-            dc = pm.getDisapprovalConfiguration(repo);
-        } catch (SQLException e) {
-            throw new ServletException(e);
-        }
-
-        boolean oldDisapproval = prd.isDisapproved();
         boolean disapproval;
 
         String disapproved = req.getParameter("disapproved");
@@ -111,13 +120,20 @@ public class DisapprovalServlet extends HttpServlet {
         Writer w = res.getWriter();
         res.setContentType("application/json;charset=UTF-8");
         try {
-            processDisapprovalChange(repo, user, prd, oldDisapproval, disapproval);
+            processDisapprovalChange(pr, repo, user, disapproval, expiresAt, reason);
+            // read back whatever state won, which may not be ours if someone else got there first
+            DisapprovalStatus status = pm.getDisapprovalStatus(pr);
             //res.setContentType("text/html;charset=UTF-8");
-            w.append(new JSONObject(ImmutableMap.of("disapproval", prd.isDisapproved(), "disapprovedBy",
-                prd.getDisapprovedBy(), "enabledForRepo", dc.isEnabled())).toString());
+            writeStatus(w, status.isDisapproved(),
+                names.getDisplayName(status.getDisapprovedById(), status.getDisapprovedBy()), status.isEnabled(),
+                status.getExpiresAt(), null);
         } catch (IllegalStateException e) {
-            w.append(new JSONObject(ImmutableMap.of("error", e.getMessage())).toString());
+            w.write("{\"error\":");
+            writeJsonString(w, e.getMessage());
+            w.write('}');
             res.setStatus(401);
+        } catch (SQLException e) {
+            throw new ServletException(e);
         } finally {
             w.close();
         }
@@ -126,7 +142,7 @@ public class DisapprovalServlet extends HttpServlet {
     @Override
     public void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
 
-        final String user = authenticateUser(req, res);
+        final StashUser user = authenticateUser(req, res);
         if (user == null) {
             // not logged in, redirect
             res.sendRedirect(lup.getLoginUri(getUri(req)).toASCIIString());
@@ -156,11 +172,14 @@ public class DisapprovalServlet extends HttpServlet {
                 + prId.toString());
         }
 
-        PullRequestDisapproval prd;
-        DisapprovalConfiguration dc;
+        DisapprovalStatus status;
+        String reason = null;
         try {
-            prd = pm.getPullRequestDisapproval(pr);
-            dc = pm.getDisapprovalConfiguration(pr.getToRef().getRepository());
+            status = pm.getDisapprovalStatus(pr);
+            // only the pull request page asks for this; the lists, which poll every row, don't
+            if (status.isDisapproved() && "true".equalsIgnoreCase(req.getParameter("withReason"))) {
+                reason = pm.getDisapprovalReason(repoId, prId);
+            }
         } catch (SQLException e) {
             throw new ServletException(e);
         }
@@ -169,14 +188,15 @@ public class DisapprovalServlet extends HttpServlet {
             Writer w = res.getWriter();
             //res.setContentType("text/html;charset=UTF-8");
             res.setContentType("application/json;charset=UTF-8");
-            w.append(new JSONObject(ImmutableMap.of("disapproval", prd.isDisapproved(), "disapprovedBy",
-                prd.getDisapprovedBy(), "enabledForRepo", dc.isEnabled())).toString());
+            writeStatus(w, status.isDisapproved(),
+                names.getDisplayName(status.getDisapprovedById(), status.getDisapprovedBy()), status.isEnabled(),
+                status.getExpiresAt(), reason);
         } finally {
             res.getWriter().close();
         }
     }
 
-    private String authenticateUser(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    private StashUser authenticateUser(HttpServletRequest req, HttpServletResponse res) throws IOException {
         try {
             permissionValidationService.validateAuthenticated();
         } catch (AuthorisationException notLoggedInException) {
@@ -184,60 +204,130 @@ public class DisapprovalServlet extends HttpServlet {
             return null;
         }
         StashAuthenticationContext ac = rm.getRequestContext().getAuthenticationContext();
-        final String user = ac.getCurrentUser().getName();
+        final StashUser user = ac.getCurrentUser();
+        if (user == null || user.getName() == null) {
+            return null;
+        }
 
-        log.debug("User {} logged in", user);
+        log.debug("User {} logged in", user.getName());
         return user;
     }
 
-    private void processDisapprovalChange(final Repository repo, final String user, PullRequestDisapproval prd,
-        boolean oldDisapproval, boolean disapproval) throws IOException {
+    /**
+     * @param expiresAt when a new disapproval lifts, or null to keep it until it is removed
+     * @param reason why a new disapproval is given, or null for no reason
+     */
+    private void processDisapprovalChange(final PullRequest pr, final Repository repo, final StashUser user,
+        boolean disapproval, Long expiresAt, String reason) throws SQLException {
+
+        PullRequestDisapprovalSnapshot prd = pm.getPullRequestDisapproval(pr);
 
         if (disapproval) {
             // we are setting disapproval
-            if (oldDisapproval) {
+            if (prd.isDisapproved()) {
                 // disapproval already set, do nothing
                 log.warn("PR already disapproved by " + prd.getDisapprovedBy());
                 return;
             }
 
-            prd.setDisapprovedBy(user);
-            prd.setDisapproved(true);
-            prd.save();
-            log.info("PR has been disapproved by " + user);
-            pullRequestService.addComment(prd.getRepositoryId(), prd.getPullRequestId(),
-                getCommentTextDisapproval(user));
+            if (!pm.compareAndSetPullRequestDisapproval(pr, false, null, user, true, expiresAt, reason)) {
+                log.warn("PR was disapproved concurrently, not disapproving again");
+                return;
+            }
+            if (expiresAt != null) {
+                expiryScheduler.schedule(repo.getId(), pr.getId(), expiresAt);
+            }
+            log.info("PR has been disapproved by " + user.getName());
+            commenter.comment(repo.getId(), pr.getId(), user.getName(), true, reason);
             return;
         }
 
         // unsetting disapproval
-        if (!oldDisapproval) {
+        if (!prd.isDisapproved()) {
             log.warn("PR is not disapproved");
             return;
         }
 
-        if (!user.equalsIgnoreCase(prd.getDisapprovedBy())) {
+        if (!prd.isDisapprovedBy(user)) {
             // TODO: is user an admin?
             try {
                 permissionValidationService.validateForRepository(repo, Permission.REPO_ADMIN);
             } catch (AuthorisationException e) {
-                throw new IllegalStateException("User " + user + " is not able to remove disapproval set by user "
-                    + prd.getDisapprovedBy());
+                throw new IllegalStateException("User " + user.getName()
+                    + " is not able to remove disapproval set by user "
+                    + names.getDisplayName(prd.getDisapprovedById(), prd.getDisapprovedBy()));
             }
         }
-        prd.setDisapproved(false);
-        prd.setDisapprovedBy("None");
-        prd.save();
+        // only remove the disapproval we checked permissions against
+        if (!pm.compareAndSetPullRequestDisapproval(pr, true, prd.getDisapprovedById(), user, false)) {
+            log.warn("PR disapproval was changed concurrently, not removing it");
+            return;
+        }
         log.info("PR is no longer disapproved");
         try {
-            pullRequestService.addComment(prd.getRepositoryId(), prd.getPullRequestId(),
-                getCommentTextRemoveDisapproval(user));
+            commenter.comment(repo.getId(), pr.getId(), user.getName(), false);
             assert (true);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Writes {"disapproval":..,"disapprovedBy":..,"enabledForRepo":..} straight to the response, plus "expiresAt" for
+     * a disapproval that lifts by itself and "reason" when one was looked up. This is called for every row of every
+     * pull request list, so it avoids building a map and a JSONObject just to serialize three fields.
+     */
+    private static void writeStatus(Writer w, boolean disapproved, String disapprovedBy, boolean enabledForRepo,
+        Long expiresAt, String reason) throws IOException {
+        w.write("{\"disapproval\":");
+        w.write(disapproved ? "true" : "false");
+        w.write(",\"disapprovedBy\":");
+        writeJsonString(w, disapprovedBy);
+        w.write(",\"enabledForRepo\":");
+        w.write(enabledForRepo ? "true" : "false");
+        if (expiresAt != null) {
+            w.write(",\"expiresAt\":");
+            w.write(expiresAt.toString());
+        }
+        if (reason != null) {
+            w.write(",\"reason\":");
+            writeJsonString(w, reason);
+        }
+        w.write('}');
+    }
+
+    private static void writeJsonString(Writer w, String s) throws IOException {
+        if (s == null) {
+            w.write("null");
+            return;
+        }
+        w.write('"');
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                w.write("\\\"");
+                break;
+            case '\\':
+                w.write("\\\\");
+                break;
+            case '<':
+                // keeps "</script>" out of responses that end up inlined into pages
+                w.write("\\u003c");
+                break;
+            default:
+                if (c < 0x20) {
+                    w.write("\\u00");
+                    w.write(Character.forDigit(c >> 4, 16));
+                    w.write(Character.forDigit(c & 0xf, 16));
+                } else {
+                    w.write(c);
+                }
+            }
+        }
+        w.write('"');
+    }
+
     private URI getUri(HttpServletRequest req) {
         StringBuffer builder = req.getRequestURL();
         if (req.getQueryString() != null) {
@@ -246,19 +336,4 @@ public class DisapprovalServlet extends HttpServlet {
         }
         return URI.create(builder.toString());
     }
-
-    private String getCommentTextDisapproval(String user) {
-        //final String HTML = "<span style=\"color: #AA0000;\">ಠ_ಠ</span> Pull request disapproved";
-        final String disapprovalFace =
-            nb.buildAbsolute() + "/plugins/servlet/disapproval/static-content/disapprovalface.png";
-        final String IMAGE = "![ಠ_ಠ](" + disapprovalFace + ") Pull request disapproved";
-        return IMAGE.replace("__USER__", user);
-    }
-
-    private String getCommentTextRemoveDisapproval(String user) {
-        final String undisapprovalface =
-            nb.buildAbsolute() + "/plugins/servlet/disapproval/static-content/undisapprovalface.png";
-        final String IMAGE = "![( ͡° ͜ʖ ͡°)](" + undisapprovalface + ") Pull request disapproval removed";
-        return IMAGE.replace("__USER__", user);
-    }
 }
@@ -32,6 +32,8 @@ import com.atlassian.stash.exception.AuthorisationException;
 import com.atlassian.stash.request.RequestManager;
 import com.atlassian.stash.user.PermissionValidationService;
 import com.atlassian.stash.user.StashAuthenticationContext;
+import com.palantir.stash.disapprove.jfr.DisapprovalJfr;
+import com.palantir.stash.disapprove.jfr.StaticContentEvent;
 import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
 import com.palantir.stash.disapprove.persistence.PersistenceManager;
 
@@ -64,6 +66,9 @@ public class StaticContentServlet extends HttpServlet {
         }
 
         final String pathInfo = req.getPathInfo();
+        StaticContentEvent event = DisapprovalJfr.beginStaticContent();
+        boolean found = false;
+        long bytes = 0;
         OutputStream os = null;
         try {
             // The class loader that found this class will also find the static resources
@@ -73,6 +78,7 @@ public class StaticContentServlet extends HttpServlet {
                 res.sendError(404, "File " + pathInfo + " could not be found");
                 return;
             }
+            found = true;
             os = res.getOutputStream();
             //res.setContentType("text/html;charset=UTF-8");
             String contentType = URLConnection.guessContentTypeFromStream(is);
@@ -84,7 +90,7 @@ public class StaticContentServlet extends HttpServlet {
             }
             log.debug("Serving file " + pathInfo + " with content type " + contentType);
             res.setContentType(contentType);
-            IOUtils.copy(is, os);
+            bytes = IOUtils.copyLarge(is, os);
             /*
             byte[] buffer = new byte[4096];
             int bytesRead = 0;
@@ -96,6 +102,9 @@ public class StaticContentServlet extends HttpServlet {
             if (os != null) {
                 os.close();
             }
+            if (event != null) {
+                event.complete(pathInfo, found, bytes);
+            }
         }
     }
 
@@ -0,0 +1,106 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.upgrade;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.java.ao.Query;
+
+import org.slf4j.Logger;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.activeobjects.external.ActiveObjectsUpgradeTask;
+import com.atlassian.activeobjects.external.ModelVersion;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.stash.user.StashUser;
+import com.atlassian.stash.user.UserService;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.DisapprovalConfiguration;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapproval;
+
+/**
+ * Fills in PullRequestDisapproval.USER_ID for rows written when only the username was stored.
+ * 
+ * Rows are walked in id order, a batch per transaction, and each distinct username is looked up once. Usernames that
+ * no longer resolve (deleted users) are left without an id; those rows keep showing the stored name.
+ * 
+ * @author cmyers
+ */
+public class Version1UpgradeTask implements ActiveObjectsUpgradeTask {
+
+    private static final int BATCH_SIZE = 500;
+
+    private final UserService userService;
+    private final Logger log;
+
+    public Version1UpgradeTask(UserService userService, PluginLoggerFactory lf) {
+        this.userService = userService;
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    @Override
+    public ModelVersion getModelVersion() {
+        return ModelVersion.valueOf("1");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void upgrade(ModelVersion currentVersion, final ActiveObjects ao) {
+        log.info("Upgrading disapproval data from version " + currentVersion + " to " + getModelVersion());
+        ao.migrate(DisapprovalConfiguration.class, PullRequestDisapproval.class);
+
+        final Map<String, Integer> userIds = new HashMap<String, Integer>();
+        int lastId = 0;
+        int migrated = 0;
+        int unresolved = 0;
+        while (true) {
+            final PullRequestDisapproval[] batch =
+                ao.find(PullRequestDisapproval.class,
+                    Query.select().where("ID > ? AND USER_ID IS NULL AND USERNAME <> ?", lastId, "None").order("ID")
+                        .limit(BATCH_SIZE));
+            if (batch.length == 0) {
+                break;
+            }
+            for (PullRequestDisapproval prd : batch) {
+                String username = prd.getDisapprovedBy();
+                if (!userIds.containsKey(username)) {
+                    StashUser user = userService.getUserByName(username);
+                    userIds.put(username, user == null ? null : user.getId());
+                }
+            }
+            int saved = ao.executeInTransaction(new TransactionCallback<Integer>() {
+
+                @Override
+                public Integer doInTransaction() {
+                    int saved = 0;
+                    for (PullRequestDisapproval prd : batch) {
+                        Integer userId = userIds.get(prd.getDisapprovedBy());
+                        if (userId != null) {
+                            prd.setDisapprovedById(userId);
+                            prd.save();
+                            ++saved;
+                        }
+                    }
+                    return saved;
+                }
+            });
+            migrated += saved;
+            unresolved += batch.length - saved;
+            lastId = batch[batch.length - 1].getID();
+        }
+        log.info("Stored user ids for " + migrated + " disapprovals, " + unresolved
+            + " had usernames that no longer exist");
+    }
+}
@@ -0,0 +1,55 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.upgrade;
+
+import org.slf4j.Logger;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.activeobjects.external.ActiveObjectsUpgradeTask;
+import com.atlassian.activeobjects.external.ModelVersion;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.DisapprovalConfiguration;
+import com.palantir.stash.disapprove.persistence.DisapprovalDefaults;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapproval;
+
+/**
+ * Adds the project and global defaults, which repositories without a configuration row of their own inherit.
+ * 
+ * Until now a configuration row was created for every repository the first time it was looked at, with the built-in
+ * default of strict mode, disabled. Those rows are kept as the repositories' own configuration: the configuration page
+ * saved an admin switching disapproval off as exactly the same row, so the two can't be told apart, and dropping them
+ * would let enabled defaults switch disapproval back on where an admin had switched it off.
+ * 
+ * @author cmyers
+ */
+public class Version2UpgradeTask implements ActiveObjectsUpgradeTask {
+
+    private final Logger log;
+
+    public Version2UpgradeTask(PluginLoggerFactory lf) {
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    @Override
+    public ModelVersion getModelVersion() {
+        return ModelVersion.valueOf("2");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void upgrade(ModelVersion currentVersion, ActiveObjects ao) {
+        log.info("Upgrading disapproval data from version " + currentVersion + " to " + getModelVersion());
+        ao.migrate(DisapprovalConfiguration.class, DisapprovalDefaults.class, PullRequestDisapproval.class);
+    }
+}
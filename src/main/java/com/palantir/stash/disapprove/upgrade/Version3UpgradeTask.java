@@ -0,0 +1,89 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.upgrade;
+
+import net.java.ao.Query;
+
+import org.slf4j.Logger;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.activeobjects.external.ActiveObjectsUpgradeTask;
+import com.atlassian.activeobjects.external.ModelVersion;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.DisapprovalConfiguration;
+import com.palantir.stash.disapprove.persistence.DisapprovalDefaults;
+import com.palantir.stash.disapprove.persistence.DisapprovalHistory;
+import com.palantir.stash.disapprove.persistence.DisapprovalResolution;
+import com.palantir.stash.disapprove.persistence.DisapprovalWebhook;
+import com.palantir.stash.disapprove.persistence.DisapprovalWebhookDelivery;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapproval;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalReason;
+
+/**
+ * Gives the history rows written before the change feed existed a sequence, so the feed starts at the beginning of
+ * the history. Their ids are in the order they were written, so each row's id becomes its sequence; new sequences
+ * carry on from the largest one.
+ * 
+ * Migrating leaves only the tables it is given, so every entity of this model version is listed, not just the one
+ * that changed.
+ * 
+ * @author cmyers
+ */
+public class Version3UpgradeTask implements ActiveObjectsUpgradeTask {
+
+    private static final int BATCH_SIZE = 500;
+
+    private final Logger log;
+
+    public Version3UpgradeTask(PluginLoggerFactory lf) {
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    @Override
+    public ModelVersion getModelVersion() {
+        return ModelVersion.valueOf("3");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void upgrade(ModelVersion currentVersion, final ActiveObjects ao) {
+        log.info("Upgrading disapproval data from version " + currentVersion + " to " + getModelVersion());
+        ao.migrate(DisapprovalConfiguration.class, DisapprovalDefaults.class, PullRequestDisapproval.class,
+            PullRequestDisapprovalReason.class, DisapprovalHistory.class, DisapprovalResolution.class,
+            DisapprovalWebhook.class, DisapprovalWebhookDelivery.class);
+
+        int migrated = 0;
+        while (true) {
+            final DisapprovalHistory[] batch =
+                ao.find(DisapprovalHistory.class, Query.select().where("SEQ IS NULL").order("ID").limit(BATCH_SIZE));
+            if (batch.length == 0) {
+                break;
+            }
+            ao.executeInTransaction(new TransactionCallback<Void>() {
+
+                @Override
+                public Void doInTransaction() {
+                    for (DisapprovalHistory h : batch) {
+                        h.setSequence((long) h.getID());
+                        h.save();
+                    }
+                    return null;
+                }
+            });
+            migrated += batch.length;
+        }
+        log.info("Numbered " + migrated + " disapproval history rows for the change feed");
+    }
+}
@@ -0,0 +1,89 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.palantir.stash.disapprove.user;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+import com.atlassian.stash.user.StashUser;
+import com.atlassian.stash.user.UserService;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+
+/**
+ * Turns the user ids stored with disapprovals back into display names, for rendering only.
+ * 
+ * Names are cached for a few minutes, so a pull request list doesn't look up the same disapprover once per row, and
+ * a renamed user shows up under the new name shortly after.
+ * 
+ * @author cmyers
+ */
+public class UserNameResolver {
+
+    private static final long TTL_NANOS = TimeUnit.MINUTES.toNanos(5);
+    // far more than the number of people who go around disapproving things; if it is ever hit, start over
+    private static final int MAX_ENTRIES = 10000;
+
+    private final UserService userService;
+    private final Logger log;
+    private final ConcurrentMap<Integer, CachedName> names = new ConcurrentHashMap<Integer, CachedName>();
+
+    private static class CachedName {
+
+        private final String name;
+        private final long loadedAt;
+
+        public CachedName(String name, long loadedAt) {
+            this.name = name;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    public UserNameResolver(UserService userService, PluginLoggerFactory lf) {
+        this.userService = userService;
+        this.log = lf.getLoggerForThis(this);
+    }
+
+    /**
+     * Returns the display name of the given user.
+     * 
+     * @param userId the stored user id, may be null
+     * @param fallback what to show if there is no id or the user no longer exists, normally the stored username
+     */
+    public String getDisplayName(Integer userId, String fallback) {
+        if (userId == null) {
+            return fallback;
+        }
+        final long now = System.nanoTime();
+        CachedName cached = names.get(userId);
+        if (cached != null && now - cached.loadedAt < TTL_NANOS) {
+            return cached.name != null ? cached.name : fallback;
+        }
+
+        StashUser user = userService.getUserById(userId);
+        String name = null;
+        if (user != null) {
+            name = user.getDisplayName();
+        } else {
+            log.debug("No user with id {}, showing '{}'", userId, fallback);
+        }
+        if (names.size() >= MAX_ENTRIES) {
+            names.clear();
+        }
+        names.put(userId, new CachedName(name, now));
+        return name != null ? name : fallback;
+    }
+}
@@ -19,21 +19,28 @@ import java.io.Writer;
 import java.sql.SQLException;
 import java.util.Map;
 
+import org.apache.commons.lang.StringEscapeUtils;
 import org.slf4j.Logger;
 
 import com.atlassian.plugin.web.model.WebPanel;
 import com.atlassian.stash.pull.PullRequest;
 import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
 import com.palantir.stash.disapprove.persistence.PersistenceManager;
-import com.palantir.stash.disapprove.persistence.PullRequestDisapproval;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalSnapshot;
+import com.palantir.stash.disapprove.user.UserNameResolver;
 
 public class DisapprovalStatusWebPanel implements WebPanel {
 
+    private static final String DISAPPROVED_HTML = "<font color=\"#AA0000\">ಠ_ಠ</font> by ";
+    private static final String UNDISAPPROVED_HTML = "<font color=\"#00AA00\">( ͡° ͜ʖ ͡°)</font> by ";
+
     private final PersistenceManager pm;
+    private final UserNameResolver names;
     private final Logger log;
 
-    public DisapprovalStatusWebPanel(PersistenceManager pm, PluginLoggerFactory lf) {
+    public DisapprovalStatusWebPanel(PersistenceManager pm, UserNameResolver names, PluginLoggerFactory lf) {
         this.pm = pm;
+        this.names = names;
         this.log = lf.getLoggerForThis(this);
     }
 
@@ -51,18 +58,21 @@ public class DisapprovalStatusWebPanel implements WebPanel {
 
     @Override
     public void writeHtml(Writer writer, Map<String, Object> context) throws IOException {
-        final String DISAPPROVED_HTML = "<font color=\"#AA0000\">ಠ_ಠ</font> by __USER__";
-        final String UNDISAPPROVED_HTML = "<font color=\"#00AA00\">( ͡° ͜ʖ ͡°)</font> by __USER__";
         try {
             // TODO: need this?  Repository repo = (Repository) context.get("repository");
             PullRequest pr = (PullRequest) context.get("pullRequest");
-            PullRequestDisapproval prd = pm.getPullRequestDisapproval(pr);
+            PullRequestDisapprovalSnapshot prd = pm.getPullRequestDisapproval(pr);
 
-            log.error("TRACE TRACE:");
+            writer.append(prd.isDisapproved() ? DISAPPROVED_HTML : UNDISAPPROVED_HTML);
+            // display names are user supplied
+            writer.append(StringEscapeUtils.escapeHtml(names.getDisplayName(prd.getDisapprovedById(),
+                prd.getDisapprovedBy())));
             if (prd.isDisapproved()) {
-                writer.append(DISAPPROVED_HTML.replace("__USER__", prd.getDisapprovedBy()));
-            } else {
-                writer.append(UNDISAPPROVED_HTML.replace("__USER__", prd.getDisapprovedBy()));
+                String reason = pm.getDisapprovalReason(prd.getRepositoryId(), prd.getPullRequestId());
+                if (reason != null) {
+                    writer.append(": ");
+                    writer.append(StringEscapeUtils.escapeHtml(reason));
+                }
             }
         } catch (SQLException e) {
             throw new IOException(e);
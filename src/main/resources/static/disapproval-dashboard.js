@@ -0,0 +1,82 @@
+require(['jquery'], function($) {
+
+  var restUrl = undefined;
+  var nextPageStart = 0;
+
+  /*
+    Build the query for the next page from the filter form
+   */
+  function pageQuery () {
+    var query = { start: nextPageStart, limit: $("table#disapproval-dashboard").attr("data-limit") };
+    $.each(["project", "repo", "disapprover"], function (i, name) {
+      var value = $.trim($("#disapproval-dashboard-filter #" + name).val());
+      if (value) {
+        query[name] = value;
+      }
+    });
+    return query;
+  }
+
+  function addRow (tbody, pr) {
+    var row = $("<tr></tr>");
+    if (pr.projectKey) {
+      row.append($("<td></td>").text(pr.projectKey + "/" + pr.repositorySlug));
+      row.append($("<td></td>").append($("<a></a>").attr("href", pr.link)
+                                                 .text("#" + pr.pullRequestId + (pr.title ? " " + pr.title : ""))));
+    } else {
+      // the repository is gone, but the row hasn't been cleaned up yet
+      row.append($("<td></td>").text("(deleted repository " + pr.repositoryId + ")"));
+      row.append($("<td></td>").text("#" + pr.pullRequestId));
+    }
+    row.append($("<td></td>").text(pr.disapprovedBy));
+    tbody.append(row);
+  }
+
+  /*
+    Fetch the next page and append it to the table
+   */
+  function loadPage () {
+    $("#disapproval-dashboard-more").addClass("hidden");
+    $.getJSON(restUrl, pageQuery(), function (data) {
+      var tbody = $("table#disapproval-dashboard tbody");
+      $.each(data.values, function (i, pr) {
+        addRow(tbody, pr);
+      });
+      if (!data.isLastPage) {
+        nextPageStart = data.nextPageStart;
+        $("#disapproval-dashboard-more").removeClass("hidden");
+      }
+    }).fail(function (xhr) {
+      var message = xhr.status;
+      try {
+        message = JSON.parse(xhr.responseText).error;
+      } catch (e) {
+        // not one of ours, show the status
+      }
+      $("#disapproval-dashboard-error").text("Unable to load disapprovals: " + message).removeClass("hidden");
+    });
+  }
+
+  $(document).ready(function() {
+    // every script in this context is loaded on every disapproval page, only run on the dashboard
+    if ($("table#disapproval-dashboard").size() === 0) {
+      return;
+    }
+    restUrl = AJS.contextPath() + "/rest/disapproval/1.0/disapprovals";
+
+    $("#disapproval-dashboard-filter").submit(function (e) {
+      e.preventDefault();
+      $("table#disapproval-dashboard tbody").empty();
+      $("#disapproval-dashboard-error").addClass("hidden");
+      nextPageStart = 0;
+      loadPage();
+    });
+    $("#disapproval-dashboard-more").click(function (e) {
+      e.preventDefault();
+      loadPage();
+    });
+
+    loadPage();
+  });
+
+});
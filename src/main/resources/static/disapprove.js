@@ -11,7 +11,7 @@ require(['model/page-state', 'util/navbuilder', 'jquery'], function(state, nav,
         commit = state.getPullRequest().attributes.fromRef.attributes.latestChangeset;
 	    prId = state.getPullRequest().attributes.id;
 	    version = state.getPullRequest().attributes.version;
-        prd = $.get(baseUrl + '/disapproval/disapprove/' + repoId + '/' + prId)
+        prd = $.get(baseUrl + '/disapproval/disapprove/' + repoId + '/' + prId + '?withReason=true')
         
         // Surface to user who disapproved the request and make its status more obvious
         prd.success(function(data) {
@@ -21,7 +21,12 @@ require(['model/page-state', 'util/navbuilder', 'jquery'], function(state, nav,
         		console.log("Pull Request NOT Disapproved")
         	}
 	        var upr = $(".disapproval-face")
-	        upr.html(upr.html() + " <small>(by " + data.disapprovedBy + ")</small>")
+	        // the display name is user editable, so it goes in as text too
+	        upr.append(" ").append($("<small/>").text("(by " + data.disapprovedBy + ")"))
+	        if (data.reason) {
+	        	// the reason is user supplied, so it goes in as text
+	        	upr.append(" ").append($("<small/>").text(data.reason))
+	        }
         });
         prd.fail(function(data) {
         	if (data.responseJSON.error) {
@@ -41,7 +46,12 @@ require(['model/page-state', 'util/navbuilder', 'jquery'], function(state, nav,
             button = button[0];
             button.html
             button.onclick = function() {
-                var jqxhr = $.post(baseUrl + '/disapproval/disapprove', {"repoId":repoId, "prId":prId, "disapproved":"true"});
+                var reason = prompt("Why are you disapproving this pull request? (optional)", "");
+                if (reason === null) {
+                	// cancelled
+                	return;
+                }
+                var jqxhr = $.post(baseUrl + '/disapproval/disapprove', {"repoId":repoId, "prId":prId, "disapproved":"true", "reason":reason});
                 jqxhr.done(function(data) {
 	                console.log("success: " + JSON.stringify(data));
                 	window.location.reload(true);
@@ -0,0 +1,278 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import ut.com.palantir.stash.harness.StashStubs;
+import ut.com.palantir.stash.harness.StashStubs.Answer;
+import ch.qos.logback.classic.Level;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.sal.api.auth.LoginUriProvider;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestRef;
+import com.atlassian.stash.pull.PullRequestService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.request.RequestContext;
+import com.atlassian.stash.request.RequestManager;
+import com.atlassian.stash.scm.pull.MergeRequest;
+import com.atlassian.stash.user.PermissionService;
+import com.atlassian.stash.user.PermissionValidationService;
+import com.atlassian.stash.user.StashAuthenticationContext;
+import com.atlassian.stash.user.StashUser;
+import com.atlassian.stash.user.UserService;
+import com.google.common.collect.ImmutableMap;
+import com.palantir.stash.disapprove.conditions.CanUserDisapprove;
+import com.palantir.stash.disapprove.conditions.IsDisapprovalEnabledForRepoCondition;
+import com.palantir.stash.disapprove.conditions.IsPullRequestDisapproved;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.mergecheck.PullRequestDisapprovalMergeCheck;
+import com.palantir.stash.disapprove.persistence.DisapprovalConfigurationSnapshot;
+import com.palantir.stash.disapprove.persistence.DisapprovalMode;
+import com.palantir.stash.disapprove.persistence.DisapprovalStatus;
+import com.palantir.stash.disapprove.persistence.MergeFreeze;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalSnapshot;
+import com.palantir.stash.disapprove.servlet.DisapprovalServlet;
+import com.palantir.stash.disapprove.user.UserNameResolver;
+
+/**
+ * Measures the bytes allocated per call on the request hot paths, with debug/trace logging off, and fails if they creep
+ * past a budget.
+ *
+ * The database is replaced by a PersistenceManager returning fixed snapshots, and Stash services by {@link StashStubs}
+ * (which, unlike mocks, don't record invocations), so what is measured is the plugin code plus a few bytes of stub
+ * overhead for argument arrays.
+ */
+public class AllocationBudgetTest {
+
+    private static final int WARMUP = 50000;
+    private static final int ITERATIONS = 100000;
+
+    // bytes per invocation
+    private static final long MERGE_CHECK_BUDGET = 128;
+    private static final long CONDITION_BUDGET = 128;
+    // splitting the path info into its parts accounts for most of this
+    private static final long GET_SERVLET_BUDGET = 1024;
+
+    private com.sun.management.ThreadMXBean threadBean;
+
+    private PluginLoggerFactory plf;
+    private Level originalLevel;
+    private PersistenceManager pm;
+    private UserNameResolver names;
+    private Repository repo;
+    private PullRequest pr;
+    private StashUser user;
+
+    /**
+     * Serves the same two rows for everything without touching AO.
+     */
+    private static class FixedPersistenceManager extends PersistenceManager {
+
+        private final DisapprovalConfigurationSnapshot dc;
+        private final PullRequestDisapprovalSnapshot prd;
+        private final DisapprovalStatus status;
+
+        public FixedPersistenceManager(PluginLoggerFactory lf, DisapprovalConfigurationSnapshot dc,
+            PullRequestDisapprovalSnapshot prd) {
+            super((ActiveObjects) null, lf);
+            this.dc = dc;
+            this.prd = prd;
+            this.status =
+                new DisapprovalStatus(dc.getRepositoryId(), prd.getPullRequestId(), dc.isEnabled(),
+                    dc.getDisapprovalMode(), prd.isDisapproved(), prd.getDisapprovedById(), prd.getDisapprovedBy());
+        }
+
+        @Override
+        public DisapprovalConfigurationSnapshot getDisapprovalConfiguration(Repository repo) {
+            return dc;
+        }
+
+        @Override
+        public MergeFreeze getMergeFreeze(Repository repo) {
+            return dc.getFreeze();
+        }
+
+        @Override
+        public PullRequestDisapprovalSnapshot getPullRequestDisapproval(PullRequest pr) {
+            return prd;
+        }
+
+        @Override
+        public DisapprovalStatus getDisapprovalStatus(PullRequest pr) {
+            return status;
+        }
+    }
+
+    private interface Invocation {
+
+        void invoke() throws Exception;
+    }
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        plf = new PluginLoggerFactory();
+        // info stays on, so this checks the debug/trace calls are lazy rather than that logging is off entirely
+        ch.qos.logback.classic.Logger root =
+            (ch.qos.logback.classic.Logger) plf.getLogger("com.palantir.stash.disapprove");
+        originalLevel = root.getLevel();
+        root.setLevel(Level.INFO);
+
+        repo = StashStubs.stub(Repository.class, ImmutableMap.of("getId", 1, "getName", "repo", "getSlug", "repo"));
+        PullRequestRef toRef = StashStubs.stub(PullRequestRef.class, ImmutableMap.of("getRepository", repo));
+        pr = StashStubs.stub(PullRequest.class, ImmutableMap.of("getId", 2L, "getToRef", toRef, "getTitle", "title"));
+        user = StashStubs.stub(StashUser.class, ImmutableMap.of("getName", "someuser", "getId", 3));
+
+        names = new UserNameResolver(StashStubs.stub(UserService.class), plf);
+        pm =
+            new FixedPersistenceManager(plf, new DisapprovalConfigurationSnapshot(1, true, DisapprovalMode.STRICT_MODE),
+                new PullRequestDisapprovalSnapshot(1, 2L, false, null, "None"));
+    }
+
+    @After
+    public void tearDown() {
+        if (plf != null) {
+            ((ch.qos.logback.classic.Logger) plf.getLogger("com.palantir.stash.disapprove")).setLevel(originalLevel);
+        }
+    }
+
+    @Test
+    public void testMergeCheck() throws Exception {
+        final PullRequestDisapprovalMergeCheck mc = new PullRequestDisapprovalMergeCheck(pm, names, plf);
+        final MergeRequest mr = StashStubs.stub(MergeRequest.class, ImmutableMap.of("getPullRequest", pr));
+
+        assertBudget("merge check", MERGE_CHECK_BUDGET, new Invocation() {
+
+            @Override
+            public void invoke() {
+                mc.check(mr);
+            }
+        });
+    }
+
+    @Test
+    public void testConditions() throws Exception {
+        final Map<String, Object> context = ImmutableMap.<String, Object> of("pullRequest", pr, "repository", repo,
+            "currentUser", user);
+        final IsPullRequestDisapproved iprd = new IsPullRequestDisapproved(pm, plf);
+        final IsDisapprovalEnabledForRepoCondition enabled = new IsDisapprovalEnabledForRepoCondition(pm, plf);
+        final CanUserDisapprove cud =
+            new CanUserDisapprove(StashStubs.stub(PermissionService.class, ImmutableMap.of("hasRepositoryPermission",
+                true)), pm, plf);
+
+        assertBudget("conditions", CONDITION_BUDGET, new Invocation() {
+
+            @Override
+            public void invoke() {
+                iprd.shouldDisplay(context);
+                enabled.shouldDisplay(context);
+                cud.shouldDisplay(context);
+            }
+        });
+    }
+
+    @Test
+    public void testGetServlet() throws Exception {
+        StashAuthenticationContext sac =
+            StashStubs.stub(StashAuthenticationContext.class, ImmutableMap.of("getCurrentUser", user));
+        RequestContext rc = StashStubs.stub(RequestContext.class, ImmutableMap.of("getAuthenticationContext", sac));
+        RequestManager rm = StashStubs.stub(RequestManager.class, ImmutableMap.of("getRequestContext", rc));
+        PullRequestService prs = StashStubs.stub(PullRequestService.class, ImmutableMap.of("getById", new Answer() {
+
+            @Override
+            public Object answer(Object[] args) {
+                return pr;
+            }
+        }));
+        final DisapprovalServlet ds =
+            new DisapprovalServlet(StashStubs.stub(LoginUriProvider.class, ImmutableMap.of("getLoginUri",
+                URI.create("http://localhost/login"))), StashStubs.stub(PermissionValidationService.class), prs, pm,
+                rm, null, null, names, plf);
+
+        final javax.servlet.http.HttpServletRequest req =
+            StashStubs.stub(javax.servlet.http.HttpServletRequest.class,
+                ImmutableMap.of("getPathInfo", "/disapproval/disapprove/1/2"));
+        final javax.servlet.http.HttpServletResponse res =
+            StashStubs.stub(javax.servlet.http.HttpServletResponse.class,
+                ImmutableMap.of("getWriter", new DiscardingPrintWriter()));
+
+        assertBudget("GET servlet", GET_SERVLET_BUDGET, new Invocation() {
+
+            @Override
+            public void invoke() throws Exception {
+                ds.doGet(req, res);
+            }
+        });
+    }
+
+    private void assertBudget(String what, long budget, Invocation invocation) throws Exception {
+        for (int i = 0; i < WARMUP; ++i) {
+            invocation.invoke();
+        }
+        final long tid = Thread.currentThread().getId();
+        final long before = threadBean.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < ITERATIONS; ++i) {
+            invocation.invoke();
+        }
+        final long perInvocation = (threadBean.getThreadAllocatedBytes(tid) - before) / ITERATIONS;
+        System.out.println(what + ": " + perInvocation + " bytes/invocation (budget " + budget + ")");
+        Assert.assertTrue(what + " allocated " + perInvocation + " bytes/invocation, budget is " + budget,
+            perInvocation <= budget);
+    }
+
+    /**
+     * A response writer that survives being closed after every request and throws the bytes away.
+     */
+    private static class DiscardingPrintWriter extends PrintWriter {
+
+        public DiscardingPrintWriter() {
+            super(new Writer() {
+
+                @Override
+                public void write(char[] cbuf, int off, int len) {
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+        }
+
+        @Override
+        public void close() {
+            // reused across invocations
+        }
+    }
+}
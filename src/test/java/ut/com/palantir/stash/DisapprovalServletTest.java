@@ -108,7 +108,7 @@ public class DisapprovalServletTest {
         Mockito.doAnswer(delegate).when(sos).write((byte[]) Mockito.any(), Mockito.anyInt(), Mockito.anyInt());
         Mockito.when(res.getOutputStream()).thenReturn(sos);
 
-        ds = new DisapprovalServlet(lup, pvs, null, pm, rm, null, plf);
+        ds = new DisapprovalServlet(lup, pvs, null, pm, rm, null, null, null, plf);
 
     }
 
@@ -0,0 +1,71 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.palantir.stash.disapprove.persistence.MergeFreeze;
+
+public class MergeFreezeTest {
+
+    @Test
+    public void testEveryBranch() {
+        MergeFreeze freeze = MergeFreeze.of(true, " ");
+
+        Assert.assertTrue(freeze.appliesTo("refs/heads/master"));
+        Assert.assertTrue(freeze.appliesTo("refs/heads/feature/x"));
+        Assert.assertNull(freeze.getBranchesStr());
+    }
+
+    @Test
+    public void testPatterns() {
+        MergeFreeze freeze = MergeFreeze.of(true, "release/*, master refs/heads/hot.fix");
+
+        Assert.assertEquals(ImmutableList.of("release/*", "master", "refs/heads/hot.fix"), freeze.getBranches());
+        Assert.assertTrue(freeze.appliesTo("refs/heads/release/1.0"));
+        Assert.assertTrue(freeze.appliesTo("refs/heads/master"));
+        Assert.assertTrue(freeze.appliesTo("refs/heads/hot.fix"));
+        // names are matched whole, and dots are not wildcards
+        Assert.assertFalse(freeze.appliesTo("refs/heads/master2"));
+        Assert.assertFalse(freeze.appliesTo("refs/heads/hotxfix"));
+        Assert.assertFalse(freeze.appliesTo("refs/tags/release/1.0"));
+    }
+
+    @Test
+    public void testNotFrozen() {
+        Assert.assertFalse(MergeFreeze.NONE.appliesTo("refs/heads/master"));
+        // the patterns are kept for when it is frozen again
+        MergeFreeze thawed = MergeFreeze.of(false, "master");
+        Assert.assertFalse(thawed.appliesTo("refs/heads/master"));
+        Assert.assertEquals("master", thawed.getBranchesStr());
+    }
+
+    @Test
+    public void testAnd() {
+        MergeFreeze release = MergeFreeze.of(true, "release/*");
+        MergeFreeze master = MergeFreeze.of(true, "master");
+
+        MergeFreeze both = release.and(master);
+        Assert.assertTrue(both.appliesTo("refs/heads/master"));
+        Assert.assertTrue(both.appliesTo("refs/heads/release/2"));
+        Assert.assertFalse(both.appliesTo("refs/heads/develop"));
+
+        Assert.assertSame(release, release.and(MergeFreeze.of(false, "master")));
+        Assert.assertTrue(release.and(MergeFreeze.of(true, null)).appliesTo("refs/heads/develop"));
+        Assert.assertSame(master, MergeFreeze.NONE.and(master));
+    }
+}
@@ -0,0 +1,193 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestRef;
+import com.atlassian.stash.pull.PullRequestState;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.user.UserService;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.mergecheck.MergeVeto;
+import com.palantir.stash.disapprove.mergecheck.MergeVetoEvaluator;
+import com.palantir.stash.disapprove.persistence.DisapprovalMode;
+import com.palantir.stash.disapprove.persistence.DisapprovalStatus;
+import com.palantir.stash.disapprove.persistence.MergeFreeze;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.user.UserNameResolver;
+
+public class MergeVetoEvaluatorTest {
+
+    private static final List<Long> PR_IDS = ImmutableList.of(1L, 2L, 3L);
+
+    @Mock
+    private PersistenceManager pm;
+    @Mock
+    private Repository repo;
+    @Mock
+    private UserService us;
+    @Mock
+    private PullRequestRef master;
+    @Mock
+    private PullRequestRef release;
+    @Mock
+    private PullRequest pr1;
+    @Mock
+    private PullRequest pr2;
+    @Mock
+    private PullRequest pr3;
+    @Mock
+    private Function<Long, PullRequest> pullRequests;
+
+    private MergeVetoEvaluator evaluator;
+
+    @Before
+    public void setUp() throws SQLException {
+        MockitoAnnotations.initMocks(this);
+
+        Mockito.when(repo.getId()).thenReturn(1);
+        Mockito.when(pm.getMergeFreeze(repo)).thenReturn(MergeFreeze.NONE);
+        Mockito.when(master.getId()).thenReturn("refs/heads/master");
+        Mockito.when(master.getDisplayId()).thenReturn("master");
+        Mockito.when(release.getId()).thenReturn("refs/heads/release/1.0");
+        Mockito.when(release.getDisplayId()).thenReturn("release/1.0");
+        Mockito.when(pr1.getToRef()).thenReturn(master);
+        Mockito.when(pr2.getToRef()).thenReturn(release);
+        Mockito.when(pr3.getToRef()).thenReturn(master);
+        for (PullRequest pr : ImmutableList.of(pr1, pr2, pr3)) {
+            Mockito.when(pr.getState()).thenReturn(PullRequestState.OPEN);
+        }
+        Mockito.when(pullRequests.apply(1L)).thenReturn(pr1);
+        Mockito.when(pullRequests.apply(2L)).thenReturn(pr2);
+        Mockito.when(pullRequests.apply(3L)).thenReturn(pr3);
+
+        PluginLoggerFactory plf = new PluginLoggerFactory();
+        evaluator = new MergeVetoEvaluator(pm, new UserNameResolver(us, plf), plf);
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        setStatuses(DisapprovalMode.STRICT_MODE, true);
+
+        Map<Long, MergeVeto> vetoes = evaluator.evaluate(repo, PR_IDS, pullRequests);
+
+        Assert.assertEquals(PR_IDS, ImmutableList.copyOf(vetoes.keySet()));
+        Assert.assertEquals(MergeVeto.Outcome.ALLOWED, vetoes.get(1L).getOutcome());
+        Assert.assertFalse(vetoes.get(1L).isVetoed());
+        Assert.assertEquals(MergeVeto.Outcome.VETOED, vetoes.get(2L).getOutcome());
+        Assert.assertTrue(vetoes.get(2L).getDetail().contains("'someuser'"));
+        Assert.assertEquals(MergeVeto.Outcome.ALLOWED, vetoes.get(3L).getOutcome());
+    }
+
+    @Test
+    public void testBatchOfMissingAndClosedPullRequests() throws Exception {
+        Mockito.when(pullRequests.apply(1L)).thenReturn(null);
+        Mockito.when(pr3.getState()).thenReturn(PullRequestState.MERGED);
+        Mockito.when(pm.getDisapprovalStatuses(repo, ImmutableList.of(2L))).thenReturn(ImmutableMap.of(
+            2L, status(2L, DisapprovalMode.STRICT_MODE, true, true)));
+
+        Map<Long, MergeVeto> vetoes = evaluator.evaluate(repo, PR_IDS, pullRequests);
+
+        Assert.assertEquals(PR_IDS, ImmutableList.copyOf(vetoes.keySet()));
+        Assert.assertEquals(MergeVeto.Outcome.NOT_FOUND, vetoes.get(1L).getOutcome());
+        Assert.assertFalse(vetoes.get(1L).isVetoed());
+        Assert.assertEquals(MergeVeto.Outcome.VETOED, vetoes.get(2L).getOutcome());
+        Assert.assertEquals(MergeVeto.Outcome.CLOSED, vetoes.get(3L).getOutcome());
+        Assert.assertFalse(vetoes.get(3L).isVetoed());
+    }
+
+    @Test
+    public void testBatchInAdvisoryModeAndDisabled() throws Exception {
+        setStatuses(DisapprovalMode.ADVISORY_MODE, true);
+        Assert.assertEquals(MergeVeto.Outcome.ADVISORY, evaluator.evaluate(repo, PR_IDS, pullRequests).get(2L)
+            .getOutcome());
+
+        setStatuses(DisapprovalMode.STRICT_MODE, false);
+        Assert.assertEquals(MergeVeto.Outcome.DISABLED, evaluator.evaluate(repo, PR_IDS, pullRequests).get(2L)
+            .getOutcome());
+    }
+
+    @Test
+    public void testBatchFreezeOfSomeBranches() throws Exception {
+        Mockito.when(pm.getMergeFreeze(repo)).thenReturn(MergeFreeze.of(true, "release/*"));
+        Mockito.when(pm.getDisapprovalStatuses(repo, ImmutableList.of(1L, 3L))).thenReturn(ImmutableMap.of(
+            1L, status(1L, DisapprovalMode.STRICT_MODE, true, false),
+            3L, status(3L, DisapprovalMode.STRICT_MODE, true, false)));
+
+        Map<Long, MergeVeto> vetoes = evaluator.evaluate(repo, PR_IDS, pullRequests);
+
+        Assert.assertEquals(MergeVeto.Outcome.ALLOWED, vetoes.get(1L).getOutcome());
+        Assert.assertEquals(MergeVeto.Outcome.FROZEN, vetoes.get(2L).getOutcome());
+        Assert.assertTrue(vetoes.get(2L).getDetail().contains("release/1.0"));
+        Assert.assertEquals(MergeVeto.Outcome.ALLOWED, vetoes.get(3L).getOutcome());
+    }
+
+    @Test
+    public void testBatchFreezeOfEveryBranch() throws Exception {
+        Mockito.when(pm.getMergeFreeze(repo)).thenReturn(MergeFreeze.of(true, null));
+
+        for (MergeVeto veto : evaluator.evaluate(repo, PR_IDS, pullRequests).values()) {
+            Assert.assertEquals(MergeVeto.Outcome.FROZEN, veto.getOutcome());
+        }
+        // decided on the configuration alone
+        Mockito.verify(pm, Mockito.never()).getDisapprovalStatuses(Mockito.eq(repo), Mockito.eq(PR_IDS));
+    }
+
+    @Test
+    public void testBatchVetoesWhenStatusUnavailable() throws Exception {
+        Mockito.when(pm.getDisapprovalStatuses(repo, PR_IDS)).thenThrow(new SQLException("db down"));
+
+        for (MergeVeto veto : evaluator.evaluate(repo, PR_IDS, pullRequests).values()) {
+            Assert.assertEquals(MergeVeto.Outcome.ERROR, veto.getOutcome());
+            Assert.assertTrue(veto.isVetoed());
+        }
+    }
+
+    @Test
+    public void testBatchAllowsWhenConfigurationUnavailable() throws Exception {
+        Mockito.when(pm.getMergeFreeze(repo)).thenThrow(new SQLException("db down"));
+
+        for (MergeVeto veto : evaluator.evaluate(repo, PR_IDS, pullRequests).values()) {
+            Assert.assertEquals(MergeVeto.Outcome.ERROR, veto.getOutcome());
+            Assert.assertFalse(veto.isVetoed());
+        }
+    }
+
+    // only pull request 2 is disapproved
+    private void setStatuses(DisapprovalMode mode, boolean enabled) throws SQLException {
+        Mockito.when(pm.getDisapprovalStatuses(repo, PR_IDS)).thenReturn(ImmutableMap.of(
+            1L, status(1L, mode, enabled, false),
+            2L, status(2L, mode, enabled, true),
+            3L, status(3L, mode, enabled, false)));
+    }
+
+    private static DisapprovalStatus status(long prId, DisapprovalMode mode, boolean enabled, boolean disapproved) {
+        return new DisapprovalStatus(1, prId, enabled, mode, disapproved, null, disapproved ? "someuser" : "None");
+    }
+}
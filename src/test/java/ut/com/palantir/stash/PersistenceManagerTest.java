@@ -13,9 +13,16 @@
 // limitations under the License.
 package ut.com.palantir.stash;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import javax.servlet.http.HttpServletRequest;
 
 import junit.framework.Assert;
+import net.java.ao.DBParam;
 import net.java.ao.EntityManager;
 import net.java.ao.test.jdbc.Data;
 import net.java.ao.test.jdbc.DatabaseUpdater;
@@ -34,16 +41,40 @@ import ut.com.palantir.stash.PersistenceManagerTest.DataStuff;
 
 import com.atlassian.activeobjects.external.ActiveObjects;
 import com.atlassian.activeobjects.test.TestActiveObjects;
+import com.atlassian.stash.project.Project;
 import com.atlassian.stash.pull.PullRequest;
 import com.atlassian.stash.pull.PullRequestRef;
 import com.atlassian.stash.pull.PullRequestService;
 import com.atlassian.stash.repository.Repository;
 import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.StashUser;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.BulkDisapprovalResult;
+import com.palantir.stash.disapprove.persistence.DisapprovalAction;
+import com.palantir.stash.disapprove.persistence.DisapprovalChangePage;
 import com.palantir.stash.disapprove.persistence.DisapprovalConfiguration;
+import com.palantir.stash.disapprove.persistence.DisapprovalConfigurationImpl;
+import com.palantir.stash.disapprove.persistence.DisapprovalConfigurationSnapshot;
+import com.palantir.stash.disapprove.persistence.DisapprovalDefaults;
+import com.palantir.stash.disapprove.persistence.DisapprovalDefaultsSnapshot;
+import com.palantir.stash.disapprove.persistence.DisapprovalHistory;
+import com.palantir.stash.disapprove.persistence.DisapprovalHistoryEntry;
+import com.palantir.stash.disapprove.persistence.DisapprovalHistoryPage;
 import com.palantir.stash.disapprove.persistence.DisapprovalMode;
+import com.palantir.stash.disapprove.persistence.DisapprovalPage;
+import com.palantir.stash.disapprove.persistence.DisapprovalResolution;
+import com.palantir.stash.disapprove.persistence.DisapprovalResolutionSnapshot;
+import com.palantir.stash.disapprove.persistence.DisapprovalStatus;
+import com.palantir.stash.disapprove.persistence.DisapprovalWebhook;
+import com.palantir.stash.disapprove.persistence.DisapprovalWebhookDelivery;
+import com.palantir.stash.disapprove.persistence.MergeFreeze;
 import com.palantir.stash.disapprove.persistence.PersistenceManager;
 import com.palantir.stash.disapprove.persistence.PullRequestDisapproval;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalReason;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalSnapshot;
+import com.palantir.stash.disapprove.persistence.RescopePolicy;
 
 @RunWith(ActiveObjectsJUnitRunner.class)
 @Jdbc(DynamicJdbcConfiguration.class)
@@ -52,6 +83,8 @@ public class PersistenceManagerTest {
 
     private static final Long PR_ID = 1234L;
     private static final Integer REPO_ID = 1235;
+    private static final Integer USER_ID = 1236;
+    private static final Integer PROJECT_ID = 1237;
     private static final String FROM_SHA = "8e57a8b77501710fe1e30a3500102c0968763107";
     private static final String TO_SHA = "beefbeef7501710fe1e30a3500102c0968763107";
 
@@ -73,7 +106,11 @@ public class PersistenceManagerTest {
     @Mock
     private Repository repo;
     @Mock
+    private Project project;
+    @Mock
     private HttpServletRequest req;
+    @Mock
+    private StashUser user;
 
     private final PluginLoggerFactory lf = new PluginLoggerFactory();
 
@@ -82,7 +119,9 @@ public class PersistenceManagerTest {
         @SuppressWarnings("unchecked")
         @Override
         public void update(EntityManager entityManager) throws Exception {
-            entityManager.migrate(DisapprovalConfiguration.class, PullRequestDisapproval.class);
+            entityManager.migrate(DisapprovalConfiguration.class, PullRequestDisapproval.class,
+                DisapprovalDefaults.class, PullRequestDisapprovalReason.class, DisapprovalHistory.class,
+                DisapprovalResolution.class, DisapprovalWebhook.class, DisapprovalWebhookDelivery.class);
         }
 
     }
@@ -101,6 +140,10 @@ public class PersistenceManagerTest {
         Mockito.when(toRef.getLatestChangeset()).thenReturn(TO_SHA);
         Mockito.when(fromRef.getLatestChangeset()).thenReturn(FROM_SHA);
         Mockito.when(repo.getId()).thenReturn(REPO_ID);
+        Mockito.when(repo.getProject()).thenReturn(project);
+        Mockito.when(project.getId()).thenReturn(PROJECT_ID);
+        Mockito.when(user.getId()).thenReturn(USER_ID);
+        Mockito.when(user.getName()).thenReturn("someuser");
 
         Mockito.when(prs.getById(Mockito.anyInt(), Mockito.anyLong())).thenReturn(pr);
         Mockito.when(rs.getById(Mockito.anyInt())).thenReturn(repo);
@@ -115,17 +158,23 @@ public class PersistenceManagerTest {
 
         int sizeOfData = ao.count(PullRequestDisapproval.class);
 
-        cpm.setPullRequestDisapproval(pr, "someuser", true);
+        cpm.setPullRequestDisapproval(pr, user, true);
 
         // Assert a new row was added
         Assert.assertEquals(sizeOfData + 1, ao.count(PullRequestDisapproval.class));
 
-        PullRequestDisapproval prd = cpm.getPullRequestDisapproval(pr);
+        PullRequestDisapprovalSnapshot prd = cpm.getPullRequestDisapproval(pr);
 
         Assert.assertTrue(prd.isDisapproved());
         Assert.assertEquals(prd.getDisapprovedBy(), "someuser");
+        Assert.assertEquals(USER_ID, prd.getDisapprovedById());
+        Assert.assertTrue(prd.isDisapprovedBy(user));
 
-        cpm.setPullRequestDisapproval(pr, "someuser", false);
+        // a rename doesn't change who disapproved
+        Mockito.when(user.getName()).thenReturn("renameduser");
+        Assert.assertTrue(prd.isDisapprovedBy(user));
+
+        cpm.setPullRequestDisapproval(pr, user, false);
 
         // Assert the same row was modified
         Assert.assertEquals(sizeOfData + 1, ao.count(PullRequestDisapproval.class));
@@ -145,10 +194,10 @@ public class PersistenceManagerTest {
 
         Assert.assertEquals(sizeOfData + 1, ao.count(DisapprovalConfiguration.class));
 
-        DisapprovalConfiguration dc = cpm.getDisapprovalConfiguration(repo);
+        DisapprovalConfigurationSnapshot dc = cpm.getDisapprovalConfiguration(repo);
 
         Assert.assertEquals(dc.getDisapprovalMode(), DisapprovalMode.ADVISORY_MODE);
-        Assert.assertEquals(dc.getRepository(rs), repo);
+        Assert.assertEquals(REPO_ID.intValue(), dc.getRepositoryId());
 
         dc = cpm.getDisapprovalConfiguration(repo);
     }
@@ -164,29 +213,137 @@ public class PersistenceManagerTest {
 
         Assert.assertEquals(sizeOfData + 1, ao.count(DisapprovalConfiguration.class));
 
-        DisapprovalConfiguration dc = cpm.getDisapprovalConfiguration(repo);
+        DisapprovalConfigurationSnapshot dc = cpm.getDisapprovalConfiguration(repo);
 
         Assert.assertEquals(dc.getDisapprovalMode(), DisapprovalMode.STRICT_MODE);
-        Assert.assertEquals(dc.getRepository(rs), repo);
+        Assert.assertEquals(REPO_ID.intValue(), dc.getRepositoryId());
 
         dc = cpm.getDisapprovalConfiguration(repo);
     }
 
     @Test
-    public void testDisapprovalConfigurationGetCreates() throws Exception {
+    public void testDisapprovalConfigurationGetDoesNotCreate() throws Exception {
+        Repository other = mockRepository(9101, 9100);
 
         int sizeOfData = ao.count(DisapprovalConfiguration.class);
 
-        DisapprovalConfiguration dc = cpm.getDisapprovalConfiguration(repo);
+        DisapprovalConfigurationSnapshot dc = cpm.getDisapprovalConfiguration(other);
 
         Assert.assertNotNull(dc);
-        Assert.assertEquals(sizeOfData + 1, ao.count(DisapprovalConfiguration.class));
+        Assert.assertTrue(dc.isInherited());
+        Assert.assertEquals(sizeOfData, ao.count(DisapprovalConfiguration.class));
+    }
+
+    @Test
+    public void testDisapprovalDefaults() throws Exception {
+        final int projectId = 9200;
+        Repository inheriting = mockRepository(9201, projectId);
+        Repository explicit = mockRepository(9202, projectId);
+        cpm.setDisapprovalConfiguration(explicit, DisapprovalMode.STRICT_MODE, false);
+
+        try {
+            // nothing set anywhere: strict, disabled
+            DisapprovalConfigurationSnapshot dc = cpm.getDisapprovalConfiguration(inheriting);
+            Assert.assertTrue(dc.isInherited());
+            Assert.assertFalse(dc.isEnabled());
+            Assert.assertEquals(DisapprovalMode.STRICT_MODE, dc.getDisapprovalMode());
+            Assert.assertNull(cpm.getDisapprovalDefaults(projectId));
+
+            // the cached copy above goes stale as soon as any defaults change
+            cpm.setDisapprovalDefaults(PersistenceManager.GLOBAL_DEFAULTS, DisapprovalMode.ADVISORY_MODE, true);
+            dc = cpm.getDisapprovalConfiguration(inheriting);
+            Assert.assertTrue(dc.isEnabled());
+            Assert.assertEquals(DisapprovalMode.ADVISORY_MODE, dc.getDisapprovalMode());
+
+            // the project wins over the instance
+            cpm.setDisapprovalDefaults(projectId, DisapprovalMode.STRICT_MODE, true);
+            dc = cpm.getDisapprovalConfiguration(inheriting);
+            Assert.assertTrue(dc.isEnabled());
+            Assert.assertEquals(DisapprovalMode.STRICT_MODE, dc.getDisapprovalMode());
+
+            // listed for export, global first
+            List<DisapprovalDefaultsSnapshot> listed = cpm.findDisapprovalDefaults(-1, 1000);
+            Assert.assertEquals(PersistenceManager.GLOBAL_DEFAULTS, listed.get(0).getProjectId());
+            Assert.assertEquals(DisapprovalMode.ADVISORY_MODE, listed.get(0).getDisapprovalMode());
+            Assert.assertEquals(projectId, cpm.findDisapprovalDefaults(projectId - 1, 1).get(0).getProjectId());
+
+            // and the repository's own configuration over both
+            dc = cpm.getDisapprovalConfiguration(explicit);
+            Assert.assertFalse(dc.isInherited());
+            Assert.assertFalse(dc.isEnabled());
+
+            // going back to the defaults removes the row
+            cpm.clearDisapprovalConfiguration(explicit);
+            Assert.assertEquals(0, ao.count(DisapprovalConfiguration.class, "REPO_ID = ?", 9202));
+            Assert.assertTrue(cpm.getDisapprovalConfiguration(explicit).isEnabled());
+
+            cpm.clearDisapprovalDefaults(projectId);
+            dc = cpm.getDisapprovalConfiguration(inheriting);
+            Assert.assertEquals(DisapprovalMode.ADVISORY_MODE, dc.getDisapprovalMode());
+
+            // a fresh manager reads the same from the database
+            PersistenceManager fresh = new PersistenceManager(ao, lf);
+            Assert.assertNull(fresh.getDisapprovalDefaults(projectId));
+            Assert.assertEquals(DisapprovalMode.ADVISORY_MODE, fresh.getDisapprovalConfiguration(inheriting)
+                .getDisapprovalMode());
+        } finally {
+            // the global defaults would leak into the other tests
+            cpm.clearDisapprovalDefaults(PersistenceManager.GLOBAL_DEFAULTS);
+            cpm.clearDisapprovalDefaults(projectId);
+        }
+    }
+
+    @Test
+    public void testMergeFreeze() throws Exception {
+        final int projectId = 9300;
+        Repository frozen = mockRepository(9301, projectId);
+        Repository inheriting = mockRepository(9302, projectId);
+        cpm.setDisapprovalConfiguration(frozen, DisapprovalMode.ADVISORY_MODE, false, MergeFreeze.of(true,
+            "release/*"));
+
+        try {
+            Assert.assertTrue(cpm.getMergeFreeze(frozen).appliesTo("refs/heads/release/1.0"));
+            Assert.assertFalse(cpm.getMergeFreeze(frozen).appliesTo("refs/heads/master"));
+            Assert.assertFalse(cpm.getMergeFreeze(inheriting).isFrozen());
+
+            // changing the mode alone, one at a time or in bulk, leaves the freeze alone
+            cpm.setDisapprovalConfiguration(frozen, DisapprovalMode.STRICT_MODE, true);
+            Assert.assertTrue(cpm.getMergeFreeze(frozen).appliesTo("refs/heads/release/1.0"));
+            cpm.setDisapprovalConfigurations(ImmutableList.of(9301), DisapprovalMode.STRICT_MODE, false);
+            Assert.assertTrue(cpm.getMergeFreeze(frozen).appliesTo("refs/heads/release/1.0"));
+            Assert.assertTrue(new PersistenceManager(ao, lf).getMergeFreeze(frozen).isFrozen());
+
+            // a project freeze covers repositories with a configuration of their own too
+            cpm.setDisapprovalDefaults(projectId, DisapprovalMode.STRICT_MODE, false, MergeFreeze.of(true, "master"));
+            Assert.assertTrue(cpm.getMergeFreeze(frozen).appliesTo("refs/heads/master"));
+            Assert.assertTrue(cpm.getMergeFreeze(frozen).appliesTo("refs/heads/release/1.0"));
+            Assert.assertTrue(cpm.getMergeFreeze(inheriting).appliesTo("refs/heads/master"));
+            Assert.assertFalse(cpm.getMergeFreeze(inheriting).appliesTo("refs/heads/release/1.0"));
+            // and is no part of their own configuration
+            Assert.assertFalse(cpm.getDisapprovalConfiguration(inheriting).getFreeze().isFrozen());
+
+            // the global freeze covers every branch of every repository
+            cpm.setDisapprovalDefaults(PersistenceManager.GLOBAL_DEFAULTS, DisapprovalMode.STRICT_MODE, false,
+                MergeFreeze.of(true, null));
+            Assert.assertTrue(cpm.getMergeFreeze(inheriting).appliesTo("refs/heads/anything"));
+            // but setting the defaults without a freeze keeps the one they have
+            cpm.setDisapprovalDefaults(PersistenceManager.GLOBAL_DEFAULTS, DisapprovalMode.ADVISORY_MODE, false);
+            Assert.assertTrue(cpm.getMergeFreeze(inheriting).appliesTo("refs/heads/anything"));
+
+            cpm.clearDisapprovalDefaults(PersistenceManager.GLOBAL_DEFAULTS);
+            cpm.clearDisapprovalDefaults(projectId);
+            Assert.assertFalse(cpm.getMergeFreeze(inheriting).isFrozen());
+            Assert.assertFalse(cpm.getMergeFreeze(frozen).appliesTo("refs/heads/master"));
+        } finally {
+            cpm.clearDisapprovalDefaults(PersistenceManager.GLOBAL_DEFAULTS);
+            cpm.clearDisapprovalDefaults(projectId);
+        }
     }
 
     @Test
     public void testDisapprovalConfigurationImpl() throws Exception {
 
-        DisapprovalConfiguration dc = cpm.getDisapprovalConfiguration(repo);
+        DisapprovalConfiguration dc = DisapprovalConfigurationImpl.getByRepository(ao, repo);
 
         DisapprovalMode dm = dc.getDisapprovalMode();
 
@@ -195,9 +352,525 @@ public class PersistenceManagerTest {
         dc.setDisapprovalMode(DisapprovalMode.ADVISORY_MODE);
         dc.save();
 
-        dc = cpm.getDisapprovalConfiguration(repo);
+        dc = DisapprovalConfigurationImpl.getByRepository(ao, repo);
 
         Assert.assertEquals(DisapprovalMode.ADVISORY_MODE, dc.getDisapprovalMode());
+        Assert.assertEquals(dc.getRepository(rs), repo);
+    }
+
+    @Test
+    public void testSnapshotsAreDetached() throws Exception {
+
+        cpm.setPullRequestDisapproval(pr, user, true);
+        PullRequestDisapprovalSnapshot before = cpm.getPullRequestDisapproval(pr);
+        DisapprovalConfigurationSnapshot dcBefore = cpm.getDisapprovalConfiguration(repo);
+
+        cpm.setPullRequestDisapproval(pr, null, false);
+        cpm.setDisapprovalConfiguration(repo, DisapprovalMode.ADVISORY_MODE, !dcBefore.isEnabled());
+
+        // what was handed out earlier doesn't change underneath its holder
+        Assert.assertTrue(before.isDisapproved());
+        Assert.assertEquals("someuser", before.getDisapprovedBy());
+        Assert.assertEquals(DisapprovalMode.STRICT_MODE, dcBefore.getDisapprovalMode());
+
+        Assert.assertFalse(cpm.getPullRequestDisapproval(pr).isDisapproved());
+        Assert.assertEquals(!dcBefore.isEnabled(), cpm.getDisapprovalConfiguration(repo).isEnabled());
+    }
+
+    @Test
+    public void testDisapprovalStatus() throws Exception {
+
+        int sizeOfData = ao.count(PullRequestDisapproval.class);
+
+        DisapprovalStatus status = cpm.getDisapprovalStatus(pr);
+
+        Assert.assertFalse(status.isDisapproved());
+        Assert.assertFalse(status.isEnabled());
+        Assert.assertEquals(DisapprovalMode.STRICT_MODE, status.getDisapprovalMode());
+        // reading the status never creates a pull request row
+        Assert.assertEquals(sizeOfData, ao.count(PullRequestDisapproval.class));
+
+        cpm.setPullRequestDisapproval(pr, user, true);
+        cpm.setDisapprovalConfiguration(repo, DisapprovalMode.ADVISORY_MODE, true);
+
+        status = cpm.getDisapprovalStatus(pr);
+
+        Assert.assertTrue(status.isDisapproved());
+        Assert.assertEquals("someuser", status.getDisapprovedBy());
+        // the cached configuration was replaced by the write
+        Assert.assertTrue(status.isEnabled());
+        Assert.assertEquals(DisapprovalMode.ADVISORY_MODE, status.getDisapprovalMode());
+    }
+
+    @Test
+    public void testDisapprovalStatuses() throws Exception {
+        final int repoId = 9981;
+        Mockito.when(repo.getId()).thenReturn(repoId);
+        cpm.setDisapprovalConfiguration(repo, DisapprovalMode.STRICT_MODE, true);
+        cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(1L), user, true, false);
+        // already expired, but not lifted yet
+        cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(2L), user, true, false, 1000L);
+        int sizeOfData = ao.count(PullRequestDisapproval.class);
+
+        for (int pass = 0; pass < 2; ++pass) {
+            Map<Long, DisapprovalStatus> statuses = cpm.getDisapprovalStatuses(repo, ImmutableList.of(3L, 2L, 1L));
+
+            Assert.assertEquals(ImmutableList.of(3L, 2L, 1L), ImmutableList.copyOf(statuses.keySet()));
+            Assert.assertTrue(statuses.get(1L).isDisapproved());
+            Assert.assertEquals("someuser", statuses.get(1L).getDisapprovedBy());
+            Assert.assertFalse(statuses.get(2L).isDisapproved());
+            Assert.assertFalse(statuses.get(3L).isDisapproved());
+            for (DisapprovalStatus status : statuses.values()) {
+                Assert.assertTrue(status.isEnabled());
+                Assert.assertEquals(DisapprovalMode.STRICT_MODE, status.getDisapprovalMode());
+            }
+            // the same answers once the index has been loaded
+            cpm.loadDisapprovalIndex();
+        }
+        // the single pull request read agrees that the expired disapproval is lifted, and lifts it
+        PullRequest expiredPr = Mockito.mock(PullRequest.class);
+        PullRequestRef expiredToRef = Mockito.mock(PullRequestRef.class);
+        Mockito.when(expiredPr.getId()).thenReturn(2L);
+        Mockito.when(expiredPr.getToRef()).thenReturn(expiredToRef);
+        Mockito.when(expiredToRef.getRepository()).thenReturn(repo);
+        Assert.assertFalse(cpm.getPullRequestDisapproval(expiredPr).isDisapproved());
+        Assert.assertNull(cpm.getPullRequestDisapproval(expiredPr).getDisapprovedById());
+        Assert.assertFalse(cpm.getDisapprovalStatus(expiredPr).isDisapproved());
+        Assert.assertFalse(ao.find(PullRequestDisapproval.class, "REPO_ID = ? AND PR_ID = ?", repoId, 2L)[0]
+            .isDisapproved());
+        // another node disapproves, which this node's index never hears about
+        new PersistenceManager(ao, lf).setPullRequestDisapprovals(repoId, ImmutableList.of(3L), user, true, false);
+        Assert.assertFalse(cpm.mayBeDisapproved(repoId, 3L));
+        Assert.assertTrue(cpm.getDisapprovalStatuses(repo, ImmutableList.of(3L)).get(3L).isDisapproved());
+        // reading never creates rows
+        Assert.assertEquals(sizeOfData + 1, ao.count(PullRequestDisapproval.class));
+    }
+
+    @Test
+    public void testSetPullRequestDisapprovals() throws Exception {
+        final int repoId = 9401;
+        // more than one transaction's worth
+        List<Long> prIds = new ArrayList<Long>();
+        for (long i = 1; i <= 1200; ++i) {
+            prIds.add(i);
+        }
+        StashUser other = Mockito.mock(StashUser.class);
+        Mockito.when(other.getId()).thenReturn(USER_ID + 1);
+        Mockito.when(other.getName()).thenReturn("otheruser");
+        // 1 is disapproved by someone else already, 2 has a row that isn't disapproved
+        Assert.assertEquals(BulkDisapprovalResult.CHANGED,
+            cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(1L), other, true, false).get(1L));
+        ao.create(PullRequestDisapproval.class, new DBParam("REPO_ID", repoId), new DBParam("PR_ID", 2L),
+            new DBParam("USERNAME", "None"), new DBParam("DISAPPROVED", false));
+
+        Map<Long, BulkDisapprovalResult> results = cpm.setPullRequestDisapprovals(repoId, prIds, user, true, false);
+
+        Assert.assertEquals(1200, results.size());
+        Assert.assertEquals(BulkDisapprovalResult.UNCHANGED, results.get(1L));
+        Assert.assertEquals(BulkDisapprovalResult.CHANGED, results.get(2L));
+        Assert.assertEquals(BulkDisapprovalResult.CHANGED, results.get(1200L));
+        Assert.assertEquals(1200, ao.count(PullRequestDisapproval.class, "REPO_ID = ? AND DISAPPROVED = ?", repoId,
+            true));
+        Assert.assertEquals(1199, ao.count(PullRequestDisapproval.class, "REPO_ID = ? AND USER_ID = ?", repoId,
+            USER_ID));
+
+        // only their own, unless they may remove anyone's
+        results = cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(1L, 2L), user, false, false);
+        Assert.assertEquals(BulkDisapprovalResult.NOT_PERMITTED, results.get(1L));
+        Assert.assertEquals(BulkDisapprovalResult.CHANGED, results.get(2L));
+        results = cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(1L, 2L, 5000L), user, false, true);
+        Assert.assertEquals(BulkDisapprovalResult.CHANGED, results.get(1L));
+        Assert.assertEquals(BulkDisapprovalResult.UNCHANGED, results.get(2L));
+        // removing never creates rows
+        Assert.assertEquals(BulkDisapprovalResult.UNCHANGED, results.get(5000L));
+        Assert.assertEquals(1200, ao.count(PullRequestDisapproval.class, "REPO_ID = ?", repoId));
+    }
+
+    @Test
+    public void testExpirePullRequestDisapproval() throws Exception {
+        final int repoId = 9501;
+        final long expiresAt = System.currentTimeMillis() + 60000;
+        cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(1L, 2L), user, true, false, expiresAt);
+        cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(3L), user, true, false);
+
+        List<PullRequestDisapprovalSnapshot> expiring = new ArrayList<PullRequestDisapprovalSnapshot>();
+        DisapprovalPage page = cpm.findExpiringPullRequests(0, 1);
+        while (true) {
+            for (PullRequestDisapprovalSnapshot prd : page.getValues()) {
+                if (prd.getRepositoryId() == repoId) {
+                    expiring.add(prd);
+                }
+            }
+            if (page.isLastPage()) {
+                break;
+            }
+            page = cpm.findExpiringPullRequests(page.getNextPageStart(), 1);
+        }
+        Assert.assertEquals(2, expiring.size());
+        Assert.assertEquals(Long.valueOf(expiresAt), expiring.get(0).getExpiresAt());
+
+        // only the expiry that was scheduled
+        Assert.assertNull(cpm.expirePullRequestDisapproval(repoId, 1L, expiresAt + 1));
+        PullRequestDisapprovalSnapshot expired = cpm.expirePullRequestDisapproval(repoId, 1L, expiresAt);
+        Assert.assertNotNull(expired);
+        Assert.assertEquals(USER_ID, expired.getDisapprovedById());
+        Assert.assertNull(cpm.expirePullRequestDisapproval(repoId, 1L, expiresAt));
+
+        PullRequestDisapproval[] rows = ao.find(PullRequestDisapproval.class, "REPO_ID = ? AND PR_ID = ?", repoId, 1L);
+        Assert.assertFalse(rows[0].isDisapproved());
+        Assert.assertNull(rows[0].getExpiresAt());
+        Assert.assertNull(rows[0].getDisapprovedById());
+
+        // removing a disapproval clears its expiry, so a later one isn't lifted early
+        cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(2L), user, false, false);
+        cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(2L), user, true, false);
+        Assert.assertNull(cpm.expirePullRequestDisapproval(repoId, 2L, expiresAt));
+        Assert.assertEquals(2, ao.count(PullRequestDisapproval.class, "REPO_ID = ? AND DISAPPROVED = ?", repoId,
+            true));
+    }
+
+    @Test
+    public void testRescopePolicy() throws Exception {
+        Repository repository = mockRepository(9601, 9600);
+        Assert.assertEquals(RescopePolicy.KEEP, cpm.getDisapprovalConfiguration(repository).getRescopePolicy());
+
+        cpm.setDisapprovalConfiguration(repository, DisapprovalMode.STRICT_MODE, true, null, RescopePolicy.CLEAR);
+        Assert.assertEquals(RescopePolicy.CLEAR, cpm.getDisapprovalConfiguration(repository).getRescopePolicy());
+        // changing the mode alone, one at a time or in bulk, leaves it alone
+        cpm.setDisapprovalConfiguration(repository, DisapprovalMode.ADVISORY_MODE, true);
+        cpm.setDisapprovalConfigurations(ImmutableList.of(9601), DisapprovalMode.STRICT_MODE, true);
+        Assert.assertEquals(RescopePolicy.CLEAR, new PersistenceManager(ao, lf).getDisapprovalConfiguration(repository)
+            .getRescopePolicy());
+    }
+
+    @Test
+    public void testDisapprovalIndex() throws Exception {
+        final int repoId = 9701;
+        cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(1L, 2L), user, true, false);
+
+        // can't rule anything out until it is loaded
+        Assert.assertTrue(cpm.mayBeDisapproved(repoId, 3L));
+        Assert.assertTrue(cpm.loadDisapprovalIndex() >= 2);
+        Assert.assertTrue(cpm.mayBeDisapproved(repoId, 1L));
+        Assert.assertTrue(cpm.mayBeDisapproved(repoId, 2L));
+        Assert.assertFalse(cpm.mayBeDisapproved(repoId, 3L));
+
+        // kept up to date by the writes
+        cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(2L), user, false, false);
+        cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(3L), user, true, false, 1000L);
+        Assert.assertFalse(cpm.mayBeDisapproved(repoId, 2L));
+        Assert.assertTrue(cpm.mayBeDisapproved(repoId, 3L));
+        cpm.expirePullRequestDisapproval(repoId, 3L, 1000L);
+        Assert.assertFalse(cpm.mayBeDisapproved(repoId, 3L));
+
+        cpm.deleteRepository(repoId);
+        Assert.assertFalse(cpm.mayBeDisapproved(repoId, 1L));
+    }
+
+    @Test
+    public void testDisapprovalReason() throws Exception {
+        final int repoId = 9801;
+        cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(1L, 2L), user, true, false, null, "broken build");
+        cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(3L), user, true, false);
+        Assert.assertEquals("broken build", cpm.getDisapprovalReason(repoId, 1L));
+        Assert.assertEquals("broken build", cpm.getDisapprovalReason(repoId, 2L));
+        Assert.assertNull(cpm.getDisapprovalReason(repoId, 3L));
+
+        // disapproving again changes nothing, including the reason
+        cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(1L), user, true, false, null, "something else");
+        Assert.assertEquals("broken build", cpm.getDisapprovalReason(repoId, 1L));
+
+        // removing the disapproval drops the reason, and the next disapproval has its own
+        cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(1L), user, false, false);
+        Assert.assertNull(cpm.getDisapprovalReason(repoId, 1L));
+        cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(1L), user, true, false, 1000L, "still broken");
+        Assert.assertEquals("still broken", cpm.getDisapprovalReason(repoId, 1L));
+        cpm.expirePullRequestDisapproval(repoId, 1L, 1000L);
+        Assert.assertNull(cpm.getDisapprovalReason(repoId, 1L));
+
+        // not loaded with the disapproval itself
+        Assert.assertEquals(1, ao.count(PullRequestDisapprovalReason.class, "REPO_ID = ?", repoId));
+
+        cpm.deleteRepository(repoId);
+        Assert.assertEquals(0, ao.count(PullRequestDisapprovalReason.class, "REPO_ID = ?", repoId));
+    }
+
+    @Test
+    public void testDisapprovalHistory() throws Exception {
+        final int repoId = 9901;
+        Mockito.when(repo.getId()).thenReturn(repoId);
+        StashUser other = Mockito.mock(StashUser.class);
+        Mockito.when(other.getId()).thenReturn(USER_ID + 1);
+        Mockito.when(other.getName()).thenReturn("otheruser");
+
+        Assert.assertTrue(cpm.compareAndSetPullRequestDisapproval(pr, false, null, user, true));
+        Long disapprovedAt = cpm.getPullRequestDisapproval(pr).getDisapprovedAt();
+        Assert.assertNotNull(disapprovedAt);
+        // lost the race, nothing to record
+        Assert.assertFalse(cpm.compareAndSetPullRequestDisapproval(pr, false, null, other, true));
+        Assert.assertTrue(cpm.compareAndSetPullRequestDisapproval(pr, true, USER_ID, other, false));
+        // the remover is in the history, not in the row
+        Assert.assertNull(cpm.getPullRequestDisapproval(pr).getDisapprovedById());
+        cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(PR_ID, PR_ID + 1), user, true, false, 1000L);
+        cpm.expirePullRequestDisapproval(repoId, PR_ID, 1000L);
+
+        DisapprovalHistoryPage page = cpm.findHistory(repoId, PR_ID, 0, 3);
+        Assert.assertEquals(3, page.getValues().size());
+        Assert.assertFalse(page.isLastPage());
+        Assert.assertEquals(DisapprovalAction.DISAPPROVED, page.getValues().get(0).getAction());
+        Assert.assertEquals(USER_ID, page.getValues().get(0).getUserId());
+        Assert.assertEquals(DisapprovalAction.REMOVED, page.getValues().get(1).getAction());
+        Assert.assertEquals("otheruser", page.getValues().get(1).getUsername());
+        // the removal remembers when the disapproval it lifted was given
+        Assert.assertEquals(disapprovedAt, page.getValues().get(1).getDisapprovedAt());
+        Assert.assertNull(page.getValues().get(0).getDisapprovedAt());
+        Assert.assertEquals(DisapprovalAction.DISAPPROVED, page.getValues().get(2).getAction());
+
+        page = cpm.findHistory(repoId, PR_ID, page.getNextPageStart(), 3);
+        Assert.assertEquals(1, page.getValues().size());
+        Assert.assertTrue(page.isLastPage());
+        Assert.assertEquals(DisapprovalAction.EXPIRED, page.getValues().get(0).getAction());
+        Assert.assertNull(page.getValues().get(0).getUserId());
+        Assert.assertNotNull(page.getValues().get(0).getDisapprovedAt());
+
+        Assert.assertEquals(5, cpm.findHistory(repoId, null, 0, 10).getValues().size());
+    }
+
+    @Test
+    public void testChangeFeed() throws Exception {
+        final int repoId = 9961;
+        Mockito.when(repo.getId()).thenReturn(repoId);
+        long since = cpm.findChanges(null, 0, 1000000).getNextSince();
+
+        cpm.setPullRequestDisapprovals(repoId, ImmutableList.of(PR_ID, PR_ID + 1, PR_ID + 2), user, true, false);
+        Assert.assertTrue(cpm.compareAndSetPullRequestDisapproval(pr, true, USER_ID, user, false));
+        // no change, nothing in the feed
+        Assert.assertFalse(cpm.compareAndSetPullRequestDisapproval(pr, true, USER_ID, user, false));
+
+        DisapprovalChangePage page = cpm.findChanges(repoId, since, 3);
+        Assert.assertEquals(3, page.getValues().size());
+        Assert.assertFalse(page.isLastPage());
+        long last = since;
+        for (DisapprovalHistoryEntry entry : page.getValues()) {
+            Assert.assertTrue(entry.getSequence() > last);
+            last = entry.getSequence();
+            Assert.assertEquals(DisapprovalAction.DISAPPROVED, entry.getAction());
+        }
+        Assert.assertEquals(last, page.getNextSince());
+
+        page = cpm.findChanges(repoId, page.getNextSince(), 3);
+        Assert.assertEquals(1, page.getValues().size());
+        Assert.assertTrue(page.isLastPage());
+        Assert.assertEquals(DisapprovalAction.REMOVED, page.getValues().get(0).getAction());
+        Assert.assertEquals(PR_ID.longValue(), page.getValues().get(0).getPullRequestId());
+
+        // caught up: nothing new, and the same place to ask from next time
+        page = cpm.findChanges(repoId, page.getNextSince(), 3);
+        Assert.assertTrue(page.getValues().isEmpty());
+        Assert.assertTrue(page.isLastPage());
+        Assert.assertEquals(since + 4, cpm.findChanges(null, since, 10).getNextSince());
+
+        // a fresh instance carries on after the last sequence written
+        PersistenceManager restarted = new PersistenceManager(ao, lf);
+        restarted.setPullRequestDisapproval(pr, user, true);
+        Assert.assertEquals(since + 5, restarted.findChanges(repoId, since + 4, 10).getNextSince());
+    }
+
+    @Test
+    public void testResolutions() throws Exception {
+        // long enough ago that no tracker loads them
+        final int day = 100;
+        cpm.saveResolutions(ImmutableList.of(new DisapprovalResolutionSnapshot(9951, 1, day, "4:1"),
+            new DisapprovalResolutionSnapshot(9952, null, day, "8:2"),
+            new DisapprovalResolutionSnapshot(9951, 1, day + 1, "4:1")));
+        // replaces the row for the same repository and day
+        cpm.saveResolutions(ImmutableList.of(new DisapprovalResolutionSnapshot(9951, 1, day, "4:1,9:1")));
+
+        List<DisapprovalResolutionSnapshot> rows = cpm.findResolutions(day);
+        Assert.assertEquals(2, rows.size());
+        for (DisapprovalResolutionSnapshot r : rows) {
+            Assert.assertEquals(r.getRepositoryId() == 9951 ? "4:1,9:1" : "8:2", r.getBuckets());
+        }
+        Assert.assertEquals(2, cpm.deleteResolutionsBefore(day + 1));
+        Assert.assertEquals(0, cpm.findResolutions(day).size());
+        Assert.assertEquals(1, cpm.findResolutions(day + 1).size());
+        ao.deleteWithSQL(DisapprovalResolution.class, "REPO_ID = ?", 9951);
+    }
+
+    @Test
+    public void testFindDisapprovedPullRequests() throws Exception {
+        // repositories of their own, so rows left by the other tests don't show up
+        final int repoA = 9001;
+        final int repoB = 9002;
+        for (long i = 0; i < 10; ++i) {
+            ao.create(PullRequestDisapproval.class, new DBParam("REPO_ID", i % 2 == 0 ? repoA : repoB),
+                new DBParam("PR_ID", i), new DBParam("USERNAME", "user" + (i % 3)), new DBParam("USER_ID",
+                    (int) (i % 3)), new DBParam("DISAPPROVED", i != 4 && i != 7));
+        }
+
+        // walk all pages, which must neither skip nor repeat anything
+        Set<String> seen = new HashSet<String>();
+        int start = 0;
+        int pages = 0;
+        DisapprovalPage page;
+        do {
+            page = cpm.findDisapprovedPullRequests(ImmutableList.of(repoA, repoB), null, start, 3);
+            Assert.assertTrue(page.getValues().size() <= 3);
+            for (PullRequestDisapprovalSnapshot prd : page.getValues()) {
+                Assert.assertTrue(prd.isDisapproved());
+                Assert.assertTrue(seen.add(prd.getRepositoryId() + "/" + prd.getPullRequestId()));
+            }
+            if (!page.isLastPage()) {
+                start = page.getNextPageStart();
+            }
+            ++pages;
+        } while (!page.isLastPage());
+        Assert.assertEquals(8, seen.size());
+        Assert.assertEquals(3, pages);
+
+        // repoA holds the even pull requests, 4 isn't disapproved
+        page = cpm.findDisapprovedPullRequests(ImmutableList.of(repoA), null, 0, 10);
+        Assert.assertEquals(4, page.getValues().size());
+        Assert.assertTrue(page.isLastPage());
+
+        // user 1 touched 1, 4 and 7, but only 1 is still disapproved
+        page = cpm.findDisapprovedPullRequests(ImmutableList.of(repoA, repoB), 1, 0, 10);
+        Assert.assertEquals(1, page.getValues().size());
+        Assert.assertEquals(1L, page.getValues().get(0).getPullRequestId());
+
+        Assert.assertTrue(cpm.findDisapprovedPullRequests(ImmutableList.<Integer> of(), null, 0, 10).getValues()
+            .isEmpty());
+
+        // a row from before user ids were recorded is matched by name, if one is given
+        ao.create(PullRequestDisapproval.class, new DBParam("REPO_ID", repoB), new DBParam("PR_ID", 11L),
+            new DBParam("USERNAME", "user1"), new DBParam("DISAPPROVED", true));
+        Assert.assertEquals(1, cpm.findDisapprovedPullRequests(ImmutableList.of(repoA, repoB), 1, 0, 10).getValues()
+            .size());
+        page = cpm.findDisapprovedPullRequests(ImmutableList.of(repoA, repoB), 1, "user1", 0, 10);
+        Assert.assertEquals(2, page.getValues().size());
+        Assert.assertEquals(11L, page.getValues().get(1).getPullRequestId());
+
+        // more repositories than fit in one IN list, with the two that have rows in different batches
+        List<Integer> many = new ArrayList<Integer>();
+        many.add(repoB);
+        for (int i = 1; i <= 1500; ++i) {
+            many.add(100000 + i);
+        }
+        many.add(repoA);
+        seen.clear();
+        start = 0;
+        do {
+            page = cpm.findDisapprovedPullRequests(many, null, start, 4);
+            for (PullRequestDisapprovalSnapshot prd : page.getValues()) {
+                Assert.assertTrue(seen.add(prd.getRepositoryId() + "/" + prd.getPullRequestId()));
+            }
+            if (!page.isLastPage()) {
+                Assert.assertTrue(page.getNextPageStart() > start);
+                start = page.getNextPageStart();
+            }
+        } while (!page.isLastPage());
+        Assert.assertEquals(9, seen.size());
+    }
+
+    @Test
+    public void testDeleteRepository() throws Exception {
+        // more than one delete batch
+        final int rows = 1500;
+        for (long i = 0; i < rows; ++i) {
+            ao.create(PullRequestDisapproval.class, new DBParam("REPO_ID", REPO_ID), new DBParam("PR_ID",
+                PR_ID + 1 + i), new DBParam("USERNAME", "None"), new DBParam("DISAPPROVED", i % 2 == 0));
+        }
+        cpm.setPullRequestDisapproval(pr, user, true);
+        cpm.setDisapprovalConfiguration(repo, DisapprovalMode.ADVISORY_MODE, true);
+
+        Assert.assertEquals(rows + 1, cpm.deleteRepository(REPO_ID));
+
+        Assert.assertEquals(0, ao.count(PullRequestDisapproval.class, "REPO_ID = ?", REPO_ID));
+        Assert.assertEquals(0, ao.count(DisapprovalConfiguration.class, "REPO_ID = ?", REPO_ID));
+        // the cached configuration went too, so this falls back to the defaults
+        Assert.assertFalse(cpm.getDisapprovalConfiguration(repo).isEnabled());
+
+        Assert.assertEquals(0, cpm.deleteRepository(REPO_ID));
+    }
+
+    @Test
+    public void testImportBatchIsIdempotent() throws Exception {
+        final int repoA = 8001;
+        final int repoB = 8002;
+        ImmutableList<DisapprovalConfigurationSnapshot> configs =
+            ImmutableList.of(new DisapprovalConfigurationSnapshot(repoA, true, DisapprovalMode.ADVISORY_MODE),
+                new DisapprovalConfigurationSnapshot(repoB, false, DisapprovalMode.STRICT_MODE));
+        ImmutableList<PullRequestDisapprovalSnapshot> prds =
+            ImmutableList.of(new PullRequestDisapprovalSnapshot(repoA, 1L, true, USER_ID, "someuser"),
+                new PullRequestDisapprovalSnapshot(repoA, 2L, false, null, "None"),
+                new PullRequestDisapprovalSnapshot(repoB, 1L, true, null, "gone"));
+
+        cpm.importBatch(configs, prds);
+        int configRows = ao.count(DisapprovalConfiguration.class);
+        int prRows = ao.count(PullRequestDisapproval.class);
+        cpm.importBatch(configs, prds);
+        Assert.assertEquals(configRows, ao.count(DisapprovalConfiguration.class));
+        Assert.assertEquals(prRows, ao.count(PullRequestDisapproval.class));
+
+        // overwrites rather than adds
+        cpm.importBatch(ImmutableList.<DisapprovalConfigurationSnapshot> of(),
+            ImmutableList.of(new PullRequestDisapprovalSnapshot(repoA, 1L, false, null, "None")));
+        Assert.assertEquals(prRows, ao.count(PullRequestDisapproval.class));
+
+        Set<String> seen = new HashSet<String>();
+        DisapprovalPage page = null;
+        do {
+            page = cpm.findPullRequests(page == null ? 0 : page.getNextPageStart(), 1000);
+            for (PullRequestDisapprovalSnapshot prd : page.getValues()) {
+                if (prd.getRepositoryId() == repoA || prd.getRepositoryId() == repoB) {
+                    seen.add(prd.getRepositoryId() + "/" + prd.getPullRequestId() + "/" + prd.isDisapproved());
+                }
+            }
+        } while (!page.isLastPage());
+        Assert.assertEquals(ImmutableSet.of(repoA + "/1/false", repoA + "/2/false", repoB + "/1/true"), seen);
+
+        boolean foundA = false;
+        for (DisapprovalConfigurationSnapshot dc : cpm.findConfigurations(repoA - 1, 1000)) {
+            Assert.assertTrue(dc.getRepositoryId() >= repoA);
+            if (dc.getRepositoryId() == repoA) {
+                foundA = true;
+                Assert.assertTrue(dc.isEnabled());
+                Assert.assertEquals(DisapprovalMode.ADVISORY_MODE, dc.getDisapprovalMode());
+            }
+        }
+        Assert.assertTrue(foundA);
+    }
+
+    @Test
+    public void testSetDisapprovalConfigurations() throws Exception {
+        // more than one transaction's worth, some of which already have a row
+        List<Integer> repositoryIds = new ArrayList<Integer>();
+        for (int i = 0; i < 1200; ++i) {
+            repositoryIds.add(20000 + i);
+        }
+        repositoryIds.add(REPO_ID);
+        cpm.setDisapprovalConfiguration(repo, DisapprovalMode.ADVISORY_MODE, false);
+        // cached before the bulk change, must not be served afterwards
+        Assert.assertFalse(cpm.getDisapprovalConfiguration(repo).isEnabled());
+        int before = ao.count(DisapprovalConfiguration.class);
+
+        Assert.assertEquals(1201, cpm.setDisapprovalConfigurations(repositoryIds, DisapprovalMode.STRICT_MODE, true));
+
+        Assert.assertEquals(before + 1200, ao.count(DisapprovalConfiguration.class));
+        Assert.assertEquals(1200, ao.count(DisapprovalConfiguration.class,
+            "IS_ENABLED = ? AND MODE_STR = ? AND REPO_ID >= ? AND REPO_ID < ?", true,
+            DisapprovalMode.Constants.STRICT_VALUE, 20000, 21200));
+        DisapprovalConfigurationSnapshot dc = cpm.getDisapprovalConfiguration(repo);
+        Assert.assertTrue(dc.isEnabled());
+        Assert.assertEquals(DisapprovalMode.STRICT_MODE, dc.getDisapprovalMode());
+    }
 
+    private Repository mockRepository(int repoId, int projectId) {
+        Project p = Mockito.mock(Project.class);
+        Mockito.when(p.getId()).thenReturn(projectId);
+        Repository r = Mockito.mock(Repository.class);
+        Mockito.when(r.getId()).thenReturn(repoId);
+        Mockito.when(r.getProject()).thenReturn(p);
+        return r;
     }
 }
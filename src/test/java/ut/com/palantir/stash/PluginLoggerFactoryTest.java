@@ -0,0 +1,107 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+
+public class PluginLoggerFactoryTest {
+
+    private static final String ROOT = "com.palantir.stash.disapprove";
+
+    private PluginLoggerFactory plf;
+    private Level originalLevel;
+
+    @Before
+    public void setUp() {
+        plf = new PluginLoggerFactory();
+        originalLevel = ((Logger) plf.getLogger(ROOT)).getLevel();
+    }
+
+    @After
+    public void tearDown() {
+        ((Logger) plf.getLogger(ROOT)).setLevel(originalLevel);
+    }
+
+    @Test
+    public void testConfiguresOnlyOnce() {
+        int before = countAppenders((Logger) plf.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME));
+
+        new PluginLoggerFactory();
+        new PluginLoggerFactory();
+
+        Assert.assertEquals(before, countAppenders((Logger) plf.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)));
+    }
+
+    @Test
+    public void testDebugSwitch() {
+        plf.setDebugEnabled(true);
+        Assert.assertTrue(plf.isDebugEnabled());
+        Assert.assertTrue(plf.getLogger(ROOT + ".servlet.DisapprovalServlet").isDebugEnabled());
+
+        plf.setDebugEnabled(false);
+        Assert.assertFalse(plf.isDebugEnabled());
+        Assert.assertFalse(plf.getLogger(ROOT + ".servlet.DisapprovalServlet").isDebugEnabled());
+        Assert.assertTrue(plf.getLogger(ROOT + ".servlet.DisapprovalServlet").isInfoEnabled());
+    }
+
+    @Test
+    public void testDebugReachesDebugLog() throws IOException {
+        // the shipped configuration, in a context of its own so that other tests' logging is left alone
+        File home = Files.createTempDir();
+        LoggerContext context = new LoggerContext();
+        PluginLoggerFactory shipped = new PluginLoggerFactory(context, home);
+        org.slf4j.Logger log = shipped.getLogger(ROOT + ".servlet.DisapprovalServlet");
+        Assert.assertEquals(3, countAppenders(context.getLogger(ROOT)));
+
+        log.debug("before the switch");
+        shipped.setDebugEnabled(true);
+        log.debug("after the switch");
+        log.info("informational");
+        // drains the async appenders' queues and closes the files
+        context.stop();
+
+        String debugLog = Files.toString(new File(home, "logs/disapproval-debug.log"), Charsets.UTF_8);
+        Assert.assertFalse(debugLog.contains("before the switch"));
+        Assert.assertTrue(debugLog.contains("after the switch"));
+        Assert.assertFalse(debugLog.contains("informational"));
+        String infoLog = Files.toString(new File(home, "logs/disapproval.log"), Charsets.UTF_8);
+        Assert.assertTrue(infoLog.contains("informational"));
+        Assert.assertFalse(infoLog.contains("after the switch"));
+    }
+
+    private static int countAppenders(Logger logger) {
+        int count = 0;
+        for (Iterator<Appender<ILoggingEvent>> it = logger.iteratorForAppenders(); it.hasNext(); it.next()) {
+            ++count;
+        }
+        return count;
+    }
+}
@@ -25,12 +25,15 @@ import com.atlassian.stash.pull.PullRequest;
 import com.atlassian.stash.pull.PullRequestRef;
 import com.atlassian.stash.repository.Repository;
 import com.atlassian.stash.scm.pull.MergeRequest;
+import com.atlassian.stash.user.StashUser;
+import com.atlassian.stash.user.UserService;
 import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
 import com.palantir.stash.disapprove.mergecheck.PullRequestDisapprovalMergeCheck;
-import com.palantir.stash.disapprove.persistence.DisapprovalConfiguration;
 import com.palantir.stash.disapprove.persistence.DisapprovalMode;
+import com.palantir.stash.disapprove.persistence.DisapprovalStatus;
+import com.palantir.stash.disapprove.persistence.MergeFreeze;
 import com.palantir.stash.disapprove.persistence.PersistenceManager;
-import com.palantir.stash.disapprove.persistence.PullRequestDisapproval;
+import com.palantir.stash.disapprove.user.UserNameResolver;
 
 public class PullRequestDisapprovalMergeCheckTest {
 
@@ -46,9 +49,9 @@ public class PullRequestDisapprovalMergeCheckTest {
     @Mock
     private Repository repo;
     @Mock
-    private PullRequestDisapproval prd;
+    private UserService us;
     @Mock
-    private DisapprovalConfiguration dc;
+    private StashUser disapprover;
 
     private PullRequestDisapprovalMergeCheck prdmc;
 
@@ -63,17 +66,18 @@ public class PullRequestDisapprovalMergeCheckTest {
         Mockito.when(mr.getPullRequest()).thenReturn(pr);
         Mockito.when(pr.getToRef()).thenReturn(toRef);
         Mockito.when(toRef.getRepository()).thenReturn(repo);
-        Mockito.when(pm.getPullRequestDisapproval(pr)).thenReturn(prd);
-        Mockito.when(pm.getDisapprovalConfiguration(repo)).thenReturn(dc);
-        Mockito.when(dc.getDisapprovalMode()).thenReturn(DisapprovalMode.STRICT_MODE);
-        Mockito.when(dc.isEnabled()).thenReturn(true);
+        Mockito.when(toRef.getId()).thenReturn("refs/heads/master");
+        Mockito.when(toRef.getDisplayId()).thenReturn("master");
+        Mockito.when(pm.getMergeFreeze(repo)).thenReturn(MergeFreeze.NONE);
+        Mockito.when(us.getUserById(7)).thenReturn(disapprover);
+        Mockito.when(disapprover.getDisplayName()).thenReturn("Some User");
 
-        prdmc = new PullRequestDisapprovalMergeCheck(pm, plf);
+        prdmc = new PullRequestDisapprovalMergeCheck(pm, new UserNameResolver(us, plf), plf);
     }
 
     @Test
     public void testNoDisapproval() throws Exception {
-        Mockito.when(prd.isDisapproved()).thenReturn(false);
+        setStatus(true, DisapprovalMode.STRICT_MODE, false);
 
         prdmc.check(mr);
 
@@ -82,20 +86,78 @@ public class PullRequestDisapprovalMergeCheckTest {
 
     @Test
     public void testDisapproval() throws Exception {
-        Mockito.when(prd.isDisapproved()).thenReturn(true);
+        setStatus(true, DisapprovalMode.STRICT_MODE, true);
 
         prdmc.check(mr);
 
-        Mockito.verify(mr).veto(Mockito.anyString(), Mockito.anyString());
+        // names the disapprover as they are called now, not by the stored username
+        Mockito.verify(mr).veto(Mockito.anyString(), Mockito.contains("'Some User'"));
     }
 
     @Test
     public void testDisapprovalWhenDisabled() throws Exception {
-        Mockito.when(prd.isDisapproved()).thenReturn(true);
-        Mockito.when(dc.isEnabled()).thenReturn(false);
+        setStatus(false, DisapprovalMode.STRICT_MODE, true);
+
+        prdmc.check(mr);
+
+        Mockito.verify(mr, Mockito.never()).veto(Mockito.anyString(), Mockito.anyString());
+    }
+
+    @Test
+    public void testDisapprovalInAdvisoryMode() throws Exception {
+        setStatus(true, DisapprovalMode.ADVISORY_MODE, true);
 
         prdmc.check(mr);
 
         Mockito.verify(mr, Mockito.never()).veto(Mockito.anyString(), Mockito.anyString());
     }
+
+    @Test
+    public void testVetoWhenStatusUnavailable() throws Exception {
+        Mockito.when(pm.getDisapprovalStatus(pr)).thenThrow(new SQLException("db down"));
+
+        prdmc.check(mr);
+
+        Mockito.verify(mr).veto(Mockito.anyString(), Mockito.anyString());
+    }
+
+    @Test
+    public void testNoVetoWhenConfigurationUnavailable() throws Exception {
+        Mockito.when(pm.getMergeFreeze(repo)).thenThrow(new SQLException("db down"));
+        setStatus(true, DisapprovalMode.STRICT_MODE, true);
+
+        prdmc.check(mr);
+
+        // as before the status was read in one go: a configuration that can't be read doesn't block merges
+        Mockito.verify(mr, Mockito.never()).veto(Mockito.anyString(), Mockito.anyString());
+        Mockito.verify(pm, Mockito.never()).getDisapprovalStatus(pr);
+    }
+
+    @Test
+    public void testFreeze() throws Exception {
+        Mockito.when(pm.getMergeFreeze(repo)).thenReturn(MergeFreeze.of(true, null));
+
+        prdmc.check(mr);
+
+        Mockito.verify(mr).veto(Mockito.anyString(), Mockito.contains("master"));
+        // vetoed on the configuration alone, the pull request is never looked at
+        Mockito.verify(pm, Mockito.never()).getDisapprovalStatus(pr);
+    }
+
+    @Test
+    public void testFreezeOfOtherBranches() throws Exception {
+        Mockito.when(pm.getMergeFreeze(repo)).thenReturn(MergeFreeze.of(true, "release/*"));
+        setStatus(true, DisapprovalMode.STRICT_MODE, false);
+
+        prdmc.check(mr);
+
+        Mockito.verify(mr, Mockito.never()).veto(Mockito.anyString(), Mockito.anyString());
+    }
+
+    private void setStatus(boolean enabled, DisapprovalMode mode, boolean disapproved) throws SQLException {
+        Integer disapproverId = disapproved ? Integer.valueOf(7) : null;
+        String disapproverName = disapproved ? "someuser" : "None";
+        Mockito.when(pm.getDisapprovalStatus(pr)).thenReturn(
+            new DisapprovalStatus(1, 2L, enabled, mode, disapproved, disapproverId, disapproverName));
+    }
 }
@@ -0,0 +1,120 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.comment;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.atlassian.stash.nav.NavBuilder;
+import com.atlassian.stash.pull.PullRequestService;
+import com.atlassian.stash.user.EscalatedSecurityContext;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.user.StashUser;
+import com.atlassian.stash.util.Operation;
+import com.palantir.stash.disapprove.comment.DisapprovalCommenter;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+
+public class DisapprovalCommenterTest {
+
+    @Mock
+    private PullRequestService prs;
+    @Mock
+    private SecurityService ss;
+    @Mock
+    private EscalatedSecurityContext esc;
+    @Mock
+    private NavBuilder nb;
+    @Mock
+    private StashUser user;
+
+    private DisapprovalCommenter commenter;
+
+    @Before
+    public void setUp() throws Throwable {
+        MockitoAnnotations.initMocks(this);
+
+        Mockito.when(nb.buildAbsolute()).thenReturn("http://stash");
+        Mockito.when(user.getName()).thenReturn("someuser");
+        Mockito.when(ss.impersonating(Mockito.eq(user), Mockito.anyString())).thenReturn(esc);
+        Mockito.when(esc.call(Mockito.any(Operation.class))).thenAnswer(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return ((Operation<?, ?>) invocation.getArguments()[0]).perform();
+            }
+        });
+
+        commenter = new DisapprovalCommenter(prs, ss, nb, new PluginLoggerFactory());
+        commenter.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() {
+        commenter.destroy();
+    }
+
+    @Test
+    public void testCommentLaterPostsAsTheUser() throws Exception {
+        final CountDownLatch posted = new CountDownLatch(2);
+        Mockito.when(prs.addComment(Mockito.eq(1), Mockito.anyLong(), Mockito.anyString())).thenAnswer(
+            new Answer<Object>() {
+
+                @Override
+                public Object answer(InvocationOnMock invocation) {
+                    posted.countDown();
+                    return null;
+                }
+            });
+
+        commenter.commentLater(1, 2L, user, true);
+        commenter.commentLater(1, 3L, user, false);
+
+        Assert.assertTrue(posted.await(10, TimeUnit.SECONDS));
+        Mockito.verify(ss, Mockito.times(2)).impersonating(Mockito.eq(user), Mockito.anyString());
+        Mockito.verify(prs).addComment(Mockito.eq(1), Mockito.eq(2L), Mockito.contains("Pull request disapproved"));
+        Mockito.verify(prs).addComment(Mockito.eq(1), Mockito.eq(3L), Mockito.contains("disapproval removed"));
+    }
+
+    @Test
+    public void testFailureDoesNotStopTheQueue() throws Exception {
+        final CountDownLatch posted = new CountDownLatch(1);
+        Mockito.when(prs.addComment(Mockito.eq(1), Mockito.eq(2L), Mockito.anyString())).thenThrow(
+            new IllegalStateException("pull request gone"));
+        Mockito.when(prs.addComment(Mockito.eq(1), Mockito.eq(3L), Mockito.anyString())).thenAnswer(
+            new Answer<Object>() {
+
+                @Override
+                public Object answer(InvocationOnMock invocation) {
+                    posted.countDown();
+                    return null;
+                }
+            });
+
+        commenter.commentLater(1, 2L, user, true);
+        commenter.commentLater(1, 3L, user, true);
+
+        Assert.assertTrue(posted.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -27,7 +27,7 @@ import com.google.common.collect.ImmutableMap;
 import com.palantir.stash.disapprove.conditions.IsPullRequestDisapproved;
 import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
 import com.palantir.stash.disapprove.persistence.PersistenceManager;
-import com.palantir.stash.disapprove.persistence.PullRequestDisapproval;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalSnapshot;
 
 public class IsPullRequestDisapprovedTest {
 
@@ -37,10 +37,6 @@ public class IsPullRequestDisapprovedTest {
     private PullRequest truePR;
     @Mock
     private PullRequest falsePR;
-    @Mock
-    private PullRequestDisapproval truePRD;
-    @Mock
-    private PullRequestDisapproval falsePRD;
 
     private IsPullRequestDisapproved iprd;
     private PluginLoggerFactory plf;
@@ -50,10 +46,10 @@ public class IsPullRequestDisapprovedTest {
 
         MockitoAnnotations.initMocks(this);
 
-        Mockito.when(pm.getPullRequestDisapproval(truePR)).thenReturn(truePRD);
-        Mockito.when(pm.getPullRequestDisapproval(falsePR)).thenReturn(falsePRD);
-        Mockito.when(truePRD.isDisapproved()).thenReturn(true);
-        Mockito.when(falsePRD.isDisapproved()).thenReturn(false);
+        Mockito.when(pm.getPullRequestDisapproval(truePR)).thenReturn(
+            new PullRequestDisapprovalSnapshot(1, 1L, true, 7, "someuser"));
+        Mockito.when(pm.getPullRequestDisapproval(falsePR)).thenReturn(
+            new PullRequestDisapprovalSnapshot(1, 2L, false, null, "None"));
 
         plf = new PluginLoggerFactory();
 
@@ -0,0 +1,156 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.harness;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.java.ao.RawEntity;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Wraps an {@link ActiveObjects} so every statement issued through it is counted.
+ *
+ * Reads are find/get/count/stream calls, writes are create/delete calls plus {@code save()} on any entity handed out by
+ * the wrapper. Entities are wrapped on the way out and unwrapped on the way back in, so code under test never notices.
+ */
+public class CountingActiveObjects {
+
+    private static final ImmutableSet<String> READS = ImmutableSet.of("get", "find", "findWithSQL", "stream", "count");
+    private static final ImmutableSet<String> WRITES = ImmutableSet.of("create", "delete", "deleteWithSQL");
+
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong transactions = new AtomicLong();
+
+    private final ActiveObjects ao;
+
+    public CountingActiveObjects(final ActiveObjects delegate) {
+        this.ao = (ActiveObjects) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { ActiveObjects.class }, new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    final String name = method.getName();
+                    if (READS.contains(name)) {
+                        reads.incrementAndGet();
+                    } else if (WRITES.contains(name)) {
+                        writes.incrementAndGet();
+                    } else if (name.equals("executeInTransaction")) {
+                        transactions.incrementAndGet();
+                    }
+                    return wrap(invokeUnwrapped(delegate, method, args));
+                }
+            });
+    }
+
+    public ActiveObjects getActiveObjects() {
+        return ao;
+    }
+
+    public long getReads() {
+        return reads.get();
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getTransactions() {
+        return transactions.get();
+    }
+
+    public void reset() {
+        reads.set(0);
+        writes.set(0);
+        transactions.set(0);
+    }
+
+    private Object wrap(Object result) {
+        if (result == null) {
+            return null;
+        }
+        if (result instanceof RawEntity) {
+            return wrapEntity((RawEntity<?>) result);
+        }
+        if (result.getClass().isArray() && RawEntity.class.isAssignableFrom(result.getClass().getComponentType())) {
+            int length = Array.getLength(result);
+            Object wrapped = Array.newInstance(result.getClass().getComponentType(), length);
+            for (int i = 0; i < length; ++i) {
+                Array.set(wrapped, i, wrapEntity((RawEntity<?>) Array.get(result, i)));
+            }
+            return wrapped;
+        }
+        return result;
+    }
+
+    private Object wrapEntity(final RawEntity<?> entity) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { entity.getEntityType() },
+            new EntityHandler(entity));
+    }
+
+    private static Object invokeUnwrapped(Object target, Method method, Object[] args) throws Throwable {
+        if (args != null) {
+            for (int i = 0; i < args.length; ++i) {
+                args[i] = unwrap(args[i]);
+            }
+        }
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static Object unwrap(Object arg) {
+        if (arg == null) {
+            return null;
+        }
+        if (Proxy.isProxyClass(arg.getClass()) && Proxy.getInvocationHandler(arg) instanceof EntityHandler) {
+            return ((EntityHandler) Proxy.getInvocationHandler(arg)).entity;
+        }
+        if (arg.getClass().isArray() && RawEntity.class.isAssignableFrom(arg.getClass().getComponentType())) {
+            int length = Array.getLength(arg);
+            Object unwrapped = Array.newInstance(arg.getClass().getComponentType(), length);
+            for (int i = 0; i < length; ++i) {
+                Array.set(unwrapped, i, unwrap(Array.get(arg, i)));
+            }
+            return unwrapped;
+        }
+        return arg;
+    }
+
+    private class EntityHandler implements InvocationHandler {
+
+        private final RawEntity<?> entity;
+
+        public EntityHandler(RawEntity<?> entity) {
+            this.entity = entity;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("save")) {
+                writes.incrementAndGet();
+            }
+            return invokeUnwrapped(entity, method, args);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.harness;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import ut.com.palantir.stash.harness.StashStubs.Answer;
+
+import com.atlassian.stash.exception.AuthorisationException;
+import com.atlassian.stash.i18n.KeyedMessage;
+import com.atlassian.stash.user.EscalatedSecurityContext;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Operation;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * A {@link SecurityService} stand-in that keeps track of escalation, and wrappers for services that refuse to be
+ * called outside of it.
+ *
+ * Stash's own services check the current user's permissions, and a background thread has no user at all, so a
+ * permissive mock hides work that would be refused in production. Wrap the mock with {@link #secured} and it throws
+ * {@link AuthorisationException} unless called from inside {@code withPermission(...).call(...)} or
+ * {@code impersonating(...).call(...)}.
+ */
+public final class SecurityStubs {
+
+    private final ThreadLocal<Integer> escalations = new ThreadLocal<Integer>() {
+
+        @Override
+        protected Integer initialValue() {
+            return 0;
+        }
+    };
+    private final SecurityService securityService;
+
+    public SecurityStubs() {
+        final EscalatedSecurityContext esc = StashStubs.stub(EscalatedSecurityContext.class, ImmutableMap.of(
+            "call", new Answer() {
+
+                @Override
+                public Object answer(Object[] args) throws Throwable {
+                    escalations.set(escalations.get() + 1);
+                    try {
+                        return ((Operation<?, ?>) args[0]).perform();
+                    } finally {
+                        escalations.set(escalations.get() - 1);
+                    }
+                }
+            }));
+        Answer escalate = new Answer() {
+
+            @Override
+            public Object answer(Object[] args) {
+                return esc;
+            }
+        };
+        securityService = StashStubs.stub(SecurityService.class, ImmutableMap.of(
+            "withPermission", escalate,
+            "withPermissions", escalate,
+            "impersonating", escalate));
+    }
+
+    public SecurityService getSecurityService() {
+        return securityService;
+    }
+
+    public boolean isEscalated() {
+        return escalations.get() > 0;
+    }
+
+    /**
+     * @return a {@code type} that passes calls on to {@code delegate} only while escalated
+     */
+    public <T> T secured(Class<T> type, final T delegate) {
+        InvocationHandler handler = new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (!method.getDeclaringClass().equals(Object.class) && !isEscalated()) {
+                    throw new AuthorisationException(new KeyedMessage("harness.unescalated",
+                        "Called without a security context", "Called without a security context"));
+                }
+                try {
+                    return method.invoke(delegate, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        };
+        return type.cast(Proxy.newProxyInstance(SecurityStubs.class.getClassLoader(), new Class<?>[] { type },
+            handler));
+    }
+}
@@ -0,0 +1,391 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.harness;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import ut.com.palantir.stash.harness.StashStubs.Answer;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.sal.api.auth.LoginUriProvider;
+import com.atlassian.soy.renderer.SoyTemplateRenderer;
+import com.atlassian.stash.exception.AuthorisationException;
+import com.atlassian.stash.i18n.KeyedMessage;
+import com.atlassian.stash.nav.NavBuilder;
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestRef;
+import com.atlassian.stash.pull.PullRequestService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.request.RequestContext;
+import com.atlassian.stash.request.RequestManager;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionValidationService;
+import com.atlassian.stash.user.StashAuthenticationContext;
+import com.atlassian.stash.user.StashUser;
+import com.atlassian.stash.user.UserService;
+import com.atlassian.webresource.api.assembler.PageBuilderService;
+import com.google.common.collect.ImmutableMap;
+import com.palantir.stash.disapprove.comment.DisapprovalCommenter;
+import com.palantir.stash.disapprove.config.DisapproveConfigurationServlet;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.maintenance.DisapprovalExpiryScheduler;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.servlet.DisapprovalServlet;
+import com.palantir.stash.disapprove.servlet.StaticContentServlet;
+import com.palantir.stash.disapprove.user.UserNameResolver;
+
+/**
+ * Hosts the plugin servlets in an embedded Jetty, backed by {@link StashStubs} for the Stash services and whatever
+ * {@link ActiveObjects} the test hands in (normally the AO test runner's hsqldb wrapped in
+ * {@link CountingActiveObjects}).
+ *
+ * Requests are authenticated as the user named in the {@value #USER_HEADER} header; users whose name starts with
+ * "admin" are repository administrators. Repositories are created on demand with ids 1..n in project "PROJ", and every
+ * (repository, pull request) pair resolves to a pull request.
+ */
+public class ServletHarness {
+
+    public static final String USER_HEADER = "X-Stash-User";
+    public static final String CONTEXT_PATH = "/stash";
+    public static final String PROJECT_KEY = "PROJ";
+
+    private static final ThreadLocal<StashUser> currentUser = new ThreadLocal<StashUser>();
+
+    private final ConcurrentMap<String, StashUser> users = new ConcurrentHashMap<String, StashUser>();
+    private final ConcurrentMap<Integer, StashUser> usersById = new ConcurrentHashMap<Integer, StashUser>();
+    private final AtomicInteger nextUserId = new AtomicInteger(1);
+    private final ConcurrentMap<Integer, Repository> repos = new ConcurrentHashMap<Integer, Repository>();
+    private final ConcurrentMap<String, PullRequest> prs = new ConcurrentHashMap<String, PullRequest>();
+    private final AtomicLong comments = new AtomicLong();
+
+    private final Project project;
+    private final PersistenceManager pm;
+    private final PullRequestService pullRequestService;
+    private final DisapprovalServlet disapprovalServlet;
+    private final Server server;
+
+    private String baseUrl;
+
+    public ServletHarness(ActiveObjects ao) {
+        this(new PersistenceManager(ao, new PluginLoggerFactory()));
+    }
+
+    public ServletHarness(PersistenceManager pm) {
+        PluginLoggerFactory lf = new PluginLoggerFactory();
+
+        project = StashStubs.stub(Project.class, ImmutableMap.of("getKey", PROJECT_KEY, "getId", 1, "getName",
+            "Project"));
+        this.pm = pm;
+
+        LoginUriProvider lup = StashStubs.stub(LoginUriProvider.class, ImmutableMap.of("getLoginUri",
+            URI.create("http://localhost/stash/login")));
+
+        PermissionValidationService pvs = StashStubs.stub(PermissionValidationService.class, ImmutableMap.of(
+            "validateAuthenticated", new Answer() {
+
+                @Override
+                public Object answer(Object[] args) {
+                    if (currentUser.get() == null) {
+                        throw new AuthorisationException(new KeyedMessage("harness.login", "Not logged in",
+                            "Not logged in"));
+                    }
+                    return null;
+                }
+            },
+            "validateForRepository", new Answer() {
+
+                @Override
+                public Object answer(Object[] args) {
+                    StashUser user = currentUser.get();
+                    boolean admin = user != null && user.getName().startsWith("admin");
+                    if (!admin && args[1] != Permission.REPO_READ) {
+                        throw new AuthorisationException(new KeyedMessage("harness.permission", "Not permitted",
+                            "Not permitted"));
+                    }
+                    return null;
+                }
+            }));
+
+        StashAuthenticationContext sac = StashStubs.stub(StashAuthenticationContext.class, ImmutableMap.of(
+            "getCurrentUser", new Answer() {
+
+                @Override
+                public Object answer(Object[] args) {
+                    return currentUser.get();
+                }
+            }));
+        RequestContext rc = StashStubs.stub(RequestContext.class, ImmutableMap.of("getAuthenticationContext", sac));
+        RequestManager rm = StashStubs.stub(RequestManager.class, ImmutableMap.of("getRequestContext", rc));
+
+        pullRequestService = StashStubs.stub(PullRequestService.class, ImmutableMap.of(
+            "getById", new Answer() {
+
+                @Override
+                public Object answer(Object[] args) {
+                    return getPullRequest((Integer) args[0], (Long) args[1]);
+                }
+            },
+            "addComment", new Answer() {
+
+                @Override
+                public Object answer(Object[] args) {
+                    comments.incrementAndGet();
+                    return null;
+                }
+            }));
+
+        RepositoryService repositoryService = StashStubs.stub(RepositoryService.class, ImmutableMap.of(
+            "getById", new Answer() {
+
+                @Override
+                public Object answer(Object[] args) {
+                    return getRepository((Integer) args[0]);
+                }
+            },
+            "getBySlug", new Answer() {
+
+                @Override
+                public Object answer(Object[] args) {
+                    String slug = (String) args[1];
+                    return getRepository(Integer.valueOf(slug.substring("repo-".length())));
+                }
+            }));
+
+        UserService userService = StashStubs.stub(UserService.class, ImmutableMap.of(
+            "getUserById", new Answer() {
+
+                @Override
+                public Object answer(Object[] args) {
+                    return usersById.get(args[0]);
+                }
+            },
+            "getUserByName", new Answer() {
+
+                @Override
+                public Object answer(Object[] args) {
+                    return users.get(args[0]);
+                }
+            }));
+
+        NavBuilder nb = StashStubs.stub(NavBuilder.class, ImmutableMap.of("buildAbsolute", "http://localhost/stash"));
+
+        SoyTemplateRenderer soy = StashStubs.stub(SoyTemplateRenderer.class, ImmutableMap.of("render", new Answer() {
+
+            @Override
+            public Object answer(Object[] args) throws IOException {
+                if (args.length == 4) {
+                    ((Appendable) args[0]).append("<html><body>").append(String.valueOf(args[2]))
+                        .append("</body></html>");
+                    return null;
+                }
+                return "<html></html>";
+            }
+        }));
+        PageBuilderService pbs = StashStubs.stub(PageBuilderService.class);
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath(CONTEXT_PATH);
+        // Stash hands plugin servlets the full path below /plugins/servlet for non-wildcard patterns
+        context.addServlet(new ServletHolder(asRequestUser(new StaticContentServlet(lup, pvs, pm, rm, lf))),
+            "/plugins/servlet/disapproval/static-content/*");
+        context.addServlet(new ServletHolder(asRequestUser(new DisapproveConfigurationServlet(soy, pbs, lup, pvs,
+            repositoryService, pm, lf))), "/plugins/servlet/disapproval/repo-admin/*");
+        DisapprovalCommenter commenter = new DisapprovalCommenter(pullRequestService, null, nb, lf);
+        disapprovalServlet =
+            new DisapprovalServlet(lup, pvs, pullRequestService, pm, rm, commenter, new DisapprovalExpiryScheduler(pm,
+                commenter, userService, lf), new UserNameResolver(userService, lf), lf);
+        context.addServlet(new ServletHolder(asRequestUser(disapprovalServlet)), "/plugins/servlet/*");
+
+        server = new Server(0);
+        server.setHandler(context);
+    }
+
+    public void start() throws Exception {
+        server.start();
+        baseUrl = "http://localhost:" + server.getConnectors()[0].getLocalPort() + CONTEXT_PATH;
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public PersistenceManager getPersistenceManager() {
+        return pm;
+    }
+
+    /**
+     * The servlet instance behind /disapproval/disapprove, for driving it in-process via
+     * {@link HttpServlet#service(ServletRequest, ServletResponse)}.
+     */
+    public DisapprovalServlet getDisapprovalServlet() {
+        return disapprovalServlet;
+    }
+
+    public PullRequestService getPullRequestService() {
+        return pullRequestService;
+    }
+
+    public long getCommentCount() {
+        return comments.get();
+    }
+
+    public Repository getRepository(Integer repoId) {
+        Repository repo = repos.get(repoId);
+        if (repo == null) {
+            repos.putIfAbsent(repoId, StashStubs.stub(Repository.class, ImmutableMap.of("getId", repoId, "getName",
+                "repo-" + repoId, "getSlug", "repo-" + repoId, "getProject", project)));
+            repo = repos.get(repoId);
+        }
+        return repo;
+    }
+
+    public PullRequest getPullRequest(Integer repoId, Long prId) {
+        final String key = repoId + "/" + prId;
+        PullRequest pr = prs.get(key);
+        if (pr == null) {
+            PullRequestRef toRef = StashStubs.stub(PullRequestRef.class, ImmutableMap.of("getRepository",
+                getRepository(repoId), "getId", "refs/heads/master"));
+            prs.putIfAbsent(key, StashStubs.stub(PullRequest.class, ImmutableMap.of("getId", prId, "getToRef", toRef,
+                "getFromRef", toRef, "getTitle", "Pull request " + key)));
+            pr = prs.get(key);
+        }
+        return pr;
+    }
+
+    public StashUser getUser(String name) {
+        StashUser user = users.get(name);
+        if (user == null) {
+            int id = nextUserId.getAndIncrement();
+            StashUser created = StashStubs.stub(StashUser.class, ImmutableMap.of("getName", name,
+                "getDisplayName", name, "getId", id));
+            user = users.putIfAbsent(name, created);
+            if (user == null) {
+                usersById.put(id, created);
+                user = created;
+            }
+        }
+        return user;
+    }
+
+    /**
+     * Runs the given code as if the named user were logged in, for driving plugin code directly rather than over HTTP.
+     */
+    public void setCurrentUser(String name) {
+        if (name == null) {
+            currentUser.remove();
+        } else {
+            currentUser.set(getUser(name));
+        }
+    }
+
+    ///////
+    // Client side
+    ///////
+
+    /**
+     * Performs a GET as the given user, draining the response so the connection can be reused, and returns the HTTP
+     * status.
+     */
+    public int get(String path, String user) throws IOException {
+        HttpURLConnection conn = open(path, user);
+        return drain(conn);
+    }
+
+    /**
+     * Performs a form encoded POST as the given user and returns the HTTP status.
+     */
+    public int post(String path, String user, String form) throws IOException {
+        HttpURLConnection conn = open(path, user);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        OutputStream os = conn.getOutputStream();
+        try {
+            os.write(form.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        return drain(conn);
+    }
+
+    private HttpURLConnection open(String path, String user) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        conn.setInstanceFollowRedirects(false);
+        if (user != null) {
+            conn.setRequestProperty(USER_HEADER, user);
+        }
+        return conn;
+    }
+
+    private static int drain(HttpURLConnection conn) throws IOException {
+        int status = conn.getResponseCode();
+        InputStream is = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        if (is != null) {
+            byte[] buf = new byte[4096];
+            try {
+                while (is.read(buf) != -1) {
+                    // discard
+                }
+            } finally {
+                is.close();
+            }
+        }
+        return status;
+    }
+
+    private HttpServlet asRequestUser(final HttpServlet delegate) {
+        return new HttpServlet() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void service(HttpServletRequest req, HttpServletResponse res) throws ServletException,
+                IOException {
+                String user = req.getHeader(USER_HEADER);
+                setCurrentUser(user);
+                try {
+                    delegate.service((ServletRequest) req, (ServletResponse) res);
+                } finally {
+                    currentUser.remove();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,112 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.harness;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Lightweight, thread-safe stubs for Stash service interfaces.
+ *
+ * Mockito records every invocation made against a mock, which makes mocks slow, memory hungry and not safe to hammer
+ * from many threads. The load and stress harnesses use these instead: each stub answers from a fixed map of method
+ * name to either a constant or an {@link Answer}, and anything not in the map returns a default (null, false, zero, or
+ * another stub for interface return types).
+ */
+public final class StashStubs {
+
+    /**
+     * Computes the result of a stubbed method call.
+     */
+    public interface Answer {
+
+        Object answer(Object[] args) throws Throwable;
+    }
+
+    private StashStubs() {
+    }
+
+    public static <T> T stub(Class<T> type) {
+        return stub(type, ImmutableMap.<String, Object> of());
+    }
+
+    public static <T> T stub(final Class<T> type, final Map<String, ?> answers) {
+        InvocationHandler handler = new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                final String name = method.getName();
+                if (method.getDeclaringClass().equals(Object.class)) {
+                    if (name.equals("equals")) {
+                        return proxy == args[0];
+                    }
+                    if (name.equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    }
+                    if (name.equals("toString")) {
+                        return "stub " + type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                    }
+                }
+                if (answers.containsKey(name)) {
+                    Object value = answers.get(name);
+                    if (value instanceof Answer) {
+                        return ((Answer) value).answer(args == null ? new Object[0] : args);
+                    }
+                    return value;
+                }
+                return defaultValue(method.getReturnType());
+            }
+        };
+        return type.cast(Proxy.newProxyInstance(StashStubs.class.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type.equals(Void.TYPE)) {
+            return null;
+        }
+        if (type.equals(Boolean.TYPE)) {
+            return false;
+        }
+        if (type.equals(Integer.TYPE)) {
+            return 0;
+        }
+        if (type.equals(Long.TYPE)) {
+            return 0L;
+        }
+        if (type.equals(Short.TYPE)) {
+            return (short) 0;
+        }
+        if (type.equals(Byte.TYPE)) {
+            return (byte) 0;
+        }
+        if (type.equals(Character.TYPE)) {
+            return (char) 0;
+        }
+        if (type.equals(Double.TYPE)) {
+            return 0.0d;
+        }
+        if (type.equals(Float.TYPE)) {
+            return 0.0f;
+        }
+        if (type.isInterface()) {
+            // deep stub, so fluent APIs (e.g. pageBuilderService.assembler().resources()...) just work
+            return stub(type);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,60 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.jfr;
+
+import jdk.jfr.Recording;
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.palantir.stash.disapprove.jfr.DisapprovalJfr;
+import com.palantir.stash.disapprove.jfr.MergeCheckEvent;
+
+public class DisapprovalJfrTest {
+
+    @Test
+    public void testNothingWhenNotRecording() {
+        // either there is no JFR, or nothing is recording these events
+        assertNoEvents();
+    }
+
+    @Test
+    public void testEventsWhileRecording() {
+        if (!DisapprovalJfr.isAvailable()) {
+            return;
+        }
+        Recording recording = new Recording();
+        try {
+            recording.enable("com.palantir.stash.disapprove.MergeCheck");
+            recording.start();
+
+            MergeCheckEvent event = DisapprovalJfr.beginMergeCheck();
+            Assert.assertNotNull(event);
+            event.complete(1, 2L, "allowed");
+        } finally {
+            recording.close();
+        }
+        // and nothing once the recording is over
+        assertNoEvents();
+    }
+
+    private static void assertNoEvents() {
+        Assert.assertNull(DisapprovalJfr.beginConfigurationLookup());
+        Assert.assertNull(DisapprovalJfr.beginDisapprovalLookup());
+        Assert.assertNull(DisapprovalJfr.beginTransition());
+        Assert.assertNull(DisapprovalJfr.beginMergeCheck());
+        Assert.assertNull(DisapprovalJfr.beginComment());
+        Assert.assertNull(DisapprovalJfr.beginStaticContent());
+    }
+}
@@ -0,0 +1,294 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.load;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.Assert;
+import net.java.ao.EntityManager;
+import net.java.ao.test.jdbc.Data;
+import net.java.ao.test.jdbc.DynamicJdbcConfiguration;
+import net.java.ao.test.jdbc.Jdbc;
+import net.java.ao.test.junit.ActiveObjectsJUnitRunner;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import ut.com.palantir.stash.PersistenceManagerTest.DataStuff;
+import ut.com.palantir.stash.harness.CountingActiveObjects;
+import ut.com.palantir.stash.harness.ServletHarness;
+
+import com.atlassian.activeobjects.test.TestActiveObjects;
+import com.palantir.stash.disapprove.persistence.DisapprovalMode;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+
+/**
+ * Replays "Monday morning" traffic against the servlets running in an embedded Jetty with an hsqldb backed AO.
+ *
+ * This is a harness rather than a unit test, so it only runs when asked to:
+ *
+ * <pre>
+ * atlas-mvn test -Dtest=DisapprovalLoadTest -Ddisapproval.load=true [-Ddisapproval.load.clients=32]
+ *     [-Ddisapproval.load.rows=25] [-Ddisapproval.load.iterations=20] [-Ddisapproval.load.repos=10]
+ *     [-Ddisapproval.load.prs=200]
+ * </pre>
+ *
+ * Each scenario prints one line with request count, throughput, latency percentiles and the number of AO reads and
+ * writes it caused.
+ */
+@RunWith(ActiveObjectsJUnitRunner.class)
+@Jdbc(DynamicJdbcConfiguration.class)
+@Data(DataStuff.class)
+public class DisapprovalLoadTest {
+
+    private static final String SERVLET = "/plugins/servlet/disapproval";
+
+    private final int clients = Integer.getInteger("disapproval.load.clients", 32);
+    private final int rows = Integer.getInteger("disapproval.load.rows", 25);
+    private final int iterations = Integer.getInteger("disapproval.load.iterations", 20);
+    private final int repos = Integer.getInteger("disapproval.load.repos", 10);
+    private final int prsPerRepo = Integer.getInteger("disapproval.load.prs", 200);
+
+    private EntityManager entityManager;
+    private CountingActiveObjects counting;
+    private ServletHarness harness;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("disapproval.load"));
+
+        counting = new CountingActiveObjects(new TestActiveObjects(entityManager));
+        harness = new ServletHarness(counting.getActiveObjects());
+        harness.start();
+        executor = Executors.newFixedThreadPool(clients);
+
+        // every repo enabled, every PR has its metadata row, as the de-ruiner would have arranged
+        PersistenceManager pm = harness.getPersistenceManager();
+        for (int repoId = 1; repoId <= repos; ++repoId) {
+            pm.setDisapprovalConfiguration(harness.getRepository(repoId), DisapprovalMode.STRICT_MODE, true);
+            for (long prId = 1; prId <= prsPerRepo; ++prId) {
+                pm.getPullRequestDisapproval(harness.getPullRequest(repoId, prId));
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (harness != null) {
+            harness.stop();
+        }
+    }
+
+    @Test
+    public void testMondayMorning() throws Exception {
+        // warm up the JIT and connection pools, then throw the numbers away
+        run("warmup", new PrListPage());
+
+        run("pr-list", new PrListPage());
+        run("pr-page", new PrPageView());
+        run("disapprove-burst", new DisapproveBurst());
+        run("repo-admin", new RepoAdminView());
+        run("mixed", new Mixed());
+    }
+
+    /**
+     * One unit of client work, e.g. loading a page. Implementations record the latency of every HTTP request they make.
+     */
+    private abstract class Action {
+
+        abstract void perform(int client, Random random, Latencies latencies) throws Exception;
+
+        protected void get(String path, String user, Latencies latencies) throws Exception {
+            long start = System.nanoTime();
+            int status = harness.get(path, user);
+            latencies.add(System.nanoTime() - start, status);
+        }
+
+        protected void post(String path, String user, String form, Latencies latencies) throws Exception {
+            long start = System.nanoTime();
+            int status = harness.post(path, user, form);
+            latencies.add(System.nanoTime() - start, status);
+        }
+
+        protected String statusPath(int repoId, long prId) {
+            return SERVLET + "/disapprove/" + repoId + "/" + prId;
+        }
+    }
+
+    /**
+     * disapprove-list.js: one GET per visible row.
+     */
+    private class PrListPage extends Action {
+
+        @Override
+        void perform(int client, Random random, Latencies latencies) throws Exception {
+            int repoId = 1 + random.nextInt(repos);
+            int offset = random.nextInt(Math.max(1, prsPerRepo - rows));
+            for (int row = 1; row <= rows; ++row) {
+                get(statusPath(repoId, offset + row), "user" + client, latencies);
+            }
+        }
+    }
+
+    /**
+     * disapprove.js on the PR page: the status GET plus the face image.
+     */
+    private class PrPageView extends Action {
+
+        @Override
+        void perform(int client, Random random, Latencies latencies) throws Exception {
+            int repoId = 1 + random.nextInt(repos);
+            long prId = 1 + random.nextInt(prsPerRepo);
+            get(statusPath(repoId, prId), "user" + client, latencies);
+            get(SERVLET + "/static-content/disapprovalface-trim.png", "user" + client, latencies);
+        }
+    }
+
+    /**
+     * A handful of hot PRs being disapproved and undisapproved by everyone at once.
+     */
+    private class DisapproveBurst extends Action {
+
+        @Override
+        void perform(int client, Random random, Latencies latencies) throws Exception {
+            int repoId = 1;
+            long prId = 1 + random.nextInt(5);
+            String user = random.nextBoolean() ? "admin" + client : "user" + client;
+            String disapproved = Boolean.toString(random.nextBoolean());
+            post(SERVLET + "/disapprove", user, "repoId=" + repoId + "&prId=" + prId + "&disapproved=" + disapproved,
+                latencies);
+        }
+    }
+
+    private class RepoAdminView extends Action {
+
+        @Override
+        void perform(int client, Random random, Latencies latencies) throws Exception {
+            int repoId = 1 + random.nextInt(repos);
+            get(SERVLET + "/repo-admin/" + ServletHarness.PROJECT_KEY + "/repo-" + repoId, "admin" + client,
+                latencies);
+        }
+    }
+
+    private class Mixed extends Action {
+
+        private final Action list = new PrListPage();
+        private final Action page = new PrPageView();
+        private final Action burst = new DisapproveBurst();
+
+        @Override
+        void perform(int client, Random random, Latencies latencies) throws Exception {
+            int roll = random.nextInt(100);
+            if (roll < 70) {
+                list.perform(client, random, latencies);
+            } else if (roll < 95) {
+                page.perform(client, random, latencies);
+            } else {
+                burst.perform(client, random, latencies);
+            }
+        }
+    }
+
+    private void run(final String scenario, final Action action) throws Exception {
+        counting.reset();
+        final long comments = harness.getCommentCount();
+
+        List<Future<Latencies>> futures = new ArrayList<Future<Latencies>>();
+        final long start = System.nanoTime();
+        for (int c = 0; c < clients; ++c) {
+            final int client = c;
+            futures.add(executor.submit(new Callable<Latencies>() {
+
+                @Override
+                public Latencies call() throws Exception {
+                    Random random = new Random(client);
+                    Latencies latencies = new Latencies();
+                    for (int i = 0; i < iterations; ++i) {
+                        action.perform(client, random, latencies);
+                    }
+                    return latencies;
+                }
+            }));
+        }
+        Latencies all = new Latencies();
+        for (Future<Latencies> f : futures) {
+            all.addAll(f.get());
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        Assert.assertEquals("Requests in scenario " + scenario + " failed", 0, all.errors);
+        System.out.println(all.report(scenario, elapsed, counting, harness.getCommentCount() - comments));
+    }
+
+    /**
+     * Per-thread latency samples, merged at the end of a scenario.
+     */
+    private static class Latencies {
+
+        private long[] samples = new long[1024];
+        private int size = 0;
+        private int errors = 0;
+
+        void add(long nanos, int status) {
+            if (status >= 500) {
+                ++errors;
+            }
+            if (size == samples.length) {
+                samples = Arrays.copyOf(samples, size * 2);
+            }
+            samples[size++] = nanos;
+        }
+
+        void addAll(Latencies other) {
+            for (int i = 0; i < other.size; ++i) {
+                add(other.samples[i], 200);
+            }
+            errors += other.errors;
+        }
+
+        String report(String scenario, long elapsedNanos, CountingActiveObjects db, long comments) {
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            double seconds = elapsedNanos / 1e9;
+            return String.format(
+                "scenario=%s requests=%d throughput=%.1f/s p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms "
+                    + "dbReads=%d (%.2f/req) dbWrites=%d (%.2f/req) comments=%d",
+                scenario, size, size / seconds, millis(sorted, 0.50), millis(sorted, 0.90), millis(sorted, 0.99),
+                millis(sorted, 1.0), db.getReads(), (double) db.getReads() / Math.max(1, size), db.getWrites(),
+                (double) db.getWrites() / Math.max(1, size), comments);
+        }
+
+        private static double millis(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+        }
+    }
+}
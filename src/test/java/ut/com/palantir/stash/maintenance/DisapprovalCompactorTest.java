@@ -0,0 +1,133 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.maintenance;
+
+import junit.framework.Assert;
+import net.java.ao.DBParam;
+import net.java.ao.EntityManager;
+import net.java.ao.test.jdbc.Data;
+import net.java.ao.test.jdbc.DynamicJdbcConfiguration;
+import net.java.ao.test.jdbc.Jdbc;
+import net.java.ao.test.junit.ActiveObjectsJUnitRunner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import ut.com.palantir.stash.PersistenceManagerTest.DataStuff;
+import ut.com.palantir.stash.harness.SecurityStubs;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.activeobjects.test.TestActiveObjects;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestDirection;
+import com.atlassian.stash.pull.PullRequestOrder;
+import com.atlassian.stash.pull.PullRequestService;
+import com.atlassian.stash.pull.PullRequestState;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.google.common.collect.ImmutableList;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.maintenance.DisapprovalCompactor;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapproval;
+
+@RunWith(ActiveObjectsJUnitRunner.class)
+@Jdbc(DynamicJdbcConfiguration.class)
+@Data(DataStuff.class)
+public class DisapprovalCompactorTest {
+
+    private static final int REPO_ID = 7001;
+    private static final int DELETED_REPO_ID = 7002;
+    private static final long OPEN_PR_ID = 2L;
+    private static final long DISAPPROVED_PR_ID = 5L;
+
+    private EntityManager entityManager;
+    private ActiveObjects ao;
+
+    @Mock
+    private PullRequestService prs;
+    @Mock
+    private RepositoryService rs;
+    @Mock
+    private Repository repo;
+    @Mock
+    private PullRequest openPr;
+    @Mock
+    private Page<PullRequest> openPage;
+
+    private DisapprovalCompactor compactor;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        Mockito.when(repo.getId()).thenReturn(REPO_ID);
+        Mockito.when(rs.getById(REPO_ID)).thenReturn(repo);
+        Mockito.when(openPr.getId()).thenReturn(OPEN_PR_ID);
+        Mockito.when(openPage.getValues()).thenReturn(ImmutableList.of(openPr));
+        Mockito.when(openPage.getIsLastPage()).thenReturn(true);
+        Mockito.doReturn(openPage).when(prs).findInDirection(Mockito.eq(PullRequestDirection.INCOMING),
+            Mockito.eq(REPO_ID), Mockito.eq(PullRequestState.OPEN), Mockito.any(PullRequestOrder.class),
+            Mockito.any(PageRequest.class));
+
+        ao = new TestActiveObjects(entityManager);
+
+        // don't let the throttle slow the test down
+        System.setProperty(DisapprovalCompactor.ROWS_PER_SECOND_PROPERTY, "1000000");
+        PluginLoggerFactory lf = new PluginLoggerFactory();
+        // the compaction thread has no user, so the services only answer once it has escalated
+        SecurityStubs security = new SecurityStubs();
+        compactor = new DisapprovalCompactor(new PersistenceManager(ao, lf),
+            security.secured(PullRequestService.class, prs), security.secured(RepositoryService.class, rs),
+            security.getSecurityService(), lf);
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(DisapprovalCompactor.ROWS_PER_SECOND_PROPERTY);
+    }
+
+    @Test
+    public void testDeletesClosedUndisapprovedRows() throws Exception {
+        for (long prId = 1; prId <= 6; ++prId) {
+            create(REPO_ID, prId, prId == DISAPPROVED_PR_ID);
+        }
+        create(DELETED_REPO_ID, 1L, false);
+
+        // 1, 3, 4 and 6 are closed, plus the one in the deleted repository
+        Assert.assertTrue(compactor.compact() >= 5);
+
+        PullRequestDisapproval[] left = ao.find(PullRequestDisapproval.class, "REPO_ID = ?", REPO_ID);
+        Assert.assertEquals(2, left.length);
+        for (PullRequestDisapproval prd : left) {
+            Assert.assertTrue(prd.getPullRequestId() == OPEN_PR_ID || prd.getPullRequestId() == DISAPPROVED_PR_ID);
+        }
+        Assert.assertEquals(0, ao.count(PullRequestDisapproval.class, "REPO_ID = ?", DELETED_REPO_ID));
+
+        // nothing left to do the second time around
+        Assert.assertEquals(0, compactor.compact());
+    }
+
+    private void create(int repoId, long prId, boolean disapproved) {
+        ao.create(PullRequestDisapproval.class, new DBParam("REPO_ID", repoId), new DBParam("PR_ID", prId),
+            new DBParam("USERNAME", "None"), new DBParam("DISAPPROVED", disapproved));
+    }
+}
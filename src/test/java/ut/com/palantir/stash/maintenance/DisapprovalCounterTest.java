@@ -0,0 +1,182 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.maintenance;
+
+import java.util.Collection;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import ut.com.palantir.stash.harness.SecurityStubs;
+
+import com.atlassian.stash.event.pull.PullRequestMergedEvent;
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestRef;
+import com.atlassian.stash.pull.PullRequestService;
+import com.atlassian.stash.pull.PullRequestState;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.google.common.collect.ImmutableList;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.maintenance.DisapprovalCounter;
+import com.palantir.stash.disapprove.persistence.DisapprovalAction;
+import com.palantir.stash.disapprove.persistence.DisapprovalHistoryEntry;
+import com.palantir.stash.disapprove.persistence.DisapprovalPage;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalSnapshot;
+
+public class DisapprovalCounterTest {
+
+    private static final int REPO_A = 1;
+    private static final int REPO_B = 2;
+    private static final int PROJECT_ID = 10;
+
+    @Mock
+    private PersistenceManager pm;
+    @Mock
+    private PullRequestService prs;
+    @Mock
+    private RepositoryService rs;
+    @Mock
+    private Repository repoA;
+    @Mock
+    private Repository repoB;
+    @Mock
+    private Project project;
+
+    private DisapprovalCounter counter;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        Mockito.when(project.getId()).thenReturn(PROJECT_ID);
+        Mockito.when(repoA.getId()).thenReturn(REPO_A);
+        Mockito.when(repoA.getProject()).thenReturn(project);
+        Mockito.when(repoB.getId()).thenReturn(REPO_B);
+        Mockito.when(repoB.getProject()).thenReturn(project);
+        Mockito.when(rs.getById(REPO_A)).thenReturn(repoA);
+        Mockito.when(rs.getById(REPO_B)).thenReturn(repoB);
+        mockPullRequest(repoA, 1L, PullRequestState.OPEN);
+        mockPullRequest(repoA, 2L, PullRequestState.DECLINED);
+        mockPullRequest(repoB, 3L, PullRequestState.OPEN);
+
+        // transitions and reconciliation happen on threads without a user, so these refuse unescalated calls
+        SecurityStubs security = new SecurityStubs();
+        counter = new DisapprovalCounter(pm, security.secured(PullRequestService.class, prs),
+            security.secured(RepositoryService.class, rs), security.getSecurityService(), new PluginLoggerFactory());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testReconcileAndTransitions() throws Exception {
+        Mockito.when(pm.findDisapprovedPullRequests(Mockito.anyCollection(), Mockito.anyInt(), Mockito.anyInt(),
+            Mockito.anyInt())).thenAnswer(new Answer<DisapprovalPage>() {
+
+            @Override
+            public DisapprovalPage answer(InvocationOnMock invocation) throws Throwable {
+                // disapproved while the recount is running, after the scan would have seen it
+                counter.onTransition(transition(REPO_B, 4L, DisapprovalAction.DISAPPROVED));
+                return new DisapprovalPage(ImmutableList.of(disapproved(REPO_A, 1L), disapproved(REPO_A, 2L),
+                    disapproved(REPO_B, 3L)), null);
+            }
+        });
+
+        // nothing to show before the first count
+        Assert.assertNull(counter.getRepositoryCount(REPO_A));
+
+        // the declined one doesn't count, the one disapproved during the recount does
+        Assert.assertEquals(3, counter.reconcile());
+        Assert.assertEquals(Integer.valueOf(1), counter.getRepositoryCount(REPO_A));
+        Assert.assertEquals(Integer.valueOf(2), counter.getRepositoryCount(REPO_B));
+        Assert.assertEquals(Integer.valueOf(3), counter.getProjectCount(PROJECT_ID));
+
+        // the same transition twice only counts once
+        counter.onTransition(transition(REPO_A, 5L, DisapprovalAction.DISAPPROVED));
+        counter.onTransition(transition(REPO_A, 5L, DisapprovalAction.DISAPPROVED));
+        Assert.assertEquals(Integer.valueOf(2), counter.getRepositoryCount(REPO_A));
+
+        counter.onTransition(transition(REPO_B, 3L, DisapprovalAction.EXPIRED));
+        PullRequest pr = prs.getById(REPO_A, 1L);
+        PullRequestMergedEvent merged = Mockito.mock(PullRequestMergedEvent.class);
+        Mockito.when(merged.getPullRequest()).thenReturn(pr);
+        counter.listenToMergedEvents(merged);
+        Assert.assertEquals(Integer.valueOf(1), counter.getRepositoryCount(REPO_A));
+        Assert.assertEquals(Integer.valueOf(1), counter.getRepositoryCount(REPO_B));
+        Assert.assertEquals(Integer.valueOf(2), counter.getProjectCount(PROJECT_ID));
+
+        // removing what isn't counted changes nothing
+        counter.onTransition(transition(REPO_A, 2L, DisapprovalAction.REMOVED));
+        Assert.assertEquals(Integer.valueOf(2), counter.getProjectCount(PROJECT_ID));
+        Assert.assertEquals(Integer.valueOf(0), counter.getProjectCount(PROJECT_ID + 1));
+
+        Mockito.verify(pm).findDisapprovedPullRequests((Collection<Integer>) Mockito.isNull(),
+            (Integer) Mockito.isNull(), Mockito.eq(0), Mockito.anyInt());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testTransitionOfUnknownRepository() throws Exception {
+        Mockito.when(pm.findDisapprovedPullRequests(Mockito.anyCollection(), Mockito.anyInt(), Mockito.anyInt(),
+            Mockito.anyInt())).thenReturn(new DisapprovalPage(ImmutableList.<PullRequestDisapprovalSnapshot> of(),
+            null));
+        counter.afterPropertiesSet();
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (counter.getRepositoryCount(REPO_A) == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            // as from the expiry thread: no user, so the project can't be looked up here
+            counter.onTransition(transition(REPO_A, 1L, DisapprovalAction.DISAPPROVED));
+            Assert.assertEquals(Integer.valueOf(1), counter.getRepositoryCount(REPO_A));
+
+            // the counter's own thread looks it up, and the project count catches up
+            while (counter.getProjectCount(PROJECT_ID) == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(Integer.valueOf(1), counter.getProjectCount(PROJECT_ID));
+            counter.onTransition(transition(REPO_A, 1L, DisapprovalAction.REMOVED));
+            Assert.assertEquals(Integer.valueOf(0), counter.getProjectCount(PROJECT_ID));
+        } finally {
+            counter.destroy();
+        }
+    }
+
+    private void mockPullRequest(Repository repo, long prId, PullRequestState state) {
+        PullRequest pr = Mockito.mock(PullRequest.class);
+        PullRequestRef toRef = Mockito.mock(PullRequestRef.class);
+        Mockito.when(pr.getId()).thenReturn(prId);
+        Mockito.when(pr.getState()).thenReturn(state);
+        Mockito.when(pr.getToRef()).thenReturn(toRef);
+        Mockito.when(toRef.getRepository()).thenReturn(repo);
+        Mockito.when(prs.getById(repo.getId(), prId)).thenReturn(pr);
+    }
+
+    private static PullRequestDisapprovalSnapshot disapproved(int repoId, long prId) {
+        return new PullRequestDisapprovalSnapshot(repoId, prId, true, 7, "someuser");
+    }
+
+    private static DisapprovalHistoryEntry transition(int repoId, long prId, DisapprovalAction action) {
+        return new DisapprovalHistoryEntry(1, repoId, prId, 7, "someuser", action, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,191 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.maintenance;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.atlassian.stash.event.pull.PullRequestRescopedEvent;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestRef;
+import com.atlassian.stash.pull.PullRequestService;
+import com.atlassian.stash.pull.PullRequestState;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.user.EscalatedSecurityContext;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.user.StashUser;
+import com.atlassian.stash.util.Operation;
+import com.palantir.stash.disapprove.comment.DisapprovalCommenter;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.maintenance.DisapprovalRescopeListener;
+import com.palantir.stash.disapprove.persistence.DisapprovalConfigurationSnapshot;
+import com.palantir.stash.disapprove.persistence.DisapprovalMode;
+import com.palantir.stash.disapprove.persistence.MergeFreeze;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalSnapshot;
+import com.palantir.stash.disapprove.persistence.RescopePolicy;
+
+public class DisapprovalRescopeListenerTest {
+
+    private static final int REPO_ID = 1;
+    private static final long PR_ID = 2L;
+    private static final Integer DISAPPROVER_ID = 7;
+
+    @Mock
+    private PersistenceManager pm;
+    @Mock
+    private PullRequestService prs;
+    @Mock
+    private SecurityService ss;
+    @Mock
+    private EscalatedSecurityContext esc;
+    @Mock
+    private DisapprovalCommenter commenter;
+    @Mock
+    private PullRequestRescopedEvent event;
+    @Mock
+    private PullRequest pr;
+    @Mock
+    private PullRequestRef fromRef;
+    @Mock
+    private PullRequestRef toRef;
+    @Mock
+    private Repository repo;
+    @Mock
+    private StashUser user;
+
+    private DisapprovalRescopeListener listener;
+
+    @Before
+    public void setUp() throws Throwable {
+        MockitoAnnotations.initMocks(this);
+
+        Mockito.when(event.getPullRequest()).thenReturn(pr);
+        Mockito.when(event.getUser()).thenReturn(user);
+        Mockito.when(event.getPreviousFromHash()).thenReturn("old");
+        Mockito.when(pr.getId()).thenReturn(PR_ID);
+        Mockito.when(pr.getState()).thenReturn(PullRequestState.OPEN);
+        Mockito.when(pr.getFromRef()).thenReturn(fromRef);
+        Mockito.when(pr.getToRef()).thenReturn(toRef);
+        Mockito.when(fromRef.getLatestChangeset()).thenReturn("new");
+        Mockito.when(toRef.getRepository()).thenReturn(repo);
+        Mockito.when(repo.getId()).thenReturn(REPO_ID);
+        Mockito.when(prs.getById(REPO_ID, PR_ID)).thenReturn(pr);
+        Mockito.when(pm.getPullRequestDisapproval(pr)).thenReturn(
+            new PullRequestDisapprovalSnapshot(REPO_ID, PR_ID, true, DISAPPROVER_ID, "someuser"));
+        Mockito.when(pm.compareAndSetPullRequestDisapproval(pr, true, DISAPPROVER_ID, user, false)).thenReturn(true);
+        Mockito.when(ss.impersonating(Mockito.eq(user), Mockito.anyString())).thenReturn(esc);
+        Mockito.when(esc.call(Mockito.any(Operation.class))).thenAnswer(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return ((Operation<?, ?>) invocation.getArguments()[0]).perform();
+            }
+        });
+
+        listener = new DisapprovalRescopeListener(pm, prs, ss, commenter, new PluginLoggerFactory());
+        listener.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() {
+        listener.destroy();
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        setPolicy(RescopePolicy.CLEAR);
+
+        Assert.assertEquals(RescopePolicy.CLEAR, listener.applyRescopePolicy(REPO_ID, PR_ID, user));
+        Mockito.verify(pm).compareAndSetPullRequestDisapproval(pr, true, DISAPPROVER_ID, user, false);
+        Mockito.verify(commenter).commentRescoped(REPO_ID, PR_ID, true);
+    }
+
+    @Test
+    public void testFlag() throws Exception {
+        setPolicy(RescopePolicy.FLAG);
+
+        Assert.assertEquals(RescopePolicy.FLAG, listener.applyRescopePolicy(REPO_ID, PR_ID, user));
+        Mockito.verify(pm, Mockito.never()).compareAndSetPullRequestDisapproval(Mockito.any(PullRequest.class),
+            Mockito.anyBoolean(), Mockito.anyInt(), Mockito.any(StashUser.class), Mockito.anyBoolean());
+        Mockito.verify(commenter).commentRescoped(REPO_ID, PR_ID, false);
+    }
+
+    @Test
+    public void testKeep() throws Exception {
+        setPolicy(RescopePolicy.KEEP);
+
+        Assert.assertEquals(RescopePolicy.KEEP, listener.applyRescopePolicy(REPO_ID, PR_ID, user));
+        Mockito.verify(pm, Mockito.never()).getPullRequestDisapproval(pr);
+        Mockito.verifyZeroInteractions(commenter);
+    }
+
+    @Test
+    public void testNotDisapprovedIsDroppedOnTheEventThread() throws Exception {
+        setPolicy(RescopePolicy.CLEAR);
+        Mockito.when(pm.mayBeDisapproved(REPO_ID, PR_ID)).thenReturn(false);
+
+        listener.listenToRescopedEvents(event);
+
+        Mockito.verifyZeroInteractions(prs);
+    }
+
+    @Test
+    public void testTargetBranchMovingIsIgnored() throws Exception {
+        setPolicy(RescopePolicy.CLEAR);
+        Mockito.when(pm.mayBeDisapproved(REPO_ID, PR_ID)).thenReturn(true);
+        Mockito.when(event.getPreviousFromHash()).thenReturn("new");
+
+        listener.listenToRescopedEvents(event);
+
+        Mockito.verify(pm, Mockito.never()).mayBeDisapproved(REPO_ID, PR_ID);
+    }
+
+    @Test
+    public void testDisapprovedIsHandledInTheBackground() throws Exception {
+        setPolicy(RescopePolicy.CLEAR);
+        Mockito.when(pm.mayBeDisapproved(REPO_ID, PR_ID)).thenReturn(true);
+        final CountDownLatch commented = new CountDownLatch(1);
+        Mockito.doAnswer(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                commented.countDown();
+                return null;
+            }
+        }).when(commenter).commentRescoped(REPO_ID, PR_ID, true);
+
+        listener.listenToRescopedEvents(event);
+
+        Assert.assertTrue(commented.await(10, TimeUnit.SECONDS));
+        Mockito.verify(ss).impersonating(Mockito.eq(user), Mockito.anyString());
+    }
+
+    private void setPolicy(RescopePolicy policy) throws Exception {
+        Mockito.when(pm.getDisapprovalConfiguration(repo)).thenReturn(
+            new DisapprovalConfigurationSnapshot(REPO_ID, true, DisapprovalMode.STRICT_MODE, MergeFreeze.NONE, policy,
+                false));
+    }
+}
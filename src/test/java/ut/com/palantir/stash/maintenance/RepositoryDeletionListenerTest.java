@@ -0,0 +1,83 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.maintenance;
+
+import java.sql.SQLException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.atlassian.stash.event.ProjectDeletedEvent;
+import com.atlassian.stash.event.RepositoryDeletedEvent;
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.repository.Repository;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.maintenance.RepositoryDeletionListener;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+
+public class RepositoryDeletionListenerTest {
+
+    private static final int REPO_ID = 4242;
+    private static final int PROJECT_ID = 4243;
+
+    private RepositoryDeletionListener rdl;
+
+    @Mock
+    private PersistenceManager pm;
+    @Mock
+    private RepositoryDeletedEvent rde;
+    @Mock
+    private Repository repo;
+    @Mock
+    private ProjectDeletedEvent pde;
+    @Mock
+    private Project project;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        Mockito.when(rde.getRepository()).thenReturn(repo);
+        Mockito.when(repo.getId()).thenReturn(REPO_ID);
+        Mockito.when(pde.getProject()).thenReturn(project);
+        Mockito.when(project.getId()).thenReturn(PROJECT_ID);
+
+        rdl = new RepositoryDeletionListener(pm, new PluginLoggerFactory());
+    }
+
+    @Test
+    public void testDeletesRepositoryData() throws Exception {
+        rdl.listenToRepositoryDeletedEvents(rde);
+
+        Mockito.verify(pm).deleteRepository(REPO_ID);
+    }
+
+    @Test
+    public void testFailureIsContained() throws Exception {
+        Mockito.when(pm.deleteRepository(REPO_ID)).thenThrow(new SQLException("boom"));
+
+        // must not propagate into whoever published the event
+        rdl.listenToRepositoryDeletedEvents(rde);
+    }
+
+    @Test
+    public void testDeletesProjectDefaults() throws Exception {
+        rdl.listenToProjectDeletedEvents(pde);
+
+        Mockito.verify(pm).clearDisapprovalDefaults(PROJECT_ID);
+    }
+}
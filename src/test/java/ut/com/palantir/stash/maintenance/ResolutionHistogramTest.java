@@ -0,0 +1,88 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.maintenance;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.palantir.stash.disapprove.maintenance.ResolutionHistogram;
+
+public class ResolutionHistogramTest {
+
+    @Test
+    public void testPercentiles() {
+        ResolutionHistogram h = new ResolutionHistogram();
+        Assert.assertNull(h.getPercentile(0.5));
+
+        // 90 resolutions of an hour, 10 of a day
+        for (int i = 0; i < 90; ++i) {
+            h.record(TimeUnit.HOURS.toMillis(1));
+        }
+        for (int i = 0; i < 10; ++i) {
+            h.record(TimeUnit.DAYS.toMillis(1));
+        }
+        Assert.assertEquals(100, h.getCount());
+        assertWithinBucket(TimeUnit.HOURS.toMillis(1), h.getPercentile(0.5));
+        assertWithinBucket(TimeUnit.DAYS.toMillis(1), h.getPercentile(0.95));
+        assertWithinBucket(TimeUnit.DAYS.toMillis(1), h.getPercentile(1));
+    }
+
+    @Test
+    public void testEdges() {
+        ResolutionHistogram h = new ResolutionHistogram();
+        h.record(-5);
+        h.record(0);
+        Assert.assertEquals(1000L, h.getPercentile(1).longValue());
+        // exact bounds land in their own bucket, not the next one up
+        h = new ResolutionHistogram();
+        h.record(2000);
+        Assert.assertEquals(2000L, h.getPercentile(1).longValue());
+        // far too long still counts
+        h.record(Long.MAX_VALUE / 2);
+        Assert.assertEquals(2, h.getCount());
+    }
+
+    @Test
+    public void testMergeAndEncode() {
+        ResolutionHistogram a = new ResolutionHistogram();
+        a.record(TimeUnit.MINUTES.toMillis(5));
+        ResolutionHistogram b = new ResolutionHistogram();
+        b.record(TimeUnit.MINUTES.toMillis(5));
+        b.record(TimeUnit.DAYS.toMillis(3));
+        a.merge(b);
+        Assert.assertEquals(3, a.getCount());
+
+        ResolutionHistogram decoded = ResolutionHistogram.decode(a.encode());
+        Assert.assertEquals(a.encode(), decoded.encode());
+        Assert.assertEquals(3, decoded.getCount());
+        Assert.assertEquals(a.getPercentile(0.5), decoded.getPercentile(0.5));
+        Assert.assertEquals(0, ResolutionHistogram.decode("").getCount());
+
+        try {
+            ResolutionHistogram.decode("1:2,x");
+            Assert.fail("decoded garbage");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    // never under, and less than a quarter of a doubling over
+    private static void assertWithinBucket(long expected, Long actual) {
+        Assert.assertTrue(actual + " < " + expected, actual >= expected);
+        Assert.assertTrue(actual + " too far over " + expected, actual < expected * 1.19);
+    }
+}
@@ -0,0 +1,192 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.maintenance;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+import net.java.ao.EntityManager;
+import net.java.ao.test.jdbc.Data;
+import net.java.ao.test.jdbc.DynamicJdbcConfiguration;
+import net.java.ao.test.jdbc.Jdbc;
+import net.java.ao.test.junit.ActiveObjectsJUnitRunner;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import ut.com.palantir.stash.PersistenceManagerTest.DataStuff;
+import ut.com.palantir.stash.harness.SecurityStubs;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.activeobjects.test.TestActiveObjects;
+import com.atlassian.stash.event.pull.PullRequestMergedEvent;
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestRef;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.maintenance.ResolutionHistogram;
+import com.palantir.stash.disapprove.maintenance.ResolutionTimeTracker;
+import com.palantir.stash.disapprove.persistence.DisapprovalAction;
+import com.palantir.stash.disapprove.persistence.DisapprovalHistoryEntry;
+import com.palantir.stash.disapprove.persistence.DisapprovalResolution;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapproval;
+
+@RunWith(ActiveObjectsJUnitRunner.class)
+@Jdbc(DynamicJdbcConfiguration.class)
+@Data(DataStuff.class)
+public class ResolutionTimeTrackerTest {
+
+    private static final int REPO_A = 7101;
+    private static final int REPO_B = 7102;
+    private static final int REPO_C = 7103;
+    private static final int PROJECT_ID = 71;
+    private static final int OTHER_PROJECT_ID = 72;
+
+    private EntityManager entityManager;
+    private ActiveObjects ao;
+
+    @Mock
+    private RepositoryService rs;
+    @Mock
+    private Repository repoA;
+    @Mock
+    private Repository repoB;
+    @Mock
+    private Project project;
+    @Mock
+    private Project otherProject;
+
+    private PersistenceManager pm;
+    private PluginLoggerFactory lf;
+    private SecurityStubs security;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        Mockito.when(project.getId()).thenReturn(PROJECT_ID);
+        Mockito.when(otherProject.getId()).thenReturn(OTHER_PROJECT_ID);
+        Mockito.when(repoA.getId()).thenReturn(REPO_A);
+        Mockito.when(repoA.getProject()).thenReturn(project);
+        Mockito.when(repoB.getId()).thenReturn(REPO_B);
+        Mockito.when(repoB.getProject()).thenReturn(otherProject);
+        Mockito.when(rs.getById(REPO_A)).thenReturn(repoA);
+        Mockito.when(rs.getById(REPO_B)).thenReturn(repoB);
+
+        ao = new TestActiveObjects(entityManager);
+        lf = new PluginLoggerFactory();
+        pm = new PersistenceManager(ao, lf);
+        // resolutions are recorded on threads without a user, so the repository lookups must escalate
+        security = new SecurityStubs();
+    }
+
+    @Test
+    public void testRecordCheckpointAndLoad() throws Exception {
+        long now = System.currentTimeMillis();
+        long hour = TimeUnit.HOURS.toMillis(1);
+        ResolutionTimeTracker tracker = newTracker();
+        tracker.load();
+
+        tracker.onTransition(new DisapprovalHistoryEntry(1, REPO_A, 1L, null, "None", DisapprovalAction.REMOVED, now,
+            now - hour));
+        tracker.onTransition(new DisapprovalHistoryEntry(2, REPO_B, 1L, null, "None", DisapprovalAction.EXPIRED, now,
+            now - 24 * hour));
+        // not a resolution, or no start to measure from
+        tracker.onTransition(new DisapprovalHistoryEntry(3, REPO_A, 2L, null, "None",
+            DisapprovalAction.DISAPPROVED, now, null));
+        tracker.onTransition(new DisapprovalHistoryEntry(4, REPO_A, 3L, null, "None", DisapprovalAction.REMOVED, now,
+            null));
+        // in the 30 day window but not the 7 day one, and old enough to be dropped
+        tracker.record(REPO_A, hour, now - TimeUnit.DAYS.toMillis(10));
+        tracker.record(REPO_A, hour, now - TimeUnit.DAYS.toMillis(ResolutionTimeTracker.MAX_DAYS + 1));
+
+        Assert.assertEquals(2, tracker.getTotal(7).getCount());
+        Assert.assertEquals(3, tracker.getTotal(30).getCount());
+        Map<Integer, ResolutionHistogram> byProject = tracker.getByProject(7);
+        Assert.assertEquals(1, byProject.get(PROJECT_ID).getCount());
+        Assert.assertEquals(1, byProject.get(OTHER_PROJECT_ID).getCount());
+        Assert.assertEquals(1, tracker.getByRepository(PROJECT_ID, 7).size());
+
+        Assert.assertEquals(3, tracker.checkpoint());
+        Assert.assertEquals(0, tracker.checkpoint());
+        Assert.assertEquals(3, ao.count(DisapprovalResolution.class, "REPO_ID IN (?, ?)", REPO_A, REPO_B));
+
+        // a later resolution on a day that is already saved updates its row
+        tracker.record(REPO_A, 2 * hour, now);
+        Assert.assertEquals(1, tracker.checkpoint());
+        Assert.assertEquals(3, ao.count(DisapprovalResolution.class, "REPO_ID IN (?, ?)", REPO_A, REPO_B));
+
+        // as if restarted, with one resolution recorded before the checkpoints are read
+        ResolutionTimeTracker restarted = newTracker();
+        Assert.assertNull(restarted.getTotal(7));
+        restarted.record(REPO_B, hour, now);
+        restarted.load();
+        Assert.assertEquals(4, restarted.getTotal(7).getCount());
+        Assert.assertEquals(5, restarted.getTotal(ResolutionTimeTracker.MAX_DAYS).getCount());
+        Assert.assertEquals(2, restarted.getByRepository(null, 7).get(REPO_B).getCount());
+    }
+
+    @Test
+    public void testTransitionDoesNotLookUpProject() throws Exception {
+        // a repository no other test checkpoints, so loading doesn't already know its project
+        Repository repoC = Mockito.mock(Repository.class);
+        Mockito.when(repoC.getId()).thenReturn(REPO_C);
+        Mockito.when(repoC.getProject()).thenReturn(otherProject);
+        Mockito.when(rs.getById(REPO_C)).thenReturn(repoC);
+        long now = System.currentTimeMillis();
+        ResolutionTimeTracker tracker = newTracker();
+        tracker.load();
+
+        // transitions arrive with the pull request's lock held
+        tracker.onTransition(new DisapprovalHistoryEntry(1, REPO_C, 1L, null, "None", DisapprovalAction.REMOVED, now,
+            now - TimeUnit.HOURS.toMillis(1)));
+        Mockito.verify(rs, Mockito.never()).getById(REPO_C);
+
+        Assert.assertEquals(1, tracker.getByRepository(OTHER_PROJECT_ID, 1).get(REPO_C).getCount());
+        Mockito.verify(rs).getById(REPO_C);
+    }
+
+    @Test
+    public void testMergedWithoutRow() throws Exception {
+        PullRequest pr = Mockito.mock(PullRequest.class);
+        PullRequestRef toRef = Mockito.mock(PullRequestRef.class);
+        Mockito.when(pr.getId()).thenReturn(9L);
+        Mockito.when(pr.getToRef()).thenReturn(toRef);
+        Mockito.when(toRef.getRepository()).thenReturn(repoA);
+        PullRequestMergedEvent merged = Mockito.mock(PullRequestMergedEvent.class);
+        Mockito.when(merged.getPullRequest()).thenReturn(pr);
+
+        ResolutionTimeTracker tracker = newTracker();
+        tracker.load();
+        long before = tracker.getTotal(1).getCount();
+        tracker.listenToMergedEvents(merged);
+
+        // nothing to record, and no row created just to find that out
+        Assert.assertEquals(before, tracker.getTotal(1).getCount());
+        Assert.assertEquals(0, ao.count(PullRequestDisapproval.class, "REPO_ID = ? AND PR_ID = ?", REPO_A, 9L));
+    }
+
+    private ResolutionTimeTracker newTracker() {
+        return new ResolutionTimeTracker(pm, security.secured(RepositoryService.class, rs),
+            security.getSecurityService(), lf);
+    }
+}
@@ -0,0 +1,104 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.maintenance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.palantir.stash.disapprove.maintenance.TimerWheel;
+
+public class TimerWheelTest {
+
+    private static final long TICK = 1000;
+
+    @Test
+    public void testFiresOnItsTick() {
+        TimerWheel<String> wheel = new TimerWheel<String>(TICK, 0);
+        wheel.schedule(5 * TICK, "five");
+        // not early, even part way into the tick before
+        wheel.schedule(3 * TICK + 1, "four");
+
+        Assert.assertTrue(wheel.advance(3 * TICK).isEmpty());
+        Assert.assertEquals(ImmutableList.of("four"), wheel.advance(4 * TICK));
+        Assert.assertEquals(ImmutableList.of("five"), wheel.advance(5 * TICK + 999));
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testAlreadyDue() {
+        TimerWheel<String> wheel = new TimerWheel<String>(TICK, 10 * TICK);
+        wheel.schedule(3 * TICK, "past");
+
+        Assert.assertEquals(1, wheel.size());
+        Assert.assertEquals(ImmutableList.of("past"), wheel.advance(10 * TICK));
+    }
+
+    @Test
+    public void testCascadesFromUpperLevels() {
+        long start = 12345 * TICK;
+        TimerWheel<Long> wheel = new TimerWheel<Long>(TICK, start);
+        // around a turn of level 0 and of level 1, a day, and a turn of level 2
+        long[] offsets = { 63, 64, 65, 4095, 4096, 4097, 86400, 262144 + 7 };
+        for (long offset : offsets) {
+            wheel.schedule(start + offset * TICK, offset);
+        }
+
+        for (long offset : offsets) {
+            Assert.assertTrue("early " + offset, wheel.advance(start + (offset - 1) * TICK).isEmpty());
+            Assert.assertEquals(ImmutableList.of(offset), wheel.advance(start + offset * TICK));
+        }
+    }
+
+    @Test
+    public void testRandomDeadlines() {
+        Random random = new Random(42);
+        long start = random.nextInt(1000000) * TICK;
+        TimerWheel<Long> wheel = new TimerWheel<Long>(TICK, start);
+        List<Long> deadlines = new ArrayList<Long>();
+        for (int i = 0; i < 2000; ++i) {
+            long deadline = start + (long) random.nextInt(300000) * TICK;
+            deadlines.add(deadline);
+            wheel.schedule(deadline, deadline);
+        }
+
+        int fired = 0;
+        for (long now = start; now <= start + 300000 * TICK; now += 97 * TICK) {
+            for (Long deadline : wheel.advance(now)) {
+                Assert.assertTrue(deadline <= now);
+                // at most one step late
+                Assert.assertTrue(deadline > now - 97 * TICK);
+                ++fired;
+            }
+        }
+        fired += wheel.advance(start + 400000 * TICK).size();
+        Assert.assertEquals(deadlines.size(), fired);
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testBeyondTheTopLevel() {
+        TimerWheel<String> wheel = new TimerWheel<String>(1, 0);
+        long farOut = (1L << 30) + 5;
+        wheel.schedule(farOut, "far");
+
+        Assert.assertTrue(wheel.advance(farOut - 1).isEmpty());
+        Assert.assertEquals(ImmutableList.of("far"), wheel.advance(farOut));
+    }
+}
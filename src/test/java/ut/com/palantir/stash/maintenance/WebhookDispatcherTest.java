@@ -0,0 +1,219 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.maintenance;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+import net.java.ao.EntityManager;
+import net.java.ao.test.jdbc.Data;
+import net.java.ao.test.jdbc.DynamicJdbcConfiguration;
+import net.java.ao.test.jdbc.Jdbc;
+import net.java.ao.test.junit.ActiveObjectsJUnitRunner;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import ut.com.palantir.stash.PersistenceManagerTest.DataStuff;
+import ut.com.palantir.stash.harness.SecurityStubs;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.activeobjects.test.TestActiveObjects;
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.StashUser;
+import com.google.common.collect.ImmutableList;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.maintenance.WebhookDispatcher;
+import com.palantir.stash.disapprove.persistence.DisapprovalWebhookSnapshot;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+@RunWith(ActiveObjectsJUnitRunner.class)
+@Jdbc(DynamicJdbcConfiguration.class)
+@Data(DataStuff.class)
+public class WebhookDispatcherTest {
+
+    private static final int REPO_ID = 7201;
+    private static final long TIMEOUT_MILLIS = 10000;
+    private static final String SECRET = "s3cret";
+
+    private EntityManager entityManager;
+    private ActiveObjects ao;
+
+    @Mock
+    private RepositoryService rs;
+    @Mock
+    private Repository repo;
+    @Mock
+    private Project project;
+    @Mock
+    private StashUser user;
+
+    private PersistenceManager pm;
+    private PluginLoggerFactory lf;
+    private HttpServer server;
+    // status codes to answer with, in order; 200 once they run out
+    private final List<Integer> statuses = new CopyOnWriteArrayList<Integer>();
+    private final List<String> bodies = new CopyOnWriteArrayList<String>();
+    private final List<String> signatures = new CopyOnWriteArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        Mockito.when(project.getKey()).thenReturn("PROJ");
+        Mockito.when(repo.getId()).thenReturn(REPO_ID);
+        Mockito.when(repo.getSlug()).thenReturn("slug");
+        Mockito.when(repo.getProject()).thenReturn(project);
+        Mockito.when(rs.getById(REPO_ID)).thenReturn(repo);
+        Mockito.when(user.getId()).thenReturn(1);
+        Mockito.when(user.getName()).thenReturn("bob");
+
+        ao = new TestActiveObjects(entityManager);
+        lf = new PluginLoggerFactory();
+        pm = new PersistenceManager(ao, lf);
+
+        // a stand in for the receiving end
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        final AtomicInteger requests = new AtomicInteger();
+        server.createContext("/hook", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                bodies.add(read(exchange.getRequestBody()));
+                signatures.add(String.valueOf(exchange.getRequestHeaders().getFirst(
+                    WebhookDispatcher.SIGNATURE_HEADER)));
+                int i = requests.getAndIncrement();
+                exchange.sendResponseHeaders(i < statuses.size() ? statuses.get(i) : 200, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        System.setProperty(WebhookDispatcher.BACKOFF_MILLIS_PROPERTY, "50");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop(0);
+        System.clearProperty(WebhookDispatcher.BACKOFF_MILLIS_PROPERTY);
+        System.clearProperty(WebhookDispatcher.MAX_QUEUED_PROPERTY);
+        for (DisapprovalWebhookSnapshot webhook : pm.getWebhooks(REPO_ID)) {
+            pm.deleteWebhook(webhook.getId());
+        }
+    }
+
+    @Test
+    public void testDeliversBatchAfterRetry() throws Exception {
+        statuses.add(500);
+        DisapprovalWebhookSnapshot webhook = pm.createWebhook(REPO_ID, getUrl(), SECRET);
+        WebhookDispatcher dispatcher = newDispatcher();
+        dispatcher.afterPropertiesSet();
+        try {
+            pm.setPullRequestDisapprovals(REPO_ID, ImmutableList.of(1L, 2L, 3L), user, true, false);
+
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (dispatcher.getDelivered() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+        } finally {
+            dispatcher.destroy();
+        }
+
+        Assert.assertEquals(3, dispatcher.getDelivered());
+        Assert.assertEquals(2, dispatcher.getRequests());
+        Assert.assertEquals(1, dispatcher.getFailedRequests());
+        Assert.assertEquals(0, pm.countWebhookDeliveries(webhook.getId()));
+
+        // the retry sends the same batch, all three changes in one request and in order
+        Assert.assertEquals(bodies.get(0), bodies.get(1));
+        Assert.assertEquals(WebhookDispatcher.sign(SECRET, bodies.get(1).getBytes("UTF-8")), signatures.get(1));
+        Assert.assertTrue(signatures.get(1).startsWith("sha256="));
+        JSONObject body = new JSONObject(bodies.get(1));
+        Assert.assertEquals(webhook.getId(), body.getInt("webhookId"));
+        JSONArray changes = body.getJSONArray("changes");
+        Assert.assertEquals(3, changes.length());
+        for (int i = 0; i < changes.length(); ++i) {
+            JSONObject change = changes.getJSONObject(i);
+            Assert.assertEquals(i + 1, change.getLong("pullRequestId"));
+            Assert.assertEquals("PROJ", change.getString("project"));
+            Assert.assertEquals("slug", change.getString("repo"));
+            Assert.assertEquals("DISAPPROVED", change.getString("action"));
+            Assert.assertTrue(change.getBoolean("disapproved"));
+        }
+    }
+
+    @Test
+    public void testQueueIsBounded() throws Exception {
+        System.setProperty(WebhookDispatcher.MAX_QUEUED_PROPERTY, "2");
+        DisapprovalWebhookSnapshot webhook = pm.createWebhook(REPO_ID, getUrl(), SECRET);
+        // never started, so nothing is sent and the queue only fills up
+        WebhookDispatcher dispatcher = newDispatcher();
+
+        pm.setPullRequestDisapprovals(REPO_ID, ImmutableList.of(11L, 12L, 13L), user, true, false);
+        Assert.assertEquals(2, dispatcher.pump());
+        Assert.assertEquals(1, dispatcher.getDropped());
+        Assert.assertEquals(2, pm.countWebhookDeliveries(webhook.getId()));
+
+        // the webhook has been moved past all three
+        Assert.assertEquals(0, dispatcher.pump());
+        Assert.assertTrue(bodies.isEmpty());
+    }
+
+    @Test
+    public void testSignature() throws Exception {
+        // as computed by any other HMAC-SHA256 implementation
+        Assert.assertEquals("sha256=f7bc83f430538424b13298e6aa6fb143ef4d59a14946175997479dbc2d1a3cd8",
+            WebhookDispatcher.sign("key", "The quick brown fox jumps over the lazy dog".getBytes("UTF-8")));
+        Assert.assertEquals(64, WebhookDispatcher.newSecret().length());
+    }
+
+    private WebhookDispatcher newDispatcher() {
+        // the dispatcher thread has no user, so the repository lookups only work once it escalates
+        SecurityStubs security = new SecurityStubs();
+        return new WebhookDispatcher(pm, security.secured(RepositoryService.class, rs), security.getSecurityService(),
+            lf);
+    }
+
+    private String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/hook";
+    }
+
+    private static String read(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = is.read(buffer)) >= 0) {
+            os.write(buffer, 0, n);
+        }
+        return os.toString("UTF-8");
+    }
+}
@@ -0,0 +1,280 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.stress;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Assert;
+import net.java.ao.EntityManager;
+import net.java.ao.Query;
+import net.java.ao.test.jdbc.Data;
+import net.java.ao.test.jdbc.DynamicJdbcConfiguration;
+import net.java.ao.test.jdbc.Jdbc;
+import net.java.ao.test.junit.ActiveObjectsJUnitRunner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import ut.com.palantir.stash.PersistenceManagerTest.DataStuff;
+import ut.com.palantir.stash.harness.ServletHarness;
+import ut.com.palantir.stash.harness.StashStubs;
+import ut.com.palantir.stash.harness.StashStubs.Answer;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.activeobjects.test.TestActiveObjects;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.user.StashUser;
+import com.google.common.collect.ImmutableMap;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.PersistenceManager;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapproval;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalSnapshot;
+
+/**
+ * Races disapprove/undisapprove requests for the same pull request against an hsqldb backed AO and checks the
+ * invariants: one row per pull request, one comment per real transition, and a final state that agrees with the
+ * transitions that won.
+ *
+ * The defaults keep this quick enough for every build; turn it up with -Ddisapproval.stress.threads=N and
+ * -Ddisapproval.stress.rounds=N.
+ */
+@RunWith(ActiveObjectsJUnitRunner.class)
+@Jdbc(DynamicJdbcConfiguration.class)
+@Data(DataStuff.class)
+public class DisapprovalStressTest {
+
+    private static final Integer REPO_ID = 1;
+
+    private final int threads = Integer.getInteger("disapproval.stress.threads", 8);
+    private final int rounds = Integer.getInteger("disapproval.stress.rounds", 20);
+
+    private EntityManager entityManager;
+    private ActiveObjects ao;
+    private TransitionCountingPersistenceManager pm;
+    private ServletHarness harness;
+    private ExecutorService executor;
+
+    /**
+     * Counts the transitions that actually happened, and who won them.
+     */
+    private static class TransitionCountingPersistenceManager extends PersistenceManager {
+
+        private final AtomicInteger disapprovals = new AtomicInteger();
+        private final AtomicInteger undisapprovals = new AtomicInteger();
+        private final ConcurrentLinkedQueue<String> disapprovers = new ConcurrentLinkedQueue<String>();
+
+        public TransitionCountingPersistenceManager(ActiveObjects ao, PluginLoggerFactory lf) {
+            super(ao, lf);
+        }
+
+        @Override
+        public boolean compareAndSetPullRequestDisapproval(PullRequest pr, boolean expectedDisapproval,
+            Integer expectedDisapprovedById, StashUser user, boolean isDisapproved, Long expiresAt, String reason)
+            throws SQLException {
+            boolean changed =
+                super.compareAndSetPullRequestDisapproval(pr, expectedDisapproval, expectedDisapprovedById, user,
+                    isDisapproved, expiresAt, reason);
+            if (changed && isDisapproved) {
+                disapprovals.incrementAndGet();
+                disapprovers.add(user.getName());
+            } else if (changed) {
+                undisapprovals.incrementAndGet();
+            }
+            return changed;
+        }
+
+        void reset() {
+            disapprovals.set(0);
+            undisapprovals.set(0);
+            disapprovers.clear();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        ao = new TestActiveObjects(entityManager);
+        pm = new TransitionCountingPersistenceManager(ao, new PluginLoggerFactory());
+        harness = new ServletHarness(pm);
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentDisapprovals() throws Exception {
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; ++round) {
+            final long prId = round + 1;
+            pm.reset();
+            long comments = harness.getCommentCount();
+
+            race(new Worker() {
+
+                @Override
+                public void work(int thread) throws Exception {
+                    post("user" + thread, prId, true);
+                }
+            });
+
+            Assert.assertEquals(1, countRows(prId));
+            Assert.assertEquals(1, pm.disapprovals.get());
+            Assert.assertEquals(0, pm.undisapprovals.get());
+            Assert.assertEquals(1, harness.getCommentCount() - comments);
+
+            PullRequestDisapprovalSnapshot prd = pm.getPullRequestDisapproval(harness.getPullRequest(REPO_ID, prId));
+            Assert.assertTrue(prd.isDisapproved());
+            Assert.assertEquals(pm.disapprovers.peek(), prd.getDisapprovedBy());
+        }
+        report("concurrent-disapprove", rounds * threads, System.nanoTime() - start);
+    }
+
+    @Test
+    public void testDisapproveAgainstUndisapprove() throws Exception {
+        final int opsPerThread = 25;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; ++round) {
+            final long prId = 1000 + round;
+            pm.reset();
+            long comments = harness.getCommentCount();
+
+            race(new Worker() {
+
+                @Override
+                public void work(int thread) throws Exception {
+                    for (int i = 0; i < opsPerThread; ++i) {
+                        // admins, so any of them may remove anyone's disapproval
+                        post("admin" + thread, prId, (thread + i) % 2 == 0);
+                    }
+                }
+            });
+
+            int disapprovals = pm.disapprovals.get();
+            int undisapprovals = pm.undisapprovals.get();
+
+            // every winning transition flips the state, starting from "not disapproved"
+            Assert.assertTrue(disapprovals - undisapprovals == 0 || disapprovals - undisapprovals == 1);
+            Assert.assertEquals(1, countRows(prId));
+            Assert.assertEquals(disapprovals + undisapprovals, harness.getCommentCount() - comments);
+
+            PullRequestDisapprovalSnapshot prd = pm.getPullRequestDisapproval(harness.getPullRequest(REPO_ID, prId));
+            Assert.assertEquals(disapprovals - undisapprovals == 1, prd.isDisapproved());
+        }
+        report("disapprove-vs-undisapprove", rounds * threads * opsPerThread, System.nanoTime() - start);
+    }
+
+    @Test
+    public void testConcurrentSetPullRequestDisapproval() throws Exception {
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; ++round) {
+            final PullRequest pr = harness.getPullRequest(REPO_ID, 2000L + round);
+
+            race(new Worker() {
+
+                @Override
+                public void work(int thread) throws Exception {
+                    // even threads disapprove, odd threads clear
+                    pm.setPullRequestDisapproval(pr, harness.getUser("user" + thread), thread % 2 == 0);
+                }
+            });
+
+            Assert.assertEquals(1, countRows(pr.getId()));
+            PullRequestDisapprovalSnapshot prd = pm.getPullRequestDisapproval(pr);
+            int writer = Integer.parseInt(prd.getDisapprovedBy().substring("user".length()));
+            Assert.assertEquals(writer % 2 == 0, prd.isDisapproved());
+        }
+        report("set-disapproval", rounds * threads, System.nanoTime() - start);
+    }
+
+    private interface Worker {
+
+        void work(int thread) throws Exception;
+    }
+
+    /**
+     * Runs the worker on every thread, released at the same instant, and waits for them all.
+     */
+    private void race(final Worker worker) throws Exception {
+        final CountDownLatch go = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int t = 0; t < threads; ++t) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    go.await();
+                    worker.work(thread);
+                    return null;
+                }
+            }));
+        }
+        go.countDown();
+        for (Future<Void> f : futures) {
+            f.get();
+        }
+    }
+
+    private void post(String user, long prId, boolean disapproved) throws Exception {
+        final Map<String, String> params =
+            ImmutableMap.of("repoId", REPO_ID.toString(), "prId", Long.toString(prId), "disapproved",
+                Boolean.toString(disapproved));
+        HttpServletRequest req = StashStubs.stub(HttpServletRequest.class, ImmutableMap.of("getMethod", "POST",
+            "getParameter", new Answer() {
+
+                @Override
+                public Object answer(Object[] args) {
+                    return params.get(args[0]);
+                }
+            }));
+        HttpServletResponse res =
+            StashStubs.stub(HttpServletResponse.class, ImmutableMap.of("getWriter",
+                new PrintWriter(new StringWriter())));
+
+        harness.setCurrentUser(user);
+        try {
+            harness.getDisapprovalServlet().service(req, res);
+        } finally {
+            harness.setCurrentUser(null);
+        }
+    }
+
+    private int countRows(long prId) {
+        return ao.count(PullRequestDisapproval.class, Query.select().where("REPO_ID = ? AND PR_ID = ?", REPO_ID, prId));
+    }
+
+    private void report(String scenario, int operations, long elapsedNanos) {
+        System.out.println(String.format("scenario=%s threads=%d operations=%d throughput=%.1f/s", scenario, threads,
+            operations, operations / (elapsedNanos / 1e9)));
+    }
+}
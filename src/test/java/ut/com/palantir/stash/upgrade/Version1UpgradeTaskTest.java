@@ -0,0 +1,113 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.upgrade;
+
+import junit.framework.Assert;
+import net.java.ao.DBParam;
+import net.java.ao.EntityManager;
+import net.java.ao.Query;
+import net.java.ao.test.jdbc.Data;
+import net.java.ao.test.jdbc.DynamicJdbcConfiguration;
+import net.java.ao.test.jdbc.Jdbc;
+import net.java.ao.test.junit.ActiveObjectsJUnitRunner;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import ut.com.palantir.stash.PersistenceManagerTest.DataStuff;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.activeobjects.external.ModelVersion;
+import com.atlassian.activeobjects.test.TestActiveObjects;
+import com.atlassian.stash.user.StashUser;
+import com.atlassian.stash.user.UserService;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapproval;
+import com.palantir.stash.disapprove.upgrade.Version1UpgradeTask;
+
+@RunWith(ActiveObjectsJUnitRunner.class)
+@Jdbc(DynamicJdbcConfiguration.class)
+@Data(DataStuff.class)
+public class Version1UpgradeTaskTest {
+
+    private static final Integer REPO_ID = 1;
+    private static final Integer ALICE_ID = 11;
+    // more than one batch
+    private static final int ALICE_ROWS = 1200;
+
+    private EntityManager entityManager;
+    private ActiveObjects ao;
+
+    @Mock
+    private UserService us;
+    @Mock
+    private StashUser alice;
+
+    private Version1UpgradeTask task;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        Mockito.when(alice.getId()).thenReturn(ALICE_ID);
+        Mockito.when(us.getUserByName("alice")).thenReturn(alice);
+
+        ao = new TestActiveObjects(entityManager);
+        task = new Version1UpgradeTask(us, new PluginLoggerFactory());
+    }
+
+    @Test
+    public void testResolvesUsernames() throws Exception {
+        long prId = 1;
+        for (int i = 0; i < ALICE_ROWS; ++i) {
+            create(prId++, "alice");
+        }
+        create(prId++, "deleteduser");
+        create(prId++, "None");
+
+        task.upgrade(ModelVersion.valueOf("0"), ao);
+
+        Assert.assertEquals(ALICE_ROWS,
+            ao.count(PullRequestDisapproval.class, Query.select().where("USER_ID = ?", ALICE_ID)));
+        Assert.assertEquals(2, ao.count(PullRequestDisapproval.class, Query.select().where("USER_ID IS NULL")));
+        // the stored names are left alone, they are what is shown for deleted users
+        Assert.assertEquals(1,
+            ao.count(PullRequestDisapproval.class, Query.select().where("USERNAME = ?", "deleteduser")));
+
+        // one lookup per distinct name, not per row
+        Mockito.verify(us, Mockito.times(1)).getUserByName("alice");
+        Mockito.verify(us, Mockito.times(1)).getUserByName("deleteduser");
+        Mockito.verify(us, Mockito.never()).getUserByName("None");
+    }
+
+    @Test
+    public void testRerunIsHarmless() throws Exception {
+        create(1L, "alice");
+
+        task.upgrade(ModelVersion.valueOf("0"), ao);
+        task.upgrade(ModelVersion.valueOf("0"), ao);
+
+        Assert.assertEquals(1, ao.count(PullRequestDisapproval.class, Query.select().where("USER_ID = ?", ALICE_ID)));
+        Mockito.verify(us, Mockito.times(1)).getUserByName("alice");
+    }
+
+    private void create(long prId, String username) {
+        ao.create(PullRequestDisapproval.class, new DBParam("REPO_ID", REPO_ID), new DBParam("PR_ID", prId),
+            new DBParam("USERNAME", username), new DBParam("DISAPPROVED", true));
+    }
+}
@@ -0,0 +1,76 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.upgrade;
+
+import junit.framework.Assert;
+import net.java.ao.DBParam;
+import net.java.ao.EntityManager;
+import net.java.ao.test.jdbc.Data;
+import net.java.ao.test.jdbc.DynamicJdbcConfiguration;
+import net.java.ao.test.jdbc.Jdbc;
+import net.java.ao.test.junit.ActiveObjectsJUnitRunner;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import ut.com.palantir.stash.PersistenceManagerTest.DataStuff;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.activeobjects.external.ModelVersion;
+import com.atlassian.activeobjects.test.TestActiveObjects;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.DisapprovalConfiguration;
+import com.palantir.stash.disapprove.persistence.DisapprovalMode;
+import com.palantir.stash.disapprove.upgrade.Version2UpgradeTask;
+
+@RunWith(ActiveObjectsJUnitRunner.class)
+@Jdbc(DynamicJdbcConfiguration.class)
+@Data(DataStuff.class)
+public class Version2UpgradeTaskTest {
+
+    private static final int UNTOUCHED_REPO_ID = 30001;
+    private static final int ADVISORY_REPO_ID = 30002;
+    private static final int ENABLED_REPO_ID = 30003;
+
+    private EntityManager entityManager;
+    private ActiveObjects ao;
+
+    private Version2UpgradeTask task;
+
+    @Before
+    public void setUp() throws Exception {
+        ao = new TestActiveObjects(entityManager);
+        task = new Version2UpgradeTask(new PluginLoggerFactory());
+    }
+
+    @Test
+    public void testKeepsRepositoryConfigurations() throws Exception {
+        create(UNTOUCHED_REPO_ID, DisapprovalMode.STRICT_MODE, false);
+        create(ADVISORY_REPO_ID, DisapprovalMode.ADVISORY_MODE, false);
+        create(ENABLED_REPO_ID, DisapprovalMode.STRICT_MODE, true);
+
+        task.upgrade(ModelVersion.valueOf("1"), ao);
+
+        // strict and disabled may be an admin's choice, so even that row stays
+        Assert.assertEquals(1, ao.count(DisapprovalConfiguration.class, "REPO_ID = ?", UNTOUCHED_REPO_ID));
+        Assert.assertEquals(1, ao.count(DisapprovalConfiguration.class, "REPO_ID = ?", ADVISORY_REPO_ID));
+        Assert.assertEquals(1, ao.count(DisapprovalConfiguration.class, "REPO_ID = ?", ENABLED_REPO_ID));
+    }
+
+    private void create(int repoId, DisapprovalMode mode, boolean enabled) {
+        ao.create(DisapprovalConfiguration.class, new DBParam("REPO_ID", repoId), new DBParam("MODE_STR",
+            mode.getMode()), new DBParam("IS_ENABLED", enabled));
+    }
+}
@@ -0,0 +1,92 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.upgrade;
+
+import junit.framework.Assert;
+import net.java.ao.DBParam;
+import net.java.ao.EntityManager;
+import net.java.ao.test.jdbc.Data;
+import net.java.ao.test.jdbc.DynamicJdbcConfiguration;
+import net.java.ao.test.jdbc.Jdbc;
+import net.java.ao.test.junit.ActiveObjectsJUnitRunner;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import ut.com.palantir.stash.PersistenceManagerTest.DataStuff;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.activeobjects.external.ModelVersion;
+import com.atlassian.activeobjects.test.TestActiveObjects;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.persistence.DisapprovalAction;
+import com.palantir.stash.disapprove.persistence.DisapprovalConfiguration;
+import com.palantir.stash.disapprove.persistence.DisapprovalDefaults;
+import com.palantir.stash.disapprove.persistence.DisapprovalHistory;
+import com.palantir.stash.disapprove.persistence.DisapprovalMode;
+import com.palantir.stash.disapprove.persistence.DisapprovalResolution;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapproval;
+import com.palantir.stash.disapprove.persistence.PullRequestDisapprovalReason;
+import com.palantir.stash.disapprove.upgrade.Version3UpgradeTask;
+
+@RunWith(ActiveObjectsJUnitRunner.class)
+@Jdbc(DynamicJdbcConfiguration.class)
+@Data(DataStuff.class)
+public class Version3UpgradeTaskTest {
+
+    private static final int REPO_ID = 31001;
+    private static final int PROJECT_ID = 31002;
+
+    private EntityManager entityManager;
+    private ActiveObjects ao;
+
+    private Version3UpgradeTask task;
+
+    @Before
+    public void setUp() throws Exception {
+        ao = new TestActiveObjects(entityManager);
+        task = new Version3UpgradeTask(new PluginLoggerFactory());
+    }
+
+    @Test
+    public void testNumbersHistoryAndKeepsEverythingElse() throws Exception {
+        ao.create(DisapprovalConfiguration.class, new DBParam("REPO_ID", REPO_ID), new DBParam("MODE_STR",
+            DisapprovalMode.ADVISORY_MODE.getMode()), new DBParam("IS_ENABLED", true));
+        ao.create(DisapprovalDefaults.class, new DBParam("PROJECT_ID", PROJECT_ID));
+        ao.create(PullRequestDisapproval.class, new DBParam("REPO_ID", REPO_ID), new DBParam("PR_ID", 1L),
+            new DBParam("USERNAME", "someuser"), new DBParam("DISAPPROVED", true));
+        ao.create(PullRequestDisapprovalReason.class, new DBParam("REPO_ID", REPO_ID), new DBParam("PR_ID", 1L),
+            new DBParam("REASON", "not yet"));
+        ao.create(DisapprovalResolution.class, new DBParam("REPO_ID", REPO_ID), new DBParam("RESOLVED_DAY", 1),
+            new DBParam("BUCKETS", ""));
+        DisapprovalHistory h = ao.create(DisapprovalHistory.class, new DBParam("REPO_ID", REPO_ID),
+            new DBParam("PR_ID", 1L), new DBParam("USERNAME", "someuser"), new DBParam("ACTION",
+                DisapprovalAction.DISAPPROVED.name()), new DBParam("CREATED_AT", System.currentTimeMillis()));
+
+        task.upgrade(ModelVersion.valueOf("2"), ao);
+
+        // the history row is numbered by its id
+        DisapprovalHistory[] history = ao.find(DisapprovalHistory.class, "ID = ?", h.getID());
+        Assert.assertEquals(1, history.length);
+        Assert.assertEquals(Long.valueOf(h.getID()), history[0].getSequence());
+
+        // and nothing else was lost on the way
+        Assert.assertEquals(1, ao.count(DisapprovalConfiguration.class, "REPO_ID = ?", REPO_ID));
+        Assert.assertEquals(1, ao.count(DisapprovalDefaults.class, "PROJECT_ID = ?", PROJECT_ID));
+        Assert.assertEquals(1, ao.count(PullRequestDisapproval.class, "REPO_ID = ?", REPO_ID));
+        Assert.assertEquals(1, ao.count(PullRequestDisapprovalReason.class, "REPO_ID = ?", REPO_ID));
+        Assert.assertEquals(1, ao.count(DisapprovalResolution.class, "REPO_ID = ?", REPO_ID));
+    }
+}
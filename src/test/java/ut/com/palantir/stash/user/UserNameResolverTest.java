@@ -0,0 +1,65 @@
+// Copyright 2014 Palantir Technologies
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package ut.com.palantir.stash.user;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.atlassian.stash.user.StashUser;
+import com.atlassian.stash.user.UserService;
+import com.palantir.stash.disapprove.logger.PluginLoggerFactory;
+import com.palantir.stash.disapprove.user.UserNameResolver;
+
+public class UserNameResolverTest {
+
+    @Mock
+    private UserService us;
+    @Mock
+    private StashUser user;
+
+    private UserNameResolver names;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        Mockito.when(us.getUserById(5)).thenReturn(user);
+        Mockito.when(user.getDisplayName()).thenReturn("Some User");
+
+        names = new UserNameResolver(us, new PluginLoggerFactory());
+    }
+
+    @Test
+    public void testResolvesAndCaches() {
+        Assert.assertEquals("Some User", names.getDisplayName(5, "someuser"));
+        Assert.assertEquals("Some User", names.getDisplayName(5, "someuser"));
+
+        Mockito.verify(us, Mockito.times(1)).getUserById(5);
+    }
+
+    @Test
+    public void testFallsBack() {
+        // no id stored
+        Assert.assertEquals("someuser", names.getDisplayName(null, "someuser"));
+        // deleted user, also cached
+        Assert.assertEquals("gone", names.getDisplayName(6, "gone"));
+        Assert.assertEquals("gone", names.getDisplayName(6, "gone"));
+
+        Mockito.verify(us, Mockito.times(1)).getUserById(6);
+    }
+}